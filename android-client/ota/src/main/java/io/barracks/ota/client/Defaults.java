@@ -28,8 +28,36 @@ public class Defaults {
      * Default temporary destination for the package download
      */
     public static final String DEFAULT_TMP_DL_DESTINATION = "update.tmp";
+    /**
+     * Default suffix of the temporary destination, next to a custom final destination
+     */
+    public static final String DEFAULT_TMP_SUFFIX = ".tmp";
     /**
      * Default final destination for the package download
      */
     public static final String DEFAULT_FINAL_DL_DESTINATION = "update.final";
+    /**
+     * Default directory of the packages kept after their download
+     */
+    public static final String DEFAULT_PACKAGE_STORE = "packages";
+    /**
+     * Default maximum size of the packages kept after their download, the store is disabled
+     */
+    public static final long DEFAULT_PACKAGE_STORE_QUOTA = 0;
+    /**
+     * Default space left free on the storage by a package download
+     */
+    public static final long DEFAULT_STORAGE_HEADROOM = 4 * 1024 * 1024;
+    /**
+     * Default directory of the responses kept for the conditional update checks
+     */
+    public static final String DEFAULT_UPDATE_CACHE = "checks";
+    /**
+     * Default maximum number of requests sent in a single batch update check
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+    /**
+     * Default file of the journal keeping track of the update checks and package downloads
+     */
+    public static final String DEFAULT_JOB_JOURNAL = "jobs.journal";
 }
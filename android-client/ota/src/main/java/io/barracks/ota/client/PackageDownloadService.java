@@ -16,7 +16,8 @@
 
 package io.barracks.ota.client;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.IBinder;
@@ -24,40 +25,95 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.security.DigestException;
-import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.PatchInfo;
 import io.barracks.ota.client.api.UpdateDetails;
 import io.barracks.ota.client.api.UpdateDownloadApi;
+import io.barracks.ota.client.dispatch.CallbackBus;
+import io.barracks.ota.client.dispatch.JobJournal;
+import io.barracks.ota.client.dispatch.SingleFlight;
+import io.barracks.ota.client.download.DownloadJournal;
+import io.barracks.ota.client.download.DownloadRequest;
+import io.barracks.ota.client.download.DownloadScheduler;
+import io.barracks.ota.client.download.FileSink;
+import io.barracks.ota.client.download.InsufficientStorageException;
+import io.barracks.ota.client.download.MirrorSelector;
+import io.barracks.ota.client.download.PackageDigest;
+import io.barracks.ota.client.download.PackageFiles;
+import io.barracks.ota.client.download.PackagePatcher;
+import io.barracks.ota.client.download.PackageSink;
+import io.barracks.ota.client.download.PackageSlots;
+import io.barracks.ota.client.download.PackageStore;
+import io.barracks.ota.client.download.ProgressReporter;
+import io.barracks.ota.client.download.SegmentedDownloader;
+import io.barracks.ota.client.helper.PackageDownloadCallback;
+import io.barracks.ota.client.helper.PackageDownloadControlCallback;
+import io.barracks.ota.client.http.CircuitOpenException;
+import io.barracks.ota.client.http.Deadline;
+import io.barracks.ota.client.http.DeadlineExceededException;
+import io.barracks.ota.client.http.HttpEngine;
+import io.barracks.ota.client.http.HttpStatusException;
+import io.barracks.ota.client.http.Retrier;
+import io.barracks.ota.client.http.RetryException;
+import io.barracks.ota.client.http.RetryPolicy;
+import okhttp3.HttpUrl;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 
 /**
  * This service is used to handle the download of a package in the background.<br>
- * It uses the {@link LocalBroadcastManager} to send updates of the download, using the categories
- * for {@link PackageDownloadService#DOWNLOAD_SUCCESS success},
- * {@link PackageDownloadService#DOWNLOAD_PROGRESS progress} and
- * {@link PackageDownloadService#DOWNLOAD_ERROR failure} for a specific {@link PackageDownloadService#ACTION_DOWNLOAD_PACKAGE action}
+ * The progress and the results are delivered to the {@link PackageDownloadCallback callbacks} of the
+ * same process through the {@link #getCallbackBus() callback bus}, using the
+ * {@link #EXTRA_REQUEST_ID request identifier}, and {@link #EXTRA_BROADCAST broadcast} with the
+ * {@link LocalBroadcastManager} for the {@link #ACTION_DOWNLOAD_PACKAGE_FILTER filter} of the downloads.<br>
+ * Downloads are run concurrently by a {@link DownloadScheduler}, within the limits defined by
+ * {@link #setConcurrency(int, int)}. The requests for the same package share a single download, and
+ * the verified packages are kept in a {@link PackageStore}.
  *
  * @see io.barracks.ota.client.helper.BarracksHelper
  */
-public class PackageDownloadService extends IntentService {
+public class PackageDownloadService extends Service {
     /**
      * Defines the action used to start the download of a package.
      *
      * @see Intent#setAction(String)
      */
     public static final String ACTION_DOWNLOAD_PACKAGE = "io.barracks.ota.client.DOWNLOAD_PACKAGE";
+    /**
+     * Defines the action used to cancel the download requested with the {@link #EXTRA_REQUEST_ID identifier}.<br>
+     * The partial file is deleted if no other request waits for the package.
+     *
+     * @see Intent#setAction(String)
+     */
+    public static final String ACTION_CANCEL_DOWNLOAD = "io.barracks.ota.client.CANCEL_DOWNLOAD";
+    /**
+     * Defines the action used to pause the download requested with the {@link #EXTRA_REQUEST_ID identifier}.<br>
+     * The partial file is kept, unless the download is not {@link #EXTRA_RESUMABLE resumable}.
+     *
+     * @see Intent#setAction(String)
+     */
+    public static final String ACTION_PAUSE_DOWNLOAD = "io.barracks.ota.client.PAUSE_DOWNLOAD";
+    /**
+     * Defines the action used to resume the paused download requested with the {@link #EXTRA_REQUEST_ID identifier}.
+     *
+     * @see Intent#setAction(String)
+     */
+    public static final String ACTION_RESUME_DOWNLOAD = "io.barracks.ota.client.RESUME_DOWNLOAD";
 
     /**
      * This key is used to specify the {@link UpdateDetails details} used as a reference for downloading a package.
@@ -75,6 +131,60 @@ public class PackageDownloadService extends IntentService {
      * This key is used to specify the final destination when downloading a package.
      */
     public static final String EXTRA_FINAL_DEST = "finalDest";
+    /**
+     * This key is used to specify that the package is written directly to its final destination,
+     * which is resumed like a temporary file, instead of being moved there once downloaded.
+     * Defaults to false.<br>
+     * The previous package at the final destination is deleted when the download starts, unless
+     * {@link #EXTRA_DUAL_SLOT} is set as well.
+     */
+    public static final String EXTRA_DIRECT = "direct";
+    /**
+     * This key is used to specify that the package is kept in two {@link PackageSlots slots} next to
+     * the final destination, the new package being written to the inactive slot and activated once
+     * verified. The path reported on success is the one of the activated slot. Defaults to false.
+     */
+    public static final String EXTRA_DUAL_SLOT = "dualSlot";
+    /**
+     * This key is used to specify whether a partial download may be resumed, defaults to true.
+     */
+    public static final String EXTRA_RESUMABLE = "resumable";
+    /**
+     * This key is used to specify the maximum number of connections used to download a package, defaults to 1.
+     */
+    public static final String EXTRA_MAX_CONNECTIONS = "maxConnections";
+    /**
+     * This key is used to specify whether the downloaded file is read again to check its integrity,
+     * instead of relying on the hash computed during the transfer. Defaults to false.
+     */
+    public static final String EXTRA_PARANOID = "paranoid";
+    /**
+     * This key is used to specify the path of the package installed on the device, which a patch
+     * may be applied to. The packages kept in the {@link PackageStore} are used as well.
+     */
+    public static final String EXTRA_BASE_PACKAGE = "basePackage";
+    /**
+     * This key is used to specify the minimum interval between two progress notifications, in
+     * milliseconds. Defaults to {@link ProgressReporter#DEFAULT_INTERVAL}.
+     */
+    public static final String EXTRA_PROGRESS_INTERVAL = "progressInterval";
+    /**
+     * This key is used to specify a number of bytes after which the progress is notified even if the
+     * percentage did not change. Defaults to 0, only notifying percentage changes.
+     */
+    public static final String EXTRA_PROGRESS_BYTES = "progressBytes";
+    /**
+     * This key is used to specify the priority of a download, higher priorities are started first.
+     * Defaults to 0.
+     */
+    public static final String EXTRA_PRIORITY = "priority";
+    /**
+     * This key is used to specify the time by which the download has to be over, in milliseconds
+     * since the epoch. The request fails with a {@link DeadlineExceededException} once it has passed.
+     *
+     * @see Deadline#after(long)
+     */
+    public static final String EXTRA_DEADLINE = "deadline";
     /**
      * This key is used to report an {@link Throwable exception} thrown during the download.
      */
@@ -83,10 +193,32 @@ public class PackageDownloadService extends IntentService {
      * This key is used to report of the progress of a download
      */
     public static final String EXTRA_PROGRESS = "progress";
+    /**
+     * This key is used to report the number of bytes downloaded along with the progress
+     */
+    public static final String EXTRA_DOWNLOADED = "downloaded";
+    /**
+     * This key is used to report whether a package has been found in the {@link PackageStore}
+     * instead of being downloaded
+     */
+    public static final String EXTRA_CACHED = "cached";
     /**
      * This key is used to report the callback's identifier
      */
     public static final String EXTRA_CALLBACK = "callback";
+    /**
+     * This key is used to specify the unique identifier of the request, which is also the identifier
+     * of the subscriber of the {@link #getCallbackBus() callback bus} receiving its progress and result.
+     * It is reported with the broadcasts, and the subscriber is released once the result is delivered.
+     */
+    public static final String EXTRA_REQUEST_ID = "requestId";
+    /**
+     * This key is used to specify that the progress and the result are also broadcast using the
+     * {@link LocalBroadcastManager}, for the components of the application which listen to
+     * {@link #ACTION_DOWNLOAD_PACKAGE_FILTER}.<br>
+     * Defaults to true when no {@link #EXTRA_REQUEST_ID request identifier} is specified.
+     */
+    public static final String EXTRA_BROADCAST = "broadcast";
 
     /**
      * Category used to notify when a download is complete.
@@ -100,6 +232,14 @@ public class PackageDownloadService extends IntentService {
      * Category used to notify when a download is in progress.
      */
     public static final String DOWNLOAD_PROGRESS = "io.barracks.ota.client.DOWNLOAD_PROGRESS";
+    /**
+     * Category used to notify when a download has been cancelled.
+     */
+    public static final String DOWNLOAD_CANCELLED = "io.barracks.ota.client.DOWNLOAD_CANCELLED";
+    /**
+     * Category used to notify when a download has been paused.
+     */
+    public static final String DOWNLOAD_PAUSED = "io.barracks.ota.client.DOWNLOAD_PAUSED";
 
     /**
      * Intent filter used by {@link android.content.BroadcastReceiver} to register to the {@link LocalBroadcastManager}
@@ -111,8 +251,63 @@ public class PackageDownloadService extends IntentService {
         ACTION_DOWNLOAD_PACKAGE_FILTER.addCategory(DOWNLOAD_SUCCESS);
         ACTION_DOWNLOAD_PACKAGE_FILTER.addCategory(DOWNLOAD_ERROR);
         ACTION_DOWNLOAD_PACKAGE_FILTER.addCategory(DOWNLOAD_PROGRESS);
+        ACTION_DOWNLOAD_PACKAGE_FILTER.addCategory(DOWNLOAD_CANCELLED);
+        ACTION_DOWNLOAD_PACKAGE_FILTER.addCategory(DOWNLOAD_PAUSED);
     }
 
+    /**
+     * The number of bytes written to the temporary file between two commits of the {@link DownloadJournal}.
+     */
+    private static final long JOURNAL_COMMIT_INTERVAL = 256 * 1024;
+    /**
+     * The maximum time spent measuring the mirrors of a package before its download, in milliseconds.
+     */
+    private static final long PROBE_TIMEOUT = 2000;
+
+    /**
+     * The default maximum number of downloads running at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    /**
+     * The default maximum number of downloads running at once from the same host.
+     */
+    public static final int DEFAULT_MAX_PER_HOST = 2;
+
+    private static int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private static int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private static long storeQuota = Defaults.DEFAULT_PACKAGE_STORE_QUOTA;
+    private static long storageHeadroom = Defaults.DEFAULT_STORAGE_HEADROOM;
+    private static PackageStore store;
+    private static final CallbackBus<PackageDownloadCallback> callbacks = new CallbackBus<>();
+    /**
+     * The paused requests, waiting to be resumed.
+     */
+    private static final ConcurrentHashMap<Long, Intent> paused = new ConcurrentHashMap<>();
+    /**
+     * The sinks registered for the requests which have not been received yet.
+     */
+    private static final ConcurrentHashMap<Long, PackageSink> sinks = new ConcurrentHashMap<>();
+    /**
+     * The health of the sources of the packages, kept across downloads.
+     */
+    private static final MirrorSelector mirrors = new MirrorSelector(MirrorSelector.DEFAULT_CAPACITY, MirrorSelector.DEFAULT_HALF_LIFE);
+
+    /**
+     * Used to name the worker threads, important only for debugging.
+     */
+    private final String name;
+    /**
+     * The downloads waiting or in progress, with the requests waiting for their result.
+     */
+    private final SingleFlight<Member> flights = new SingleFlight<>();
+    /**
+     * The requests waiting or in progress, by identifier.
+     */
+    private final ConcurrentHashMap<Long, Member> requests = new ConcurrentHashMap<>();
+    private DownloadScheduler scheduler;
+    private int running;
+    private int lastStartId;
+
     public PackageDownloadService() {
         this(PackageDownloadService.class.getSimpleName());
     }
@@ -120,141 +315,1124 @@ public class PackageDownloadService extends IntentService {
     /**
      * Creates a {@link PackageDownloadService}.
      *
-     * @param name Used to name the worker thread, important only for debugging.
+     * @param name Used to name the worker threads, important only for debugging.
      */
     public PackageDownloadService(String name) {
-        super(name);
+        super();
+        this.name = name;
+    }
+
+    /**
+     * Define the limits applied to the downloads, the downloads which are already running are not
+     * affected.
+     *
+     * @param maxConcurrent The maximum number of downloads running at once.
+     * @param maxPerHost    The maximum number of downloads running at once from the same host.
+     */
+    public static synchronized void setConcurrency(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Limits must be positive : " + maxConcurrent + ", " + maxPerHost);
+        }
+        PackageDownloadService.maxConcurrent = maxConcurrent;
+        PackageDownloadService.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Define the maximum size of the packages kept after their download, the least recently used
+     * packages are evicted when needed.<br>
+     * The store is disabled by default: each package kept is copied to it once verified, which
+     * writes the package a second time.
+     *
+     * @param quota The maximum size of the packages, in bytes, or 0 to disable the store.
+     */
+    public static synchronized void setStoreQuota(long quota) {
+        if (quota < 0) {
+            throw new IllegalArgumentException("Quota can't be negative : " + quota);
+        }
+        storeQuota = quota;
+        if (store != null) {
+            store.setQuota(quota);
+        }
+    }
+
+    /**
+     * Define the space left free on the storage by a download, a download which would leave less is
+     * refused before it starts.
+     *
+     * @param headroom The space left free, in bytes.
+     */
+    public static synchronized void setStorageHeadroom(long headroom) {
+        if (headroom < 0) {
+            throw new IllegalArgumentException("Headroom can't be negative : " + headroom);
+        }
+        storageHeadroom = headroom;
+    }
+
+    private static synchronized long getStorageHeadroom() {
+        return storageHeadroom;
+    }
+
+    /**
+     * Get the bus used to deliver the progress and the results to the
+     * {@link PackageDownloadCallback callbacks} living in the same process.
+     *
+     * @return the {@link CallbackBus} of the downloads.
+     */
+    public static CallbackBus<PackageDownloadCallback> getCallbackBus() {
+        return callbacks;
+    }
+
+    /**
+     * Get the table keeping track of the health of the sources of the packages, shared by the
+     * downloads of the process.
+     *
+     * @return the {@link MirrorSelector} of the downloads.
+     */
+    public static MirrorSelector getMirrorSelector() {
+        return mirrors;
+    }
+
+    /**
+     * Define the {@link PackageSink} the package of a request is written to, instead of its
+     * temporary and final files. The sink has to be registered before the request is sent, using
+     * the same {@link #EXTRA_REQUEST_ID identifier}.<br>
+     * Patches and segmented downloads are only used with a {@link FileSink}, which file they are
+     * written to.
+     *
+     * @param requestId The identifier of the request.
+     * @param sink      The sink of the request, or null to forget the sink registered.
+     */
+    public static void setSink(long requestId, PackageSink sink) {
+        if (sink == null) {
+            sinks.remove(requestId);
+        } else {
+            sinks.put(requestId, sink);
+        }
+    }
+
+    /**
+     * Get the {@link PackageStore} shared by the downloads.
+     *
+     * @return the {@link PackageStore} of this application.
+     */
+    protected PackageStore getPackageStore() {
+        File directory = new File(getFilesDir(), Defaults.DEFAULT_PACKAGE_STORE);
+        synchronized (PackageDownloadService.class) {
+            if (store == null || !store.getDirectory().equals(directory)) {
+                store = new PackageStore(directory, storeQuota);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Get the {@link JobJournal} keeping track of the downloads which are not over.
+     *
+     * @return the {@link JobJournal} of this application.
+     */
+    protected JobJournal getJobJournal() {
+        return JobJournal.getInstance(this);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
+    public void onCreate() {
+        super.onCreate();
+        // Start again the jobs left over by a previous process, once the journal has been read
+        getJobJournal().replay(this);
+        synchronized (PackageDownloadService.class) {
+            scheduler = new DownloadScheduler(name, maxConcurrent, maxPerHost, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        synchronized (this) {
+            lastStartId = startId;
+            // The service does not stop while the request is being started
+            running++;
+        }
+        boolean submitted = false;
+        try {
+            String action = intent == null ? null : intent.getAction();
+            if (ACTION_CANCEL_DOWNLOAD.equals(action) || ACTION_PAUSE_DOWNLOAD.equals(action)) {
+                control(intent.getLongExtra(EXTRA_REQUEST_ID, 0), ACTION_PAUSE_DOWNLOAD.equals(action));
+                intent = null;
+            } else if (ACTION_RESUME_DOWNLOAD.equals(action)) {
+                intent = paused.remove(intent.getLongExtra(EXTRA_REQUEST_ID, 0));
+            }
+            if (intent != null) {
+                submitted = enqueue(record(intent));
+            }
+        } finally {
+            if (!submitted) {
+                over();
+            }
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Counts a request which is over, and stops the service if no other request is running.
+     */
+    private synchronized void over() {
+        if (--running == 0) {
+            // Only stops if no other request was received in the meantime
+            stopSelf(lastStartId);
+        }
+    }
+
+    /**
+     * Records the job of a download request in the {@link JobJournal}, or marks the job of a
+     * resumed request as pending again.
+     *
+     * @param intent The {@link Intent} describing the download.
+     * @return The {@link Intent} to be handled, with its job identifier.
+     */
+    private Intent record(Intent intent) {
+        if (intent.getBooleanExtra(JobJournal.EXTRA_REPLAYED, false)) {
+            // The requests of the previous process are gone, the result can only be broadcast
+            intent = new Intent(intent);
+            intent.removeExtra(EXTRA_REQUEST_ID);
+            intent.removeExtra(EXTRA_BROADCAST);
+        }
+        long jobId = intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0);
+        if (jobId != 0) {
+            getJobJournal().setState(jobId, JobJournal.STATE_PENDING);
+            return intent;
+        }
+        Intent job = new Intent(intent).setComponent(new ComponentName(this, getClass()));
+        return job.putExtra(JobJournal.EXTRA_JOB_ID, getJobJournal().add(job));
+    }
+
+    /**
+     * Schedules the download of a package, or joins the download in progress for the same package.
+     *
+     * @param intent The {@link Intent} describing the download.
+     * @return True if a task has been scheduled, which counts the request as {@link #over()} once
+     * it has run, false if the request has joined another download.
+     */
+    private boolean enqueue(final Intent intent) {
+        synchronized (PackageDownloadService.class) {
+            scheduler.setLimits(maxConcurrent, maxPerHost);
+        }
+        UpdateDetails update = intent.getParcelableExtra(EXTRA_UPDATE_DETAILS);
+        PackageInfo info = update == null ? null : update.getPackageInfo();
+        HttpUrl url = info == null || info.getUrl() == null ? null : HttpUrl.parse(info.getUrl());
+        String tmpDest = intent.getStringExtra(EXTRA_TMP_DEST);
+        String finalDest = intent.getStringExtra(EXTRA_FINAL_DEST);
+        PackageSlots slots = slotsOf(intent);
+        PackageSink sink = sinkOf(intent);
+        boolean direct = intent.getBooleanExtra(EXTRA_DIRECT, false);
+        // A request with a sink of its own can't share the bytes of another download
+        String key = sink == null && !direct ? flightKey(update) : null;
+        final Member member = Member.of(
+                intent,
+                sink != null || direct || slots != null ? null : finalFileOf(finalDest)
+        );
+        member.sink = sink;
+        member.slots = slots;
+        member.shared = key != null;
+        if (member.requestId != 0) {
+            requests.put(member.requestId, member);
+        }
+        if (key != null && flights.join(key, member)) {
+            // The package is already being downloaded for another request, share its transfer
+            List<Member> members = flights.members(key);
+            if (!members.isEmpty()) {
+                member.transfer = members.get(0).transfer;
+            }
+            watch(member);
+            return false;
+        }
+        scheduler.submit(new DownloadScheduler.Task(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(intent, member);
+                        } finally {
+                            over();
+                        }
+                    }
+                },
+                url == null ? null : url.host(),
+                intent.getIntExtra(EXTRA_PRIORITY, 0),
+                intent.getIntExtra(EXTRA_CALLBACK, -1),
+                exclusiveKeyOf(slots != null ? slots.getPointer() : tmpFileOf(tmpDest, finalDest))
+        ));
+        watch(member);
+        return true;
+    }
+
+    /**
+     * Arms the watchdog of a request which has a {@link #EXTRA_DEADLINE deadline}.
+     *
+     * @param member The {@link Member} of the request.
+     */
+    private void watch(final Member member) {
+        final Deadline deadline = Deadline.at(member.intent.getLongExtra(EXTRA_DEADLINE, 0));
+        member.watchdog = deadline.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(member, deadline);
+            }
+        });
+    }
+
+    /**
+     * Fails a request whose deadline has passed.<br>
+     * The request stops waiting for its download, which is aborted if no other request waits for
+     * it. The partial file is kept, a later request for the package goes on from the same offset.
+     *
+     * @param member   The {@link Member} of the request.
+     * @param deadline The {@link Deadline} of the request.
+     */
+    private void expire(Member member, Deadline deadline) {
+        if (!finish(member)) {
+            // The result is already being delivered
+            return;
+        }
+        UpdateDetails update = member.intent.getParcelableExtra(EXTRA_UPDATE_DETAILS);
+        if (!member.shared || flights.leave(flightKey(update), member) == 0) {
+            member.transfer.abort(true);
+        }
+        sendError(member, update, deadline.exceeded("Download", null));
+    }
+
+    /**
+     * Looks for the {@link PackageSink} {@link #setSink(long, PackageSink) registered} for a request.
+     *
+     * @param intent The {@link Intent} describing the download.
+     * @return The sink of the request, or null if none has been registered.
+     */
+    private static PackageSink sinkOf(Intent intent) {
+        long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, 0);
+        return requestId == 0 ? null : sinks.remove(requestId);
+    }
+
+    /**
+     * Creates the {@link PackageSink} of a request written {@link #EXTRA_DIRECT directly} to its
+     * final destination, when its transfer starts.
+     *
+     * @param intent The {@link Intent} describing the download.
+     * @param slots  The slots of the final destination, can be null.
+     * @return The sink of the final destination or of its inactive slot.
+     */
+    private PackageSink directSinkOf(Intent intent, PackageSlots slots) {
+        return slots != null ? slots.newSink() : new FileSink(finalFileOf(intent.getStringExtra(EXTRA_FINAL_DEST)));
+    }
+
+    /**
+     * Get the key of the downloads which can't run at the same time.<br>
+     * Downloads to the same slots share their pointer, whatever their temporary files, so that two
+     * of them never write the same inactive slot.
+     *
+     * @param file The temporary file of the download, or the pointer of its slots.
+     * @return The canonical path of the file.
+     */
+    private static String exclusiveKeyOf(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Get the {@link PackageSlots slots} of the final destination of a request.
+     *
+     * @param intent The {@link Intent} describing the download.
+     * @return The slots of the request, or null if the package is written to the final destination.
+     */
+    private PackageSlots slotsOf(Intent intent) {
+        if (!intent.getBooleanExtra(EXTRA_DUAL_SLOT, false)) {
+            return null;
+        }
+        return new PackageSlots(finalFileOf(intent.getStringExtra(EXTRA_FINAL_DEST)));
+    }
+
+    /**
+     * Cancels or pauses a request.<br>
+     * The request stops waiting for its download, which is aborted if no other request waits for it.
+     *
+     * @param requestId The identifier of the request.
+     * @param pause     True to pause the request, false to cancel it.
+     */
+    private void control(long requestId, boolean pause) {
+        Member member = requests.get(requestId);
+        if (member == null) {
+            Intent intent = pause ? null : paused.remove(requestId);
+            if (intent != null) {
+                sinks.remove(requestId);
+                // Cancelling a paused request only forgets it
+                notifyCancelled(Member.of(intent, null), intent.<UpdateDetails>getParcelableExtra(EXTRA_UPDATE_DETAILS));
+            }
+            return;
+        }
+        if (!finish(member)) {
+            // The result is already being delivered
+            return;
+        }
+        UpdateDetails update = member.intent.getParcelableExtra(EXTRA_UPDATE_DETAILS);
+        if (!member.shared || flights.leave(flightKey(update), member) == 0) {
+            member.transfer.abort(pause);
+        }
+        if (pause) {
+            getJobJournal().setState(member.jobId, JobJournal.STATE_PAUSED);
+            if (member.sink != null && !member.intent.getBooleanExtra(EXTRA_DIRECT, false)) {
+                sinks.put(requestId, member.sink);
+            }
+            paused.put(requestId, member.intent);
+            notifyPaused(member, update, member.transfer.downloaded);
+        } else {
+            notifyCancelled(member, update);
+        }
+    }
+
+    /**
+     * Computes the key identifying the requests for the same package.
+     *
+     * @param update The {@link UpdateDetails} of the request.
+     * @return The key of the package, or null if the request can't be shared.
+     */
+    private static String flightKey(UpdateDetails update) {
+        PackageInfo info = update == null ? null : update.getPackageInfo();
+        if (info == null || info.getUrl() == null) {
+            return null;
+        }
+        return info.getUrl() + "|" + info.getMd5();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDestroy() {
+        scheduler.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * This method is called on a worker thread for each download request, several requests may be
+     * handled at the same time.
+     *
+     * @param intent The {@link Intent} describing the download.
+     */
     protected void onHandleIntent(Intent intent) {
+        Member member = Member.of(intent, null);
+        member.slots = slotsOf(intent);
+        member.sink = sinkOf(intent);
+        handle(intent, member);
+    }
+
+    /**
+     * Handles a download request on a worker thread.
+     *
+     * @param intent The {@link Intent} describing the download.
+     * @param member The {@link Member} which requested the download.
+     */
+    private void handle(Intent intent, Member member) {
         switch (intent.getAction()) {
             case ACTION_DOWNLOAD_PACKAGE:
-                downloadPackage(
-                        intent.getStringExtra(EXTRA_API_KEY),
-                        intent.getStringExtra(EXTRA_TMP_DEST),
-                        intent.getStringExtra(EXTRA_FINAL_DEST),
-                        intent.<UpdateDetails>getParcelableExtra(EXTRA_UPDATE_DETAILS),
-                        intent.getIntExtra(EXTRA_CALLBACK, -1)
-                );
+                UpdateDetails update = intent.getParcelableExtra(EXTRA_UPDATE_DETAILS);
+                PackageInfo info = update == null ? null : update.getPackageInfo();
+                Transfer transfer = member.transfer;
+                if (member.sink == null && intent.getBooleanExtra(EXTRA_DIRECT, false)) {
+                    member.sink = directSinkOf(intent, member.slots);
+                }
+                transfer.retrier = HttpEngine.getInstance().newRetrier(hostOf(info == null ? null : info.getUrl()));
+                DownloadRequest request = requestOf(intent);
+                do {
+                    transfer.retryDelay = -1;
+                    downloadPackage(request, member);
+                    // A transient failure is retried, resuming from the bytes journaled by the attempt
+                } while (transfer.retryDelay >= 0 && transfer.await(transfer.retryDelay));
+                if (transfer.isCancelled()) {
+                    // Cancelled while waiting for the next attempt
+                    if (member.sink != null) {
+                        member.sink.discard();
+                    } else {
+                        PackageFiles.deletePartial(request.getTmp());
+                    }
+                }
                 break;
         }
     }
 
     /**
-     * This method is proceeding with the download and notifying the rest of the application using
-     * the {@link LocalBroadcastManager}.
+     * Reads the {@link DownloadRequest} described by the extras of an {@link Intent}.
      *
-     * @param apiKey    The API key provided by the Barracks platform.
-     * @param tmpDest   The temporary path for the download.
-     * @param finalDest The final path for the download.
-     * @param update    The {@link UpdateDetails} retrieved from the Barracks platform.
-     * @param callback  The callback identifier.
+     * @param intent The {@link Intent} describing the download.
+     * @return the request of the download.
      */
-    private void downloadPackage(String apiKey, String tmpDest, String finalDest, UpdateDetails update, int callback) {
-        File tmp = TextUtils.isEmpty(tmpDest) ? new File(getFilesDir(), Defaults.DEFAULT_TMP_DL_DESTINATION) : new File(tmpDest);
-        File destination = TextUtils.isEmpty(finalDest) ? new File(getFilesDir(), Defaults.DEFAULT_FINAL_DL_DESTINATION) : new File(finalDest);
-        Retrofit retrofit = new Retrofit.Builder().baseUrl(Defaults.DEFAULT_BASE_URL).build();
-        UpdateDownloadApi loader = retrofit.create(UpdateDownloadApi.class);
-        Call<ResponseBody> call = loader.downloadUpdate(update.getPackageInfo().getUrl(), apiKey);
+    private DownloadRequest requestOf(Intent intent) {
+        String finalDest = intent.getStringExtra(EXTRA_FINAL_DEST);
+        String basePath = intent.getStringExtra(EXTRA_BASE_PACKAGE);
+        return new DownloadRequest.Builder()
+                .apiKey(intent.getStringExtra(EXTRA_API_KEY))
+                .update(intent.<UpdateDetails>getParcelableExtra(EXTRA_UPDATE_DETAILS))
+                .tmp(tmpFileOf(intent.getStringExtra(EXTRA_TMP_DEST), finalDest))
+                .destination(finalFileOf(finalDest))
+                .basePackage(TextUtils.isEmpty(basePath) ? null : new File(basePath))
+                .resumable(intent.getBooleanExtra(EXTRA_RESUMABLE, true))
+                .maxConnections(intent.getIntExtra(EXTRA_MAX_CONNECTIONS, 1))
+                .paranoid(intent.getBooleanExtra(EXTRA_PARANOID, false))
+                .progressInterval(intent.getLongExtra(EXTRA_PROGRESS_INTERVAL, ProgressReporter.DEFAULT_INTERVAL))
+                .progressBytes(intent.getLongExtra(EXTRA_PROGRESS_BYTES, 0))
+                .build();
+    }
+
+    /**
+     * Runs an attempt at downloading the package of a request, then notifies its outcome to the
+     * requests waiting for it.<br>
+     * A transient failure is not notified, the delay before the next attempt is recorded in the
+     * transfer instead.
+     *
+     * @param request The {@link DownloadRequest} of the download.
+     * @param member  The {@link Member} which requested the download.
+     */
+    private void downloadPackage(DownloadRequest request, final Member member) {
+        final UpdateDetails update = request.getUpdate();
+        String apiKey = request.getApiKey();
+        boolean paranoid = request.isParanoid();
+        File tmp = request.getTmp();
+        File destination = member.slots != null ? member.slots.getInactive() : request.getDestination();
+        PackageInfo info = update.getPackageInfo();
+        final Transfer transfer = member.transfer;
+        if (transfer.isAborted()) {
+            // Cancelled or paused before being started
+            return;
+        }
+        UpdateDownloadApi loader = HttpEngine.getInstance().getApi(Defaults.DEFAULT_BASE_URL, UpdateDownloadApi.class);
+        ProgressReporter.Listener listener = new ProgressReporter.Listener() {
+            @Override
+            public void onProgress(long bytes, int percent) {
+                transfer.downloaded = bytes;
+                notifyProgress(update, percent, bytes, member);
+            }
+        };
+        final ProgressReporter reporter = new ProgressReporter(info.getSize() == null ? -1 : info.getSize(), request.getProgressBytes(), request.getProgressInterval(), listener);
+
+        // Use the package from the store if it has already been downloaded and verified
+        PackageSink sink = member.sink;
+        PackageStore store = getPackageStore();
+        File stored = store.get(info);
+        if (stored != null) {
+            try {
+                if (sink != null) {
+                    PackageFiles.feed(stored, sink);
+                    notifySuccess(update, sink.getFile(), true, member);
+                    return;
+                }
+                PackageFiles.replace(stored, destination);
+                notifySuccess(update, destination, true, member);
+                return;
+            } catch (IOException e) {
+                // Fall back to the network
+                e.printStackTrace();
+            }
+        }
+
+        // Pick the fastest source, the url of the package or one of its mirrors
+        if (transfer.sources == null) {
+            transfer.sources = mirrors.sourcesOf(loader, apiKey, info, PROBE_TIMEOUT);
+            transfer.source = 0;
+            transfer.retrier.moveTo(hostOf(transfer.getSource()));
+        }
+        String source = transfer.getSource();
+
+        // Don't reach a host which is known to be down
+        try {
+            transfer.retrier.begin();
+        } catch (CircuitOpenException e) {
+            notifyError(update, e, member);
+            return;
+        }
+
+        // Patched and segmented downloads are written to a file, the one of the sink if it has one
+        File target = sink == null ? tmp : sink instanceof FileSink ? sink.getFile() : null;
+
+        // Rebuild the package from a previous one when a patch is available
+        PatchInfo patch = target != null ? info.getPatch() : null;
+        File base = patch == null ? null : PackagePatcher.findBase(patch, request.getBasePackage(), store);
+        if (base != null) {
+            ProgressReporter patchReporter = new ProgressReporter(patch.getSize() == null ? -1 : patch.getSize(), request.getProgressBytes(), request.getProgressInterval(), listener);
+            File patched = sink == null ? destination : target;
+            if (patchPackage(loader, request, base, patched, transfer, patchReporter)) {
+                storePackage(store, info, patched);
+                notifySuccess(update, patched, false, member);
+                return;
+            }
+            if (transfer.isAborted()) {
+                return;
+            }
+        }
+
+        // Look for a partial download which could be resumed
+        File partial = sink == null ? tmp : sink.getFile();
+        boolean resumable = request.isResumable();
+        DownloadJournal journal = resumable && partial != null ? DownloadJournal.load(partial) : null;
+        long offset = 0;
+        if (journal != null && journal.matches(info) && journal.getCommitted() > 0 && partial.length() >= journal.getCommitted()) {
+            offset = journal.getCommitted();
+        } else {
+            journal = null;
+        }
 
         // Setup the files to be loaded and moved
-        if (!setupFile(tmp) || !setupFile(destination)) {
-            notifyError(update, new IOException("Failed to setup " + tmp.getPath() + " or " + destination.getPath()), callback);
+        if ((offset == 0 && partial != null && (!DownloadJournal.delete(partial) || !setupFile(partial))) || (sink == null && !PackageFiles.setupParent(destination))) {
+            notifyError(update, new IOException("Failed to setup " + (sink == null ? tmp.getPath() + " or " + destination.getPath() : partial.getPath())), member);
             return;
         }
 
-        // Initiate the transfer
-        OutputStream os = null;
+        // Check the space left before spending any bandwidth
+        if (partial != null && info.getSize() != null) {
+            try {
+                PackageFiles.admit(partial, info.getSize() - offset, getStorageHeadroom(), store);
+            } catch (InsufficientStorageException e) {
+                notifyError(update, e, member);
+                return;
+            }
+        }
+
+        // Split large packages over several connections when the server supports ranges
+        int connections = request.getMaxConnections();
+        if (target != null && offset == 0 && SegmentedDownloader.isSegmentable(info, connections)) {
+            try {
+                SegmentedDownloader downloader = new SegmentedDownloader(loader, apiKey, connections);
+                if (!transfer.attach(downloader)) {
+                    return;
+                }
+                boolean downloaded = downloader.download(info, source, target, new SegmentedDownloader.ProgressListener() {
+                    @Override
+                    public void onProgress(long downloaded) {
+                        reporter.update(downloaded);
+                    }
+                });
+                if (downloaded) {
+                    reporter.complete(info.getSize());
+                    checkPackageIntegrity(update, target);
+                    File result = target;
+                    if (sink == null) {
+                        moveToFinalDestination(tmp, destination);
+                        result = destination;
+                    }
+                    storePackage(store, info, result);
+                    notifySuccess(update, result, false, member);
+                    return;
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                if (transfer.isAborted()) {
+                    // The ranges are not journaled, a paused download starts over
+                    if (sink == null) {
+                        PackageFiles.deletePartial(tmp);
+                    } else {
+                        sink.discard();
+                    }
+                } else {
+                    notifyError(update, e, member);
+                }
+                return;
+            }
+        }
+
+        // The validator of the bytes received is only sent to the source which returned it, the
+        // digest of the package vouches for the bytes received from different mirrors
+        Call<ResponseBody> call = offset == 0 ?
+                loader.downloadUpdate(source, apiKey) :
+                loader.downloadUpdate(source, apiKey, "bytes=" + offset + "-", TextUtils.equals(source, journal.getSource()) ? journal.getValidator() : null);
+
+        // Initiate the transfer, the temporary file is used unless the request has a sink
+        PackageSink out = sink == null ? new FileSink(tmp) : sink;
+        File result = sink == null ? destination : partial;
+        boolean opened = false;
+        long total = offset;
         try {
-            os = new FileOutputStream(tmp);
+            MessageDigest digest = PackageDigest.create();
+            if (!transfer.attach(call)) {
+                return;
+            }
+            long start = System.nanoTime();
             Response<ResponseBody> response = call.execute();
+            if (transfer.sources.size() > 1 && response.isSuccessful()) {
+                mirrors.recordLatency(source, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            if (offset != 0 && isResumed(response, offset)) {
+                if (!paranoid) {
+                    // Bytes received by a previous attempt have to be hashed as well
+                    PackageDigest.update(digest, partial, offset);
+                }
+            } else if (offset != 0 && (response.isSuccessful() || response.code() == 416)) {
+                // The range was ignored or the package has changed, start over
+                total = 0;
+                if (response.code() != 200) {
+                    closeQuietly(response);
+                    call = loader.downloadUpdate(source, apiKey);
+                    if (!transfer.attach(call)) {
+                        return;
+                    }
+                    response = call.execute();
+                }
+            }
             if (!response.isSuccessful()) {
-                notifyError(update, new IOException("Call to : " + call.request().url().toString() + " failed : " + response.code() + " " + response.message()), callback);
+                closeQuietly(response);
+                notifyError(update, new HttpStatusException("Call to : " + call.request().url().toString() + " failed : " + response.code() + " " + response.message(), response.code(), HttpStatusException.parseRetryAfter(response.headers().get("Retry-After"))), member);
                 return;
             }
+            if (out.open(total) != total) {
+                throw new IOException("Failed to resume " + partial.getPath() + " at " + total);
+            }
+            opened = true;
+            if (info.getSize() != null) {
+                out.reserve(info.getSize());
+            }
+            if (resumable && partial != null) {
+                if (journal == null || total == 0) {
+                    journal = DownloadJournal.create(partial, info);
+                }
+                journal.setValidators(response.headers().get("ETag"), response.headers().get("Last-Modified"));
+                journal.setSource(source);
+            }
             InputStream is = response.body().byteStream();
             int read;
-            int total = 0;
             byte buff[] = new byte[1024];
             while ((read = is.read(buff)) != -1) {
-                os.write(buff, 0, read);
+                if (transfer.isAborted()) {
+                    throw new InterruptedIOException("Download aborted");
+                }
+                out.write(buff, 0, read);
+                digest.update(buff, 0, read);
                 total += read;
-                notifyProgress(update, (int) (total * 100 / update.getPackageInfo().getSize()), callback);
+                if (journal != null && total - journal.getCommitted() >= JOURNAL_COMMIT_INTERVAL) {
+                    journal.commit(out, total);
+                    getJobJournal().setOffset(member.jobId, total);
+                }
+                reporter.update(total);
             }
-            checkPackageIntegrity(update, tmp);
-            moveToFinalDestination(tmp, destination);
-        } catch (IOException | GeneralSecurityException e) {
-            notifyError(update, e, callback);
-            return;
-        } finally {
-            if (os != null) {
+            reporter.complete(total);
+            out.close();
+            if (paranoid && partial != null) {
+                checkPackageIntegrity(update, partial);
+            } else {
+                checkDigest(update, digest.digest());
+            }
+            if (sink == null) {
+                moveToFinalDestination(tmp, destination);
+            }
+            if (journal != null) {
+                journal.delete();
+            }
+            if (result != null) {
+                storePackage(store, info, result);
+            }
+        } catch (IOException e) {
+            if (journal != null && opened && !transfer.isCancelled()) {
                 try {
-                    os.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    // Keep what has been received so far for the next attempt
+                    journal.commit(out, total);
+                    getJobJournal().setOffset(member.jobId, total);
+                } catch (IOException commitException) {
+                    commitException.printStackTrace();
                 }
             }
+            if (!transfer.isAborted()) {
+                notifyError(update, e, member);
+            }
+            return;
+        } catch (GeneralSecurityException e) {
+            // The downloaded content is corrupted, it can't be resumed
+            out.discard();
+            notifyError(update, e, member);
+            return;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (transfer.isCancelled()) {
+                out.discard();
+            }
         }
 
-        notifySuccess(update, destination, callback);
+        notifySuccess(update, result, false, member);
     }
 
     /**
-     * Convenience method for notifying the application of a download completion using the {@link LocalBroadcastManager}
+     * Get the host of a url, used to keep track of its health.
+     *
+     * @param url The url, can be null.
+     * @return The host of the url, or null if the url is invalid.
+     */
+    private static String hostOf(String url) {
+        HttpUrl parsed = url == null ? null : HttpUrl.parse(url);
+        return parsed == null ? null : parsed.host();
+    }
+
+    /**
+     * Downloads the patch of a package, then rebuilds the package from the previous one.<br>
+     * The patch and the rebuilt package are written next to the temporary file, leaving a partial
+     * download of the full package untouched.
+     *
+     * @param loader      The API used to download the patch.
+     * @param request     The {@link DownloadRequest} of the download.
+     * @param base        The package the patch applies to.
+     * @param destination The file the package is moved to, the final destination or the file of the sink.
+     * @param transfer    The transfer of the download.
+     * @param reporter    The reporter of the progress of the patch download.
+     * @return True if the package has been rebuilt and verified, false if the full package has to be downloaded.
+     */
+    private boolean patchPackage(UpdateDownloadApi loader, DownloadRequest request, File base, File destination, Transfer transfer, ProgressReporter reporter) {
+        UpdateDetails update = request.getUpdate();
+        PatchInfo patch = update.getPackageInfo().getPatch();
+        File patchFile = new File(request.getTmp().getPath() + ".patch");
+        File rebuilt = new File(request.getTmp().getPath() + ".delta");
+        Call<ResponseBody> call = loader.downloadUpdate(patch.getUrl(), request.getApiKey());
+        try {
+            if (!setupFile(patchFile) || !setupFile(rebuilt) || !PackageFiles.setupParent(destination)) {
+                throw new IOException("Failed to setup " + patchFile.getPath() + " or " + destination.getPath());
+            }
+            if (patch.getSize() != null && update.getPackageInfo().getSize() != null) {
+                PackageFiles.admit(patchFile, patch.getSize() + update.getPackageInfo().getSize(), getStorageHeadroom(), getPackageStore());
+            }
+            if (!transfer.attach(call)) {
+                return false;
+            }
+            Response<ResponseBody> response = call.execute();
+            if (!response.isSuccessful()) {
+                closeQuietly(response);
+                throw new IOException("Call to : " + call.request().url().toString() + " failed : " + response.code() + " " + response.message());
+            }
+            PackagePatcher.receive(response.body(), patch, patchFile, reporter);
+            checkDigest(update, PackagePatcher.rebuild(base, patchFile, rebuilt));
+            moveToFinalDestination(rebuilt, destination);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            // Fall back to the full package
+            e.printStackTrace();
+            return false;
+        } finally {
+            PackageFiles.delete(patchFile);
+            PackageFiles.delete(rebuilt);
+        }
+    }
+
+    /**
+     * Keeps a copy of a verified package in the {@link PackageStore}.<br>
+     * The download does not fail if the package can't be stored.
+     *
+     * @param store    The store of the packages.
+     * @param info     The {@link PackageInfo} of the package.
+     * @param verified The package, which hash has already been checked.
+     */
+    private static void storePackage(PackageStore store, PackageInfo info, File verified) {
+        try {
+            store.put(info, verified);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks whether the server is sending the remaining part of a package, starting at <code>offset</code>.
+     *
+     * @param response The response received from the server.
+     * @param offset   The offset requested with the <code>Range</code> header.
+     * @return True if the response is a partial content starting at <code>offset</code>, false otherwise.
+     */
+    private static boolean isResumed(Response<ResponseBody> response, long offset) {
+        if (response.code() != 206) {
+            return false;
+        }
+        // Content-Range: bytes <first>-<last>/<length>
+        String range = response.headers().get("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return false;
+        }
+        int dash = range.indexOf('-');
+        try {
+            return dash > 6 && Long.parseLong(range.substring(6, dash).trim()) == offset;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Releases the resources of a response which will not be read.
+     *
+     * @param response The response to be closed.
+     */
+    private static void closeQuietly(Response<ResponseBody> response) {
+        ResponseBody body = response.isSuccessful() ? response.body() : response.errorBody();
+        if (body != null) {
+            body.close();
+        }
+    }
+
+    /**
+     * Get the requests waiting for the progress of a download.
+     *
+     * @param details The {@link UpdateDetails} retrieved from the Barracks platform.
+     * @param member  The {@link Member} which started the download.
+     * @param land    Whether the download is over, the next request for the package starts a new one.
+     * @return The requests waiting for the download.
+     */
+    private List<Member> membersOf(UpdateDetails details, Member member, boolean land) {
+        if (!member.shared) {
+            return Collections.singletonList(member);
+        }
+        String key = flightKey(details);
+        List<Member> members = land ? flights.land(key) : flights.members(key);
+        return members.isEmpty() ? Collections.singletonList(member) : members;
+    }
+
+    /**
+     * Convenience method for notifying the application of a download completion.<br>
+     * The package is copied to the destination of each request which joined the download, and the
+     * slot holding it is activated for the requests using {@link PackageSlots}.
      *
      * @param details     The {@link UpdateDetails} retrieved from the Barracks platform.
-     * @param destination The destination where the file has been moved.
-     * @param callback    The callback identifier.
-     */
-    private void notifySuccess(UpdateDetails details, File destination, int callback) {
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
-        manager.sendBroadcast(
-                new Intent(ACTION_DOWNLOAD_PACKAGE)
-                        .addCategory(DOWNLOAD_SUCCESS)
-                        .putExtra(EXTRA_UPDATE_DETAILS, details)
-                        .putExtra(EXTRA_CALLBACK, callback)
-                        .putExtra(EXTRA_FINAL_DEST, destination.getPath())
-        );
+     * @param destination The destination where the file has been moved, or null if the package is not in a file.
+     * @param cached      Whether the file has been found in the {@link PackageStore}.
+     * @param member      The {@link Member} which started the download.
+     */
+    private void notifySuccess(final UpdateDetails details, File destination, boolean cached, Member member) {
+        if (!cached && member.transfer.retrier != null) {
+            member.transfer.retrier.succeeded();
+        }
+        for (Member current : membersOf(details, member, true)) {
+            if (!finish(current)) {
+                continue;
+            }
+            File target = destination;
+            try {
+                if (destination != null && current.slots != null) {
+                    // The previous package stays in the active slot until the new one is complete
+                    target = current.slots.install(destination);
+                } else if (destination != null && current.destination != null && !current.destination.equals(destination)) {
+                    PackageFiles.replace(destination, current.destination);
+                    target = current.destination;
+                }
+            } catch (IOException e) {
+                sendError(current, details, e);
+                continue;
+            }
+            final String path = target == null ? null : target.getPath();
+            if (current.requestId != 0) {
+                callbacks.publish(current.requestId, new CallbackBus.Event<PackageDownloadCallback>() {
+                    @Override
+                    public void deliver(PackageDownloadCallback callback) {
+                        callback.onDownloadSuccess(details, path);
+                    }
+                });
+                callbacks.complete(current.requestId);
+            }
+            getJobJournal().remove(current.jobId);
+            if (current.broadcast) {
+                LocalBroadcastManager.getInstance(this).sendBroadcast(
+                        new Intent(ACTION_DOWNLOAD_PACKAGE)
+                                .addCategory(DOWNLOAD_SUCCESS)
+                                .putExtra(EXTRA_UPDATE_DETAILS, details)
+                                .putExtra(EXTRA_CALLBACK, current.callback)
+                                .putExtra(EXTRA_REQUEST_ID, current.requestId)
+                                .putExtra(EXTRA_FINAL_DEST, path)
+                                .putExtra(EXTRA_CACHED, cached)
+                );
+            }
+        }
     }
 
     /**
-     * Convenience method for notifying the application of a download failure using the {@link LocalBroadcastManager}
+     * Convenience method for notifying the application of a download failure.<br>
+     * A transient failure is not notified while the {@link RetryPolicy} allows another attempt, the
+     * delay before the attempt is recorded in the transfer instead. A download which failed after
+     * several attempts is notified with a {@link RetryException}.
      *
      * @param details   The {@link UpdateDetails} retrieved from the Barracks platform.
      * @param exception The exception caught during the process.
-     * @param callback  The callback identifier.
-     */
-    private void notifyError(UpdateDetails details, Exception exception, int callback) {
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
-        manager.sendBroadcast(
-                new Intent(ACTION_DOWNLOAD_PACKAGE)
-                        .addCategory(DOWNLOAD_ERROR)
-                        .putExtra(EXTRA_UPDATE_DETAILS, details)
-                        .putExtra(EXTRA_CALLBACK, callback)
-                        .putExtra(EXTRA_EXCEPTION, exception)
-        );
+     * @param member    The {@link Member} which started the download.
+     */
+    private void notifyError(UpdateDetails details, Exception exception, Member member) {
+        Transfer transfer = member.transfer;
+        Retrier retrier = transfer.retrier;
+        if (retrier != null) {
+            boolean unreachable = retrier.isRetryable(exception) || exception instanceof CircuitOpenException;
+            if (unreachable && transfer.sources != null && transfer.sources.size() > 1) {
+                mirrors.recordFailure(transfer.getSource());
+                if (transfer.source + 1 < transfer.sources.size()) {
+                    // Fail over to the next mirror right away, the bytes received are kept
+                    transfer.source++;
+                    retrier.failOver(exception, hostOf(transfer.getSource()));
+                    transfer.retryDelay = 0;
+                    return;
+                }
+            }
+            long delay = retrier.failed(exception);
+            if (delay >= 0) {
+                // Rank the sources again for the next attempt
+                transfer.sources = null;
+                transfer.retryDelay = delay;
+                return;
+            }
+            exception = retrier.report(exception);
+        }
+        for (Member current : membersOf(details, member, true)) {
+            if (finish(current)) {
+                sendError(current, details, exception);
+            }
+        }
+    }
+
+    private void sendError(Member member, final UpdateDetails details, final Exception exception) {
+        if (member.requestId != 0) {
+            callbacks.publish(member.requestId, new CallbackBus.Event<PackageDownloadCallback>() {
+                @Override
+                public void deliver(PackageDownloadCallback callback) {
+                    callback.onDownloadFailure(details, exception);
+                }
+            });
+            callbacks.complete(member.requestId);
+        }
+        getJobJournal().remove(member.jobId);
+        if (member.broadcast) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(
+                    new Intent(ACTION_DOWNLOAD_PACKAGE)
+                            .addCategory(DOWNLOAD_ERROR)
+                            .putExtra(EXTRA_UPDATE_DETAILS, details)
+                            .putExtra(EXTRA_CALLBACK, member.callback)
+                            .putExtra(EXTRA_REQUEST_ID, member.requestId)
+                            .putExtra(EXTRA_EXCEPTION, exception)
+            );
+        }
     }
 
     /**
-     * Convenience method for notifying the application of a download progress using the {@link LocalBroadcastManager}
+     * Convenience method for notifying the application of a download cancellation.<br>
+     * A plain {@link PackageDownloadCallback} receives a {@link CancellationException} as a failure.
      *
-     * @param details  The {@link UpdateDetails} retrieved from the Barracks platform.
-     * @param progress The progress percentage.
-     * @param callback The callback identifier.
+     * @param member  The {@link Member} which has been cancelled.
+     * @param details The {@link UpdateDetails} retrieved from the Barracks platform.
      */
-    private void notifyProgress(UpdateDetails details, int progress, int callback) {
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
-        manager.sendBroadcast(
-                new Intent(ACTION_DOWNLOAD_PACKAGE)
-                        .addCategory(DOWNLOAD_PROGRESS)
-                        .putExtra(EXTRA_UPDATE_DETAILS, details)
-                        .putExtra(EXTRA_CALLBACK, callback)
-                        .putExtra(EXTRA_PROGRESS, progress)
-        );
+    private void notifyCancelled(Member member, final UpdateDetails details) {
+        if (member.requestId != 0) {
+            callbacks.publish(member.requestId, new CallbackBus.Event<PackageDownloadCallback>() {
+                @Override
+                public void deliver(PackageDownloadCallback callback) {
+                    if (callback instanceof PackageDownloadControlCallback) {
+                        ((PackageDownloadControlCallback) callback).onDownloadCancelled(details);
+                    } else {
+                        callback.onDownloadFailure(details, new CancellationException("Download cancelled"));
+                    }
+                }
+            });
+            callbacks.complete(member.requestId);
+        }
+        getJobJournal().remove(member.jobId);
+        if (member.broadcast) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(
+                    new Intent(ACTION_DOWNLOAD_PACKAGE)
+                            .addCategory(DOWNLOAD_CANCELLED)
+                            .putExtra(EXTRA_UPDATE_DETAILS, details)
+                            .putExtra(EXTRA_CALLBACK, member.callback)
+                            .putExtra(EXTRA_REQUEST_ID, member.requestId)
+            );
+        }
+    }
+
+    /**
+     * Convenience method for notifying the application that a download has been paused.<br>
+     * Only a {@link PackageDownloadControlCallback} is told about it.
+     *
+     * @param member     The {@link Member} which has been paused.
+     * @param details    The {@link UpdateDetails} retrieved from the Barracks platform.
+     * @param downloaded The number of bytes downloaded so far.
+     */
+    private void notifyPaused(Member member, final UpdateDetails details, final long downloaded) {
+        if (member.requestId != 0) {
+            callbacks.publish(member.requestId, new CallbackBus.Event<PackageDownloadCallback>() {
+                @Override
+                public void deliver(PackageDownloadCallback callback) {
+                    if (callback instanceof PackageDownloadControlCallback) {
+                        ((PackageDownloadControlCallback) callback).onDownloadPaused(details, downloaded);
+                    }
+                }
+            });
+        }
+        if (member.broadcast) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(
+                    new Intent(ACTION_DOWNLOAD_PACKAGE)
+                            .addCategory(DOWNLOAD_PAUSED)
+                            .putExtra(EXTRA_UPDATE_DETAILS, details)
+                            .putExtra(EXTRA_CALLBACK, member.callback)
+                            .putExtra(EXTRA_REQUEST_ID, member.requestId)
+                            .putExtra(EXTRA_DOWNLOADED, downloaded)
+            );
+        }
+    }
+
+    /**
+     * Marks a request as over, so that it is told about a single outcome.
+     *
+     * @param member The {@link Member} of the request.
+     * @return True if the request was still waiting, false if it is already over.
+     */
+    private boolean finish(Member member) {
+        if (!member.over.compareAndSet(false, true)) {
+            return false;
+        }
+        ScheduledFuture<?> watchdog = member.watchdog;
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+        if (member.requestId != 0) {
+            requests.remove(member.requestId, member);
+        }
+        return true;
+    }
+
+    /**
+     * Convenience method for notifying the application of a download progress.
+     *
+     * @param details    The {@link UpdateDetails} retrieved from the Barracks platform.
+     * @param progress   The progress percentage.
+     * @param downloaded The number of bytes downloaded.
+     * @param member     The {@link Member} which started the download.
+     */
+    private void notifyProgress(final UpdateDetails details, final int progress, long downloaded, Member member) {
+        CallbackBus.Event<PackageDownloadCallback> event = null;
+        for (Member current : membersOf(details, member, false)) {
+            if (current.over.get()) {
+                continue;
+            }
+            if (current.requestId != 0) {
+                if (event == null) {
+                    event = new CallbackBus.Event<PackageDownloadCallback>() {
+                        @Override
+                        public void deliver(PackageDownloadCallback callback) {
+                            callback.onDownloadProgress(details, progress);
+                        }
+                    };
+                }
+                callbacks.publish(current.requestId, event);
+            }
+            if (current.broadcast) {
+                LocalBroadcastManager.getInstance(this).sendBroadcast(
+                        new Intent(ACTION_DOWNLOAD_PACKAGE)
+                                .addCategory(DOWNLOAD_PROGRESS)
+                                .putExtra(EXTRA_UPDATE_DETAILS, details)
+                                .putExtra(EXTRA_CALLBACK, current.callback)
+                                .putExtra(EXTRA_REQUEST_ID, current.requestId)
+                                .putExtra(EXTRA_PROGRESS, progress)
+                                .putExtra(EXTRA_DOWNLOADED, downloaded)
+                );
+            }
+        }
     }
 
     /**
@@ -270,9 +1448,7 @@ public class PackageDownloadService extends IntentService {
                 return false;
             }
         }
-        // Check if the parent directory exists or can be created and is a directory
-        File tmpParent = file.getParentFile();
-        return (tmpParent.mkdirs() || tmpParent.exists()) && tmpParent.isDirectory();
+        return PackageFiles.setupParent(file);
     }
 
     /**
@@ -285,84 +1461,265 @@ public class PackageDownloadService extends IntentService {
      * @throws GeneralSecurityException If the hash verification fails.
      */
     protected void checkPackageIntegrity(UpdateDetails details, File file) throws IOException, GeneralSecurityException {
-        InputStream is = null;
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-            is = new FileInputStream(file);
-            is = new DigestInputStream(is, md);
-            byte[] buffer = new byte[8192];
-            while (is.read(buffer) != -1) {
-            }
-        } catch (NoSuchAlgorithmException | IOException e) {
-            throw e;
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        if (md != null) {
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            if (!sb.toString().equals(details.getPackageInfo().getMd5())) {
-                throw new DigestException("Wrong file signature " + sb.toString() + " - " + details.getPackageInfo().getMd5());
-            }
+        MessageDigest md = PackageDigest.create();
+        PackageDigest.update(md, file, -1);
+        checkDigest(details, md.digest());
+    }
+
+    /**
+     * This method checks the <code>digest</code> computed while downloading a package.<br>
+     * It uses the md5 provided in the <code>details</code> parameter.
+     *
+     * @param details The {@link UpdateDetails} retrieved from the Barracks platform.
+     * @param digest  The MD5 digest of the downloaded bytes.
+     * @throws GeneralSecurityException If the hash verification fails.
+     */
+    protected void checkDigest(UpdateDetails details, byte[] digest) throws GeneralSecurityException {
+        if (!PackageDigest.matches(digest, details.getPackageInfo().getMd5())) {
+            throw new DigestException("Wrong file signature " + PackageDigest.toHex(digest) + " - " + details.getPackageInfo().getMd5());
         }
     }
 
     /**
-     * This method moves the <code>temporary</code> file to its <code>destination</code>.<br>
-     * If the file can't be moved, the method tries to copy it.
+     * This method moves the <code>temporary</code> file to its <code>destination</code>, copying it
+     * if it can't be renamed.
      *
      * @param temporary   The temporary file.
      * @param destination The destination file.
      * @throws IOException If an exception occurs during the copy phase.
      */
     protected void moveToFinalDestination(File temporary, File destination) throws IOException {
-        if (!temporary.renameTo(destination)) {
-            FileInputStream fis = null;
-            FileOutputStream fos = null;
-            try {
-                fis = new FileInputStream(temporary);
-                fos = new FileOutputStream(destination);
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    fos.write(buffer, 0, read);
-                }
-            } catch (IOException e) {
-                throw e;
-            } finally {
-                if (fis != null) {
-                    try {
-                        fis.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (fos != null) {
-                    try {
-                        fos.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+        if (temporary.renameTo(destination)) {
+            return;
+        }
+        PackageFiles.replace(temporary, destination);
+        if (!temporary.delete()) {
+            temporary.deleteOnExit();
         }
     }
 
+    /**
+     * Get the temporary file of a download.<br>
+     * By default, the temporary file is next to the final destination, so that the package is moved
+     * there by a single atomic rename.
+     *
+     * @param tmpDest   The temporary path for the download, can be null.
+     * @param finalDest The final path for the download, can be null.
+     * @return the temporary file of the download.
+     */
+    private File tmpFileOf(String tmpDest, String finalDest) {
+        if (!TextUtils.isEmpty(tmpDest)) {
+            return new File(tmpDest);
+        }
+        if (!TextUtils.isEmpty(finalDest)) {
+            return new File(finalDest + Defaults.DEFAULT_TMP_SUFFIX);
+        }
+        return new File(getFilesDir(), Defaults.DEFAULT_TMP_DL_DESTINATION);
+    }
+
+    /**
+     * Get the final destination of a download.
+     *
+     * @param finalDest The final path for the download, can be null.
+     * @return the final destination of the download.
+     */
+    private File finalFileOf(String finalDest) {
+        return TextUtils.isEmpty(finalDest) ? new File(getFilesDir(), Defaults.DEFAULT_FINAL_DL_DESTINATION) : new File(finalDest);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return new Binder();
     }
 
+    /**
+     * A request waiting for the result of a download.
+     */
+    private static final class Member {
+        /**
+         * The callback identifier of the request, sent with the broadcasts.
+         */
+        private final int callback;
+        /**
+         * The identifier of the subscriber of the callback bus, or 0 if there is none.
+         */
+        private final long requestId;
+        /**
+         * The identifier of the job of the request in the {@link JobJournal}, or 0 if there is none.
+         */
+        private final long jobId;
+        /**
+         * Whether the progress and the result are broadcast using the {@link LocalBroadcastManager}.
+         */
+        private final boolean broadcast;
+        /**
+         * The final destination of the request, or null to use the one of the download.
+         */
+        private final File destination;
+        /**
+         * The {@link Intent} of the request, kept to resume it.
+         */
+        private final Intent intent;
+        /**
+         * Whether the request has been told about its outcome.
+         */
+        private final AtomicBoolean over = new AtomicBoolean();
+        /**
+         * The transfer the request waits for, shared with the requests for the same package.
+         */
+        private volatile Transfer transfer = new Transfer();
+        /**
+         * The sink the package is written to, or null to use the files of the download.
+         */
+        private PackageSink sink;
+        /**
+         * The slots of the final destination, or null if the package replaces the destination.
+         */
+        private PackageSlots slots;
+        /**
+         * Whether the request may share the download of other requests for the same package.
+         */
+        private boolean shared;
+        /**
+         * The task failing the request when its deadline passes, or null if it has none.
+         */
+        private volatile ScheduledFuture<?> watchdog;
+
+        private Member(int callback, long requestId, long jobId, boolean broadcast, File destination, Intent intent) {
+            this.callback = callback;
+            this.requestId = requestId;
+            this.jobId = jobId;
+            this.broadcast = broadcast;
+            this.destination = destination;
+            this.intent = intent;
+        }
+
+        private static Member of(Intent intent, File destination) {
+            long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, 0);
+            return new Member(
+                    intent.getIntExtra(EXTRA_CALLBACK, -1),
+                    requestId,
+                    intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0),
+                    intent.getBooleanExtra(EXTRA_BROADCAST, requestId == 0),
+                    destination,
+                    intent
+            );
+        }
+    }
+
+    /**
+     * The state of a transfer, which can be aborted from another thread.
+     */
+    private static final class Transfer {
+        /**
+         * The number of bytes downloaded so far.
+         */
+        private volatile long downloaded = 0;
+        /**
+         * The attempts of the transfer, set by the request which started it.
+         */
+        private volatile Retrier retrier;
+        /**
+         * The delay before the next attempt in milliseconds, or -1 if the transfer is over.
+         */
+        private volatile long retryDelay = -1;
+        /**
+         * The urls the package may be downloaded from, best first, or null until they are ranked.
+         */
+        private volatile List<String> sources;
+        /**
+         * The index of the source of the current attempt.
+         */
+        private volatile int source = 0;
+        private boolean aborted = false;
+        private boolean pause = false;
+        private Call<ResponseBody> call;
+        private SegmentedDownloader downloader;
+
+        /**
+         * Records the call in progress, so that it can be cancelled.
+         *
+         * @param call The call about to be executed.
+         * @return False if the transfer has already been aborted, true otherwise.
+         */
+        private synchronized boolean attach(Call<ResponseBody> call) {
+            this.call = call;
+            return !aborted;
+        }
+
+        /**
+         * Records the downloader in progress, so that it can be cancelled.
+         *
+         * @param downloader The downloader about to be started.
+         * @return False if the transfer has already been aborted, true otherwise.
+         */
+        private synchronized boolean attach(SegmentedDownloader downloader) {
+            this.downloader = downloader;
+            return !aborted;
+        }
+
+        /**
+         * Aborts the transfer, cancelling the calls in progress.
+         *
+         * @param pause True if the partial file should be kept, false otherwise.
+         */
+        private synchronized void abort(boolean pause) {
+            if (aborted) {
+                return;
+            }
+            this.aborted = true;
+            this.pause = pause;
+            notifyAll();
+            if (call != null) {
+                call.cancel();
+            }
+            if (downloader != null) {
+                downloader.cancel();
+            }
+        }
+
+        /**
+         * Waits before the next attempt of the transfer.
+         *
+         * @param delay The time to wait, in milliseconds.
+         * @return True once the delay is over, false if the transfer has been aborted in the meantime.
+         */
+        private synchronized boolean await(long delay) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            while (!aborted) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return true;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Get the url of the source of the current attempt.
+         *
+         * @return the url the package is downloaded from, or null until the sources are ranked.
+         */
+        private String getSource() {
+            List<String> sources = this.sources;
+            return sources == null || sources.isEmpty() ? null : sources.get(Math.min(source, sources.size() - 1));
+        }
+
+        private synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        private synchronized boolean isCancelled() {
+            return aborted && !pause;
+        }
+    }
+
     private class Binder extends android.os.Binder {
         PackageDownloadService getService() {
             // TODO return a wrapper exposing only the necessary methods
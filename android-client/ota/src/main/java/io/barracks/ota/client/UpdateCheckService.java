@@ -16,10 +16,12 @@
 
 package io.barracks.ota.client;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 
@@ -28,171 +30,1295 @@ import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.TypeAdapter;
 import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.PatchInfo;
 import io.barracks.ota.client.api.UpdateCheckApi;
 import io.barracks.ota.client.api.UpdateDetails;
 import io.barracks.ota.client.api.UpdateDetailsRequest;
+import io.barracks.ota.client.check.UpdateCache;
+import io.barracks.ota.client.dispatch.CallbackBus;
+import io.barracks.ota.client.dispatch.JobJournal;
+import io.barracks.ota.client.dispatch.SingleFlight;
+import io.barracks.ota.client.helper.UpdateCheckCallback;
+import io.barracks.ota.client.http.CircuitOpenException;
+import io.barracks.ota.client.http.Deadline;
+import io.barracks.ota.client.http.DeadlineExceededException;
+import io.barracks.ota.client.http.HttpEngine;
+import io.barracks.ota.client.http.HttpStatusException;
+import io.barracks.ota.client.http.Retrier;
+import io.barracks.ota.client.http.RetryException;
+import okhttp3.HttpUrl;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
+import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
 /**
  * This service is used to handle the request to the barracks service in the background.<br>
- * It uses the {@link LocalBroadcastManager} to send updates about the request, using the categories
- * for {@link UpdateCheckService#UPDATE_AVAILABLE an available update},
+ * The results are delivered to the {@link UpdateCheckCallback callbacks} of the same process through
+ * the {@link #getCallbackBus() callback bus}, using the {@link #EXTRA_REQUEST_ID request identifier}.
+ * When requested, it also uses the {@link LocalBroadcastManager} to send updates about the request,
+ * using the categories for {@link UpdateCheckService#UPDATE_AVAILABLE an available update},
  * {@link UpdateCheckService#UPDATE_UNAVAILABLE no update available} and
- * {@link UpdateCheckService#UPDATE_REQUEST_ERROR failure} for a defined {@link UpdateCheckService#ACTION_CHECK action}
+ * {@link UpdateCheckService#UPDATE_REQUEST_ERROR failure} for a defined {@link UpdateCheckService#ACTION_CHECK action}<br>
+ * A request identical to one which is waiting or in progress does not trigger another call, the
+ * result of the first one is sent to both callbacks.<br>
+ * The last response to each request is kept in an {@link UpdateCache}, its validator is sent with
+ * the next identical request, and the cached result is replayed when the platform answers that
+ * nothing has changed.<br>
+ * A request can be {@link #ACTION_CANCEL_CHECK cancelled} using its {@link #EXTRA_REQUEST_ID identifier}.<br>
+ * The transient failures of the calls are retried according to the
+ * {@link io.barracks.ota.client.http.RetryPolicy retry policy} of the {@link HttpEngine}, a request
+ * which failed after several attempts receives a {@link RetryException}.<br>
+ * A single check which is slow to answer may be hedged with a second identical call, according to
+ * the {@link io.barracks.ota.client.http.HedgingPolicy hedging policy} of the {@link HttpEngine}.<br>
+ * A request may have a {@link #EXTRA_DEADLINE deadline}, covering the time it waits in the queue
+ * and all the attempts of its calls.<br>
+ * No thread waits for the checks: their calls wait in the dispatcher of the {@link HttpEngine},
+ * their results are handled by its workers, and the service stops once every request is over.
  *
  * @see io.barracks.ota.client.helper.BarracksHelper
  */
-public class UpdateCheckService extends IntentService implements TypeAdapterFactory {
+public class UpdateCheckService extends Service implements TypeAdapterFactory {
     /**
      * Defines the action used to start the request to the Barracks platform.
      *
      * @see Intent#setAction(String)
      */
     public static final String ACTION_CHECK = "io.barracks.ota.client.CHECK_UPDATE";
+    /**
+     * Defines the action used to start a batch of requests to the Barracks platform.<br>
+     * The result of each request is notified as soon as it is received, using {@link #ACTION_CHECK}.
+     *
+     * @see Intent#setAction(String)
+     * @see #EXTRA_REQUESTS
+     */
+    public static final String ACTION_CHECK_BATCH = "io.barracks.ota.client.CHECK_UPDATES";
+    /**
+     * Defines the action used to cancel the request or the batch sent with the {@link #EXTRA_REQUEST_ID identifier}.<br>
+     * Its remaining results are dropped, and the call in progress is aborted unless another request
+     * waits for its result.
+     *
+     * @see Intent#setAction(String)
+     */
+    public static final String ACTION_CANCEL_CHECK = "io.barracks.ota.client.CANCEL_CHECK";
+
+    /**
+     * This key is used to specify the {@link UpdateDetailsRequest request} used as a reference
+     * to call the Barracks platform.
+     */
+    public static final String EXTRA_REQUEST = "check_request";
+    /**
+     * This key is used to specify the {@link java.util.ArrayList list} of
+     * {@link UpdateDetailsRequest requests} of a {@link #ACTION_CHECK_BATCH batch}.
+     */
+    public static final String EXTRA_REQUESTS = "check_requests";
+    /**
+     * This key is used to specify the maximum number of requests sent in a single call to the
+     * Barracks platform, larger batches are split.
+     */
+    public static final String EXTRA_MAX_BATCH_SIZE = "maxBatchSize";
+    /**
+     * This key is used to specify the time by which the request has to be over, in milliseconds
+     * since the epoch. The request fails with a {@link DeadlineExceededException} once it has passed,
+     * the call it shares with identical requests goes on as long as one of them waits for it.
+     *
+     * @see Deadline#after(long)
+     */
+    public static final String EXTRA_DEADLINE = "deadline";
+    /**
+     * This key is used to specify the url used to call the Barracks platform.
+     */
+    public static final String EXTRA_URL = "url";
+    /**
+     * This key is used to specify the API key used for making a request to the Barracks platform.
+     */
+    public static final String EXTRA_API_KEY = "apiKey";
+
+    /**
+     * Category used to notify when some {@link UpdateDetails} are available.
+     */
+    public static final String UPDATE_AVAILABLE = "io.barracks.ota.client.UPDATE_AVAILABLE";
+    /**
+     * Category used to notify when no details are available.
+     */
+    public static final String UPDATE_UNAVAILABLE = "io.barracks.ota.client.update_available.UPDATE_UNAVAILABLE";
+    /**
+     * Category used to notify when a request has failed.
+     */
+    public static final String UPDATE_REQUEST_ERROR = "io.barracks.ota.client.update_available.UPDATE_REQUEST_ERROR";
+    /**
+     * Category used to notify that the result of a request is left out, because it has not changed
+     * and the request asked to be {@link #EXTRA_NOTIFY_ON_CHANGE notified of the changes} only.
+     */
+    public static final String UPDATE_UNCHANGED = "io.barracks.ota.client.update_available.UPDATE_UNCHANGED";
+
+    /**
+     * This key is used to report an {@link Throwable exception} thrown during the request.
+     */
+    public static final String EXTRA_EXCEPTION = "exception";
+    /**
+     * This key is used to report the {@link UpdateDetails details} received from the Barracks platform.
+     */
+    public static final String EXTRA_UPDATE_DETAILS = "updateDetails";
+    /**
+     * This key is used to report the callback's identifier
+     */
+    public static final String EXTRA_CALLBACK = "callback";
+    /**
+     * This key is used to specify the unique identifier of the request, which is also the identifier
+     * of the subscriber of the {@link #getCallbackBus() callback bus} receiving its results.
+     * It is reported with the broadcasts, and the subscriber is released once every result is delivered.
+     */
+    public static final String EXTRA_REQUEST_ID = "requestId";
+    /**
+     * This key is used to specify that the result is also broadcast using the {@link LocalBroadcastManager},
+     * for the components of the application which listen to {@link #ACTION_CHECK_FILTER}.<br>
+     * Defaults to true when no {@link #EXTRA_REQUEST_ID request identifier} is specified.
+     */
+    public static final String EXTRA_BROADCAST = "broadcast";
+    /**
+     * This key is used to specify that the callback should only be notified when the result differs
+     * from the one of the previous identical request, for a single request or each request of a
+     * batch. Errors are always notified, and the broadcasts report the results left out with
+     * {@link #UPDATE_UNCHANGED}.
+     */
+    public static final String EXTRA_NOTIFY_ON_CHANGE = "notifyOnChange";
+    /**
+     * This key is used to report that the result is the same as the one of the previous identical
+     * request.
+     */
+    public static final String EXTRA_UNCHANGED = "unchanged";
+
+    /**
+     * Intent filter used by {@link android.content.BroadcastReceiver} to register to the {@link LocalBroadcastManager}
+     */
+    public static final IntentFilter ACTION_CHECK_FILTER;
+
+    static {
+        ACTION_CHECK_FILTER = new IntentFilter(ACTION_CHECK);
+        ACTION_CHECK_FILTER.addCategory(UPDATE_AVAILABLE);
+        ACTION_CHECK_FILTER.addCategory(UPDATE_UNAVAILABLE);
+        ACTION_CHECK_FILTER.addCategory(UPDATE_REQUEST_ERROR);
+        ACTION_CHECK_FILTER.addCategory(UPDATE_UNCHANGED);
+    }
+
+    /**
+     * The key recorded for the batches, which never share their calls.
+     */
+    private static final String BATCH_KEY = "";
+    /**
+     * The time given to the calls of a request whose deadline has passed to notify their failure,
+     * in milliseconds.
+     */
+    private static final long EXPIRY_DELAY = 1000;
+
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_BAD_METHOD = 405;
+    private static final int HTTP_NOT_IMPLEMENTED = 501;
+    /**
+     * The base urls of the platforms which do not provide the batch endpoint.
+     */
+    private static final Set<String> batchUnsupported = new HashSet<>();
+
+    private static final CallbackBus<UpdateCheckCallback> callbacks = new CallbackBus<>();
+    private static UpdateCache cache;
+
+    /**
+     * The requests waiting or in progress, with the callbacks waiting for their result.
+     */
+    private final SingleFlight<Member> flights = new SingleFlight<>();
+    /**
+     * The keys of the requests waiting or in progress by identifier, {@link #BATCH_KEY} for the batches.
+     */
+    private final ConcurrentHashMap<Long, String> keys = new ConcurrentHashMap<>();
+    /**
+     * The calls in progress, by request key for the single checks and by {@link #batchKey(long) batch key}
+     * for the batches.
+     */
+    private final Map<String, Set<Call<?>>> calls = new HashMap<>();
+    /**
+     * The identifiers of the cancelled requests which are not over yet.
+     */
+    private final Set<Long> cancelled = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    /**
+     * The {@link Gson} instance used to parse the responses, built on first use.
+     */
+    private Gson gson;
+    /**
+     * The engine used to create the current {@link #api}.
+     */
+    private HttpEngine engine;
+    /**
+     * The base url of the current {@link #api}.
+     */
+    private String apiUrl;
+    /**
+     * The API proxy used to reach the Barracks platform.
+     */
+    private UpdateCheckApi api;
+    /**
+     * The number of requests which are not over yet, including the ones being started.
+     */
+    private int running;
+    private int lastStartId;
+
+    public UpdateCheckService() {
+        this(UpdateCheckService.class.getSimpleName());
+    }
+
+    /**
+     * Creates an {@link UpdateCheckService}.
+     *
+     * @param name Not used anymore, the checks run on the threads of the {@link HttpEngine}.
+     */
+    public UpdateCheckService(String name) {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Start again the jobs left over by a previous process, once the journal has been read
+        getJobJournal().replay(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        synchronized (this) {
+            lastStartId = startId;
+            // The service does not stop while the request is being started
+            running++;
+        }
+        Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                over();
+            }
+        };
+        try {
+            if (intent != null && ACTION_CANCEL_CHECK.equals(intent.getAction())) {
+                cancel(intent.getLongExtra(EXTRA_REQUEST_ID, 0));
+            } else if (intent != null && ACTION_CHECK.equals(intent.getAction())) {
+                intent = record(intent);
+                String key = flightKey(intent);
+                long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, 0);
+                if (requestId != 0) {
+                    keys.put(requestId, key);
+                }
+                Member member = Member.of(intent);
+                boolean joined = flights.join(key, member);
+                watch(key, member, intent.<UpdateDetailsRequest>getParcelableExtra(EXTRA_REQUEST));
+                if (!joined) {
+                    start();
+                    post(intent, member, done);
+                }
+            } else if (intent != null && ACTION_CHECK_BATCH.equals(intent.getAction())) {
+                intent = record(intent);
+                long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, 0);
+                if (requestId != 0) {
+                    keys.put(requestId, BATCH_KEY);
+                }
+                start();
+                post(intent, Member.of(intent), done);
+            }
+        } finally {
+            over();
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Arms the watchdog of a single check which has a {@link #EXTRA_DEADLINE deadline}.
+     *
+     * @param key     The key identifying identical requests.
+     * @param member  The {@link Member} of the request.
+     * @param request The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     */
+    private void watch(final String key, final Member member, final UpdateDetailsRequest request) {
+        member.watchdog = member.deadline.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(key, member, request);
+            }
+        });
+    }
+
+    /**
+     * Fails a single check whose deadline has passed.<br>
+     * The request stops waiting for the result, and the call is aborted if no other request waits
+     * for it.
+     *
+     * @param key     The key identifying identical requests.
+     * @param member  The {@link Member} of the request.
+     * @param request The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     */
+    private void expire(String key, Member member, UpdateDetailsRequest request) {
+        if (!finish(member)) {
+            // The result is already being delivered
+            return;
+        }
+        if (isCancelled(key)) {
+            abort(key);
+        }
+        notifyResult(member, request, null, false, member.deadline.exceeded("Update check", null));
+        release(member);
+    }
+
+    /**
+     * Marks a request as over, so that its result is delivered once.
+     *
+     * @param member The {@link Member} of the request.
+     * @return True if the result of the request has to be delivered, false if it already has been.
+     */
+    private static boolean finish(Member member) {
+        if (!member.over.compareAndSet(false, true)) {
+            return false;
+        }
+        ScheduledFuture<?> watchdog = member.watchdog;
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+        return true;
+    }
+
+    /**
+     * Counts a request which is not over yet.
+     */
+    private synchronized void start() {
+        running++;
+    }
+
+    /**
+     * Counts a request which is over, and stops the service if no other request is running.
+     */
+    private synchronized void over() {
+        if (--running == 0) {
+            // Only stops if no other request was received in the meantime
+            stopSelf(lastStartId);
+        }
+    }
+
+    /**
+     * Records the job of a request in the {@link JobJournal}.
+     *
+     * @param intent The {@link Intent} of the request.
+     * @return The {@link Intent} to be handled, with its job identifier.
+     */
+    private Intent record(Intent intent) {
+        if (intent.getBooleanExtra(JobJournal.EXTRA_REPLAYED, false)) {
+            // The requests of the previous process are gone, the result can only be broadcast
+            intent = new Intent(intent);
+            intent.removeExtra(EXTRA_REQUEST_ID);
+            intent.removeExtra(EXTRA_BROADCAST);
+        }
+        if (intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0) != 0) {
+            return intent;
+        }
+        Intent job = new Intent(intent).setComponent(new ComponentName(this, getClass()));
+        return job.putExtra(JobJournal.EXTRA_JOB_ID, getJobJournal().add(job));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * This method handles a request on the calling thread, and returns once all its results have
+     * been notified, or once its {@link #EXTRA_DEADLINE deadline} has passed.
+     *
+     * @param intent The {@link Intent} describing the request.
+     */
+    protected void onHandleIntent(Intent intent) {
+        final CountDownLatch over = new CountDownLatch(1);
+        handle(intent, Member.of(intent), new Runnable() {
+            @Override
+            public void run() {
+                over.countDown();
+            }
+        });
+        try {
+            // Without a deadline, the calls are bounded by the timeouts of the HTTP engine
+            long remaining = Deadline.at(intent.getLongExtra(EXTRA_DEADLINE, 0)).remaining();
+            if (!over.await(remaining, TimeUnit.MILLISECONDS)) {
+                over.await(EXPIRY_DELAY, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts a single check or a batch on the workers of the {@link HttpEngine}, so that the main
+     * thread neither reads the cache nor builds the API.
+     *
+     * @param intent The {@link Intent} describing the request.
+     * @param member The {@link Member} waiting for the results.
+     * @param done   Run once all the results of the request have been notified.
+     */
+    private void post(final Intent intent, final Member member, final Runnable done) {
+        HttpEngine.getInstance().getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                handle(intent, member, done);
+            }
+        });
+    }
+
+    /**
+     * Starts a single check or a batch, without waiting for its results.
+     *
+     * @param intent The {@link Intent} describing the request.
+     * @param member The {@link Member} waiting for the results.
+     * @param done   Run once all the results of the request have been notified.
+     */
+    private void handle(Intent intent, Member member, Runnable done) {
+        switch (intent.getAction()) {
+            case ACTION_CHECK:
+                checkUpdate(
+                        intent.getStringExtra(EXTRA_API_KEY),
+                        intent.getStringExtra(EXTRA_URL),
+                        intent.<UpdateDetailsRequest>getParcelableExtra(EXTRA_REQUEST),
+                        member,
+                        flightKey(intent),
+                        done
+                );
+                break;
+            case ACTION_CHECK_BATCH:
+                checkUpdates(
+                        intent.getStringExtra(EXTRA_API_KEY),
+                        intent.getStringExtra(EXTRA_URL),
+                        intent.<UpdateDetailsRequest>getParcelableArrayListExtra(EXTRA_REQUESTS),
+                        intent.getIntExtra(EXTRA_MAX_BATCH_SIZE, Defaults.DEFAULT_MAX_BATCH_SIZE),
+                        member,
+                        done
+                );
+                break;
+            default:
+                done.run();
+                break;
+        }
+    }
+
+    /**
+     * Computes the key identifying identical requests.
+     *
+     * @param intent The {@link Intent} of the request.
+     * @return The key of the request.
+     */
+    private static String flightKey(Intent intent) {
+        return requestKey(
+                intent.getStringExtra(EXTRA_API_KEY),
+                intent.getStringExtra(EXTRA_URL),
+                intent.<UpdateDetailsRequest>getParcelableExtra(EXTRA_REQUEST)
+        ) + '|' + intent.getBooleanExtra(EXTRA_NOTIFY_ON_CHANGE, false);
+    }
+
+    /**
+     * Computes the key identifying the responses of the Barracks platform to identical requests.
+     *
+     * @param apiKey  The API key provided by the Barracks platform.
+     * @param baseUrl The url used to call the Barracks platform
+     * @param request The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @return The key of the request.
+     */
+    private static String requestKey(String apiKey, String baseUrl, UpdateDetailsRequest request) {
+        StringBuilder builder = new StringBuilder()
+                .append(apiKey).append('|')
+                .append(baseUrl).append('|');
+        if (request != null) {
+            builder.append(request.getUnitId()).append('|').append(request.getVersionId()).append('|');
+            appendBundle(builder, request.getCustomClientData());
+        }
+        return builder.toString();
+    }
+
+    private static void appendBundle(StringBuilder builder, Bundle bundle) {
+        if (bundle == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('{');
+        for (String key : new TreeSet<>(bundle.keySet())) {
+            Object value = bundle.get(key);
+            builder.append(key).append('=');
+            if (value instanceof Bundle) {
+                appendBundle(builder, (Bundle) value);
+            } else if (value != null) {
+                builder.append(value.getClass().getName()).append(':').append(value);
+            } else {
+                builder.append("null");
+            }
+            builder.append(',');
+        }
+        builder.append('}');
+    }
+
+    /**
+     * This method processes the request and notifies the rest of the application using the {@link LocalBroadcastManager}.
+     *
+     * @param apiKey   The API key provided by the Barracks platform.
+     * @param baseUrl  The url used to call the Barracks platform
+     * @param request  The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @param member   The {@link Member} waiting for the result.
+     * @param key      The key identifying identical requests, or null if the request is not shared.
+     * @param done     Run once the result has been notified.
+     */
+    private void checkUpdate(String apiKey, String baseUrl, final UpdateDetailsRequest request, final Member member, final String key, final Runnable done) {
+        // The check is idempotent, a slow call may be hedged
+        check(apiKey, baseUrl, request, member, key, true, new Completion<Result>() {
+            @Override
+            public void onSuccess(Result result) {
+                land(result, null);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                land(null, failure);
+            }
+
+            private void land(Result result, Throwable error) {
+                try {
+                    List<Member> members = key == null ? Collections.<Member>emptyList() : flights.land(key);
+                    if (members.isEmpty()) {
+                        members = Collections.singletonList(member);
+                    }
+                    for (Member current : members) {
+                        if (!finish(current)) {
+                            // The request has expired
+                            continue;
+                        }
+                        if (result != null) {
+                            notifyResult(current, request, result);
+                        } else {
+                            notifyResult(current, request, null, false, error);
+                        }
+                        if (key != null) {
+                            release(current);
+                        }
+                    }
+                } finally {
+                    done.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a single request as an asynchronous call, and reads its result once it is received.
+     *
+     * @param apiKey     The API key provided by the Barracks platform.
+     * @param baseUrl    The url used to call the Barracks platform
+     * @param request    The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @param member     The {@link Member} waiting for the result.
+     * @param key        The key identifying identical requests, or null if the request is not shared.
+     * @param hedged     Whether a slow call may be hedged.
+     * @param completion The {@link Completion} notified with the result of the request.
+     */
+    private void check(String apiKey, String baseUrl, UpdateDetailsRequest request, Member member, String key, boolean hedged, final Completion<Result> completion) {
+        final String cacheKey;
+        final UpdateCache.Entry cached;
+        Call<UpdateDetails> call;
+        Retrier retrier;
+        try {
+            checkArguments(apiKey, baseUrl, request);
+            HttpEngine engine = HttpEngine.getInstance();
+            cacheKey = requestKey(apiKey, baseUrl, request);
+            cached = getUpdateCache().get(cacheKey);
+            call = getApi(baseUrl).checkUpdate(apiKey, cached == null ? null : cached.getEtag(), request);
+            if (hedged) {
+                call = engine.getHedger().hedge(call);
+            }
+            retrier = engine.newRetrier(hostOf(baseUrl));
+        } catch (Throwable t) {
+            completion.onFailure(t);
+            return;
+        }
+        enqueue(call, retrier, member, key, new Completion<Response<UpdateDetails>>() {
+            @Override
+            public void onSuccess(Response<UpdateDetails> response) {
+                Result result;
+                try {
+                    result = readResult(response, cacheKey, cached);
+                } catch (Throwable t) {
+                    completion.onFailure(t);
+                    return;
+                }
+                completion.onSuccess(result);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                completion.onFailure(failure);
+            }
+        });
+    }
+
+    /**
+     * Checks the parameters of a single request.
+     *
+     * @param apiKey  The API key provided by the Barracks platform.
+     * @param baseUrl The url used to call the Barracks platform
+     * @param request The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @throws IllegalArgumentException If a parameter is missing.
+     */
+    private static void checkArguments(String apiKey, String baseUrl, UpdateDetailsRequest request) {
+        if (TextUtils.isEmpty(apiKey)) {
+            throw new IllegalArgumentException("Missing API key");
+        }
+        if (TextUtils.isEmpty(baseUrl)) {
+            throw new IllegalArgumentException("Missing base URL");
+        }
+        if (request == null) {
+            throw new IllegalArgumentException("Missing request");
+        }
+    }
+
+    /**
+     * Reads the result of a single request from the response of the platform, and keeps it in the
+     * {@link UpdateCache}.
+     *
+     * @param response The successful or <code>304</code> response of the platform.
+     * @param cacheKey The key of the request in the {@link UpdateCache}.
+     * @param cached   The result previously received for the request, or null.
+     * @return The result of the request.
+     * @throws HttpStatusException If the platform answered <code>304</code> to a request without result.
+     */
+    private Result readResult(Response<UpdateDetails> response, String cacheKey, UpdateCache.Entry cached) throws HttpStatusException {
+        if (response.code() == HTTP_NOT_MODIFIED && cached != null) {
+            // Nothing has changed, replay the previous result
+            return new Result(getGson().fromJson(cached.getBody(), UpdateDetails.class), true);
+        } else if (response.isSuccessful()) {
+            UpdateDetails update = response.body();
+            String body = getGson().toJson(update, UpdateDetails.class);
+            getUpdateCache().put(cacheKey, new UpdateCache.Entry(response.headers().get("ETag"), body));
+            return new Result(update, cached != null && body.equals(cached.getBody()));
+        }
+        throw new HttpStatusException(response.code() + " " + response.message(), response.code(), -1);
+    }
+
+    /**
+     * This method processes a batch of requests, split in chunks of at most <code>maxBatchSize</code>
+     * requests, and notifies the result of each request as soon as it is received.<br>
+     * Each chunk is sent in a single call to the batch endpoint, once the previous chunk has been
+     * answered. If the platform does not provide it, the remaining requests are sent as individual
+     * calls, several of them being in progress at the same time.
+     *
+     * @param apiKey       The API key provided by the Barracks platform.
+     * @param baseUrl      The url used to call the Barracks platform
+     * @param requests     The {@link UpdateDetailsRequest requests} parameters for the Barracks platform.
+     * @param maxBatchSize The maximum number of requests sent in a single call.
+     * @param member       The {@link Member} waiting for the results.
+     * @param done         Run once all the results have been notified.
+     */
+    private void checkUpdates(String apiKey, String baseUrl, List<UpdateDetailsRequest> requests, int maxBatchSize, Member member, Runnable done) {
+        if (requests == null || requests.isEmpty()) {
+            notifyResult(member, null, null, false, new IllegalArgumentException("Missing requests"));
+            release(member);
+            done.run();
+            return;
+        }
+        try {
+            if (TextUtils.isEmpty(apiKey)) {
+                throw new IllegalArgumentException("Missing API key");
+            }
+            if (TextUtils.isEmpty(baseUrl)) {
+                throw new IllegalArgumentException("Missing base URL");
+            }
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("Invalid batch size : " + maxBatchSize);
+            }
+        } catch (IllegalArgumentException e) {
+            for (UpdateDetailsRequest request : requests) {
+                notifyResult(member, request, null, false, e);
+            }
+            release(member);
+            done.run();
+            return;
+        }
+        new Batch(apiKey, baseUrl, requests, maxBatchSize, member, done).next(0);
+    }
+
+    /**
+     * Reads the response of the batch endpoint, and notifies each result as it is decoded. The
+     * requests of the chunk left without a result are notified with an error.
+     *
+     * @param response The successful response of the platform.
+     * @param apiKey   The API key provided by the Barracks platform.
+     * @param baseUrl  The url used to call the Barracks platform
+     * @param chunk    The {@link UpdateDetailsRequest requests} sent in the call.
+     * @param member   The {@link Member} waiting for the results.
+     */
+    private void readBatch(Response<ResponseBody> response, String apiKey, String baseUrl, List<UpdateDetailsRequest> chunk, Member member) {
+        boolean[] delivered = new boolean[chunk.size()];
+        Throwable error = null;
+        ResponseBody body = response.body();
+        try {
+            TypeAdapter<UpdateDetails> adapter = getGson().getAdapter(UpdateDetails.class);
+            JsonReader reader = new JsonReader(body.charStream());
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int index = -1;
+                UpdateDetails update = null;
+                String message = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("index".equals(name)) {
+                        index = reader.nextInt();
+                    } else if ("updateDetails".equals(name)) {
+                        update = adapter.read(reader);
+                    } else if ("error".equals(name) && reader.peek() != JsonToken.NULL) {
+                        message = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (index < 0 || index >= chunk.size() || delivered[index]) {
+                    throw new JsonSyntaxException("Unexpected result index : " + index);
+                }
+                delivered[index] = true;
+                if (message != null) {
+                    notifyResult(member, chunk.get(index), null, false, new RuntimeException(message));
+                } else {
+                    notifyResult(member, chunk.get(index), cacheResult(requestKey(apiKey, baseUrl, chunk.get(index)), update));
+                }
+            }
+            reader.endArray();
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            body.close();
+        }
+        for (int i = 0; i < delivered.length; i++) {
+            if (!delivered[i]) {
+                notifyResult(member, chunk.get(i), null, false, error != null ? error : new RuntimeException("Missing result"));
+            }
+        }
+    }
+
+    /**
+     * Keeps a result received from the batch endpoint in the {@link UpdateCache}, so that the next
+     * identical request can tell whether it has changed.
+     *
+     * @param cacheKey The key of the request in the {@link UpdateCache}.
+     * @param update   The {@link UpdateDetails} received, or null if no update is available.
+     * @return The result of the request.
+     */
+    private Result cacheResult(String cacheKey, UpdateDetails update) {
+        UpdateCache.Entry cached = getUpdateCache().get(cacheKey);
+        String body = getGson().toJson(update, UpdateDetails.class);
+        boolean unchanged = cached != null && body.equals(cached.getBody());
+        // The batch endpoint has no validator, the one of the previous response still matches an unchanged result
+        getUpdateCache().put(cacheKey, new UpdateCache.Entry(unchanged ? cached.getEtag() : null, body));
+        return new Result(update, unchanged);
+    }
+
+    /**
+     * Sends requests of a batch as individual asynchronous calls, and notifies each result as soon
+     * as it is received.<br>
+     * The calls wait in the dispatcher of the {@link HttpEngine}, which bounds the number of calls
+     * in progress and of threads running them, and their results are handled by its workers. The
+     * calls are not hedged, a hedge would only add to the calls waiting in the dispatcher.
+     *
+     * @param apiKey   The API key provided by the Barracks platform.
+     * @param baseUrl  The url used to call the Barracks platform
+     * @param requests The {@link UpdateDetailsRequest requests} parameters for the Barracks platform.
+     * @param member   The {@link Member} waiting for the results.
+     * @param done     Run once the last result has been notified.
+     */
+    private void checkPipelined(String apiKey, String baseUrl, List<UpdateDetailsRequest> requests, final Member member, final Runnable done) {
+        final AtomicInteger remaining = new AtomicInteger(requests.size());
+        for (final UpdateDetailsRequest request : requests) {
+            check(apiKey, baseUrl, request, member, null, false, new Completion<Result>() {
+                @Override
+                public void onSuccess(Result result) {
+                    try {
+                        notifyResult(member, request, result);
+                    } finally {
+                        countDown();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    try {
+                        notifyResult(member, request, null, false, failure);
+                    } finally {
+                        countDown();
+                    }
+                }
+
+                private void countDown() {
+                    if (remaining.decrementAndGet() == 0) {
+                        done.run();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Executes a call asynchronously, attempting it again as long as its failures are transient and
+     * the {@link io.barracks.ota.client.http.RetryPolicy retry policy} allows it.<br>
+     * No thread waits for the call: it is run by the dispatcher of the {@link HttpEngine}, and its
+     * completion by the workers of the engine, which also schedule the next attempt after a
+     * transient failure.<br>
+     * The call in progress is registered with the <code>key</code> of the request, or the
+     * {@link #batchKey(long) batch key} of the <code>member</code>, so that it can be cancelled.<br>
+     * The attempts are bounded by the {@link Deadline} of the <code>member</code>, the call in
+     * progress is cancelled when it passes, and no attempt is scheduled if it would start too late.
+     *
+     * @param call       The call to be executed.
+     * @param retrier    The {@link Retrier} following the attempts of the call.
+     * @param member     The {@link Member} waiting for the result.
+     * @param key        The key identifying identical requests, or null if the request is not shared.
+     * @param completion The {@link Completion} notified with a successful or <code>304</code> response,
+     *                   or with the failure of the last attempt.
+     * @param <T>        The type of the body of the response.
+     */
+    private <T> void enqueue(final Call<T> call, final Retrier retrier, final Member member, final String key, final Completion<Response<T>> completion) {
+        Deadline deadline = deadlineOf(member, key);
+        if (deadline.isExpired()) {
+            completion.onFailure(deadline.exceeded("Update check", null));
+            return;
+        }
+        try {
+            retrier.begin();
+        } catch (CircuitOpenException e) {
+            completion.onFailure(retrier.report(e));
+            return;
+        }
+        final String callKey = key != null ? key : batchKey(member.requestId);
+        register(callKey, call);
+        if (isAborted(member, key)) {
+            call.cancel();
+        }
+        // The requests sharing a call expire on their own watchdogs, the last one aborts the call
+        final ScheduledFuture<?> watchdog = key != null && !flights.members(key).isEmpty() ? null : deadline.schedule(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> current, Response<T> response) {
+                over();
+                if (!response.isSuccessful() && response.code() != HTTP_NOT_MODIFIED) {
+                    if (response.errorBody() != null) {
+                        response.errorBody().close();
+                    }
+                    retry(call, retrier, member, key, completion, new HttpStatusException(response.code() + " " + response.message(), response.code(), HttpStatusException.parseRetryAfter(response.headers().get("Retry-After"))));
+                    return;
+                }
+                retrier.succeeded();
+                completion.onSuccess(response);
+            }
+
+            @Override
+            public void onFailure(Call<T> current, Throwable t) {
+                over();
+                if (t instanceof IOException) {
+                    retry(call, retrier, member, key, completion, (IOException) t);
+                } else {
+                    completion.onFailure(t);
+                }
+            }
+
+            private void over() {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+                unregister(callKey, call);
+            }
+        });
+    }
+
+    /**
+     * Schedules the next attempt of an asynchronous call on the workers of the {@link HttpEngine},
+     * or notifies the <code>completion</code> if the call must not be attempted again.
+     *
+     * @param call       The call which failed.
+     * @param retrier    The {@link Retrier} following the attempts of the call.
+     * @param member     The {@link Member} waiting for the result.
+     * @param key        The key identifying identical requests, or null if the request is not shared.
+     * @param completion The {@link Completion} of the call.
+     * @param failure    The failure of the last attempt.
+     * @param <T>        The type of the body of the response.
+     */
+    private <T> void retry(final Call<T> call, final Retrier retrier, final Member member, final String key, final Completion<Response<T>> completion, final IOException failure) {
+        long delay;
+        try {
+            delay = nextAttempt(retrier, deadlineOf(member, key), failure);
+        } catch (IOException e) {
+            completion.onFailure(e);
+            return;
+        }
+        if (isAborted(member, key)) {
+            completion.onFailure(retrier.report(failure));
+            return;
+        }
+        HttpEngine.getInstance().getWorkers().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isAborted(member, key)) {
+                    // Cancelled while waiting for the next attempt
+                    completion.onFailure(retrier.report(failure));
+                    return;
+                }
+                enqueue(call.clone(), retrier, member, key, completion);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
     /**
-     * This key is used to specify the {@link UpdateDetailsRequest request} used as a reference
-     * to call the Barracks platform.
+     * Decides when a call which failed may be attempted again.
+     *
+     * @param retrier  The {@link Retrier} following the attempts of the call.
+     * @param deadline The {@link Deadline} of the call.
+     * @param failure  The failure of the last attempt.
+     * @return The time to wait before the next attempt, in milliseconds.
+     * @throws IOException If the call must not be attempted again, a {@link DeadlineExceededException}
+     *                     if the deadline has passed or would pass before the next attempt.
      */
-    public static final String EXTRA_REQUEST = "check_request";
+    private static long nextAttempt(Retrier retrier, Deadline deadline, IOException failure) throws IOException {
+        if (deadline.isExpired()) {
+            throw deadline.exceeded("Update check", retrier.report(failure));
+        }
+        long delay = retrier.failed(failure);
+        if (delay >= 0 && delay >= deadline.remaining()) {
+            // The next attempt would start too late
+            throw deadline.exceeded("Update check", retrier.report(failure));
+        }
+        if (delay < 0) {
+            throw retrier.report(failure);
+        }
+        return delay;
+    }
+
     /**
-     * This key is used to specify the url used to call the Barracks platform.
+     * Get the deadline of the call of a request, which lasts as long as a request waits for it.
+     *
+     * @param member The {@link Member} waiting for the result.
+     * @param key    The key identifying identical requests, or null if the request is not shared.
+     * @return The latest {@link Deadline} of the requests waiting for the call.
      */
-    public static final String EXTRA_URL = "url";
+    private Deadline deadlineOf(Member member, String key) {
+        List<Member> members = key == null ? Collections.<Member>emptyList() : flights.members(key);
+        long latest = -1;
+        for (Member current : members) {
+            if (current.over.get()) {
+                continue;
+            }
+            if (current.deadline == Deadline.NONE) {
+                return Deadline.NONE;
+            }
+            latest = Math.max(latest, current.deadline.getTime());
+        }
+        return latest < 0 ? member.deadline : Deadline.at(latest);
+    }
+
     /**
-     * This key is used to specify the API key used for making a request to the Barracks platform.
+     * Checks whether nobody waits for the call of a request anymore.
+     *
+     * @param member The {@link Member} waiting for the result.
+     * @param key    The key identifying identical requests, or null if the request is not shared.
+     * @return True if the call can be aborted, false otherwise.
      */
-    public static final String EXTRA_API_KEY = "apiKey";
+    private boolean isAborted(Member member, String key) {
+        return key != null ? isCancelled(key) : cancelled.contains(member.requestId);
+    }
 
     /**
-     * Category used to notify when some {@link UpdateDetails} are available.
+     * Computes the key registering the calls of a batch.
+     *
+     * @param requestId The identifier of the batch.
+     * @return The key of the calls of the batch.
      */
-    public static final String UPDATE_AVAILABLE = "io.barracks.ota.client.UPDATE_AVAILABLE";
+    private static String batchKey(long requestId) {
+        return BATCH_KEY + '#' + requestId;
+    }
+
+    private void register(String key, Call<?> call) {
+        synchronized (calls) {
+            Set<Call<?>> current = calls.get(key);
+            if (current == null) {
+                current = new HashSet<>();
+                calls.put(key, current);
+            }
+            current.add(call);
+        }
+    }
+
+    private void unregister(String key, Call<?> call) {
+        synchronized (calls) {
+            Set<Call<?>> current = calls.get(key);
+            if (current != null && current.remove(call) && current.isEmpty()) {
+                calls.remove(key);
+            }
+        }
+    }
+
     /**
-     * Category used to notify when no details are available.
+     * Aborts the calls in progress registered with a key.
+     *
+     * @param key The key of the calls.
      */
-    public static final String UPDATE_UNAVAILABLE = "io.barracks.ota.client.update_available.UPDATE_UNAVAILABLE";
+    private void abort(String key) {
+        List<Call<?>> current;
+        synchronized (calls) {
+            Set<Call<?>> registered = calls.get(key);
+            if (registered == null) {
+                return;
+            }
+            current = new ArrayList<>(registered);
+        }
+        for (Call<?> call : current) {
+            call.cancel();
+        }
+    }
+
     /**
-     * Category used to notify when a request has failed.
+     * Get the host of the Barracks platform, used to keep track of its health.
+     *
+     * @param baseUrl The url used to call the Barracks platform.
+     * @return The host of the url, or null if the url is invalid.
      */
-    public static final String UPDATE_REQUEST_ERROR = "io.barracks.ota.client.update_available.UPDATE_REQUEST_ERROR";
+    private static String hostOf(String baseUrl) {
+        HttpUrl url = HttpUrl.parse(baseUrl);
+        return url == null ? null : url.host();
+    }
 
     /**
-     * This key is used to report an {@link Throwable exception} thrown during the request.
+     * Convenience method for notifying the application of the result of a request.<br>
+     * The result is published on the {@link #getCallbackBus() callback bus}, and broadcast using the
+     * {@link LocalBroadcastManager} if the request asked for it.
+     *
+     * @param member    The {@link Member} waiting for the result.
+     * @param request   The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @param update    The {@link UpdateDetails} received, or null if no update is available.
+     * @param unchanged Whether the result is the same as the one of the previous identical request.
+     * @param error     The exception caught during the request, or null if it succeeded.
      */
-    public static final String EXTRA_EXCEPTION = "exception";
+    private void notifyResult(Member member, final UpdateDetailsRequest request, final UpdateDetails update, boolean unchanged, final Throwable error) {
+        if (cancelled.contains(member.requestId)) {
+            return;
+        }
+        if (member.requestId != 0) {
+            callbacks.publish(member.requestId, new CallbackBus.Event<UpdateCheckCallback>() {
+                @Override
+                public void deliver(UpdateCheckCallback callback) {
+                    if (error != null) {
+                        callback.onUpdateRequestError(request, error);
+                    } else if (update == null) {
+                        callback.onUpdateUnavailable(request);
+                    } else {
+                        callback.onUpdateAvailable(request, update);
+                    }
+                }
+            });
+        }
+        if (member.broadcast) {
+            Intent intent = new Intent(ACTION_CHECK)
+                    .putExtra(EXTRA_CALLBACK, member.callback)
+                    .putExtra(EXTRA_REQUEST_ID, member.requestId)
+                    .putExtra(EXTRA_REQUEST, request);
+            if (error != null) {
+                intent.addCategory(UPDATE_REQUEST_ERROR);
+                intent.putExtra(EXTRA_EXCEPTION, error);
+            } else {
+                if (update == null) {
+                    intent.addCategory(UPDATE_UNAVAILABLE);
+                } else {
+                    intent.addCategory(UPDATE_AVAILABLE);
+                    intent.putExtra(EXTRA_UPDATE_DETAILS, update);
+                }
+                intent.putExtra(EXTRA_UNCHANGED, unchanged);
+            }
+            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        }
+    }
+
     /**
-     * This key is used to report the {@link UpdateDetails details} received from the Barracks platform.
+     * Notifies the application of the result of a request, unless it has not changed and the
+     * request asked to be notified of the changes only.
+     *
+     * @param member  The {@link Member} waiting for the result.
+     * @param request The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @param result  The result of the request.
      */
-    public static final String EXTRA_UPDATE_DETAILS = "updateDetails";
+    private void notifyResult(Member member, UpdateDetailsRequest request, Result result) {
+        if (!result.unchanged || !member.onChange) {
+            notifyResult(member, request, result.update, result.unchanged, null);
+        } else if (member.broadcast && !cancelled.contains(member.requestId)) {
+            // The receivers still learn that the request is over
+            LocalBroadcastManager.getInstance(this).sendBroadcast(
+                    new Intent(ACTION_CHECK)
+                            .addCategory(UPDATE_UNCHANGED)
+                            .putExtra(EXTRA_CALLBACK, member.callback)
+                            .putExtra(EXTRA_REQUEST_ID, member.requestId)
+                            .putExtra(EXTRA_REQUEST, request)
+                            .putExtra(EXTRA_UNCHANGED, true)
+            );
+        }
+    }
+
     /**
-     * This key is used to report the callback's identifier
+     * Releases the subscriber of a request once all its results have been published, the results
+     * which are not delivered yet are still delivered. The job of the request is over.
+     *
+     * @param member The {@link Member} whose request is over.
      */
-    public static final String EXTRA_CALLBACK = "callback";
+    private void release(Member member) {
+        getJobJournal().remove(member.jobId);
+        if (member.requestId != 0) {
+            callbacks.complete(member.requestId);
+            keys.remove(member.requestId);
+            cancelled.remove(member.requestId);
+        }
+    }
 
     /**
-     * Intent filter used by {@link android.content.BroadcastReceiver} to register to the {@link LocalBroadcastManager}
+     * Cancels a request or a batch, its remaining results are dropped.<br>
+     * The call in progress is aborted if every request waiting for it has been cancelled.
+     *
+     * @param requestId The identifier of the request.
      */
-    public static final IntentFilter ACTION_CHECK_FILTER;
+    private void cancel(long requestId) {
+        if (requestId == 0) {
+            return;
+        }
+        String key = keys.get(requestId);
+        if (key == null) {
+            // Unknown or already over
+            return;
+        }
+        cancelled.add(requestId);
+        callbacks.unsubscribe(requestId);
+        if (BATCH_KEY.equals(key)) {
+            abort(batchKey(requestId));
+        } else if (isCancelled(key)) {
+            abort(key);
+        }
+    }
 
-    static {
-        ACTION_CHECK_FILTER = new IntentFilter(ACTION_CHECK);
-        ACTION_CHECK_FILTER.addCategory(UPDATE_AVAILABLE);
-        ACTION_CHECK_FILTER.addCategory(UPDATE_UNAVAILABLE);
-        ACTION_CHECK_FILTER.addCategory(UPDATE_REQUEST_ERROR);
+    /**
+     * Checks whether every request waiting for the result of a call has been cancelled or has expired.
+     *
+     * @param key The key identifying identical requests.
+     * @return True if nobody waits for the result anymore, false otherwise.
+     */
+    private boolean isCancelled(String key) {
+        List<Member> members = flights.members(key);
+        for (Member member : members) {
+            if (!cancelled.contains(member.requestId) && !member.over.get()) {
+                return false;
+            }
+        }
+        return !members.isEmpty();
     }
 
-    public UpdateCheckService() {
-        this(UpdateCheckService.class.getSimpleName());
+    /**
+     * Get the API proxy used to reach the Barracks platform.<br>
+     * The proxy relies on the {@link HttpEngine} shared by the SDK, it is only created again when
+     * the <code>baseUrl</code> or the engine changes.
+     *
+     * @param baseUrl The url used to call the Barracks platform.
+     * @return The {@link UpdateCheckApi} proxy.
+     */
+    private synchronized UpdateCheckApi getApi(String baseUrl) {
+        HttpEngine current = HttpEngine.getInstance();
+        if (api == null || engine != current || !baseUrl.equals(apiUrl)) {
+            api = current.createApi(baseUrl, UpdateCheckApi.class, GsonConverterFactory.create(getGson()));
+            engine = current;
+            apiUrl = baseUrl;
+        }
+        return api;
     }
 
     /**
-     * Creates an {@link UpdateCheckService}.
+     * Get the bus used to deliver the results to the {@link UpdateCheckCallback callbacks} living in
+     * the same process.
      *
-     * @param name Used to name the worker thread, important only for debugging.
+     * @return the {@link CallbackBus} of the update checks.
      */
-    public UpdateCheckService(String name) {
-        super(name);
+    public static CallbackBus<UpdateCheckCallback> getCallbackBus() {
+        return callbacks;
     }
 
     /**
-     * {@inheritDoc}
+     * Get the {@link Gson} instance used to parse and cache the responses.
+     *
+     * @return the {@link Gson} instance of this service.
      */
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        switch (intent.getAction()) {
-            case ACTION_CHECK:
-                checkUpdate(
-                        intent.getStringExtra(EXTRA_API_KEY),
-                        intent.getStringExtra(EXTRA_URL),
-                        intent.<UpdateDetailsRequest>getParcelableExtra(EXTRA_REQUEST),
-                        intent.getIntExtra(EXTRA_CALLBACK, 0)
-                );
-                break;
+    private synchronized Gson getGson() {
+        if (gson == null) {
+            gson = setUpGsonBuilder(new GsonBuilder()).create();
         }
+        return gson;
     }
 
     /**
-     * This method processes the request and notifies the rest of the application using the {@link LocalBroadcastManager}.
+     * Get the {@link UpdateCache} shared by the update checks.
      *
-     * @param apiKey   The API key provided by the Barracks platform.
-     * @param baseUrl  The url used to call the Barracks platform
-     * @param request  The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
-     * @param callback The callback identifier.
+     * @return the {@link UpdateCache} of this application.
      */
-    private void checkUpdate(String apiKey, String baseUrl, UpdateDetailsRequest request, int callback) {
-        Intent intent = new Intent(ACTION_CHECK);
-        intent.putExtra(EXTRA_CALLBACK, callback);
-        intent.putExtra(EXTRA_REQUEST, request);
-        try {
-            if (TextUtils.isEmpty(apiKey)) {
-                throw new IllegalArgumentException("Missing API key");
-            }
-            if (TextUtils.isEmpty(baseUrl)) {
-                throw new IllegalArgumentException("Missing base URL");
-            }
-            if (request == null) {
-                throw new IllegalArgumentException("Missing request");
-            }
-            GsonBuilder builder = new GsonBuilder();
-            Retrofit retrofit = new Retrofit.Builder()
-                    .addConverterFactory(GsonConverterFactory.create(setUpGsonBuilder(builder).create()))
-                    .baseUrl(baseUrl)
-                    .build();
-            UpdateCheckApi api = retrofit.create(UpdateCheckApi.class);
-            Call<UpdateDetails> call = api.checkUpdate(apiKey, request);
-            Response<UpdateDetails> response = call.execute();
-            if (response.isSuccessful()) {
-                UpdateDetails update = response.body();
-                if (update == null) {
-                    intent.addCategory(UPDATE_UNAVAILABLE);
-                } else {
-                    intent.addCategory(UPDATE_AVAILABLE);
-                    intent.putExtra(EXTRA_UPDATE_DETAILS, update);
-                }
-            } else {
-                throw new RuntimeException(response.code() + " " + response.message());
+    protected UpdateCache getUpdateCache() {
+        File directory = new File(getFilesDir(), Defaults.DEFAULT_UPDATE_CACHE);
+        synchronized (UpdateCheckService.class) {
+            if (cache == null || !cache.getDirectory().equals(directory)) {
+                cache = new UpdateCache(directory);
             }
-        } catch (Throwable t) {
-            intent.addCategory(UPDATE_REQUEST_ERROR);
-            intent.putExtra(UpdateCheckService.EXTRA_EXCEPTION, t);
+            return cache;
         }
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    /**
+     * Get the {@link JobJournal} keeping track of the update checks which are not over.
+     *
+     * @return the {@link JobJournal} of this application.
+     */
+    protected JobJournal getJobJournal() {
+        return JobJournal.getInstance(this);
     }
 
     /**
@@ -242,7 +1368,199 @@ public class UpdateCheckService extends IntentService implements TypeAdapterFact
     }
 
     /**
-     * The default {@link TypeAdapter} for the {@link UpdateDetails}.
+     * The result of a single request.
+     */
+    private static final class Result {
+        private final UpdateDetails update;
+        /**
+         * Whether the result is the same as the previous one.
+         */
+        private final boolean unchanged;
+
+        private Result(UpdateDetails update, boolean unchanged) {
+            this.update = update;
+            this.unchanged = unchanged;
+        }
+    }
+
+    /**
+     * The completion of an asynchronous operation, once its attempts are over.
+     *
+     * @param <T> The type of the result of the operation.
+     */
+    private interface Completion<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable failure);
+    }
+
+    /**
+     * A batch of requests, whose chunks are sent one after the other.
+     */
+    private final class Batch {
+        private final String apiKey;
+        private final String baseUrl;
+        private final List<UpdateDetailsRequest> requests;
+        private final int maxBatchSize;
+        private final Member member;
+        /**
+         * Run once all the results have been notified.
+         */
+        private final Runnable done;
+
+        private Batch(String apiKey, String baseUrl, List<UpdateDetailsRequest> requests, int maxBatchSize, Member member, Runnable done) {
+            this.apiKey = apiKey;
+            this.baseUrl = baseUrl;
+            this.requests = requests;
+            this.maxBatchSize = maxBatchSize;
+            this.member = member;
+            this.done = done;
+        }
+
+        /**
+         * Sends the chunk starting at <code>start</code>, or releases the batch once every chunk
+         * has been answered or the batch has been cancelled.
+         *
+         * @param start The index of the first request of the chunk.
+         */
+        private void next(final int start) {
+            if (start >= requests.size() || cancelled.contains(member.requestId)) {
+                finish();
+                return;
+            }
+            boolean supported;
+            synchronized (batchUnsupported) {
+                supported = !batchUnsupported.contains(baseUrl);
+            }
+            if (!supported) {
+                pipeline(start);
+                return;
+            }
+            final int end = Math.min(requests.size(), start + maxBatchSize);
+            final List<UpdateDetailsRequest> chunk = requests.subList(start, end);
+            Completion<Response<ResponseBody>> completion = new Completion<Response<ResponseBody>>() {
+                @Override
+                public void onSuccess(Response<ResponseBody> response) {
+                    readBatch(response, apiKey, baseUrl, chunk, member);
+                    next(end);
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    if (failure instanceof HttpStatusException) {
+                        int code = ((HttpStatusException) failure).getCode();
+                        if (code == HTTP_NOT_FOUND || code == HTTP_BAD_METHOD || code == HTTP_NOT_IMPLEMENTED) {
+                            synchronized (batchUnsupported) {
+                                batchUnsupported.add(baseUrl);
+                            }
+                            pipeline(start);
+                            return;
+                        }
+                    }
+                    for (UpdateDetailsRequest request : chunk) {
+                        notifyResult(member, request, null, false, failure);
+                    }
+                    next(end);
+                }
+            };
+            Call<ResponseBody> call;
+            Retrier retrier;
+            try {
+                call = getApi(baseUrl).checkUpdates(apiKey, new ArrayList<>(chunk));
+                retrier = HttpEngine.getInstance().newRetrier(hostOf(baseUrl));
+            } catch (Throwable t) {
+                completion.onFailure(t);
+                return;
+            }
+            enqueue(call, retrier, member, null, completion);
+        }
+
+        /**
+         * Sends the remaining requests as individual calls, the platform does not provide the
+         * batch endpoint.
+         *
+         * @param start The index of the first remaining request.
+         */
+        private void pipeline(int start) {
+            checkPipelined(apiKey, baseUrl, requests.subList(start, requests.size()), member, new Runnable() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            });
+        }
+
+        private void finish() {
+            try {
+                release(member);
+            } finally {
+                done.run();
+            }
+        }
+    }
+
+    /**
+     * A request waiting for the result of a check.
+     */
+    private static final class Member {
+        /**
+         * The callback identifier of the request, sent with the broadcasts.
+         */
+        private final int callback;
+        /**
+         * The identifier of the subscriber of the callback bus, or 0 if there is none.
+         */
+        private final long requestId;
+        /**
+         * The identifier of the job of the request in the {@link JobJournal}, or 0 if there is none.
+         */
+        private final long jobId;
+        /**
+         * Whether the result is broadcast using the {@link LocalBroadcastManager}.
+         */
+        private final boolean broadcast;
+        /**
+         * Whether the results are only notified when they have changed.
+         */
+        private final boolean onChange;
+        /**
+         * The time by which the request has to be over.
+         */
+        private final Deadline deadline;
+        /**
+         * Whether the result of the request has been delivered.
+         */
+        private final AtomicBoolean over = new AtomicBoolean();
+        /**
+         * The task failing the request when its deadline passes, or null if it has none.
+         */
+        private volatile ScheduledFuture<?> watchdog;
+
+        private Member(int callback, long requestId, long jobId, boolean broadcast, boolean onChange, Deadline deadline) {
+            this.callback = callback;
+            this.requestId = requestId;
+            this.jobId = jobId;
+            this.broadcast = broadcast;
+            this.onChange = onChange;
+            this.deadline = deadline;
+        }
+
+        private static Member of(Intent intent) {
+            long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, 0);
+            return new Member(
+                    intent.getIntExtra(EXTRA_CALLBACK, 0),
+                    requestId,
+                    intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0),
+                    intent.getBooleanExtra(EXTRA_BROADCAST, requestId == 0),
+                    intent.getBooleanExtra(EXTRA_NOTIFY_ON_CHANGE, false),
+                    Deadline.at(intent.getLongExtra(EXTRA_DEADLINE, 0))
+            );
+        }
+    }
+
+    /**
+     * The default {@link TypeAdapter} for the {@link UpdateDetails}.<br>
+     * The response is read and written in a single pass, without building an intermediate tree.
      *
      * @see TypeAdapterFactory#create(Gson, TypeToken)
      * @see UpdateCheckService#getResponsePropertiesAdapter(Gson, TypeToken)
@@ -253,7 +1571,7 @@ public class UpdateCheckService extends IntentService implements TypeAdapterFact
          */
         private final TypeAdapter<UpdateDetails> delegate;
         /**
-         *
+         * The adapter for the {@link JsonElement} trees, available to subclasses working on trees.
          */
         private final TypeAdapter<JsonElement> elementAdapter;
 
@@ -263,26 +1581,48 @@ public class UpdateCheckService extends IntentService implements TypeAdapterFact
         }
 
         /**
-         * This method provides basic support for customUpdateData : simple key/values are parsed.
+         * This method provides basic support for customUpdateData : simple key/values are written.
          * {@inheritDoc}
          */
         @Override
         public void write(JsonWriter out, UpdateDetails response) throws IOException {
-            JsonElement tree = getDelegate().toJsonTree(response);
-            JsonObject customUpdateData = new JsonObject();
-            Set<String> keys = response.getCustomUpdateData().keySet();
-            for (String key : keys) {
-                Object value = response.getCustomUpdateData().get(key);
-                if (Boolean.class.isInstance(value)) {
-                    customUpdateData.addProperty(key, (Boolean) value);
-                } else if (String.class.isInstance(value)) {
-                    customUpdateData.addProperty(key, (String) value);
-                } else if (Number.class.isInstance(value)) {
-                    customUpdateData.addProperty(key, (Number) value);
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("versionId").value(response.getVersionId());
+            PackageInfo info = response.getPackageInfo();
+            out.name("packageInfo");
+            if (info == null) {
+                out.nullValue();
+            } else {
+                out.beginObject();
+                out.name("url").value(info.getUrl());
+                out.name("md5").value(info.getMd5());
+                out.name("size").value(info.getSize());
+                PatchInfo patch = info.getPatch();
+                if (patch != null) {
+                    out.name("patch").beginObject();
+                    out.name("versionId").value(patch.getVersionId());
+                    out.name("baseMd5").value(patch.getBaseMd5());
+                    out.name("url").value(patch.getUrl());
+                    out.name("md5").value(patch.getMd5());
+                    out.name("size").value(patch.getSize());
+                    out.endObject();
+                }
+                if (!info.getMirrors().isEmpty()) {
+                    out.name("mirrors").beginArray();
+                    for (String mirror : info.getMirrors()) {
+                        out.value(mirror);
+                    }
+                    out.endArray();
                 }
+                out.endObject();
             }
-            tree.getAsJsonObject().add("customUpdateData", customUpdateData);
-            getElementAdapter().write(out, tree);
+            out.name("customUpdateData");
+            writeCustomUpdateData(out, response.getCustomUpdateData());
+            out.endObject();
         }
 
         /**
@@ -291,33 +1631,160 @@ public class UpdateCheckService extends IntentService implements TypeAdapterFact
          */
         @Override
         public UpdateDetails read(JsonReader in) throws IOException {
-            JsonElement tree = getElementAdapter().read(in);
-            JsonObject obj = tree.getAsJsonObject();
-            UpdateDetails response = getDelegate().fromJsonTree(tree);
-            JsonObject customUpdateData = obj.getAsJsonObject("customUpdateData");
-            if (customUpdateData != null) {
-                for (Map.Entry<String, JsonElement> entry : customUpdateData.entrySet()) {
-                    if (entry.getValue().isJsonPrimitive()) {
-                        JsonPrimitive primitive = entry.getValue().getAsJsonPrimitive();
-                        if (primitive.isBoolean()) {
-                            response.getCustomUpdateData().putBoolean(entry.getKey(), primitive.getAsBoolean());
-                        } else if (primitive.isNumber()) {
-                            // This number is a LazilyParsedNumber, aka a String, we have to check wether it has a floating
-                            Number num = primitive.getAsNumber();
-                            try {
-                                long longVal = Long.parseLong(num.toString());
-                                response.getCustomUpdateData().putLong(entry.getKey(), longVal);
-                            } catch (NumberFormatException e) {
-                                double dVal = Double.parseDouble(num.toString());
-                                response.getCustomUpdateData().putDouble(entry.getKey(), dVal);
-                            }
-                        } else if (primitive.isString()) {
-                            response.getCustomUpdateData().putString(entry.getKey(), primitive.getAsString());
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            UpdateDetails.Builder builder = new UpdateDetails.Builder();
+            Bundle customUpdateData = new Bundle();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("versionId".equals(name)) {
+                    builder.versionId(readString(in));
+                } else if ("packageInfo".equals(name)) {
+                    builder.packageInfo(readPackageInfo(in));
+                } else if ("customUpdateData".equals(name)) {
+                    readCustomUpdateData(in, customUpdateData);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return builder.customUpdateData(customUpdateData).build();
+        }
+
+        /**
+         * Writes the customUpdateData as a JSON object, only booleans, strings and numbers are kept.
+         *
+         * @param out              The {@link JsonWriter} positioned on the customUpdateData value.
+         * @param customUpdateData The {@link Bundle} of user-defined customUpdateData.
+         * @throws IOException If the value can't be written.
+         */
+        protected void writeCustomUpdateData(JsonWriter out, Bundle customUpdateData) throws IOException {
+            out.beginObject();
+            for (String key : customUpdateData.keySet()) {
+                Object value = customUpdateData.get(key);
+                if (Boolean.class.isInstance(value)) {
+                    out.name(key).value((Boolean) value);
+                } else if (String.class.isInstance(value)) {
+                    out.name(key).value((String) value);
+                } else if (Number.class.isInstance(value)) {
+                    out.name(key).value((Number) value);
+                }
+            }
+            out.endObject();
+        }
+
+        /**
+         * Reads the customUpdateData JSON object, only booleans, strings and numbers are kept.
+         *
+         * @param in               The {@link JsonReader} positioned on the customUpdateData value.
+         * @param customUpdateData The {@link Bundle} to be filled.
+         * @throws IOException If the value can't be read.
+         */
+        protected void readCustomUpdateData(JsonReader in, Bundle customUpdateData) throws IOException {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                String key = in.nextName();
+                switch (in.peek()) {
+                    case BOOLEAN:
+                        customUpdateData.putBoolean(key, in.nextBoolean());
+                        break;
+                    case NUMBER:
+                        // The literal is read as a String, we have to check whether it has a floating point
+                        String num = in.nextString();
+                        try {
+                            customUpdateData.putLong(key, Long.parseLong(num));
+                        } catch (NumberFormatException e) {
+                            customUpdateData.putDouble(key, Double.parseDouble(num));
+                        }
+                        break;
+                    case STRING:
+                        customUpdateData.putString(key, in.nextString());
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        private static PackageInfo readPackageInfo(JsonReader in) throws IOException {
+            PackageInfo.Builder builder = new PackageInfo.Builder();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("url".equals(name)) {
+                    builder.url(readString(in));
+                } else if ("md5".equals(name)) {
+                    builder.md5(readString(in));
+                } else if ("size".equals(name)) {
+                    builder.size(readLong(in));
+                } else if ("patch".equals(name)) {
+                    builder.patch(readPatchInfo(in));
+                } else if ("mirrors".equals(name)) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                        } else {
+                            builder.mirror(readString(in));
                         }
                     }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return builder.build();
+        }
+
+        private static PatchInfo readPatchInfo(JsonReader in) throws IOException {
+            PatchInfo.Builder builder = new PatchInfo.Builder();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("versionId".equals(name)) {
+                    builder.versionId(readString(in));
+                } else if ("baseMd5".equals(name)) {
+                    builder.baseMd5(readString(in));
+                } else if ("url".equals(name)) {
+                    builder.url(readString(in));
+                } else if ("md5".equals(name)) {
+                    builder.md5(readString(in));
+                } else if ("size".equals(name)) {
+                    builder.size(readLong(in));
+                } else {
+                    in.skipValue();
                 }
             }
-            return response;
+            in.endObject();
+            return builder.build();
+        }
+
+        private static long readLong(JsonReader in) throws IOException {
+            try {
+                return in.nextLong();
+            } catch (NumberFormatException e) {
+                throw new JsonSyntaxException(e);
+            }
+        }
+
+        private static String readString(JsonReader in) throws IOException {
+            return in.peek() == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString();
         }
 
         public TypeAdapter<UpdateDetails> getDelegate() {
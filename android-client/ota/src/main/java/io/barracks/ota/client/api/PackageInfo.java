@@ -19,6 +19,10 @@ package io.barracks.ota.client.api;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This class encapsulates the details about an update package.<br>
  * It is a {@link Parcelable} which allows for it to be sent back and forth to the different
@@ -53,11 +57,27 @@ public class PackageInfo implements Parcelable {
      * The size of the package.
      */
     private Long size;
+    /**
+     * The patch rebuilding the package from a previous version, if any.
+     */
+    private PatchInfo patch;
+    /**
+     * The urls of the mirrors serving the same package, in order of preference.
+     */
+    private List<String> mirrors = Collections.emptyList();
 
     private PackageInfo() {
 
     }
 
+    private PackageInfo(String url, String md5, Long size, PatchInfo patch, List<String> mirrors) {
+        this.url = url;
+        this.md5 = md5;
+        this.size = size;
+        this.patch = patch;
+        this.mirrors = mirrors;
+    }
+
     /**
      * Parcelable constructor
      *
@@ -68,6 +88,10 @@ public class PackageInfo implements Parcelable {
         url = in.readString();
         md5 = in.readString();
         size = in.readLong();
+        patch = in.readParcelable(PatchInfo.class.getClassLoader());
+        List<String> mirrors = new ArrayList<>();
+        in.readStringList(mirrors);
+        this.mirrors = Collections.unmodifiableList(mirrors);
     }
 
     /**
@@ -78,6 +102,8 @@ public class PackageInfo implements Parcelable {
         dest.writeString(url);
         dest.writeString(md5);
         dest.writeLong(size);
+        dest.writeParcelable(patch, flags);
+        dest.writeStringList(mirrors);
     }
 
     /**
@@ -114,4 +140,104 @@ public class PackageInfo implements Parcelable {
     public Long getSize() {
         return size;
     }
+
+    /**
+     * Get the patch rebuilding the package from a previous version.
+     *
+     * @return the {@link PatchInfo} of the patch, or null if only the full package is available.
+     */
+    public PatchInfo getPatch() {
+        return patch;
+    }
+
+    /**
+     * Get the mirrors serving the same package as the {@link #getUrl() url}.
+     *
+     * @return the urls of the mirrors in order of preference, empty if the package has no mirror.
+     */
+    public List<String> getMirrors() {
+        return mirrors == null ? Collections.<String>emptyList() : mirrors;
+    }
+
+    /**
+     * Builder class for {@link PackageInfo}.
+     */
+    public static final class Builder {
+        private String url = null;
+        private String md5 = null;
+        private Long size = null;
+        private PatchInfo patch = null;
+        private List<String> mirrors = new ArrayList<>();
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the url to call for downloading the package.
+         *
+         * @param url the url to call for downloading the package.
+         * @return the same builder instance.
+         */
+        public Builder url(String url) {
+            this.url = url;
+            return this;
+        }
+
+        /**
+         * Define the MD5 hash of the package.
+         *
+         * @param md5 the MD5 hash of the package.
+         * @return the same builder instance.
+         */
+        public Builder md5(String md5) {
+            this.md5 = md5;
+            return this;
+        }
+
+        /**
+         * Define the size of the package.
+         *
+         * @param size the size of the package.
+         * @return the same builder instance.
+         */
+        public Builder size(Long size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * Define the patch rebuilding the package from a previous version.
+         *
+         * @param patch the {@link PatchInfo} of the patch.
+         * @return the same builder instance.
+         */
+        public Builder patch(PatchInfo patch) {
+            this.patch = patch;
+            return this;
+        }
+
+        /**
+         * Add a mirror serving the same package, the mirrors are tried in the order they are added.
+         *
+         * @param mirror the url of the mirror.
+         * @return the same builder instance.
+         */
+        public Builder mirror(String mirror) {
+            this.mirrors.add(mirror);
+            return this;
+        }
+
+        /**
+         * Build the {@link PackageInfo} of this builder.
+         *
+         * @return a {@link PackageInfo}
+         */
+        public PackageInfo build() {
+            return new PackageInfo(url, md5, size, patch, Collections.unmodifiableList(new ArrayList<>(mirrors)));
+        }
+    }
 }
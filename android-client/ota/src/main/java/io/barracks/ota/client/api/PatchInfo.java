@@ -0,0 +1,238 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.api;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This class encapsulates the details about a patch, which rebuilds an update package from the
+ * package of a previous version.<br>
+ * It is a {@link Parcelable} which allows for it to be sent back and forth to the different
+ * services with the use of an {@link android.content.Intent Intent}
+ */
+public class PatchInfo implements Parcelable {
+
+    /**
+     * @see Parcelable
+     */
+    public static final Creator<PatchInfo> CREATOR = new Creator<PatchInfo>() {
+        @Override
+        public PatchInfo createFromParcel(Parcel in) {
+            return new PatchInfo(in);
+        }
+
+        @Override
+        public PatchInfo[] newArray(int size) {
+            return new PatchInfo[size];
+        }
+    };
+
+    /**
+     * The version ID of the package the patch applies to.
+     */
+    private String versionId;
+    /**
+     * The MD5 hash of the package the patch applies to.
+     */
+    private String baseMd5;
+    /**
+     * The url to call for downloading the patch.
+     */
+    private String url;
+    /**
+     * The MD5 hash of the patch.
+     */
+    private String md5;
+    /**
+     * The size of the patch.
+     */
+    private Long size;
+
+    private PatchInfo() {
+
+    }
+
+    private PatchInfo(String versionId, String baseMd5, String url, String md5, Long size) {
+        this.versionId = versionId;
+        this.baseMd5 = baseMd5;
+        this.url = url;
+        this.md5 = md5;
+        this.size = size;
+    }
+
+    /**
+     * Parcelable constructor
+     *
+     * @param in The parcel to read from.
+     * @see Parcelable
+     */
+    protected PatchInfo(Parcel in) {
+        versionId = in.readString();
+        baseMd5 = in.readString();
+        url = in.readString();
+        md5 = in.readString();
+        size = (Long) in.readValue(Long.class.getClassLoader());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(versionId);
+        dest.writeString(baseMd5);
+        dest.writeString(url);
+        dest.writeString(md5);
+        dest.writeValue(size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Get the version ID of the package the patch applies to.
+     *
+     * @return the version ID of the package the patch applies to.
+     */
+    public String getVersionId() {
+        return versionId;
+    }
+
+    /**
+     * Get the MD5 hash of the package the patch applies to.
+     *
+     * @return the MD5 hash of the package the patch applies to.
+     */
+    public String getBaseMd5() {
+        return baseMd5;
+    }
+
+    /**
+     * Get the url to call for downloading the patch.
+     *
+     * @return the url to call for downloading the patch.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the MD5 hash of the patch.
+     *
+     * @return the MD5 hash of the patch.
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * Get the size of the patch.
+     *
+     * @return the size of the patch.
+     */
+    public Long getSize() {
+        return size;
+    }
+
+    /**
+     * Builder class for {@link PatchInfo}.
+     */
+    public static final class Builder {
+        private String versionId = null;
+        private String baseMd5 = null;
+        private String url = null;
+        private String md5 = null;
+        private Long size = null;
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the version ID of the package the patch applies to.
+         *
+         * @param versionId the version ID of the package the patch applies to.
+         * @return the same builder instance.
+         */
+        public Builder versionId(String versionId) {
+            this.versionId = versionId;
+            return this;
+        }
+
+        /**
+         * Define the MD5 hash of the package the patch applies to.
+         *
+         * @param baseMd5 the MD5 hash of the package the patch applies to.
+         * @return the same builder instance.
+         */
+        public Builder baseMd5(String baseMd5) {
+            this.baseMd5 = baseMd5;
+            return this;
+        }
+
+        /**
+         * Define the url to call for downloading the patch.
+         *
+         * @param url the url to call for downloading the patch.
+         * @return the same builder instance.
+         */
+        public Builder url(String url) {
+            this.url = url;
+            return this;
+        }
+
+        /**
+         * Define the MD5 hash of the patch.
+         *
+         * @param md5 the MD5 hash of the patch.
+         * @return the same builder instance.
+         */
+        public Builder md5(String md5) {
+            this.md5 = md5;
+            return this;
+        }
+
+        /**
+         * Define the size of the patch.
+         *
+         * @param size the size of the patch.
+         * @return the same builder instance.
+         */
+        public Builder size(Long size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * Build the {@link PatchInfo} of this builder.
+         *
+         * @return a {@link PatchInfo}
+         */
+        public PatchInfo build() {
+            return new PatchInfo(versionId, baseMd5, url, md5, size);
+        }
+    }
+}
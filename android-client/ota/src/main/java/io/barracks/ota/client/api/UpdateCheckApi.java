@@ -16,16 +16,21 @@
 
 package io.barracks.ota.client.api;
 
+import java.util.List;
+
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.Header;
 import retrofit2.http.POST;
+import retrofit2.http.Streaming;
 
 /**
  * This interface describes the call to the Barracks platform which requests {@link UpdateDetails}.
  */
 public interface UpdateCheckApi {
     String ENDPOINT = "api/device/update/check";
+    String ENDPOINT_BATCH = "api/device/update/check/batch";
 
     /**
      * The call to the Barracks platform which requests {@link UpdateDetails}.
@@ -36,4 +41,32 @@ public interface UpdateCheckApi {
      */
     @POST(ENDPOINT)
     Call<UpdateDetails> checkUpdate(@Header("Authorization") String key, @Body UpdateDetailsRequest request);
+
+    /**
+     * The conditional call to the Barracks platform which requests {@link UpdateDetails}.<br>
+     * The platform answers with <code>304 Not Modified</code> when the details have not changed
+     * since the response identified by the <code>etag</code>.
+     *
+     * @param key     The API key provided by the Barracks platform.
+     * @param etag    The validator of the last response, or null to request the details unconditionally.
+     * @param request The {@link UpdateDetailsRequest request} parameters for the Barracks platform.
+     * @return A {@link Call} to execute in order to retrieve the {@link UpdateDetails}
+     */
+    @POST(ENDPOINT)
+    Call<UpdateDetails> checkUpdate(@Header("Authorization") String key, @Header("If-None-Match") String etag, @Body UpdateDetailsRequest request);
+
+    /**
+     * The call to the Barracks platform which requests {@link UpdateDetails} for several units.<br>
+     * The response is a JSON array holding an object for each request, with the <code>index</code>
+     * of the request in the list, and either its <code>updateDetails</code> (null if no update is
+     * available) or an <code>error</code> message. The response is streamed, so that each result
+     * can be handled as soon as it is received.
+     *
+     * @param key      The API key provided by the Barracks platform.
+     * @param requests The {@link UpdateDetailsRequest requests} parameters for the Barracks platform.
+     * @return A {@link Call} to execute in order to retrieve the response.
+     */
+    @Streaming
+    @POST(ENDPOINT_BATCH)
+    Call<ResponseBody> checkUpdates(@Header("Authorization") String key, @Body List<UpdateDetailsRequest> requests);
 }
@@ -58,6 +58,14 @@ public class UpdateDetails implements Parcelable {
 
     }
 
+    private UpdateDetails(String versionId, PackageInfo packageInfo, Bundle customUpdateData) {
+        this.versionId = versionId;
+        this.packageInfo = packageInfo;
+        if (customUpdateData != null) {
+            this.customUpdateData = customUpdateData;
+        }
+    }
+
     /**
      * Parcelable constructor
      *
@@ -115,4 +123,61 @@ public class UpdateDetails implements Parcelable {
         dest.writeBundle(customUpdateData);
     }
 
+    /**
+     * Builder class for {@link UpdateDetails}.
+     */
+    public static final class Builder {
+        private String versionId = null;
+        private PackageInfo packageInfo = null;
+        private Bundle customUpdateData = null;
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the version ID of the update.
+         *
+         * @param versionId the version ID of the update.
+         * @return the same builder instance.
+         */
+        public Builder versionId(String versionId) {
+            this.versionId = versionId;
+            return this;
+        }
+
+        /**
+         * Define the {@link PackageInfo} describing the package to be downloaded.
+         *
+         * @param packageInfo the {@link PackageInfo} describing the package to be downloaded.
+         * @return the same builder instance.
+         */
+        public Builder packageInfo(PackageInfo packageInfo) {
+            this.packageInfo = packageInfo;
+            return this;
+        }
+
+        /**
+         * Define the {@link Bundle} of user-defined customUpdateData.
+         *
+         * @param customUpdateData the {@link Bundle} of user-defined customUpdateData.
+         * @return the same builder instance.
+         */
+        public Builder customUpdateData(Bundle customUpdateData) {
+            this.customUpdateData = customUpdateData;
+            return this;
+        }
+
+        /**
+         * Build the {@link UpdateDetails} of this builder.
+         *
+         * @return an {@link UpdateDetails}
+         */
+        public UpdateDetails build() {
+            return new UpdateDetails(versionId, packageInfo, customUpdateData);
+        }
+    }
 }
@@ -37,4 +37,19 @@ public interface UpdateDownloadApi {
     @GET()
     @Streaming
     Call<ResponseBody> downloadUpdate(@Url String url, @Header("Authorization") String key);
+
+    /**
+     * The call to the Barracks platform which downloads a part of a package.<br>
+     * Null headers are not sent, which makes this call equivalent to
+     * {@link #downloadUpdate(String, String)} when no <code>range</code> is provided.
+     *
+     * @param url     The url of the package.
+     * @param key     The API key provided by the Barracks platform.
+     * @param range   The value of the <code>Range</code> header, e.g. <code>bytes=1024-</code>.
+     * @param ifRange The value of the <code>If-Range</code> header, an ETag or a Last-Modified date.
+     * @return A {@link Call} to execute in order to download the package.
+     */
+    @GET()
+    @Streaming
+    Call<ResponseBody> downloadUpdate(@Url String url, @Header("Authorization") String key, @Header("Range") String range, @Header("If-Range") String ifRange);
 }
@@ -0,0 +1,253 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.check;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.barracks.ota.client.download.PackageDigest;
+
+/**
+ * This class keeps the last response of the Barracks platform for each update check, in memory and
+ * on the disk.<br>
+ * An entry holds the validator (ETag) sent with the response, if any, and the serialized response,
+ * so that a check answered with <code>304 Not Modified</code> can replay the previous result.
+ */
+public class UpdateCache {
+    /**
+     * The maximum number of entries kept in memory, the others are read from the disk when needed.
+     */
+    private static final int MEMORY_ENTRIES = 16;
+    private static final String SUFFIX = ".json";
+    private static final String UTF_8 = "UTF-8";
+
+    private final File directory;
+    private final Map<String, Entry> memory = new LinkedHashMap<String, Entry>(MEMORY_ENTRIES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    /**
+     * Creates an {@link UpdateCache}.
+     *
+     * @param directory The directory holding the entries.
+     */
+    public UpdateCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the directory holding the entries.
+     *
+     * @return the directory holding the entries.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Looks for the last response to a check.
+     *
+     * @param key The key identifying the check.
+     * @return The cached {@link Entry}, or null if the check has never succeeded.
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = memory.get(key);
+        if (entry == null) {
+            entry = load(fileOf(key));
+            if (entry != null) {
+                memory.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Records the last response to a check.
+     *
+     * @param key   The key identifying the check.
+     * @param entry The {@link Entry} describing the response.
+     */
+    public synchronized void put(String key, Entry entry) {
+        memory.put(key, entry);
+        save(fileOf(key), entry);
+    }
+
+    /**
+     * Removes every entry, in memory and on the disk.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the file of an entry.<br>
+     * The key is hashed, it may contain the API key and can't be used as a file name.
+     *
+     * @param key The key identifying the check.
+     * @return The file holding the entry.
+     */
+    private File fileOf(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes(UTF_8));
+            return new File(directory, PackageDigest.toHex(hash) + SUFFIX);
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads an entry from the disk.<br>
+     * The first line is the validator, empty if there is none, the rest is the response.
+     *
+     * @param file The file holding the entry.
+     * @return The {@link Entry}, or null if the file is missing or can't be read.
+     */
+    private static Entry load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String etag = reader.readLine();
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, read);
+            }
+            if (etag == null || body.length() == 0) {
+                return null;
+            }
+            return new Entry(etag.isEmpty() ? null : etag, body.toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an entry to the disk.<br>
+     * The entry is written to a side file which is then renamed, so that a crash never leaves a
+     * truncated entry behind. The entry is still cached in memory if it can't be written.
+     *
+     * @param file  The file holding the entry.
+     * @param entry The {@link Entry} to be written.
+     */
+    private void save(File file, Entry entry) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File side = new File(file.getPath() + ".new");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(side);
+            Writer writer = new OutputStreamWriter(fos, UTF_8);
+            writer.write(entry.etag == null ? "" : entry.etag);
+            writer.write('\n');
+            writer.write(entry.body);
+            writer.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!side.renameTo(file)) {
+            side.delete();
+        }
+    }
+
+    /**
+     * The last response of the Barracks platform to a check.
+     */
+    public static final class Entry {
+        private final String etag;
+        private final String body;
+
+        /**
+         * Creates an {@link Entry}.
+         *
+         * @param etag The validator sent with the response, can be null.
+         * @param body The serialized response.
+         */
+        public Entry(String etag, String body) {
+            if (etag != null && (etag.indexOf('\n') >= 0 || etag.indexOf('\r') >= 0)) {
+                throw new IllegalArgumentException("Invalid validator : " + etag);
+            }
+            this.etag = etag;
+            this.body = body;
+        }
+
+        /**
+         * Get the validator sent with the response.
+         *
+         * @return the validator sent with the response, or null if there was none.
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Get the serialized response.
+         *
+         * @return the serialized response.
+         */
+        public String getBody() {
+            return body;
+        }
+    }
+}
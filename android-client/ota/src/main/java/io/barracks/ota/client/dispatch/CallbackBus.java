@@ -0,0 +1,176 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.dispatch;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class delivers the events of the services to the subscribers living in the same process,
+ * without going through {@link android.content.Intent intents}.<br>
+ * Each request is registered with a unique identifier, which is sent along with it, so that an
+ * event is dispatched directly to the subscriber it belongs to, whatever the number of requests in
+ * progress. The subscriptions of an owner, such as a helper, can be dropped all at once.
+ *
+ * @param <T> The type of the subscribers.
+ */
+public class CallbackBus<T> {
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final ConcurrentHashMap<Long, Subscription<T>> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Get a new identifier, unique in this process.
+     *
+     * @return a new identifier, never 0.
+     */
+    public static long nextId() {
+        return ids.incrementAndGet();
+    }
+
+    /**
+     * Registers a subscriber.
+     *
+     * @param id         The identifier of the subscriber.
+     * @param subscriber The subscriber.
+     * @param handler    The {@link Handler} on which the events are delivered, or null to deliver
+     *                   them on the thread which publishes them.
+     */
+    public void subscribe(long id, T subscriber, Handler handler) {
+        subscribe(id, null, subscriber, handler);
+    }
+
+    /**
+     * Registers a subscriber on behalf of an owner.
+     *
+     * @param id         The identifier of the subscriber.
+     * @param owner      The owner of the subscription, used by {@link #unsubscribeAll(Object)}.
+     * @param subscriber The subscriber.
+     * @param handler    The {@link Handler} on which the events are delivered, or null to deliver
+     *                   them on the thread which publishes them.
+     */
+    public void subscribe(long id, Object owner, T subscriber, Handler handler) {
+        subscriptions.put(id, new Subscription<>(owner, subscriber, handler));
+    }
+
+    /**
+     * Unregisters a subscriber, the events which are not delivered yet are dropped.
+     *
+     * @param id The identifier of the subscriber.
+     */
+    public void unsubscribe(long id) {
+        Subscription<T> subscription = subscriptions.remove(id);
+        if (subscription != null) {
+            subscription.cancelled = true;
+        }
+    }
+
+    /**
+     * Unregisters all the subscribers of an owner, the events which are not delivered yet are dropped.
+     *
+     * @param owner The owner of the subscriptions.
+     */
+    public void unsubscribeAll(Object owner) {
+        for (Iterator<Map.Entry<Long, Subscription<T>>> it = subscriptions.entrySet().iterator(); it.hasNext(); ) {
+            Subscription<T> subscription = it.next().getValue();
+            if (subscription.owner == owner) {
+                subscription.cancelled = true;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Unregisters a subscriber once the last event has been published, the events which are not
+     * delivered yet are still delivered.
+     *
+     * @param id The identifier of the subscriber.
+     */
+    public void complete(long id) {
+        subscriptions.remove(id);
+    }
+
+    /**
+     * Checks whether a subscriber is registered.
+     *
+     * @param id The identifier of the subscriber.
+     * @return True if the subscriber is registered, false otherwise.
+     */
+    public boolean isSubscribed(long id) {
+        return subscriptions.containsKey(id);
+    }
+
+    /**
+     * Delivers an event to a subscriber.
+     *
+     * @param id    The identifier of the subscriber.
+     * @param event The event.
+     * @return True if the subscriber is registered, false if the event has been dropped.
+     */
+    public boolean publish(long id, final Event<T> event) {
+        final Subscription<T> subscription = subscriptions.get(id);
+        if (subscription == null) {
+            return false;
+        }
+        Handler handler = subscription.handler;
+        if (handler == null || handler.getLooper() == Looper.myLooper()) {
+            event.deliver(subscription.subscriber);
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!subscription.cancelled) {
+                        event.deliver(subscription.subscriber);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * An event published on the bus.
+     *
+     * @param <T> The type of the subscribers.
+     */
+    public interface Event<T> {
+        /**
+         * Delivers the event by calling the subscriber.
+         *
+         * @param subscriber The subscriber.
+         */
+        void deliver(T subscriber);
+    }
+
+    private static final class Subscription<T> {
+        private final Object owner;
+        private final T subscriber;
+        private final Handler handler;
+        private volatile boolean cancelled = false;
+
+        private Subscription(Object owner, T subscriber, Handler handler) {
+            this.owner = owner;
+            this.subscriber = subscriber;
+            this.handler = handler;
+        }
+    }
+}
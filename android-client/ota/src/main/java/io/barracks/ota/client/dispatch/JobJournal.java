@@ -0,0 +1,686 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.dispatch;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.barracks.ota.client.Defaults;
+import io.barracks.ota.client.download.PackageDigest;
+
+/**
+ * This class keeps track of the update checks and package downloads which are not over yet, so that
+ * they can be started again after the process has been killed.<br>
+ * The journal is an append-only log of records. The records are buffered and written together,
+ * with a single sync, at most {@link #COMMIT_DELAY} milliseconds after the first of them: a job
+ * recorded right before a crash may be lost, and a job which is over may be started again.<br>
+ * The log is read and compacted by the thread of the journal when it is opened, and compacted again
+ * whenever it grows too large compared to the number of jobs it describes.<br>
+ * The API keys are not written to the log: a job is recorded with the hash of its key, and replayed
+ * with the key {@link #addApiKey(String) registered} by the current process.
+ */
+public class JobJournal {
+    /**
+     * This key is used to specify the identifier of the job of a request in its {@link Intent}.
+     */
+    public static final String EXTRA_JOB_ID = "jobId";
+    /**
+     * This key marks the {@link Intent} of a job started again by {@link #replay(Context)}.
+     */
+    public static final String EXTRA_REPLAYED = "replayed";
+    /**
+     * The state of a job waiting or in progress.
+     */
+    public static final int STATE_PENDING = 0;
+    /**
+     * The state of a job paused by its request.
+     */
+    public static final int STATE_PAUSED = 1;
+    /**
+     * The maximum delay between a record and its sync to the disk, in milliseconds.
+     */
+    public static final long COMMIT_DELAY = 200;
+
+    private static final String MAGIC = "barracks-jobs";
+    private static final int VERSION = 1;
+    private static final String ADD = "add";
+    private static final String STATE = "state";
+    private static final String OFFSET = "offset";
+    private static final String DONE = "done";
+    /**
+     * The extra holding the API key in the intents of the services.
+     */
+    private static final String EXTRA_API_KEY = "apiKey";
+    /**
+     * The extra holding the hash of the API key in the intents written to the log.
+     */
+    private static final String EXTRA_API_KEY_HASH = "apiKeyHash";
+    /**
+     * The number of records after which the log is compacted, in addition to the live jobs.
+     */
+    private static final int COMPACTION_THRESHOLD = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, JobJournal.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static JobJournal instance;
+    /**
+     * The identifier of the next job. The identifiers of a process start at the time it opens its
+     * first journal, so that they don't collide with the ones of a previous process, which are only
+     * known once the log has been read.
+     */
+    private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+    /**
+     * The API keys registered by this process, by hash.
+     */
+    private static final Map<String, String> apiKeys = new ConcurrentHashMap<>();
+
+    /**
+     * The file in which the journal is persisted.
+     */
+    private final File file;
+    /**
+     * The jobs which are not over, by identifier.
+     */
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+    /**
+     * The identifiers of the jobs found when the journal was opened, which have not been replayed yet.
+     */
+    private final Set<Long> replayable = new HashSet<>();
+    /**
+     * The records which have not been written yet.
+     */
+    private StringBuilder pending = new StringBuilder();
+    /**
+     * Whether a commit of the pending records has been scheduled.
+     */
+    private boolean scheduled = false;
+    /**
+     * The number of records in the log.
+     */
+    private int records = 0;
+    /**
+     * Released once the log has been read and compacted.
+     */
+    private final CountDownLatch opened = new CountDownLatch(1);
+    /**
+     * Serializes the writes to the log, so that the records are written in order.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Opens a journal, the jobs recorded by a previous process are read in the background.
+     *
+     * @param file The file in which the journal is persisted.
+     */
+    public JobJournal(File file) {
+        this.file = file;
+        committer.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /**
+     * Get the journal shared by the services of the application.
+     *
+     * @param context The context of the application.
+     * @return the {@link JobJournal} of this application.
+     */
+    public static synchronized JobJournal getInstance(Context context) {
+        File file = new File(context.getFilesDir(), Defaults.DEFAULT_JOB_JOURNAL);
+        if (instance == null || !instance.file.equals(file)) {
+            instance = new JobJournal(file);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the file in which the journal is persisted.
+     *
+     * @return the file in which the journal is persisted.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Records a new job.<br>
+     * Its API key is replaced by its hash, and {@link #addApiKey(String) registered} to replay the
+     * job.
+     *
+     * @param intent The {@link Intent} which starts the job, including its component.
+     * @return The identifier of the job, to be put in the {@link Intent} as {@link #EXTRA_JOB_ID}.
+     */
+    public synchronized long add(Intent intent) {
+        long id = nextId.getAndIncrement();
+        Intent job = new Intent(intent).putExtra(EXTRA_JOB_ID, id);
+        String apiKey = job.getStringExtra(EXTRA_API_KEY);
+        if (apiKey != null) {
+            job.removeExtra(EXTRA_API_KEY);
+            job.putExtra(EXTRA_API_KEY_HASH, addApiKey(apiKey));
+        }
+        byte[] data = marshall(job);
+        jobs.put(id, new Job(id, data));
+        append(ADD + ' ' + id + ' ' + Base64.encodeToString(data, Base64.NO_WRAP));
+        return id;
+    }
+
+    /**
+     * Records the state of a job.
+     *
+     * @param id    The identifier of the job.
+     * @param state {@link #STATE_PENDING} or {@link #STATE_PAUSED}.
+     */
+    public synchronized void setState(long id, int state) {
+        Job job = jobs.get(id);
+        if (job != null && job.state != state) {
+            job.state = state;
+            append(STATE + ' ' + id + ' ' + state);
+        }
+    }
+
+    /**
+     * Records the number of bytes a job has safely written.
+     *
+     * @param id     The identifier of the job.
+     * @param offset The number of bytes written.
+     */
+    public synchronized void setOffset(long id, long offset) {
+        Job job = jobs.get(id);
+        if (job != null && job.offset != offset) {
+            job.offset = offset;
+            append(OFFSET + ' ' + id + ' ' + offset);
+        }
+    }
+
+    /**
+     * Records that a job is over, whatever its outcome.
+     *
+     * @param id The identifier of the job.
+     */
+    public synchronized void remove(long id) {
+        replayable.remove(id);
+        if (jobs.remove(id) != null) {
+            append(DONE + ' ' + id);
+        }
+    }
+
+    /**
+     * Registers an API key, so that the jobs using it can be replayed.<br>
+     * The keys are only kept in memory, the jobs of a previous process are forgotten if their key
+     * has not been registered again when they are replayed.
+     *
+     * @param apiKey The API key provided by the Barracks platform.
+     * @return The hash of the key, which is written to the log instead of the key.
+     */
+    public static String addApiKey(String apiKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String hash = PackageDigest.toHex(digest.digest(apiKey.getBytes(UTF_8)));
+            apiKeys.put(hash, apiKey);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the jobs which are not over, waiting for the log to be read if needed.
+     *
+     * @return A copy of the jobs, in the order they have been recorded.
+     */
+    public List<Job> getJobs() {
+        awaitOpened();
+        synchronized (this) {
+            List<Job> copy = new ArrayList<>(jobs.size());
+            for (Job job : jobs.values()) {
+                copy.add(new Job(job));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Starts again the pending jobs found when the journal was opened, the paused ones are
+     * forgotten.<br>
+     * The requests of the previous process do not exist anymore, the services are expected to
+     * broadcast the results of the jobs marked with {@link #EXTRA_REPLAYED}. A download resumes from
+     * the bytes kept by its {@link io.barracks.ota.client.download.DownloadJournal}. A job whose
+     * API key has not been {@link #addApiKey(String) registered} is forgotten.<br>
+     * The jobs are started by the thread of the journal once the log has been read. They are only
+     * replayed once, the following calls do nothing.
+     *
+     * @param context The context used to start the services.
+     * @return The number of jobs started, available once they have been.
+     */
+    public Future<Integer> replay(final Context context) {
+        return committer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                List<Intent> intents = new ArrayList<>();
+                synchronized (JobJournal.this) {
+                    for (Long id : new ArrayList<>(replayable)) {
+                        Job job = jobs.get(id);
+                        Intent intent = job == null ? null : restore(job.getIntent());
+                        if (intent == null || intent.getComponent() == null || job.state == STATE_PAUSED) {
+                            remove(id);
+                        } else {
+                            intents.add(intent.putExtra(EXTRA_REPLAYED, true));
+                        }
+                    }
+                    replayable.clear();
+                }
+                for (Intent intent : intents) {
+                    context.startService(intent);
+                }
+                return intents.size();
+            }
+        });
+    }
+
+    /**
+     * Puts back the API key of a job read from the log.
+     *
+     * @param intent The {@link Intent} of the job, can be null.
+     * @return The {@link Intent} with its API key, or null if the key is not registered.
+     */
+    private static Intent restore(Intent intent) {
+        String hash = intent == null ? null : intent.getStringExtra(EXTRA_API_KEY_HASH);
+        if (hash == null) {
+            return intent;
+        }
+        String apiKey = apiKeys.get(hash);
+        if (apiKey == null) {
+            return null;
+        }
+        intent.removeExtra(EXTRA_API_KEY_HASH);
+        return intent.putExtra(EXTRA_API_KEY, apiKey);
+    }
+
+    /**
+     * Writes the pending records and syncs them to the disk.
+     *
+     * @throws IOException If the records can't be written.
+     */
+    public void commit() throws IOException {
+        // The records of this process are not appended to the previous log before it has been read
+        awaitOpened();
+        synchronized (writeLock) {
+            String data;
+            boolean compact;
+            synchronized (this) {
+                data = pending.toString();
+                pending = new StringBuilder();
+                scheduled = false;
+                compact = records > jobs.size() + COMPACTION_THRESHOLD;
+            }
+            if (compact) {
+                compact();
+            } else if (!data.isEmpty()) {
+                write(data);
+            }
+        }
+    }
+
+    /**
+     * Waits until the log has been read and compacted.
+     */
+    private void awaitOpened() {
+        try {
+            opened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Buffers a record, scheduling a commit if none is pending.
+     *
+     * @param record The record, without line separator.
+     */
+    private void append(String record) {
+        pending.append(record).append('\n');
+        records++;
+        if (!scheduled) {
+            scheduled = true;
+            committer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commit();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, COMMIT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Rewrites the log with the jobs which are not over, to a side file which is then renamed.<br>
+     * Must be called holding the {@link #writeLock}.
+     *
+     * @throws IOException If the log can't be written.
+     */
+    private void compact() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        synchronized (this) {
+            builder.append(MAGIC).append(' ').append(VERSION).append(' ').append(Build.VERSION.SDK_INT).append(' ').append(nextId.get()).append('\n');
+            for (Job job : jobs.values()) {
+                builder.append(ADD).append(' ').append(job.id).append(' ').append(Base64.encodeToString(job.data, Base64.NO_WRAP)).append('\n');
+                if (job.state != STATE_PENDING) {
+                    builder.append(STATE).append(' ').append(job.id).append(' ').append(job.state).append('\n');
+                }
+                if (job.offset != 0) {
+                    builder.append(OFFSET).append(' ').append(job.id).append(' ').append(job.offset).append('\n');
+                }
+            }
+            // The pending records are part of the compacted log
+            pending = new StringBuilder();
+            records = jobs.size();
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent.getPath());
+        }
+        File side = new File(file.getPath() + ".new");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(side);
+            fos.write(builder.toString().getBytes(UTF_8));
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!side.renameTo(file)) {
+            throw new IOException("Failed to compact " + file.getPath());
+        }
+    }
+
+    /**
+     * Appends records to the log, and syncs them to the disk.
+     *
+     * @param data The records.
+     * @throws IOException If the records can't be written.
+     */
+    private void write(String data) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file, true);
+            fos.write(data.getBytes(UTF_8));
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the log written by a previous process, then compacts it with the jobs recorded since the
+     * journal has been opened.<br>
+     * The jobs of the previous process come first, in the order they have been recorded. A job whose
+     * identifier has already been given by this process is forgotten.
+     */
+    private void open() {
+        try {
+            Map<Long, Job> loaded = new LinkedHashMap<>();
+            long next = load(loaded);
+            long current;
+            while ((current = nextId.get()) < next && !nextId.compareAndSet(current, next)) {
+                // A job has been added meanwhile, try again
+            }
+            synchronized (this) {
+                loaded.keySet().removeAll(jobs.keySet());
+                replayable.addAll(loaded.keySet());
+                loaded.putAll(jobs);
+                jobs.clear();
+                jobs.putAll(loaded);
+            }
+            synchronized (writeLock) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            opened.countDown();
+        }
+    }
+
+    /**
+     * Reads the log written by a previous process.<br>
+     * A log written by another version of the platform is ignored, as the intents it contains may
+     * not be read back. A record which has not been fully written, with no line separator, is skipped.
+     *
+     * @param loaded The map filled with the jobs which are not over, by identifier.
+     * @return The identifier following the ones of the log, or 0 if the log can't be read.
+     */
+    private long load(Map<Long, Job> loaded) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        String[] lines;
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            String log = new String(content.toByteArray(), UTF_8);
+            lines = log.substring(0, log.lastIndexOf('\n') + 1).split("\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        String[] header = lines[0].split(" ");
+        if (header.length != 4 || !MAGIC.equals(header[0]) || !Integer.toString(VERSION).equals(header[1]) || !Integer.toString(Build.VERSION.SDK_INT).equals(header[2])) {
+            return 0;
+        }
+        long next;
+        try {
+            next = Long.parseLong(header[3]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String[] record = lines[i].split(" ");
+            try {
+                long id = Long.parseLong(record[1]);
+                next = Math.max(next, id + 1);
+                if (ADD.equals(record[0]) && record.length == 3) {
+                    loaded.put(id, new Job(id, Base64.decode(record[2], Base64.NO_WRAP)));
+                } else if (STATE.equals(record[0]) && record.length == 3 && loaded.containsKey(id)) {
+                    loaded.get(id).state = Integer.parseInt(record[2]);
+                } else if (OFFSET.equals(record[0]) && record.length == 3 && loaded.containsKey(id)) {
+                    loaded.get(id).offset = Long.parseLong(record[2]);
+                } else if (DONE.equals(record[0])) {
+                    loaded.remove(id);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                // Skip a corrupted record
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Serializes the action, the component and the extras of an {@link Intent}.
+     *
+     * @param intent The {@link Intent} of a job.
+     * @return The serialized intent.
+     */
+    private static byte[] marshall(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            ComponentName component = intent.getComponent();
+            parcel.writeString(intent.getAction());
+            parcel.writeString(component == null ? null : component.flattenToString());
+            parcel.writeBundle(intent.getExtras());
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Reads an {@link Intent} serialized by {@link #marshall(Intent)}.
+     *
+     * @param data The serialized intent.
+     * @return The {@link Intent}, or null if it can't be read.
+     */
+    private static Intent unmarshall(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            Intent intent = new Intent(parcel.readString());
+            String component = parcel.readString();
+            if (component != null) {
+                intent.setComponent(ComponentName.unflattenFromString(component));
+            }
+            Bundle extras = parcel.readBundle(JobJournal.class.getClassLoader());
+            if (extras != null) {
+                intent.putExtras(extras);
+            }
+            return intent;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * A job recorded in the journal.
+     */
+    public static final class Job {
+        private final long id;
+        private final byte[] data;
+        private int state = STATE_PENDING;
+        private long offset = 0;
+
+        private Job(long id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        private Job(Job job) {
+            this(job.id, job.data);
+            this.state = job.state;
+            this.offset = job.offset;
+        }
+
+        /**
+         * Get the identifier of the job.
+         *
+         * @return the identifier of the job.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Get the {@link Intent} which starts the job.
+         *
+         * @return A new copy of the {@link Intent}, or null if it can't be read.
+         */
+        public Intent getIntent() {
+            return unmarshall(data);
+        }
+
+        /**
+         * Get the state of the job.
+         *
+         * @return {@link #STATE_PENDING} or {@link #STATE_PAUSED}.
+         */
+        public int getState() {
+            return state;
+        }
+
+        /**
+         * Get the number of bytes the job has safely written.
+         *
+         * @return the number of bytes the job has safely written.
+         */
+        public long getOffset() {
+            return offset;
+        }
+    }
+}
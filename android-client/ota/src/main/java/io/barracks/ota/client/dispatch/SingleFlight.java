@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps track of the operations in progress, so that identical requests share a single
+ * operation.<br>
+ * The first request for a key starts a flight, the following ones join it until it lands, at which
+ * point every member receives the result.
+ *
+ * @param <T> The type of the members, describing where to deliver the result.
+ */
+public class SingleFlight<T> {
+    private final Map<String, List<T>> flights = new HashMap<>();
+
+    /**
+     * Joins the flight of a key, starting it if needed.
+     *
+     * @param key    The key identifying the operation.
+     * @param member The member waiting for the result.
+     * @return True if the operation was already in progress, false if the caller has to start it.
+     */
+    public synchronized boolean join(String key, T member) {
+        List<T> members = flights.get(key);
+        if (members == null) {
+            members = new ArrayList<>();
+            flights.put(key, members);
+            members.add(member);
+            return false;
+        }
+        members.add(member);
+        return true;
+    }
+
+    /**
+     * Get the members of a flight.
+     *
+     * @param key The key identifying the operation.
+     * @return A copy of the members, empty if no flight is in progress for this key.
+     */
+    public synchronized List<T> members(String key) {
+        List<T> members = flights.get(key);
+        return members == null ? Collections.<T>emptyList() : new ArrayList<>(members);
+    }
+
+    /**
+     * Ends the flight of a key, the next request for this key starts a new one.
+     *
+     * @param key The key identifying the operation.
+     * @return The members of the flight, empty if no flight was in progress for this key.
+     */
+    public synchronized List<T> land(String key) {
+        List<T> members = flights.remove(key);
+        return members == null ? Collections.<T>emptyList() : members;
+    }
+
+    /**
+     * Leaves the flight of a key before it lands, the flight ends if no member is left.
+     *
+     * @param key    The key identifying the operation.
+     * @param member The member which does not wait for the result anymore.
+     * @return The number of members left, or -1 if the member was not part of a flight for this key.
+     */
+    public synchronized int leave(String key, T member) {
+        List<T> members = flights.get(key);
+        if (members == null || !members.remove(member)) {
+            return -1;
+        }
+        if (members.isEmpty()) {
+            flights.remove(key);
+        }
+        return members.size();
+    }
+
+    /**
+     * Get the number of flights in progress.
+     *
+     * @return the number of flights in progress.
+     */
+    public synchronized int size() {
+        return flights.size();
+    }
+}
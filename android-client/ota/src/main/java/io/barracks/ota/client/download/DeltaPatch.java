@@ -0,0 +1,149 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class rebuilds a package from the package of a previous version and a binary patch.<br>
+ * The patches use the bsdiff 4.3 layout : a header made of the {@link #MAGIC} and the size of the
+ * new package, followed by a single stream of control tuples, each one followed by its diff and
+ * extra bytes. The stream is compressed with zlib, bzip2 not being available on Android.<br>
+ * The patch is read once, the new package written once, and the previous package read at random
+ * positions, so that the memory used does not depend on the size of the packages.
+ */
+public final class DeltaPatch {
+    /**
+     * The first bytes of a patch.
+     */
+    public static final String MAGIC = "BSDIFF43/DEFLATE";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DeltaPatch() {
+
+    }
+
+    /**
+     * Rebuilds a package.
+     *
+     * @param base   The package of the previous version.
+     * @param patch  The stream of the patch.
+     * @param out    The stream the new package is written to.
+     * @param digest A digest fed with the bytes of the new package, can be null.
+     * @return The size of the new package.
+     * @throws IOException If a file can't be read or written, or if the patch is corrupted.
+     */
+    public static long apply(File base, InputStream patch, OutputStream out, MessageDigest digest) throws IOException {
+        DataInputStream header = new DataInputStream(patch);
+        byte[] magic = new byte[MAGIC.length()];
+        header.readFully(magic);
+        if (!MAGIC.equals(new String(magic, Charset.forName("US-ASCII")))) {
+            throw new IOException("Not a patch");
+        }
+        long newSize = readOffset(header);
+        if (newSize < 0) {
+            throw new IOException("Corrupted patch : size " + newSize);
+        }
+        DataInputStream in = new DataInputStream(new InflaterInputStream(patch));
+        RandomAccessFile old = new RandomAccessFile(base, "r");
+        try {
+            long oldSize = old.length();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long oldPos = 0;
+            long newPos = 0;
+            while (newPos < newSize) {
+                long diffLength = readOffset(in);
+                long extraLength = readOffset(in);
+                long seek = readOffset(in);
+                if (diffLength < 0 || extraLength < 0 || newPos + diffLength + extraLength > newSize) {
+                    throw new IOException("Corrupted patch : control " + diffLength + ", " + extraLength);
+                }
+                // The diff bytes are added to the bytes of the previous package
+                for (long done = 0; done < diffLength; ) {
+                    int length = (int) Math.min(BUFFER_SIZE, diffLength - done);
+                    in.readFully(buffer, 0, length);
+                    readBase(old, oldSize, oldPos + done, oldBuffer, length);
+                    for (int i = 0; i < length; i++) {
+                        buffer[i] += oldBuffer[i];
+                    }
+                    write(out, digest, buffer, length);
+                    done += length;
+                }
+                // The extra bytes are copied as they are
+                for (long done = 0; done < extraLength; ) {
+                    int length = (int) Math.min(BUFFER_SIZE, extraLength - done);
+                    in.readFully(buffer, 0, length);
+                    write(out, digest, buffer, length);
+                    done += length;
+                }
+                newPos += diffLength + extraLength;
+                oldPos += diffLength + seek;
+            }
+            return newSize;
+        } finally {
+            try {
+                old.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes of the previous package, the bytes out of its bounds are zeros.
+     */
+    private static void readBase(RandomAccessFile old, long oldSize, long position, byte[] buffer, int length) throws IOException {
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        long start = Math.max(position, 0);
+        long end = Math.min(position + length, oldSize);
+        if (start < end) {
+            old.seek(start);
+            old.readFully(buffer, (int) (start - position), (int) (end - start));
+        }
+    }
+
+    private static void write(OutputStream out, MessageDigest digest, byte[] buffer, int length) throws IOException {
+        out.write(buffer, 0, length);
+        if (digest != null) {
+            digest.update(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Reads an offset, encoded as 8 bytes in little endian order with the sign in the highest bit.
+     */
+    private static long readOffset(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[8];
+        in.readFully(bytes);
+        long value = bytes[7] & 0x7f;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return (bytes[7] & 0x80) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import io.barracks.ota.client.api.PackageInfo;
+
+/**
+ * This class keeps track of a partial package download, next to its temporary file.<br>
+ * It records the package's url, expected size and MD5, the number of bytes safely written to the
+ * temporary file and the validator (ETag or Last-Modified) returned by the server, which allows for
+ * a download to be resumed using a <code>Range</code> request. The validator is only meaningful for
+ * the {@link #getSource() source} which returned it, the url or one of the mirrors of the package.
+ */
+public class DownloadJournal {
+    /**
+     * The suffix appended to the temporary file's name to locate its journal.
+     */
+    public static final String SUFFIX = ".journal";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_MD5 = "md5";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_COMMITTED = "committed";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_SOURCE = "source";
+
+    /**
+     * The file in which the journal is persisted.
+     */
+    private final File file;
+    /**
+     * The url of the package being downloaded.
+     */
+    private final String url;
+    /**
+     * The MD5 hash of the package being downloaded.
+     */
+    private final String md5;
+    /**
+     * The expected size of the package being downloaded.
+     */
+    private final long size;
+    /**
+     * The number of bytes which have been synced to the temporary file.
+     */
+    private long committed;
+    /**
+     * The ETag returned by the server for the package.
+     */
+    private String etag;
+    /**
+     * The Last-Modified date returned by the server for the package.
+     */
+    private String lastModified;
+    /**
+     * The url the validators have been returned by, or null for the url of the package.
+     */
+    private String source;
+
+    private DownloadJournal(File file, String url, String md5, long size) {
+        this.file = file;
+        this.url = url;
+        this.md5 = md5;
+        this.size = size;
+    }
+
+    /**
+     * Get the journal file associated to a temporary download file.
+     *
+     * @param tmp The temporary file of the download.
+     * @return The journal file.
+     */
+    public static File journalFor(File tmp) {
+        return new File(tmp.getPath() + SUFFIX);
+    }
+
+    /**
+     * Creates a new, empty, journal for the download of a package.
+     *
+     * @param tmp  The temporary file of the download.
+     * @param info The {@link PackageInfo} of the package being downloaded.
+     * @return A journal with no committed bytes.
+     */
+    public static DownloadJournal create(File tmp, PackageInfo info) {
+        return new DownloadJournal(journalFor(tmp), info.getUrl(), info.getMd5(), info.getSize() == null ? -1 : info.getSize());
+    }
+
+    /**
+     * Loads the journal associated to a temporary download file.
+     *
+     * @param tmp The temporary file of the download.
+     * @return The journal, or null if it does not exist or can't be read.
+     */
+    public static DownloadJournal load(File tmp) {
+        File file = journalFor(tmp);
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            Properties properties = new Properties();
+            properties.load(is);
+            DownloadJournal journal = new DownloadJournal(
+                    file,
+                    properties.getProperty(KEY_URL),
+                    properties.getProperty(KEY_MD5),
+                    Long.parseLong(properties.getProperty(KEY_SIZE, "-1"))
+            );
+            journal.committed = Long.parseLong(properties.getProperty(KEY_COMMITTED, "0"));
+            journal.etag = properties.getProperty(KEY_ETAG);
+            journal.lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+            journal.source = properties.getProperty(KEY_SOURCE);
+            return journal;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether this journal describes the download of a package.
+     *
+     * @param info The {@link PackageInfo} of the package to be downloaded.
+     * @return True if the url, MD5 and size are the same, false otherwise.
+     */
+    public boolean matches(PackageInfo info) {
+        return TextUtils.equals(url, info.getUrl())
+                && TextUtils.equals(md5, info.getMd5())
+                && info.getSize() != null && size == info.getSize();
+    }
+
+    /**
+     * Get the number of bytes which have been synced to the temporary file.
+     *
+     * @return the number of bytes which have been synced to the temporary file.
+     */
+    public long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Get the validator to be sent in an <code>If-Range</code> header.
+     *
+     * @return the ETag if available, the Last-Modified date otherwise, or null if none were received.
+     */
+    public String getValidator() {
+        return etag != null ? etag : lastModified;
+    }
+
+    /**
+     * Define the validators returned by the server for the package.
+     *
+     * @param etag         The ETag header, if any.
+     * @param lastModified The Last-Modified header, if any.
+     */
+    public void setValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Get the url the bytes and the validators have been received from.
+     *
+     * @return the url of the source, the url of the package if none was recorded.
+     */
+    public String getSource() {
+        return source != null ? source : url;
+    }
+
+    /**
+     * Define the url the bytes and the validators are received from.
+     *
+     * @param source The url of the package or one of its mirrors.
+     */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Syncs the bytes written to a sink, then records them in the journal.
+     *
+     * @param sink      The sink of the download.
+     * @param committed The number of bytes written to the sink.
+     * @throws IOException If the sink can't be synced or the journal can't be written.
+     */
+    public void commit(PackageSink sink, long committed) throws IOException {
+        sink.sync();
+        commit(committed);
+    }
+
+    /**
+     * Persists the journal, stating that <code>committed</code> bytes have been synced to the
+     * temporary file.<br>
+     * The journal is written to a side file which is then renamed, so that a crash never leaves a
+     * truncated journal behind.
+     *
+     * @param committed The number of bytes synced to the temporary file.
+     * @throws IOException If the journal can't be written.
+     */
+    public void commit(long committed) throws IOException {
+        this.committed = committed;
+        Properties properties = new Properties();
+        if (url != null) {
+            properties.setProperty(KEY_URL, url);
+        }
+        if (md5 != null) {
+            properties.setProperty(KEY_MD5, md5);
+        }
+        properties.setProperty(KEY_SIZE, Long.toString(size));
+        properties.setProperty(KEY_COMMITTED, Long.toString(committed));
+        if (etag != null) {
+            properties.setProperty(KEY_ETAG, etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+        }
+        if (source != null) {
+            properties.setProperty(KEY_SOURCE, source);
+        }
+        File side = new File(file.getPath() + ".new");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(side);
+            properties.store(fos, null);
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!side.renameTo(file)) {
+            throw new IOException("Failed to commit " + file.getPath());
+        }
+    }
+
+    /**
+     * Deletes the journal, once the download is over or can't be resumed.
+     *
+     * @return True if there is no journal left on the disk, false otherwise.
+     */
+    public boolean delete() {
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Deletes the journal associated to a temporary download file.
+     *
+     * @param tmp The temporary file of the download.
+     * @return True if there is no journal left on the disk, false otherwise.
+     */
+    public static boolean delete(File tmp) {
+        File journal = journalFor(tmp);
+        return !journal.exists() || journal.delete();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+
+import io.barracks.ota.client.api.UpdateDetails;
+
+/**
+ * This class describes how the package of an update is downloaded : its files, the resumption of a
+ * partial download, the connections and the progress notifications.
+ */
+public class DownloadRequest {
+    private final String apiKey;
+    private final UpdateDetails update;
+    private final File tmp;
+    private final File destination;
+    private final File basePackage;
+    private final boolean resumable;
+    private final int maxConnections;
+    private final boolean paranoid;
+    private final long progressInterval;
+    private final long progressBytes;
+
+    private DownloadRequest(String apiKey, UpdateDetails update, File tmp, File destination, File basePackage, boolean resumable, int maxConnections, boolean paranoid, long progressInterval, long progressBytes) {
+        this.apiKey = apiKey;
+        this.update = update;
+        this.tmp = tmp;
+        this.destination = destination;
+        this.basePackage = basePackage;
+        this.resumable = resumable;
+        this.maxConnections = maxConnections;
+        this.paranoid = paranoid;
+        this.progressInterval = progressInterval;
+        this.progressBytes = progressBytes;
+    }
+
+    /**
+     * Get the API key provided by the Barracks platform.
+     *
+     * @return the API key of the request.
+     */
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Get the {@link UpdateDetails} retrieved from the Barracks platform.
+     *
+     * @return the details of the update.
+     */
+    public UpdateDetails getUpdate() {
+        return update;
+    }
+
+    /**
+     * Get the temporary file the package is downloaded to.
+     *
+     * @return the temporary file of the request.
+     */
+    public File getTmp() {
+        return tmp;
+    }
+
+    /**
+     * Get the final destination of the package.
+     *
+     * @return the final destination of the request.
+     */
+    public File getDestination() {
+        return destination;
+    }
+
+    /**
+     * Get the package installed on the device, which a patch may be applied to.
+     *
+     * @return the installed package, or null if there is none.
+     */
+    public File getBasePackage() {
+        return basePackage;
+    }
+
+    /**
+     * Checks whether a partial download may be resumed.
+     *
+     * @return True if the partial download is kept and resumed, false otherwise.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * Get the maximum number of connections used to download the package.
+     *
+     * @return the maximum number of connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Checks whether the downloaded file is read again to check its integrity.
+     *
+     * @return True if the file is read again, false if the hash computed during the transfer is used.
+     */
+    public boolean isParanoid() {
+        return paranoid;
+    }
+
+    /**
+     * Get the minimum interval between two progress notifications.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Get the number of bytes after which the progress is notified even if the percentage did not change.
+     *
+     * @return the number of bytes, or 0 to only notify percentage changes.
+     */
+    public long getProgressBytes() {
+        return progressBytes;
+    }
+
+    public static final class Builder {
+        private String apiKey;
+        private UpdateDetails update;
+        private File tmp;
+        private File destination;
+        private File basePackage;
+        private boolean resumable = true;
+        private int maxConnections = 1;
+        private boolean paranoid = false;
+        private long progressInterval = ProgressReporter.DEFAULT_INTERVAL;
+        private long progressBytes = 0;
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the API key provided by the Barracks platform.
+         *
+         * @param apiKey the API key.
+         * @return the same builder instance.
+         */
+        public Builder apiKey(String apiKey) {
+            this.apiKey = apiKey;
+            return this;
+        }
+
+        /**
+         * Define the {@link UpdateDetails} of the package to be downloaded.
+         *
+         * @param update the details of the update.
+         * @return the same builder instance.
+         */
+        public Builder update(UpdateDetails update) {
+            this.update = update;
+            return this;
+        }
+
+        /**
+         * Define the temporary file the package is downloaded to.
+         *
+         * @param tmp the temporary file.
+         * @return the same builder instance.
+         */
+        public Builder tmp(File tmp) {
+            this.tmp = tmp;
+            return this;
+        }
+
+        /**
+         * Define the final destination of the package.
+         *
+         * @param destination the final destination.
+         * @return the same builder instance.
+         */
+        public Builder destination(File destination) {
+            this.destination = destination;
+            return this;
+        }
+
+        /**
+         * Define the package installed on the device, which a patch may be applied to.
+         *
+         * @param basePackage the installed package, can be null.
+         * @return the same builder instance.
+         */
+        public Builder basePackage(File basePackage) {
+            this.basePackage = basePackage;
+            return this;
+        }
+
+        /**
+         * Define whether a partial download may be resumed, defaults to true.
+         *
+         * @param resumable whether a partial download may be resumed.
+         * @return the same builder instance.
+         */
+        public Builder resumable(boolean resumable) {
+            this.resumable = resumable;
+            return this;
+        }
+
+        /**
+         * Define the maximum number of connections used to download the package, defaults to 1.
+         *
+         * @param maxConnections the maximum number of connections.
+         * @return the same builder instance.
+         */
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Define whether the downloaded file is read again to check its integrity, defaults to false.
+         *
+         * @param paranoid whether the downloaded file is read again.
+         * @return the same builder instance.
+         */
+        public Builder paranoid(boolean paranoid) {
+            this.paranoid = paranoid;
+            return this;
+        }
+
+        /**
+         * Define the minimum interval between two progress notifications, defaults to
+         * {@link ProgressReporter#DEFAULT_INTERVAL}.
+         *
+         * @param progressInterval the interval in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder progressInterval(long progressInterval) {
+            this.progressInterval = progressInterval;
+            return this;
+        }
+
+        /**
+         * Define the number of bytes after which the progress is notified even if the percentage did
+         * not change, defaults to 0.
+         *
+         * @param progressBytes the number of bytes.
+         * @return the same builder instance.
+         */
+        public Builder progressBytes(long progressBytes) {
+            this.progressBytes = progressBytes;
+            return this;
+        }
+
+        /**
+         * Build the {@link DownloadRequest} of this builder.
+         *
+         * @return a {@link DownloadRequest}
+         * @throws IllegalStateException when the files are missing.
+         */
+        public DownloadRequest build() throws IllegalStateException {
+            if (tmp == null || destination == null) {
+                throw new IllegalStateException("Missing temporary file or destination");
+            }
+            return new DownloadRequest(apiKey, update, tmp, destination, basePackage, resumable, maxConnections, paranoid, progressInterval, progressBytes);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs download tasks concurrently.<br>
+ * It never runs more than the configured number of tasks at once, nor more than the configured number
+ * of tasks for the same host. Tasks with a higher priority are started first. Tasks with the same
+ * priority are taken in turn from each owner, so that an owner queuing many downloads does not delay
+ * the others. Two tasks sharing the same exclusive key never run at the same time.
+ */
+public class DownloadScheduler {
+    /**
+     * The queues of each priority, the highest priority first. Each of them holds the queue of each
+     * owner, in the order in which the owners are served.
+     */
+    private final TreeMap<Integer, LinkedHashMap<Object, ArrayDeque<Task>>> queues = new TreeMap<>(Collections.<Integer>reverseOrder());
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final Set<String> runningKeys = new HashSet<>();
+    private final ExecutorService executor;
+    private final Listener listener;
+    private int maxConcurrent;
+    private int maxPerHost;
+    private int running = 0;
+    private int queued = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Creates a {@link DownloadScheduler}.
+     *
+     * @param name          The name of the worker threads, important only for debugging.
+     * @param maxConcurrent The maximum number of tasks running at once.
+     * @param maxPerHost    The maximum number of tasks running at once for the same host.
+     * @param listener      The listener notified when no more tasks are running or queued, can be null.
+     */
+    public DownloadScheduler(String name, int maxConcurrent, int maxPerHost, Listener listener) {
+        this.executor = Executors.newCachedThreadPool(new WorkerThreadFactory(name));
+        this.listener = listener;
+        setLimits(maxConcurrent, maxPerHost);
+    }
+
+    /**
+     * Define the limits of the scheduler, tasks which are already running are not affected.
+     *
+     * @param maxConcurrent The maximum number of tasks running at once.
+     * @param maxPerHost    The maximum number of tasks running at once for the same host.
+     */
+    public void setLimits(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Limits must be positive : " + maxConcurrent + ", " + maxPerHost);
+        }
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxPerHost = maxPerHost;
+            schedule();
+        }
+    }
+
+    /**
+     * Queues a task, starting it right away if the limits allow it.
+     *
+     * @param task The task to be run.
+     * @throws IllegalStateException If the scheduler has been shut down.
+     */
+    public synchronized void submit(Task task) {
+        if (shutdown) {
+            throw new IllegalStateException("The scheduler has been shut down");
+        }
+        LinkedHashMap<Object, ArrayDeque<Task>> owners = queues.get(task.priority);
+        if (owners == null) {
+            owners = new LinkedHashMap<>();
+            queues.put(task.priority, owners);
+        }
+        ArrayDeque<Task> tasks = owners.get(task.owner);
+        if (tasks == null) {
+            tasks = new ArrayDeque<>();
+            owners.put(task.owner, tasks);
+        }
+        tasks.add(task);
+        queued++;
+        schedule();
+    }
+
+    /**
+     * Get the number of tasks which are either running or waiting to be run.
+     *
+     * @return the number of pending tasks.
+     */
+    public synchronized int getPendingCount() {
+        return running + queued;
+    }
+
+    /**
+     * Stops the worker threads once the running and queued tasks are over, no task can be submitted
+     * anymore.
+     */
+    public void shutdown() {
+        boolean idle;
+        synchronized (this) {
+            shutdown = true;
+            idle = running == 0 && queued == 0;
+        }
+        if (idle) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Starts as many queued tasks as the limits allow.
+     */
+    private void schedule() {
+        Task task;
+        while (running < maxConcurrent && (task = next()) != null) {
+            start(task);
+        }
+    }
+
+    /**
+     * Removes the next task to be run from the queues.
+     *
+     * @return The task, or null if none can be run for now.
+     */
+    private Task next() {
+        for (Iterator<LinkedHashMap<Object, ArrayDeque<Task>>> levels = queues.values().iterator(); levels.hasNext(); ) {
+            LinkedHashMap<Object, ArrayDeque<Task>> owners = levels.next();
+            for (Iterator<Map.Entry<Object, ArrayDeque<Task>>> entries = owners.entrySet().iterator(); entries.hasNext(); ) {
+                Map.Entry<Object, ArrayDeque<Task>> entry = entries.next();
+                ArrayDeque<Task> tasks = entry.getValue();
+                for (Iterator<Task> it = tasks.iterator(); it.hasNext(); ) {
+                    Task task = it.next();
+                    if (isRunnable(task)) {
+                        it.remove();
+                        queued--;
+                        // The owner goes to the end of the line
+                        entries.remove();
+                        if (!tasks.isEmpty()) {
+                            owners.put(entry.getKey(), tasks);
+                        }
+                        if (owners.isEmpty()) {
+                            levels.remove();
+                        }
+                        return task;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isRunnable(Task task) {
+        if (task.key != null && runningKeys.contains(task.key)) {
+            return false;
+        }
+        Integer count = runningPerHost.get(task.host);
+        return count == null || count < maxPerHost;
+    }
+
+    private void start(final Task task) {
+        running++;
+        Integer count = runningPerHost.get(task.host);
+        runningPerHost.put(task.host, count == null ? 1 : count + 1);
+        if (task.key != null) {
+            runningKeys.add(task.key);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.runnable.run();
+                } finally {
+                    finish(task);
+                }
+            }
+        });
+    }
+
+    private void finish(Task task) {
+        boolean idle;
+        synchronized (this) {
+            running--;
+            int count = runningPerHost.get(task.host) - 1;
+            if (count == 0) {
+                runningPerHost.remove(task.host);
+            } else {
+                runningPerHost.put(task.host, count);
+            }
+            if (task.key != null) {
+                runningKeys.remove(task.key);
+            }
+            schedule();
+            idle = running == 0 && queued == 0;
+        }
+        if (idle && shutdown) {
+            executor.shutdown();
+        }
+        if (idle && listener != null) {
+            listener.onIdle();
+        }
+    }
+
+    /**
+     * The listener notified of the state of the scheduler.
+     */
+    public interface Listener {
+        /**
+         * This method is called on a worker thread when the last task is over and none are queued.
+         */
+        void onIdle();
+    }
+
+    /**
+     * A task to be run by a {@link DownloadScheduler}.
+     */
+    public static class Task {
+        private final Runnable runnable;
+        private final String host;
+        private final int priority;
+        private final Object owner;
+        private final String key;
+
+        /**
+         * Creates a {@link Task}.
+         *
+         * @param runnable The work to be done.
+         * @param host     The host the task connects to, used to enforce the per host limit.
+         * @param priority The priority of the task, higher priorities are started first.
+         * @param owner    The owner of the task, owners of the same priority are served in turn.
+         * @param key      Tasks with the same key are never run concurrently, can be null.
+         */
+        public Task(Runnable runnable, String host, int priority, Object owner, String key) {
+            this.runnable = runnable;
+            this.host = host == null ? "" : host;
+            this.priority = priority;
+            this.owner = owner;
+            this.key = key;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, name + "-" + count.incrementAndGet());
+        }
+    }
+}
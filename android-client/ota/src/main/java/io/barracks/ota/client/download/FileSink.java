@@ -0,0 +1,177 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A {@link PackageSink} writing the package to a file.<br>
+ * When the file is the final destination of the package, the download writes each byte once and
+ * nothing has to be moved or copied afterwards. A partial file is resumed from the offset recorded
+ * by its {@link DownloadJournal}.<br>
+ * The file is {@link #reserve(long) preallocated} to the size of the package, a full storage is
+ * reported before the bytes are received.
+ */
+public class FileSink implements PackageSink {
+    private final File file;
+    private RandomAccessFile raf;
+    /**
+     * The number of bytes of the package in the file.
+     */
+    private long position;
+
+    /**
+     * Creates a {@link FileSink}.
+     *
+     * @param file The file the package is written to.
+     */
+    public FileSink(File file) {
+        this.file = file;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long open(long offset) throws IOException {
+        close();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Failed to setup " + parent.getPath());
+        }
+        raf = new RandomAccessFile(file, "rw");
+        // Bytes past the offset have not been synced, they can't be trusted
+        position = Math.min(Math.max(offset, 0), raf.length());
+        raf.setLength(position);
+        raf.seek(position);
+        return position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reserve(long length) throws IOException {
+        if (raf == null) {
+            throw new IOException("Sink is not open");
+        }
+        allocate(raf, file, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (raf == null) {
+            throw new IOException("Sink is not open");
+        }
+        raf.write(buffer, offset, length);
+        position += length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws IOException {
+        if (raf != null) {
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * The space reserved past the bytes written is given back.
+     */
+    @Override
+    public void close() throws IOException {
+        if (raf != null) {
+            try {
+                if (raf.length() > position) {
+                    raf.setLength(position);
+                }
+            } finally {
+                raf.close();
+                raf = null;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        DownloadJournal.delete(file);
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Allocates the blocks of a file up to <code>length</code>, so that they are laid out together
+     * and a full storage is known before any byte is written.<br>
+     * The blocks are allocated by <code>posix_fallocate</code> from Lollipop on, older versions and
+     * filesystems which don't support it only extend the file.
+     *
+     * @param raf    The file to be allocated, opened for writing.
+     * @param file   The path of the file.
+     * @param length The length of the file.
+     * @throws InsufficientStorageException If the storage can't hold the file.
+     * @throws IOException                  If the file can't be extended.
+     */
+    static void allocate(RandomAccessFile raf, File file, long length) throws IOException {
+        long current = raf.length();
+        if (current >= length) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.posix_fallocate(raf.getFD(), current, length - current);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new InsufficientStorageException(length - current, file.getAbsoluteFile().getParentFile().getUsableSpace());
+                }
+                // Not supported by the filesystem, the file is only extended
+            }
+        }
+        if (raf.length() < length) {
+            raf.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.IOException;
+
+/**
+ * Signals that a package can't be downloaded because the storage does not have enough free space,
+ * before any byte has been transferred.
+ */
+public class InsufficientStorageException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long required;
+    private final long available;
+
+    /**
+     * Creates an {@link InsufficientStorageException}.
+     *
+     * @param required  The number of bytes needed by the download.
+     * @param available The number of bytes available on the storage.
+     */
+    public InsufficientStorageException(long required, long available) {
+        super("Not enough space : " + required + " bytes required, " + available + " available");
+        this.required = required;
+        this.available = available;
+    }
+
+    /**
+     * Get the number of bytes needed by the download.
+     *
+     * @return the number of bytes needed, including the headroom kept free.
+     */
+    public long getRequired() {
+        return required;
+    }
+
+    /**
+     * Get the number of bytes available on the storage.
+     *
+     * @return the number of bytes available when the download was refused.
+     */
+    public long getAvailable() {
+        return available;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A {@link PackageSink} keeping the package in memory, for small packages which are consumed right
+ * away and never touch the storage.<br>
+ * The size of the package is bounded, the download fails instead of exhausting the memory. Nothing
+ * survives the process, a package is always received from its start.
+ */
+public class MemorySink implements PackageSink {
+    private final int maxSize;
+    private byte[] bytes = new byte[0];
+    private int size = 0;
+
+    /**
+     * Creates a {@link MemorySink}.
+     *
+     * @param maxSize The maximum size of the package, in bytes.
+     */
+    public MemorySink(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Size can't be negative : " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long open(long offset) {
+        size = 0;
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void reserve(long length) throws IOException {
+        if (length > maxSize) {
+            throw new IOException("Package larger than " + maxSize + " bytes : " + length);
+        }
+        if (length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, (int) length);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length > maxSize - size) {
+            throw new IOException("Package larger than " + maxSize + " bytes");
+        }
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.min(maxSize, Math.max(size + length, bytes.length * 2)));
+        }
+        System.arraycopy(buffer, offset, bytes, size, length);
+        size += length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() {
+        // Nothing is durable
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void discard() {
+        bytes = new byte[0];
+        size = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getFile() {
+        return null;
+    }
+
+    /**
+     * Get the bytes received.
+     *
+     * @return a copy of the bytes written to this sink.
+     */
+    public synchronized byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * Get the number of bytes received.
+     *
+     * @return the number of bytes written to this sink.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.download;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.UpdateDownloadApi;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * This class keeps track of the health of the sources of the packages, the url of a package and its
+ * mirrors, and ranks them before a download.<br>
+ * Each source has a score made of its time to first byte, averaged over the samples, and of its
+ * recent failures. The failures decay with a half-life, so that a mirror which failed gets another
+ * chance later on, and a sample older than the half-life is measured again by a small
+ * <code>Range</code> request before the next download. The table is kept in memory and bounded,
+ * the sources which have not been used for the longest time are forgotten first.
+ */
+public class MirrorSelector {
+    /**
+     * The default number of sources kept in the table.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+    /**
+     * The default half-life of the failures of a source, in milliseconds.
+     */
+    public static final long DEFAULT_HALF_LIFE = 10 * 60 * 1000;
+    /**
+     * The latency assumed for a source which has never answered, in milliseconds.
+     */
+    private static final double UNKNOWN_LATENCY = 1000;
+    /**
+     * The latency added to the score of a source for each recent failure, in milliseconds.
+     */
+    private static final double FAILURE_PENALTY = 10 * 1000;
+    /**
+     * The weight of a new sample in the average latency.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final int capacity;
+    private final long halfLife;
+    private final Map<String, Health> table = new HashMap<>();
+
+    /**
+     * Creates a {@link MirrorSelector}.
+     *
+     * @param capacity The maximum number of sources kept in the table.
+     * @param halfLife The half-life of the failures of a source, in milliseconds.
+     */
+    public MirrorSelector(int capacity, long halfLife) {
+        if (capacity < 1 || halfLife <= 0) {
+            throw new IllegalArgumentException("Invalid table settings : " + capacity + ", " + halfLife);
+        }
+        this.capacity = capacity;
+        this.halfLife = halfLife;
+    }
+
+    /**
+     * Records the time a source took to send the first byte of a response.
+     *
+     * @param url     The url of the source.
+     * @param latency The time to first byte, in milliseconds.
+     */
+    public synchronized void recordLatency(String url, long latency) {
+        Health health = healthOf(url, true);
+        health.latency = health.latency < 0 ? latency : health.latency + SMOOTHING * (latency - health.latency);
+        health.sampled = now();
+    }
+
+    /**
+     * Records a failure of a source.
+     *
+     * @param url The url of the source.
+     */
+    public synchronized void recordFailure(String url) {
+        Health health = healthOf(url, true);
+        health.failures += 1;
+        health.sampled = now();
+    }
+
+    /**
+     * Computes the score of a source, the lower the better.
+     *
+     * @param url The url of the source.
+     * @return the expected latency of the source including the penalty of its recent failures, in milliseconds.
+     */
+    public synchronized double scoreOf(String url) {
+        Health health = healthOf(url, false);
+        if (health == null) {
+            return UNKNOWN_LATENCY;
+        }
+        return (health.latency < 0 ? UNKNOWN_LATENCY : health.latency) + health.failures * FAILURE_PENALTY;
+    }
+
+    /**
+     * Checks whether a source has been measured recently enough to be ranked without a probe.
+     *
+     * @param url The url of the source.
+     * @return True if the source has a sample younger than the half-life, false otherwise.
+     */
+    public synchronized boolean isFresh(String url) {
+        Health health = healthOf(url, false);
+        return health != null && now() - health.sampled < halfLife;
+    }
+
+    /**
+     * Sorts the sources of a package, the best one first. The sources with the same score keep
+     * their order.
+     *
+     * @param urls The urls of the package and its mirrors, in order of preference.
+     * @return A new list holding the same urls.
+     */
+    public synchronized List<String> rank(List<String> urls) {
+        final Map<String, Double> scores = new HashMap<>();
+        for (String url : urls) {
+            scores.put(url, scoreOf(url));
+        }
+        List<String> ranked = new ArrayList<>(urls);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Double.compare(scores.get(lhs), scores.get(rhs));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Ranks the sources of a package, probing the mirrors which have not been measured recently.
+     *
+     * @param api     The API used to reach the sources.
+     * @param apiKey  The API key provided by the Barracks platform.
+     * @param info    The {@link PackageInfo} of the package.
+     * @param timeout The maximum time spent probing, in milliseconds.
+     * @return The url of the package and the urls of its mirrors, best first.
+     */
+    public List<String> sourcesOf(UpdateDownloadApi api, String apiKey, PackageInfo info, long timeout) {
+        List<String> sources = new ArrayList<>();
+        sources.add(info.getUrl());
+        for (String mirror : info.getMirrors()) {
+            if (!sources.contains(mirror)) {
+                sources.add(mirror);
+            }
+        }
+        if (sources.size() == 1) {
+            return sources;
+        }
+        probe(api, apiKey, sources, timeout);
+        return rank(sources);
+    }
+
+    /**
+     * Measures the time to first byte of the sources which have no fresh sample, using a request
+     * for the first byte of the package. The sources are probed at the same time, a source which does
+     * not answer within the <code>timeout</code> counts as a failure.
+     *
+     * @param api     The API used to reach the sources.
+     * @param apiKey  The API key provided by the Barracks platform.
+     * @param urls    The urls of the package and its mirrors.
+     * @param timeout The maximum time spent probing, in milliseconds.
+     */
+    public void probe(UpdateDownloadApi api, String apiKey, List<String> urls, long timeout) {
+        List<String> stale = new ArrayList<>();
+        for (String url : urls) {
+            if (!isFresh(url) && !stale.contains(url)) {
+                stale.add(url);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(stale.size());
+        final List<Call<ResponseBody>> calls = new ArrayList<>();
+        // A source is only recorded once, by its probe or by the timeout
+        final Set<String> pending = Collections.synchronizedSet(new HashSet<>(stale));
+        for (final String url : stale) {
+            final Call<ResponseBody> call = api.downloadUpdate(url, apiKey, "bytes=0-0", null);
+            calls.add(call);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long start = System.nanoTime();
+                        Response<ResponseBody> response = call.execute();
+                        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        ResponseBody body = response.isSuccessful() ? response.body() : response.errorBody();
+                        if (body != null) {
+                            body.close();
+                        }
+                        if (pending.remove(url)) {
+                            if (response.isSuccessful()) {
+                                recordLatency(url, latency);
+                            } else {
+                                recordFailure(url);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (pending.remove(url)) {
+                            recordFailure(url);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }, "Barracks mirror probe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < stale.size(); i++) {
+            if (pending.remove(stale.get(i))) {
+                // Too slow to be picked
+                calls.get(i).cancel();
+                recordFailure(stale.get(i));
+            }
+        }
+    }
+
+    /**
+     * Get the health of a source, applying the decay of its failures.
+     *
+     * @param url    The url of the source.
+     * @param create Whether the source should be added to the table if needed.
+     * @return the health of the source, or null if it is unknown and <code>create</code> is false.
+     */
+    private Health healthOf(String url, boolean create) {
+        long now = now();
+        Health health = table.get(url);
+        if (health == null) {
+            if (!create) {
+                return null;
+            }
+            if (table.size() >= capacity) {
+                evict();
+            }
+            health = new Health(now);
+            table.put(url, health);
+        }
+        health.failures *= Math.pow(0.5, (double) (now - health.decayed) / halfLife);
+        health.decayed = now;
+        return health;
+    }
+
+    /**
+     * Forgets the source which has not been sampled for the longest time.
+     */
+    private void evict() {
+        String oldest = null;
+        long sampled = Long.MAX_VALUE;
+        for (Map.Entry<String, Health> entry : table.entrySet()) {
+            if (entry.getValue().sampled < sampled) {
+                sampled = entry.getValue().sampled;
+                oldest = entry.getKey();
+            }
+        }
+        table.remove(oldest);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static final class Health {
+        /**
+         * The average time to first byte in milliseconds, or -1 if the source never answered.
+         */
+        private double latency = -1;
+        /**
+         * The number of recent failures, decayed with the half-life.
+         */
+        private double failures = 0;
+        /**
+         * The time of the last sample.
+         */
+        private long sampled;
+        /**
+         * The time the decay has last been applied.
+         */
+        private long decayed;
+
+        private Health(long now) {
+            this.sampled = now;
+            this.decayed = now;
+        }
+    }
+}
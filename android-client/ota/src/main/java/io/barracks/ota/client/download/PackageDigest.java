@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility methods for computing and checking the MD5 hash of a package.
+ */
+public final class PackageDigest {
+    /**
+     * The algorithm used by the Barracks platform to sign the packages.
+     */
+    public static final String ALGORITHM = "MD5";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private PackageDigest() {
+
+    }
+
+    /**
+     * Creates a new digest for the packages.
+     *
+     * @return A new {@link MessageDigest}.
+     * @throws NoSuchAlgorithmException If the algorithm is not available.
+     */
+    public static MessageDigest create() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(ALGORITHM);
+    }
+
+    /**
+     * Feeds the first <code>length</code> bytes of a file to a digest.
+     *
+     * @param digest The digest to be updated.
+     * @param file   The file to read from.
+     * @param length The number of bytes to read, or a negative value to read the whole file.
+     * @throws IOException If the file can't be read or is shorter than <code>length</code>.
+     */
+    public static void update(MessageDigest digest, File file, long length) throws IOException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            long remaining = length < 0 ? Long.MAX_VALUE : length;
+            int read;
+            while (remaining > 0 && (read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+            if (length >= 0 && remaining != 0) {
+                throw new IOException("Expected " + length + " bytes in " + file.getPath());
+            }
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a digest to its lower case hexadecimal representation.
+     *
+     * @param digest The digest's bytes.
+     * @return The hexadecimal string.
+     */
+    public static String toHex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[digest[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Compares a digest to its expected hexadecimal representation.<br>
+     * The comparison takes the same time wherever the first difference is.
+     *
+     * @param digest   The digest's bytes.
+     * @param expected The expected hexadecimal string, case insensitive.
+     * @return True if both are the same, false otherwise.
+     */
+    public static boolean matches(byte[] digest, String expected) {
+        if (expected == null || expected.length() != digest.length * 2) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < digest.length; i++) {
+            int high = Character.digit(expected.charAt(i * 2), 16);
+            int low = Character.digit(expected.charAt(i * 2 + 1), 16);
+            diff |= (high | low) >> 31;
+            diff |= (digest[i] & 0xff) ^ ((high << 4) | low);
+        }
+        return diff == 0;
+    }
+}
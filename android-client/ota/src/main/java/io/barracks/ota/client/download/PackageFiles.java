@@ -0,0 +1,148 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class gathers the operations on the files of a download : preparing them, checking the space
+ * left, and copying a package to its destination or to a {@link PackageSink}.
+ */
+public final class PackageFiles {
+    private PackageFiles() {
+
+    }
+
+    /**
+     * Prepares the parent directory of a file, the file itself is left untouched.
+     *
+     * @param file The file to be written.
+     * @return True if the parent directory exists or has been created, false otherwise.
+     */
+    public static boolean setupParent(File file) {
+        // Check if the parent directory exists or can be created and is a directory
+        File parent = file.getAbsoluteFile().getParentFile();
+        return (parent.mkdirs() || parent.exists()) && parent.isDirectory();
+    }
+
+    /**
+     * Checks that the storage holding <code>file</code> can receive <code>length</code> bytes and
+     * still keep <code>headroom</code> bytes free, evicting stored packages if needed.
+     *
+     * @param file     The file about to be written.
+     * @param length   The number of bytes about to be written.
+     * @param headroom The number of bytes to be left free.
+     * @param store    The store of the packages.
+     * @throws InsufficientStorageException If the storage does not have enough space.
+     */
+    public static void admit(File file, long length, long headroom, PackageStore store) throws InsufficientStorageException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        while (directory != null && !directory.exists()) {
+            directory = directory.getParentFile();
+        }
+        if (directory == null) {
+            return;
+        }
+        long required = Math.max(length, 0) + headroom;
+        long available = directory.getUsableSpace();
+        if (available < required && store.free(required - available) > 0) {
+            available = directory.getUsableSpace();
+        }
+        if (available < required) {
+            throw new InsufficientStorageException(required, available);
+        }
+    }
+
+    /**
+     * Copies a package next to its <code>destination</code>, then renames the copy over it, so that
+     * the destination holds either the previous package or the new one.
+     *
+     * @param source      The package to be copied.
+     * @param destination The destination file.
+     * @throws IOException If the package can't be copied or renamed.
+     */
+    public static void replace(File source, File destination) throws IOException {
+        if (!setupParent(destination)) {
+            throw new IOException("Failed to setup " + destination.getPath());
+        }
+        File copy = new File(destination.getPath() + ".new");
+        try {
+            PackageStore.copy(source, copy);
+            // Some filesystems can't rename over an existing file
+            if (!copy.renameTo(destination) && !(destination.isFile() && destination.delete() && copy.renameTo(destination))) {
+                throw new IOException("Failed to move " + copy.getPath() + " to " + destination.getPath());
+            }
+        } finally {
+            delete(copy);
+        }
+    }
+
+    /**
+     * Writes a package to a sink, which is closed afterwards.
+     *
+     * @param source The package to be written.
+     * @param sink   The sink of the request.
+     * @throws IOException If the package can't be read or written.
+     */
+    public static void feed(File source, PackageSink sink) throws IOException {
+        InputStream is = new FileInputStream(source);
+        try {
+            sink.open(0);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                sink.write(buffer, 0, read);
+            }
+            sink.sync();
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deletes the partial file of an aborted download, along with its {@link DownloadJournal}.
+     *
+     * @param tmp The temporary file of the download.
+     */
+    public static void deletePartial(File tmp) {
+        DownloadJournal.delete(tmp);
+        delete(tmp);
+    }
+
+    /**
+     * Deletes a file, or deletes it when the process exits if it can't be deleted now.
+     *
+     * @param file The file to be deleted.
+     */
+    public static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.PatchInfo;
+import okhttp3.ResponseBody;
+
+/**
+ * This class rebuilds a package from a {@link PatchInfo patch} instead of downloading it in full :
+ * it looks for the package the patch applies to, receives the patch, then applies it with
+ * {@link DeltaPatch}.
+ */
+public final class PackagePatcher {
+    private static final int BUFFER_SIZE = 8192;
+
+    private PackagePatcher() {
+
+    }
+
+    /**
+     * Looks for the package a patch applies to.
+     *
+     * @param patch     The {@link PatchInfo} of the patch.
+     * @param installed The package installed on the device, can be null.
+     * @param store     The store of the packages.
+     * @return The installed package or a stored one if its hash is the expected one, null otherwise.
+     */
+    public static File findBase(PatchInfo patch, File installed, PackageStore store) {
+        if (patch.getUrl() == null || patch.getBaseMd5() == null) {
+            return null;
+        }
+        if (installed != null && installed.isFile()) {
+            try {
+                MessageDigest digest = PackageDigest.create();
+                PackageDigest.update(digest, installed, -1);
+                if (PackageDigest.matches(digest.digest(), patch.getBaseMd5())) {
+                    return installed;
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                e.printStackTrace();
+            }
+        }
+        return store.get(new PackageInfo.Builder().md5(patch.getBaseMd5()).build());
+    }
+
+    /**
+     * Writes the patch sent by the server to a file and checks its hash.
+     *
+     * @param body      The body of the response, it is closed afterwards.
+     * @param patch     The {@link PatchInfo} of the patch.
+     * @param patchFile The file the patch is written to.
+     * @param reporter  The reporter of the progress of the patch download.
+     * @throws IOException              If the patch can't be received or written.
+     * @throws GeneralSecurityException If the hash of the patch is not the expected one.
+     */
+    public static void receive(ResponseBody body, PatchInfo patch, File patchFile, ProgressReporter reporter) throws IOException, GeneralSecurityException {
+        MessageDigest digest = PackageDigest.create();
+        InputStream is = body.byteStream();
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(patchFile);
+            long total = 0;
+            int read;
+            byte buff[] = new byte[BUFFER_SIZE];
+            while ((read = is.read(buff)) != -1) {
+                os.write(buff, 0, read);
+                digest.update(buff, 0, read);
+                total += read;
+                reporter.update(total);
+            }
+            reporter.complete(total);
+        } finally {
+            body.close();
+            if (os != null) {
+                os.close();
+            }
+        }
+        byte[] patchDigest = digest.digest();
+        if (!PackageDigest.matches(patchDigest, patch.getMd5())) {
+            throw new DigestException("Wrong patch signature " + PackageDigest.toHex(patchDigest) + " - " + patch.getMd5());
+        }
+    }
+
+    /**
+     * Rebuilds a package from a patch, then syncs it.
+     *
+     * @param base      The package the patch applies to.
+     * @param patchFile The file of the patch.
+     * @param rebuilt   The file the new package is written to.
+     * @return The digest of the new package.
+     * @throws IOException              If a file can't be read or written, or if the patch is corrupted.
+     * @throws GeneralSecurityException If the package can't be hashed.
+     */
+    public static byte[] rebuild(File base, File patchFile, File rebuilt) throws IOException, GeneralSecurityException {
+        MessageDigest digest = PackageDigest.create();
+        InputStream is = new FileInputStream(patchFile);
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(rebuilt);
+            DeltaPatch.apply(base, is, os, digest);
+            os.flush();
+            os.getFD().sync();
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (os != null) {
+                os.close();
+            }
+        }
+        return digest.digest();
+    }
+}
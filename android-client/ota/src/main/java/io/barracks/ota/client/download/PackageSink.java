@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The destination the bytes of a package are written to while it is being downloaded.<br>
+ * A sink is {@link #open(long) opened} for each attempt, receives the bytes in order, and is
+ * {@link #close() closed} once the transfer is over, whatever its outcome. The package is only
+ * verified after the sink has been closed, a sink should not consider its content valid before
+ * the download succeeded.
+ *
+ * @see FileSink
+ * @see MemorySink
+ * @see TeeSink
+ */
+public interface PackageSink {
+    /**
+     * Prepares the sink for an attempt, keeping the first <code>offset</code> bytes received by a
+     * previous attempt when it can.
+     *
+     * @param offset The number of bytes already received and synced.
+     * @return The number of bytes kept, the download goes on from there. 0 if the package has to be
+     * received from its start.
+     * @throws IOException If the sink can't be opened.
+     */
+    long open(long offset) throws IOException;
+
+    /**
+     * Prepares the opened sink for a package of <code>length</code> bytes, when its size is known.
+     *
+     * @param length The size of the whole package, in bytes.
+     * @throws IOException If the sink can't hold the package.
+     */
+    void reserve(long length) throws IOException;
+
+    /**
+     * Writes the next bytes of the package.
+     *
+     * @param buffer The bytes received.
+     * @param offset The offset of the first byte in <code>buffer</code>.
+     * @param length The number of bytes to be written.
+     * @throws IOException If the bytes can't be written.
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Makes the bytes written so far durable, they are recorded as received once this method returns.
+     *
+     * @throws IOException If the bytes can't be synced.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Releases the resources of the current attempt, the bytes written are kept.
+     *
+     * @throws IOException If the sink can't be closed.
+     */
+    void close() throws IOException;
+
+    /**
+     * Drops the bytes written, when the package is corrupted or the download cancelled.
+     */
+    void discard();
+
+    /**
+     * Get the file holding the package.
+     *
+     * @return the file the package is written to, or null if it is not written to a file.
+     */
+    File getFile();
+}
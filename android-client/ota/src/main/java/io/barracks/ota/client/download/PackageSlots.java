@@ -0,0 +1,200 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class keeps two slots for the package of a destination, so that a new package never
+ * replaces the current one before it has been verified.<br>
+ * The new package is written to the {@link #getInactive() inactive} slot, then the slot is
+ * {@link #activate(File) activated} by atomically replacing a small pointer file next to the
+ * destination. The package of the {@link #getActive() active} slot is never written, it can be read
+ * while the next one is being downloaded. The slots keep the extension of the destination, so
+ * <code>update.zip</code> is stored as <code>update.a.zip</code> and <code>update.b.zip</code>.
+ */
+public class PackageSlots {
+    /**
+     * The suffix appended to the destination's name to locate the pointer to the active slot.
+     */
+    public static final String SUFFIX = ".slot";
+
+    private static final char SLOT_A = 'a';
+    private static final char SLOT_B = 'b';
+
+    private final File a;
+    private final File b;
+    private final File pointer;
+
+    /**
+     * Creates the {@link PackageSlots} of a destination.
+     *
+     * @param destination The final destination of the package.
+     */
+    public PackageSlots(File destination) {
+        this.a = slotOf(destination, SLOT_A);
+        this.b = slotOf(destination, SLOT_B);
+        this.pointer = new File(destination.getPath() + SUFFIX);
+    }
+
+    private static File slotOf(File destination, char slot) {
+        String name = destination.getName();
+        int dot = name.lastIndexOf('.');
+        String slotted = dot > 0 ? name.substring(0, dot) + "." + slot + name.substring(dot) : name + "." + slot;
+        return new File(destination.getParentFile(), slotted);
+    }
+
+    /**
+     * Get the pointer to the active slot, which identifies the slots of a destination.
+     *
+     * @return the file of the pointer.
+     */
+    public File getPointer() {
+        return pointer;
+    }
+
+    /**
+     * Get the package of the active slot.
+     *
+     * @return the file of the active slot, or null if no package has been activated.
+     */
+    public synchronized File getActive() {
+        File active = read();
+        return active != null && active.isFile() ? active : null;
+    }
+
+    /**
+     * Get the slot a new package is written to.
+     *
+     * @return the file of the slot which is not active.
+     */
+    public synchronized File getInactive() {
+        return a.equals(read()) ? b : a;
+    }
+
+    /**
+     * Creates a {@link PackageSink} writing a new package to the inactive slot.<br>
+     * The slot is picked when the sink is created, the sink refuses to be opened or discarded once
+     * its slot has been activated, so that the active package is never written.
+     *
+     * @return the sink of the inactive slot.
+     */
+    public PackageSink newSink() {
+        final File slot = getInactive();
+        return new FileSink(slot) {
+            @Override
+            public long open(long offset) throws IOException {
+                if (isActive(slot)) {
+                    throw new IOException(slot.getPath() + " is the active slot");
+                }
+                return super.open(offset);
+            }
+
+            @Override
+            public void discard() {
+                if (isActive(slot)) {
+                    // The package has been activated by another download
+                    return;
+                }
+                super.discard();
+            }
+        };
+    }
+
+    private synchronized boolean isActive(File slot) {
+        return slot.equals(read());
+    }
+
+    /**
+     * Makes a slot the active one, its package must have been verified and synced.<br>
+     * The pointer is written next to the destination, synced, then renamed over the previous one,
+     * so that the readers see either the previous package or the new one.
+     *
+     * @param slot The file of the slot.
+     * @throws IOException If the pointer can't be written.
+     */
+    public synchronized void activate(File slot) throws IOException {
+        char name;
+        if (a.equals(slot)) {
+            name = SLOT_A;
+        } else if (b.equals(slot)) {
+            name = SLOT_B;
+        } else {
+            throw new IllegalArgumentException(slot.getPath() + " is not a slot of " + pointer.getPath());
+        }
+        File tmp = new File(pointer.getPath() + ".new");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(name);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(pointer)) {
+            tmp.delete();
+            throw new IOException("Failed to activate " + slot.getPath());
+        }
+    }
+
+    /**
+     * Copies a verified package to the inactive slot, unless it has been written there, then
+     * activates the slot.
+     *
+     * @param verified The package, which hash has already been checked.
+     * @return the file of the activated slot.
+     * @throws IOException If the package can't be copied or the slot activated.
+     */
+    public File install(File verified) throws IOException {
+        File slot = getInactive();
+        if (!slot.equals(verified)) {
+            PackageFiles.replace(verified, slot);
+        }
+        activate(slot);
+        return slot;
+    }
+
+    /**
+     * Reads the pointer to the active slot.
+     *
+     * @return the file of the active slot, or null if there is no valid pointer.
+     */
+    private File read() {
+        if (!pointer.isFile()) {
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(pointer);
+            int name = is.read();
+            return name == SLOT_A ? a : name == SLOT_B ? b : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
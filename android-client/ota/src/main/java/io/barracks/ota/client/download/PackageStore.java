@@ -0,0 +1,390 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import io.barracks.ota.client.api.PackageInfo;
+
+/**
+ * This class keeps verified packages on the disk, addressed by their MD5 hash.<br>
+ * An index records the size, modification date and hash of each package, so that a package found in
+ * the store can be used without being hashed again. The least recently used packages are evicted
+ * when the total size of the store goes over its quota.<br>
+ * The uses of the packages are only persisted with the next change of the index, a package found
+ * in the store does not write anything to the disk.
+ */
+public class PackageStore {
+    /**
+     * The name of the index file, in the store's directory.
+     */
+    public static final String INDEX = "index";
+
+    private static final String SUFFIX = ".pkg";
+
+    private final File directory;
+    private final File index;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long quota;
+    private long size = 0;
+    private long clock = 0;
+
+    /**
+     * Creates a {@link PackageStore}, loading its index if it exists.
+     *
+     * @param directory The directory holding the packages.
+     * @param quota     The maximum total size of the packages, in bytes.
+     */
+    public PackageStore(File directory, long quota) {
+        this.directory = directory;
+        this.index = new File(directory, INDEX);
+        this.quota = quota;
+        load();
+    }
+
+    /**
+     * Define the maximum total size of the packages, evicting packages if needed.
+     *
+     * @param quota The maximum total size of the packages, in bytes, or 0 to disable the store.
+     */
+    public synchronized void setQuota(long quota) {
+        this.quota = quota;
+        if (evict(null)) {
+            save();
+        }
+    }
+
+    /**
+     * Looks for a package in the store.<br>
+     * The package is only returned if its size and modification date are the ones recorded when it
+     * was verified, otherwise it is removed from the store.
+     *
+     * @param info The {@link PackageInfo} of the package.
+     * @return The stored file, or null if the package is not in the store.
+     */
+    public synchronized File get(PackageInfo info) {
+        String key = keyOf(info);
+        Entry entry = key == null ? null : entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        File file = fileOf(key);
+        if (file.length() != entry.size || file.lastModified() != entry.modified || (info.getSize() != null && info.getSize() != entry.size)) {
+            remove(key);
+            save();
+            return null;
+        }
+        // Persisted with the next change of the index
+        entry.used = ++clock;
+        return file;
+    }
+
+    /**
+     * Copies a verified package to the store.<br>
+     * Nothing is stored if the package is bigger than the quota.
+     *
+     * @param info     The {@link PackageInfo} of the package.
+     * @param verified The package, which hash has already been checked.
+     * @return True if the package has been stored, false otherwise.
+     * @throws IOException If the package can't be copied.
+     */
+    public synchronized boolean put(PackageInfo info, File verified) throws IOException {
+        String key = keyOf(info);
+        long length = verified.length();
+        if (key == null || length > quota) {
+            return false;
+        }
+        if (entries.containsKey(key)) {
+            remove(key);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory.getPath());
+        }
+        File file = fileOf(key);
+        File tmp = new File(file.getPath() + ".new");
+        copy(verified, tmp);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to store " + file.getPath());
+        }
+        Entry entry = new Entry(file.length(), file.lastModified(), ++clock);
+        entries.put(key, entry);
+        size += entry.size;
+        evict(key);
+        save();
+        return true;
+    }
+
+    /**
+     * Removes the least recently used packages to give storage back to a download.
+     *
+     * @param bytes The number of bytes needed.
+     * @return The number of bytes freed, which may be less than requested if the store is emptied.
+     */
+    public synchronized long free(long bytes) {
+        long freed = 0;
+        while (freed < bytes) {
+            String oldest = null;
+            long used = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().used < used) {
+                    oldest = entry.getKey();
+                    used = entry.getValue().used;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            freed += entries.get(oldest).size;
+            remove(oldest);
+        }
+        if (freed > 0) {
+            save();
+        }
+        return freed;
+    }
+
+    /**
+     * Get the directory holding the packages.
+     *
+     * @return the directory holding the packages.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the total size of the stored packages.
+     *
+     * @return the total size of the stored packages, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Copies a file, then syncs the copy.<br>
+     * The bytes are transferred by the kernel between the two files, without going through the heap.
+     *
+     * @param source      The file to be copied.
+     * @param destination The copy.
+     * @throws IOException If the file can't be copied.
+     */
+    public static void copy(File source, File destination) throws IOException {
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        try {
+            is = new FileInputStream(source);
+            os = new FileOutputStream(destination);
+            FileChannel in = is.getChannel();
+            FileChannel out = os.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                // A single transfer may move less than requested
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("Failed to copy " + source.getPath() + " at " + position);
+                }
+                position += transferred;
+            }
+            os.getFD().sync();
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used packages until the store fits in its quota.
+     *
+     * @param keep The key of a package which must not be evicted, can be null.
+     * @return True if a package has been evicted, false otherwise.
+     */
+    private boolean evict(String keep) {
+        boolean evicted = false;
+        while (size > quota) {
+            String oldest = null;
+            long used = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!entry.getKey().equals(keep) && entry.getValue().used < used) {
+                    oldest = entry.getKey();
+                    used = entry.getValue().used;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            remove(oldest);
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+        File file = fileOf(key);
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Get the key of a package in the store.
+     *
+     * @param info The {@link PackageInfo} of the package.
+     * @return The lower case MD5 hash, or null if the package does not have a valid one.
+     */
+    private static String keyOf(PackageInfo info) {
+        String md5 = info.getMd5();
+        if (md5 == null || md5.length() != 32) {
+            return null;
+        }
+        for (int i = 0; i < md5.length(); i++) {
+            if (Character.digit(md5.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return md5.toLowerCase(Locale.US);
+    }
+
+    private File fileOf(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    private void load() {
+        if (!index.isFile()) {
+            return;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(index);
+            Properties properties = new Properties();
+            properties.load(is);
+            for (String key : properties.stringPropertyNames()) {
+                String[] values = properties.getProperty(key).split(",");
+                Entry entry = new Entry(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2]));
+                entries.put(key, entry);
+                size += entry.size;
+                clock = Math.max(clock, entry.used);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A broken index can't be trusted, start with an empty store
+            entries.clear();
+            size = 0;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (!fileOf(entry.getKey()).isFile()) {
+                size -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Persists the index.<br>
+     * The index is written to a side file which is then renamed, so that a crash never leaves a
+     * truncated index behind.
+     */
+    private void save() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            properties.setProperty(entry.getKey(), value.size + "," + value.modified + "," + value.used);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File side = new File(index.getPath() + ".new");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(side);
+            properties.store(fos, null);
+            fos.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!side.renameTo(index)) {
+            side.delete();
+        }
+    }
+
+    private static final class Entry {
+        /**
+         * The size of the package, in bytes.
+         */
+        private final long size;
+        /**
+         * The modification date of the package when it was stored.
+         */
+        private final long modified;
+        /**
+         * The logical time of the last use of the package.
+         */
+        private long used;
+
+        private Entry(long size, long modified, long used) {
+            this.size = size;
+            this.modified = modified;
+            this.used = used;
+        }
+    }
+}
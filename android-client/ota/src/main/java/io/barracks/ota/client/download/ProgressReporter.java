@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class coalesces the progress of a download before it is reported to the application.<br>
+ * A progress is only reported when the percentage has changed, or when at least a minimum number of
+ * bytes has been received, and never more often than the configured interval. The completion of the
+ * download is always reported.
+ */
+public class ProgressReporter {
+    /**
+     * The default minimum interval between two reports, in milliseconds (10 Hz).
+     */
+    public static final long DEFAULT_INTERVAL = 100;
+
+    private final long size;
+    private final long minBytes;
+    private final long minInterval;
+    private final Listener listener;
+
+    private int lastPercent = -1;
+    private long lastBytes = 0;
+    private long lastReport = 0;
+
+    /**
+     * Creates a {@link ProgressReporter}.
+     *
+     * @param size        The size of the package, in bytes.
+     * @param minBytes    The number of bytes which triggers a report even if the percentage did not
+     *                    change, or 0 to only report percentage changes.
+     * @param minInterval The minimum interval between two reports, in milliseconds.
+     * @param listener    The listener to report to.
+     */
+    public ProgressReporter(long size, long minBytes, long minInterval, Listener listener) {
+        this.size = size;
+        this.minBytes = minBytes;
+        this.minInterval = TimeUnit.MILLISECONDS.toNanos(minInterval);
+        this.listener = listener;
+    }
+
+    /**
+     * Computes the percentage of a package which has been downloaded.
+     *
+     * @param bytes The number of bytes downloaded.
+     * @param size  The size of the package.
+     * @return The percentage, between 0 and 100.
+     */
+    public static int percent(long bytes, long size) {
+        if (size <= 0) {
+            return 0;
+        }
+        return (int) Math.min(100, bytes * 100 / size);
+    }
+
+    /**
+     * Updates the number of bytes downloaded, reporting it if needed.
+     *
+     * @param bytes The number of bytes downloaded so far.
+     */
+    public void update(long bytes) {
+        int percent = percent(bytes, size);
+        if (percent == lastPercent && (minBytes <= 0 || bytes - lastBytes < minBytes)) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (lastPercent >= 0 && now - lastReport < minInterval) {
+            return;
+        }
+        report(bytes, percent, now);
+    }
+
+    /**
+     * Reports the completion of the download, unless it has already been reported.
+     *
+     * @param bytes The number of bytes downloaded.
+     */
+    public void complete(long bytes) {
+        if (lastPercent != 100 || lastBytes != bytes) {
+            report(bytes, 100, System.nanoTime());
+        }
+    }
+
+    private void report(long bytes, int percent, long now) {
+        lastPercent = percent;
+        lastBytes = bytes;
+        lastReport = now;
+        listener.onProgress(bytes, percent);
+    }
+
+    /**
+     * The listener receiving the coalesced progress.
+     */
+    public interface Listener {
+        /**
+         * This method is called when the progress has to be reported.
+         *
+         * @param bytes   The number of bytes downloaded.
+         * @param percent The percentage of the package downloaded.
+         */
+        void onProgress(long bytes, int percent);
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.UpdateDownloadApi;
+import io.barracks.ota.client.http.HttpStatusException;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * This class downloads a package over several connections at once.<br>
+ * The package is split in byte ranges which are fetched concurrently and written at their offset in a
+ * temporary file preallocated to the size of the package.<br>
+ * The engine probes the server with a first range, goes on with two connections and opens a new
+ * one as long as doing so increases the aggregated throughput, up to the configured maximum.<br>
+ * The ranges are fetched by a pool of workers shared by all the downloads, which bounds the number
+ * of connections opened by the process whatever the number of downloads in progress.
+ */
+public class SegmentedDownloader {
+    /**
+     * The smallest range requested at once.
+     */
+    public static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    /**
+     * The maximum number of ranges fetched at once by all the downloads of the process, besides the
+     * first range of each download which is fetched on its own thread.
+     */
+    public static final int MAX_WORKERS = 8;
+
+    /**
+     * The number of ranges for each allowed connection, in order to balance the load between fast
+     * and slow connections.
+     */
+    private static final int SEGMENTS_PER_CONNECTION = 4;
+    /**
+     * The delay between two progress notifications.
+     */
+    private static final long PROGRESS_INTERVAL = 250;
+    /**
+     * The delay between two evaluations of the aggregated throughput.
+     */
+    private static final long THROUGHPUT_WINDOW = 1000;
+    /**
+     * The minimal throughput increase for opening another connection.
+     */
+    private static final double THROUGHPUT_GAIN = 1.1d;
+    /**
+     * The number of failed ranges tolerated before giving up.
+     */
+    private static final int MAX_FAILURES = 3;
+    /**
+     * The delay after which an idle worker of the shared pool is stopped, in milliseconds.
+     */
+    private static final long WORKER_KEEP_ALIVE = 30000;
+
+    private static final ExecutorService sharedWorkers = createWorkers();
+
+    /**
+     * The API used to request the ranges.
+     */
+    private final UpdateDownloadApi api;
+    /**
+     * The API key provided by the Barracks platform.
+     */
+    private final String apiKey;
+    /**
+     * The maximum number of concurrent connections.
+     */
+    private final int maxConnections;
+    /**
+     * The pool running the connections.
+     */
+    private final ExecutorService workers;
+
+    private final Object monitor = new Object();
+    private final LinkedList<long[]> pending = new LinkedList<>();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    /**
+     * The calls in progress, aborted by {@link #cancel()}.
+     */
+    private final Set<Call<ResponseBody>> calls = new HashSet<>();
+    /**
+     * The connections submitted to the pool, which may still be waiting for a worker.
+     */
+    private final List<Future<?>> connections = new ArrayList<>();
+    private int running;
+    private boolean cancelled;
+    private IOException error;
+
+    /**
+     * Creates a {@link SegmentedDownloader}.
+     *
+     * @param api            The API used to request the ranges.
+     * @param apiKey         The API key provided by the Barracks platform.
+     * @param maxConnections The maximum number of concurrent connections.
+     */
+    public SegmentedDownloader(UpdateDownloadApi api, String apiKey, int maxConnections) {
+        this(api, apiKey, maxConnections, sharedWorkers);
+    }
+
+    /**
+     * Creates a {@link SegmentedDownloader} running its connections on a given pool.
+     *
+     * @param api            The API used to request the ranges.
+     * @param apiKey         The API key provided by the Barracks platform.
+     * @param maxConnections The maximum number of concurrent connections.
+     * @param workers        The pool running the connections, it is not shut down by the downloader.
+     */
+    public SegmentedDownloader(UpdateDownloadApi api, String apiKey, int maxConnections, ExecutorService workers) {
+        this.api = api;
+        this.apiKey = apiKey;
+        this.maxConnections = maxConnections;
+        this.workers = workers;
+    }
+
+    private static ExecutorService createWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new SegmentThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Checks whether a package is worth being downloaded with several connections.
+     *
+     * @param info           The {@link PackageInfo} of the package.
+     * @param maxConnections The maximum number of concurrent connections.
+     * @return True if the package is big enough to be split, false otherwise.
+     */
+    public static boolean isSegmentable(PackageInfo info, int maxConnections) {
+        return maxConnections > 1 && info.getSize() != null && info.getSize() >= 2 * MIN_SEGMENT_SIZE;
+    }
+
+    /**
+     * Downloads a package to a temporary file.<br>
+     * The first range is requested on the calling thread, if the server doesn't reply with the
+     * corresponding partial content the download is not started and the caller should fall back to a
+     * single stream.
+     *
+     * @param info     The {@link PackageInfo} of the package.
+     * @param tmp      The temporary file to write to, it is resized to the size of the package.
+     * @param listener The listener notified of the aggregated progress, in bytes.
+     * @return True if the package has been downloaded, false if the server does not support ranges.
+     * @throws IOException If the download fails.
+     */
+    public boolean download(PackageInfo info, File tmp, ProgressListener listener) throws IOException {
+        return download(info, info.getUrl(), tmp, listener);
+    }
+
+    /**
+     * Downloads a package to a temporary file from one of its sources.
+     *
+     * @param info     The {@link PackageInfo} of the package.
+     * @param url      The url of the package or of one of its mirrors.
+     * @param tmp      The temporary file to write to, it is resized to the size of the package.
+     * @param listener The listener notified of the aggregated progress, in bytes.
+     * @return True if the package has been downloaded, false if the server does not support ranges.
+     * @throws IOException If the download fails.
+     * @see #download(PackageInfo, File, ProgressListener)
+     */
+    public boolean download(PackageInfo info, String url, File tmp, ProgressListener listener) throws IOException {
+        final long size = info.getSize();
+        long segmentSize = Math.max(MIN_SEGMENT_SIZE, size / (maxConnections * SEGMENTS_PER_CONNECTION));
+        RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+
+            // Probe the server with the first range
+            long start = SystemClock.elapsedRealtime();
+            Call<ResponseBody> call = api.downloadUpdate(url, apiKey, range(0, segmentSize - 1), null);
+            register(call);
+            try {
+                Response<ResponseBody> response = call.execute();
+                if (!isRange(response, 0, segmentSize - 1, size)) {
+                    ResponseBody body = response.isSuccessful() ? response.body() : response.errorBody();
+                    if (body != null) {
+                        body.close();
+                    }
+                    return false;
+                }
+                FileSink.allocate(file, tmp, size);
+                copy(response.body(), channel, new long[]{0, segmentSize - 1});
+            } finally {
+                unregister(call);
+            }
+            for (long offset = segmentSize; offset < size; offset += segmentSize) {
+                pending.add(new long[]{offset, Math.min(offset + segmentSize, size) - 1});
+            }
+            listener.onProgress(downloaded.get());
+            double throughput = (double) segmentSize / Math.max(1, SystemClock.elapsedRealtime() - start);
+
+            // Fetch the remaining ranges with two connections, then open new ones while it pays off
+            long lastWindow = SystemClock.elapsedRealtime();
+            long lastDownloaded = downloaded.get();
+            boolean growing = true;
+            synchronized (monitor) {
+                for (int i = 0; i < 2 && !pending.isEmpty(); i++) {
+                    connect(url, channel, size);
+                }
+                while (error == null && (running > 0 || !pending.isEmpty())) {
+                    monitor.wait(PROGRESS_INTERVAL);
+                    listener.onProgress(downloaded.get());
+                    long now = SystemClock.elapsedRealtime();
+                    if (growing && now - lastWindow >= THROUGHPUT_WINDOW) {
+                        // Only keep on opening connections if the last one increased the throughput
+                        double current = (double) (downloaded.get() - lastDownloaded) / (now - lastWindow);
+                        growing = current >= throughput * THROUGHPUT_GAIN;
+                        if (growing && running < maxConnections && pending.size() > running) {
+                            connect(url, channel, size);
+                        }
+                        throughput = current;
+                        lastWindow = now;
+                        lastDownloaded = downloaded.get();
+                    }
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+            if (downloaded.get() != size) {
+                throw new IOException("Downloaded " + downloaded.get() + " bytes out of " + size);
+            }
+            channel.force(false);
+            listener.onProgress(downloaded.get());
+            return true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while downloading " + url);
+        } finally {
+            release();
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Aborts the download, the calls in progress are cancelled and {@link #download(PackageInfo, File, ProgressListener)}
+     * throws an {@link InterruptedIOException}.<br>
+     * This method can be called from any thread.
+     */
+    public void cancel() {
+        synchronized (monitor) {
+            if (error == null) {
+                error = new InterruptedIOException("Download cancelled");
+            }
+            abort();
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Opens another connection, it starts as soon as a worker of the pool is available.<br>
+     * Must be called while holding the monitor.
+     */
+    private void connect(String url, FileChannel channel, long size) {
+        connections.add(workers.submit(new SegmentWorker(url, channel, size)));
+        running++;
+    }
+
+    /**
+     * Gives the workers back to the pool once the download is over, the connections still waiting
+     * are withdrawn and the calls in progress cancelled.
+     */
+    private void release() {
+        synchronized (monitor) {
+            abort();
+            for (Future<?> connection : connections) {
+                connection.cancel(false);
+            }
+            connections.clear();
+        }
+    }
+
+    /**
+     * Cancels the calls in progress and refuses the next ones.<br>
+     * Must be called while holding the monitor.
+     */
+    private void abort() {
+        cancelled = true;
+        for (Call<ResponseBody> call : calls) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Records a call so that it can be cancelled.
+     *
+     * @param call The call about to be executed.
+     * @throws InterruptedIOException If the download has been cancelled.
+     */
+    private void register(Call<ResponseBody> call) throws InterruptedIOException {
+        synchronized (monitor) {
+            if (cancelled) {
+                throw new InterruptedIOException("Download cancelled");
+            }
+            calls.add(call);
+        }
+    }
+
+    private void unregister(Call<ResponseBody> call) {
+        synchronized (monitor) {
+            calls.remove(call);
+        }
+    }
+
+    private static String range(long first, long last) {
+        return "bytes=" + first + "-" + last;
+    }
+
+    /**
+     * Checks whether a response holds the requested range.
+     *
+     * @param response The response received from the server.
+     * @param first    The first byte requested.
+     * @param last     The last byte requested.
+     * @param size     The total size of the package.
+     * @return True if the response is the expected partial content, false otherwise.
+     */
+    private static boolean isRange(Response<ResponseBody> response, long first, long last, long size) {
+        return response.code() == 206
+                && ("bytes " + first + "-" + last + "/" + size).equals(response.headers().get("Content-Range"));
+    }
+
+    /**
+     * Writes the body of a response at its offset in the temporary file.<br>
+     * The start of the <code>segment</code> is moved forward as bytes are written, so that it only
+     * describes the missing part of the range if the transfer fails.
+     *
+     * @param body    The body of the partial content.
+     * @param channel The channel of the temporary file.
+     * @param segment The first and last bytes of the range.
+     * @throws IOException If the body can't be read or written.
+     */
+    private void copy(ResponseBody body, FileChannel channel, long[] segment) throws IOException {
+        InputStream is = body.byteStream();
+        try {
+            byte[] buff = new byte[16 * 1024];
+            ByteBuffer buffer = ByteBuffer.wrap(buff);
+            int read;
+            while ((read = is.read(buff)) != -1) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    segment[0] += channel.write(buffer, segment[0]);
+                }
+                downloaded.addAndGet(read);
+            }
+        } finally {
+            body.close();
+        }
+        if (segment[0] != segment[1] + 1) {
+            throw new IOException("Truncated range, " + (segment[1] + 1 - segment[0]) + " bytes missing");
+        }
+    }
+
+    /**
+     * The listener notified of the aggregated progress of the download.
+     */
+    public interface ProgressListener {
+        /**
+         * This method is called periodically on the thread which started the download.
+         *
+         * @param downloaded The number of bytes downloaded so far.
+         */
+        void onProgress(long downloaded);
+    }
+
+    /**
+     * A connection fetching ranges until none are left.
+     */
+    private final class SegmentWorker implements Runnable {
+        private final String url;
+        private final FileChannel channel;
+        private final long size;
+
+        private SegmentWorker(String url, FileChannel channel, long size) {
+            this.url = url;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long[] segment;
+                while ((segment = next()) != null) {
+                    Call<ResponseBody> call = api.downloadUpdate(url, apiKey, range(segment[0], segment[1]), null);
+                    register(call);
+                    try {
+                        Response<ResponseBody> response = call.execute();
+                        if (!isRange(response, segment[0], segment[1], size)) {
+                            ResponseBody body = response.isSuccessful() ? response.body() : response.errorBody();
+                            if (body != null) {
+                                body.close();
+                            }
+                            String message = "Unexpected response for " + range(segment[0], segment[1]) + " : " + response.code() + " " + response.message();
+                            if (!response.isSuccessful()) {
+                                throw new HttpStatusException(message, response.code(), HttpStatusException.parseRetryAfter(response.headers().get("Retry-After")));
+                            }
+                            throw new IOException(message);
+                        }
+                        copy(response.body(), channel, segment);
+                    } catch (IOException e) {
+                        if (call.isCanceled() || failures.incrementAndGet() > MAX_FAILURES) {
+                            throw e;
+                        }
+                        // Give the missing part of the range back to the queue
+                        synchronized (monitor) {
+                            pending.addFirst(segment);
+                        }
+                    } finally {
+                        unregister(call);
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (monitor) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            } finally {
+                synchronized (monitor) {
+                    running--;
+                    monitor.notifyAll();
+                }
+            }
+        }
+
+        private long[] next() {
+            synchronized (monitor) {
+                monitor.notifyAll();
+                return error == null ? pending.poll() : null;
+            }
+        }
+    }
+
+    private static final class SegmentThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, SegmentedDownloader.class.getSimpleName() + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link PackageSink} which writes the package to another sink and feeds the same bytes to
+ * downstream stages, such as a hash, a zip inspector or a decryption stream, in the same pass.<br>
+ * Each stage receives every byte of the package once and in order. When a download is resumed, the
+ * bytes kept by the sink which the stages have not seen yet are read back from its file. The stages
+ * can't take back the bytes they have seen, a download which starts over before them fails. The
+ * stages are flushed when the sink is closed, they are owned by the caller and never closed.
+ */
+public class TeeSink implements PackageSink {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PackageSink sink;
+    private final OutputStream[] stages;
+    /**
+     * The number of bytes fed to the stages.
+     */
+    private long fed = 0;
+
+    /**
+     * Creates a {@link TeeSink}.
+     *
+     * @param sink   The sink the package is written to.
+     * @param stages The streams fed with the bytes of the package.
+     */
+    public TeeSink(PackageSink sink, OutputStream... stages) {
+        this.sink = sink;
+        this.stages = stages;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IOException If the sink keeps fewer bytes than the stages have seen, the bytes received
+     *                     again may differ from them.
+     */
+    @Override
+    public long open(long offset) throws IOException {
+        if (offset < fed) {
+            // Fails before the sink drops the bytes past the offset
+            throw new IOException("The stages have seen " + fed + " bytes, the package can't start over at " + offset);
+        }
+        long kept = sink.open(offset);
+        if (kept < fed) {
+            throw new IOException("The stages have seen " + fed + " bytes, the package can't start over at " + kept);
+        }
+        if (kept > fed) {
+            catchUp(kept);
+        }
+        return kept;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reserve(long length) throws IOException {
+        sink.reserve(length);
+    }
+
+    /**
+     * Feeds the stages with the bytes kept by the sink which they have not seen yet.
+     */
+    private void catchUp(long kept) throws IOException {
+        File file = sink.getFile();
+        if (file == null) {
+            throw new IOException("Kept bytes can't be read back");
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            if (is.skip(fed) != fed) {
+                throw new IOException("Failed to skip " + fed + " bytes of " + file.getPath());
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (fed < kept) {
+                int read = is.read(buffer, 0, (int) Math.min(buffer.length, kept - fed));
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + file.getPath());
+                }
+                feed(buffer, 0, read);
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        sink.write(buffer, offset, length);
+        feed(buffer, offset, length);
+    }
+
+    private void feed(byte[] buffer, int offset, int length) throws IOException {
+        for (OutputStream stage : stages) {
+            stage.write(buffer, offset, length);
+        }
+        fed += length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws IOException {
+        sink.sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (OutputStream stage : stages) {
+                stage.flush();
+            }
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void discard() {
+        sink.discard();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getFile() {
+        return sink.getFile();
+    }
+}
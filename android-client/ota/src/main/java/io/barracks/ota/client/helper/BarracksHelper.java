@@ -16,7 +16,15 @@
 
 package io.barracks.ota.client.helper;
 
+import android.content.Context;
+
+import java.util.concurrent.Future;
+
 import io.barracks.ota.client.Defaults;
+import io.barracks.ota.client.PackageDownloadService;
+import io.barracks.ota.client.dispatch.JobJournal;
+import io.barracks.ota.client.http.HttpConfiguration;
+import io.barracks.ota.client.http.HttpEngine;
 
 /**
  * Convenient access to the various helpers.
@@ -50,6 +58,80 @@ public class BarracksHelper {
     public BarracksHelper(String apiKey, String baseUrl) {
         this.apiKey = apiKey;
         this.baseUrl = baseUrl;
+        if (apiKey != null) {
+            // The jobs left over by a previous process are replayed with this key
+            JobJournal.addApiKey(apiKey);
+        }
+    }
+
+    /**
+     * Define the settings of the HTTP stack shared by the update checks and the package downloads.<br>
+     * The connections, resolved host names and TLS sessions are kept for the whole process, this
+     * method should be called before the first request, when the application is created.<br>
+     * The {@link io.barracks.ota.client.http.RetryPolicy retry policy} of the configuration decides
+     * which failures are retried, the SDK does not retry by default. Its
+     * {@link io.barracks.ota.client.http.HedgingPolicy hedging policy} decides when a slow update
+     * check is sent a second time, the hedges sent and won are counted by the
+     * {@link HttpEngine#getHedger() hedger} of the engine.<br>
+     * The checks of a batch are sent as asynchronous calls, the number of calls in progress and of
+     * threads running them is bounded by the configuration, however large the batch is.
+     *
+     * @param configuration The settings, or null to restore the default ones.
+     */
+    public static void setHttpConfiguration(HttpConfiguration configuration) {
+        HttpEngine.configure(configuration);
+    }
+
+    /**
+     * Define how many packages may be downloaded at once.<br>
+     * Defaults to {@link PackageDownloadService#DEFAULT_MAX_CONCURRENT} downloads, and
+     * {@link PackageDownloadService#DEFAULT_MAX_PER_HOST} for the same host.
+     *
+     * @param maxConcurrent The maximum number of downloads running at once.
+     * @param maxPerHost    The maximum number of downloads running at once from the same host.
+     */
+    public static void setDownloadConcurrency(int maxConcurrent, int maxPerHost) {
+        PackageDownloadService.setConcurrency(maxConcurrent, maxPerHost);
+    }
+
+    /**
+     * Define how much disk space is used to keep the downloaded packages.<br>
+     * A package which is still kept is not downloaded again, but each package kept is written to
+     * the storage a second time. Defaults to {@link Defaults#DEFAULT_PACKAGE_STORE_QUOTA}, which
+     * disables the store.
+     *
+     * @param quota The maximum size of the packages, in bytes, or 0 to disable the store.
+     */
+    public static void setPackageStoreQuota(long quota) {
+        PackageDownloadService.setStoreQuota(quota);
+    }
+
+    /**
+     * Define how much space is left free on the storage by a package download.<br>
+     * A download which would leave less space is refused before it starts, with an
+     * {@link io.barracks.ota.client.download.InsufficientStorageException InsufficientStorageException},
+     * once the kept packages have been evicted. Defaults to {@link Defaults#DEFAULT_STORAGE_HEADROOM}.
+     *
+     * @param headroom The space left free, in bytes.
+     */
+    public static void setStorageHeadroom(long headroom) {
+        PackageDownloadService.setStorageHeadroom(headroom);
+    }
+
+    /**
+     * Starts again the update checks and package downloads which were not over when the previous
+     * process of the application has been killed.<br>
+     * Their callbacks did not survive the process, the results are broadcast. This method should be
+     * called when the application is created, otherwise the jobs are replayed when the first request
+     * starts a service. The API keys are not kept with the jobs, the helpers using them have to be
+     * created before.
+     *
+     * @param context The context of the application.
+     * @return The number of jobs started again, available once the journal has been read.
+     * @see JobJournal
+     */
+    public static Future<Integer> replayJobs(Context context) {
+        return JobJournal.getInstance(context).replay(context);
     }
 
     /**
@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.helper;
+
+import io.barracks.ota.client.api.UpdateDetails;
+
+/**
+ * A {@link PackageDownloadCallback} which is also told when a download is cancelled or paused.<br>
+ * A plain {@link PackageDownloadCallback} receives a {@link java.util.concurrent.CancellationException}
+ * through {@link #onDownloadFailure(UpdateDetails, Throwable)} when its download is cancelled, and
+ * is not told about pauses.
+ *
+ * @see PackageDownloadHelper#cancelDownload(long)
+ * @see PackageDownloadHelper#pauseDownload(long)
+ */
+public interface PackageDownloadControlCallback extends PackageDownloadCallback {
+    /**
+     * This method is called when the download has been cancelled.
+     *
+     * @param details The details received from the Barracks platform.
+     */
+    void onDownloadCancelled(UpdateDetails details);
+
+    /**
+     * This method is called when the download has been paused, it goes on once resumed.
+     *
+     * @param details    The details received from the Barracks platform.
+     * @param downloaded The number of bytes downloaded so far.
+     */
+    void onDownloadPaused(UpdateDetails details, long downloaded);
+}
@@ -19,11 +19,20 @@ package io.barracks.ota.client.helper;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
 import io.barracks.ota.client.PackageDownloadService;
-import io.barracks.ota.client.UpdateCheckService;
 import io.barracks.ota.client.api.UpdateDetails;
+import io.barracks.ota.client.dispatch.CallbackBus;
+import io.barracks.ota.client.dispatch.JobJournal;
+import io.barracks.ota.client.download.PackageSink;
+import io.barracks.ota.client.download.ProgressReporter;
+import io.barracks.ota.client.http.Deadline;
 
 /**
  * A helper which makes it easier to use the {@link PackageDownloadService}.
@@ -31,12 +40,31 @@ import io.barracks.ota.client.api.UpdateDetails;
  * Use {@link #bind(Context, PackageDownloadCallback)} before starting a download,
  * and {@link #unbind(Context)} when you are done using the helper.
  * </p>
+ * <p>
+ * Each download is given a unique identifier, and its progress and result are routed to the
+ * callback it was requested with, so that a single helper can track many downloads at the same time.
+ * </p>
  */
 public class PackageDownloadHelper extends BroadcastReceiver {
     private static final String TAG = PackageDownloadHelper.class.getSimpleName();
     private final String apiKey;
     private Context context;
     private PackageDownloadCallback callback;
+    private Handler handler;
+    /**
+     * The downloads in progress when the results are received through broadcasts.
+     */
+    private final ConcurrentHashMap<Long, PackageDownloadCallback> requests = new ConcurrentHashMap<>();
+    private boolean broadcast = false;
+    private int maxConnections = 1;
+    private boolean paranoid = false;
+    private long progressInterval = ProgressReporter.DEFAULT_INTERVAL;
+    private long progressBytes = 0;
+    private int priority = 0;
+    private String basePackage = null;
+    private boolean direct = false;
+    private boolean dualSlot = false;
+    private long timeout = 0;
 
     /**
      * Helper's contstructor.
@@ -45,6 +73,111 @@ public class PackageDownloadHelper extends BroadcastReceiver {
      */
     public PackageDownloadHelper(String apiKey) {
         this.apiKey = apiKey;
+        if (apiKey != null) {
+            // The jobs left over by a previous process are replayed with this key
+            JobJournal.addApiKey(apiKey);
+        }
+    }
+
+    /**
+     * Define the maximum number of connections used to download a package.<br>
+     * Large packages are split in ranges which are downloaded concurrently, as long as the server
+     * supports ranges. Defaults to 1, a single stream.
+     *
+     * @param maxConnections The maximum number of connections.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Define whether a downloaded package is read again to check its integrity.<br>
+     * By default, the hash is computed while the package is being downloaded.
+     *
+     * @param paranoid True to read the package again once it has been downloaded.
+     */
+    public void setParanoid(boolean paranoid) {
+        this.paranoid = paranoid;
+    }
+
+    /**
+     * Define how often the progress of a download is notified.<br>
+     * The progress is notified when the percentage changes, or when <code>bytes</code> have been
+     * received since the last notification, but never more often than every <code>interval</code>.
+     * The completion of the download is always notified.
+     *
+     * @param interval The minimum interval between two notifications, in milliseconds.
+     * @param bytes    The number of bytes which triggers a notification, or 0 to only notify
+     *                 percentage changes.
+     */
+    public void setProgressRate(long interval, long bytes) {
+        this.progressInterval = interval;
+        this.progressBytes = bytes;
+    }
+
+    /**
+     * Define the priority of the downloads requested by this helper.<br>
+     * When more downloads are requested than allowed to run at once, the ones with the highest
+     * priority are started first. Defaults to 0.
+     *
+     * @param priority The priority of the downloads.
+     * @see BarracksHelper#setDownloadConcurrency(int, int)
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Define the package installed on the device.<br>
+     * When an update advertises a patch for this package, only the patch is downloaded and the new
+     * package is rebuilt locally. The packages kept by the service are used as well.
+     *
+     * @param path The path of the installed package, or null if it is not available.
+     */
+    public void setBasePackage(String path) {
+        this.basePackage = path;
+    }
+
+    /**
+     * Define whether the packages are written directly to their final destination.<br>
+     * The final file is then resumed like the temporary one, and each byte is written to the
+     * storage once instead of being moved or copied when the download is over. Defaults to false.<br>
+     * Without {@link #setDualSlot(boolean) dual slots}, the previous package is deleted when a new
+     * download starts, and a failed download leaves no package at the final destination. Use dual
+     * slots to keep the previous package until the new one has been verified.
+     *
+     * @param direct True to write the packages directly to their final destination.
+     */
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Define whether the packages are kept in two slots next to their final destination.<br>
+     * A new package is written to the inactive slot and only activated once verified, the previous
+     * package stays readable in the meantime, for instance by an installation in progress. The path
+     * reported on success is the one of the activated slot. Defaults to false.
+     *
+     * @param dualSlot True to keep the packages in two slots.
+     * @see io.barracks.ota.client.download.PackageSlots
+     */
+    public void setDualSlot(boolean dualSlot) {
+        this.dualSlot = dualSlot;
+    }
+
+    /**
+     * Define the time a download may take, including the time it waits to be started, every attempt
+     * and the verification of the package. A download which is not over when its deadline passes
+     * fails with a {@link io.barracks.ota.client.http.DeadlineExceededException}, the bytes received
+     * are kept for the next request. Defaults to 0, no deadline.
+     *
+     * @param timeout The time a download may take, in milliseconds, or 0 for no deadline.
+     */
+    public void setDeadline(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative : " + timeout);
+        }
+        this.timeout = timeout;
     }
 
     /**
@@ -54,13 +187,28 @@ public class PackageDownloadHelper extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         switch (intent.getAction()) {
             case PackageDownloadService.ACTION_DOWNLOAD_PACKAGE:
-                if (callback.hashCode() == intent.getIntExtra(UpdateCheckService.EXTRA_CALLBACK, 0)) {
+                long id = intent.getLongExtra(PackageDownloadService.EXTRA_REQUEST_ID, 0);
+                PackageDownloadCallback callback = requests.get(id);
+                if (callback != null) {
                     if (intent.hasCategory(PackageDownloadService.DOWNLOAD_PROGRESS)) {
                         callback.onDownloadProgress(intent.<UpdateDetails>getParcelableExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS), intent.getIntExtra(PackageDownloadService.EXTRA_PROGRESS, 0));
                     } else if (intent.hasCategory(PackageDownloadService.DOWNLOAD_SUCCESS)) {
+                        requests.remove(id);
                         callback.onDownloadSuccess(intent.<UpdateDetails>getParcelableExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS), intent.getStringExtra(PackageDownloadService.EXTRA_FINAL_DEST));
                     } else if (intent.hasCategory(PackageDownloadService.DOWNLOAD_ERROR)) {
+                        requests.remove(id);
                         callback.onDownloadFailure(intent.<UpdateDetails>getParcelableExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS), (Throwable) intent.getSerializableExtra(PackageDownloadService.EXTRA_EXCEPTION));
+                    } else if (intent.hasCategory(PackageDownloadService.DOWNLOAD_CANCELLED)) {
+                        requests.remove(id);
+                        if (callback instanceof PackageDownloadControlCallback) {
+                            ((PackageDownloadControlCallback) callback).onDownloadCancelled(intent.<UpdateDetails>getParcelableExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS));
+                        } else {
+                            callback.onDownloadFailure(intent.<UpdateDetails>getParcelableExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS), new CancellationException("Download cancelled"));
+                        }
+                    } else if (intent.hasCategory(PackageDownloadService.DOWNLOAD_PAUSED)) {
+                        if (callback instanceof PackageDownloadControlCallback) {
+                            ((PackageDownloadControlCallback) callback).onDownloadPaused(intent.<UpdateDetails>getParcelableExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS), intent.getLongExtra(PackageDownloadService.EXTRA_DOWNLOADED, 0));
+                        }
                     }
                 }
                 break;
@@ -68,56 +216,192 @@ public class PackageDownloadHelper extends BroadcastReceiver {
     }
 
     /**
-     * Call this method to register your callback before performing a download.
+     * Choose whether the results are received through a {@link LocalBroadcastManager} broadcast
+     * instead of being delivered directly to the callback.<br>
+     * Broadcasts are only needed when other components of the application listen to the
+     * {@link PackageDownloadService#ACTION_DOWNLOAD_PACKAGE_FILTER}. Must be called before {@link #bind(Context, PackageDownloadCallback)}.
+     *
+     * @param broadcast True to receive the results through broadcasts, false by default.
+     * @throws IllegalStateException if the helper is bound.
+     */
+    public void setBroadcastEnabled(boolean broadcast) throws IllegalStateException {
+        if (context != null) {
+            throw new IllegalStateException("The helper is already bound");
+        }
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * Call this method to register your callback before performing a download.<br>
+     * The callback is called on the main thread.
      *
      * @param context  The context.
-     * @param callback The {@link PackageDownloadCallback} which will be called during the download.
+     * @param callback The {@link PackageDownloadCallback} which will be called during the downloads
+     *                 requested without a callback of their own.
      */
     public void bind(Context context, PackageDownloadCallback callback) {
+        bind(context, callback, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Call this method to register your callback before performing a download.
+     *
+     * @param context  The context.
+     * @param callback The {@link PackageDownloadCallback} which will be called during the downloads
+     *                 requested without a callback of their own.
+     * @param handler  The {@link Handler} on which the callbacks are called, or null to call them
+     *                 directly from the service's thread.
+     */
+    public void bind(Context context, PackageDownloadCallback callback, Handler handler) {
         this.context = context;
         this.callback = callback;
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
-        manager.registerReceiver(this, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        this.handler = handler;
+        if (broadcast) {
+            LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
+            manager.registerReceiver(this, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        }
     }
 
     /**
-     * Call this method to unregister your callback and free the resources when you are done with
-     * this helper.
+     * Call this method to unregister your callbacks and free the resources when you are done with
+     * this helper.<br>
+     * The progress and results of the downloads still in progress are dropped.
      *
      * @param context The context.
      */
     public void unbind(Context context) {
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
-        manager.unregisterReceiver(this);
+        if (broadcast) {
+            LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
+            manager.unregisterReceiver(this);
+            requests.clear();
+        } else {
+            PackageDownloadService.getCallbackBus().unsubscribeAll(this);
+        }
         this.context = null;
         this.callback = null;
+        this.handler = null;
     }
 
     /**
      * This method request requests the download of a package.
      *
      * @param response The details received from the Barracks platform.
+     * @return The unique identifier of the download.
      * @see #requestDownload(UpdateDetails, String, String)
      */
-    public void requestDownload(UpdateDetails response) {
-        requestDownload(response, null, null);
+    public long requestDownload(UpdateDetails response) {
+        return requestDownload(response, null, null);
     }
 
     /**
      * This method request requests the download of a package.<br>
      *
      * @param response  The details received from the Barracks platform.
-     * @param tmpFile   The temporary destination of the package.
+     * @param tmpFile   The temporary destination of the package, next to the final one if null.
      * @param finalFile The final destination of the package.
+     * @return The unique identifier of the download.
+     */
+    public long requestDownload(UpdateDetails response, String tmpFile, String finalFile) {
+        return requestDownload(response, tmpFile, finalFile, callback);
+    }
+
+    /**
+     * This method request requests the download of a package.<br>
+     *
+     * @param response  The details received from the Barracks platform.
+     * @param tmpFile   The temporary destination of the package, next to the final one if null.
+     * @param finalFile The final destination of the package.
+     * @param callback  The {@link PackageDownloadCallback} which will be called during this download.
+     * @return The unique identifier of the download.
+     */
+    public long requestDownload(UpdateDetails response, String tmpFile, String finalFile, PackageDownloadCallback callback) {
+        return request(response, tmpFile, finalFile, null, callback);
+    }
+
+    /**
+     * This method request requests the download of a package to a {@link PackageSink}.<br>
+     * The package is written to the sink in a single pass, the path reported on success is the one of
+     * the sink's file, or null if the sink does not write to a file.
+     *
+     * @param response The details received from the Barracks platform.
+     * @param sink     The {@link PackageSink} the package is written to.
+     * @param callback The {@link PackageDownloadCallback} which will be called during this download.
+     * @return The unique identifier of the download.
+     * @see io.barracks.ota.client.download.MemorySink
+     * @see io.barracks.ota.client.download.TeeSink
      */
-    public void requestDownload(UpdateDetails response, String tmpFile, String finalFile) {
+    public long requestDownloadTo(UpdateDetails response, PackageSink sink, PackageDownloadCallback callback) {
+        return request(response, null, null, sink, callback);
+    }
+
+    private long request(UpdateDetails response, String tmpFile, String finalFile, PackageSink sink, PackageDownloadCallback callback) {
+        long id = CallbackBus.nextId();
+        if (sink != null) {
+            PackageDownloadService.setSink(id, sink);
+        }
+        if (broadcast) {
+            requests.put(id, callback);
+        } else {
+            PackageDownloadService.getCallbackBus().subscribe(id, this, callback, handler);
+        }
         Intent intent = new Intent(context, PackageDownloadService.class)
                 .setAction(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
                 .putExtra(PackageDownloadService.EXTRA_API_KEY, apiKey)
                 .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmpFile)
                 .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, finalFile)
+                .putExtra(PackageDownloadService.EXTRA_DIRECT, direct)
+                .putExtra(PackageDownloadService.EXTRA_DUAL_SLOT, dualSlot)
+                .putExtra(PackageDownloadService.EXTRA_MAX_CONNECTIONS, maxConnections)
+                .putExtra(PackageDownloadService.EXTRA_PARANOID, paranoid)
+                .putExtra(PackageDownloadService.EXTRA_PROGRESS_INTERVAL, progressInterval)
+                .putExtra(PackageDownloadService.EXTRA_PROGRESS_BYTES, progressBytes)
+                .putExtra(PackageDownloadService.EXTRA_PRIORITY, priority)
+                .putExtra(PackageDownloadService.EXTRA_DEADLINE, Deadline.after(timeout))
+                .putExtra(PackageDownloadService.EXTRA_BASE_PACKAGE, basePackage)
                 .putExtra(PackageDownloadService.EXTRA_CALLBACK, callback.hashCode())
+                .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+                .putExtra(PackageDownloadService.EXTRA_BROADCAST, broadcast)
                 .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, response);
         context.startService(intent);
+        return id;
+    }
+
+    /**
+     * Cancels a download, the partial file is deleted unless another request waits for the same
+     * package.<br>
+     * The callback of the download is told through {@link PackageDownloadControlCallback#onDownloadCancelled(UpdateDetails)},
+     * or receives a {@link CancellationException} if it is a plain {@link PackageDownloadCallback}.
+     *
+     * @param id The identifier returned when the download was requested.
+     */
+    public void cancelDownload(long id) {
+        control(PackageDownloadService.ACTION_CANCEL_DOWNLOAD, id);
+    }
+
+    /**
+     * Pauses a download, the partial file is kept so that {@link #resumeDownload(long)} goes on
+     * from the same offset.<br>
+     * The callback of the download is told through {@link PackageDownloadControlCallback#onDownloadPaused(UpdateDetails, long)}.
+     *
+     * @param id The identifier returned when the download was requested.
+     */
+    public void pauseDownload(long id) {
+        control(PackageDownloadService.ACTION_PAUSE_DOWNLOAD, id);
+    }
+
+    /**
+     * Resumes a paused download.
+     *
+     * @param id The identifier returned when the download was requested.
+     */
+    public void resumeDownload(long id) {
+        control(PackageDownloadService.ACTION_RESUME_DOWNLOAD, id);
+    }
+
+    private void control(String action, long id) {
+        Intent intent = new Intent(context, PackageDownloadService.class)
+                .setAction(action)
+                .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id);
+        context.startService(intent);
     }
 }
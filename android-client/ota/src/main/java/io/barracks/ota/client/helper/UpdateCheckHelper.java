@@ -19,11 +19,22 @@ package io.barracks.ota.client.helper;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.barracks.ota.client.Defaults;
 import io.barracks.ota.client.UpdateCheckService;
 import io.barracks.ota.client.api.UpdateDetails;
 import io.barracks.ota.client.api.UpdateDetailsRequest;
+import io.barracks.ota.client.dispatch.CallbackBus;
+import io.barracks.ota.client.dispatch.JobJournal;
+import io.barracks.ota.client.http.Deadline;
 
 /**
  * A helper which makes it easier to use the {@link UpdateCheckService}.
@@ -31,6 +42,10 @@ import io.barracks.ota.client.api.UpdateDetailsRequest;
  * Use {@link #bind(Context, UpdateCheckCallback)} before requesting for an udpate,
  * and {@link #unbind(Context)} when you are done using the helper.
  * </p>
+ * <p>
+ * Each request is given a unique identifier, and its results are routed to the callback it was
+ * sent with, so that a single helper can track many requests at the same time.
+ * </p>
  */
 public class UpdateCheckHelper extends BroadcastReceiver {
     private static final String TAG = UpdateCheckHelper.class.getSimpleName();
@@ -38,6 +53,15 @@ public class UpdateCheckHelper extends BroadcastReceiver {
     private final String baseUrl;
     private Context context;
     private UpdateCheckCallback callback;
+    private Handler handler;
+    /**
+     * The requests in progress when the results are received through broadcasts.
+     */
+    private final ConcurrentHashMap<Long, Pending> requests = new ConcurrentHashMap<>();
+    private boolean broadcast = false;
+    private boolean notifyOnChange = false;
+    private int maxBatchSize = Defaults.DEFAULT_MAX_BATCH_SIZE;
+    private long timeout = 0;
 
     /**
      * Helper's contstructor.
@@ -57,6 +81,10 @@ public class UpdateCheckHelper extends BroadcastReceiver {
     public UpdateCheckHelper(String apiKey, String baseUrl) {
         this.apiKey = apiKey;
         this.baseUrl = baseUrl;
+        if (apiKey != null) {
+            // The jobs left over by a previous process are replayed with this key
+            JobJournal.addApiKey(apiKey);
+        }
     }
 
     /**
@@ -66,8 +94,17 @@ public class UpdateCheckHelper extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         switch (intent.getAction()) {
             case UpdateCheckService.ACTION_CHECK:
-                if (callback.hashCode() == intent.getIntExtra(UpdateCheckService.EXTRA_CALLBACK, 0)) {
-                    if (intent.hasCategory(UpdateCheckService.UPDATE_REQUEST_ERROR)) {
+                long id = intent.getLongExtra(UpdateCheckService.EXTRA_REQUEST_ID, 0);
+                Pending pending = requests.get(id);
+                if (pending != null) {
+                    UpdateCheckCallback callback = pending.callback;
+                    if (pending.remaining.decrementAndGet() <= 0) {
+                        requests.remove(id);
+                    }
+                    if (intent.hasCategory(UpdateCheckService.UPDATE_UNCHANGED)) {
+                        // Left out, the request asked to be notified of the changes only
+                        break;
+                    } else if (intent.hasCategory(UpdateCheckService.UPDATE_REQUEST_ERROR)) {
                         callback.onUpdateRequestError(
                                 (UpdateDetailsRequest) intent.getParcelableExtra(UpdateCheckService.EXTRA_REQUEST),
                                 (Throwable) intent.getSerializableExtra(UpdateCheckService.EXTRA_EXCEPTION)
@@ -88,43 +125,226 @@ public class UpdateCheckHelper extends BroadcastReceiver {
     }
 
     /**
-     * Call this method to register your callback before checking for an update.
+     * Choose whether the results are received through a {@link LocalBroadcastManager} broadcast
+     * instead of being delivered directly to the callback.<br>
+     * Broadcasts are only needed when other components of the application listen to the
+     * {@link UpdateCheckService#ACTION_CHECK_FILTER}. Must be called before {@link #bind(Context, UpdateCheckCallback)}.
+     *
+     * @param broadcast True to receive the results through broadcasts, false by default.
+     * @throws IllegalStateException if the helper is bound.
+     */
+    public void setBroadcastEnabled(boolean broadcast) throws IllegalStateException {
+        if (context != null) {
+            throw new IllegalStateException("The helper is already bound");
+        }
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * Call this method to register your callback before checking for an update.<br>
+     * The callback is called on the main thread.
      *
      * @param context  The context.
-     * @param callback The {@link UpdateCheckCallback} which will be called during the request.
+     * @param callback The {@link UpdateCheckCallback} which will be called during the requests
+     *                 sent without a callback of their own.
      */
     public void bind(Context context, UpdateCheckCallback callback) {
+        bind(context, callback, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Call this method to register your callback before checking for an update.
+     *
+     * @param context  The context.
+     * @param callback The {@link UpdateCheckCallback} which will be called during the requests
+     *                 sent without a callback of their own.
+     * @param handler  The {@link Handler} on which the callbacks are called, or null to call them
+     *                 directly from the service's thread.
+     */
+    public void bind(Context context, UpdateCheckCallback callback, Handler handler) {
         this.context = context;
         this.callback = callback;
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
-        manager.registerReceiver(this, UpdateCheckService.ACTION_CHECK_FILTER);
+        this.handler = handler;
+        if (broadcast) {
+            LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
+            manager.registerReceiver(this, UpdateCheckService.ACTION_CHECK_FILTER);
+        }
     }
 
     /**
-     * Call this method to unregister your callback and free the resources when you are done with
-     * this helper.
+     * Call this method to unregister your callbacks and free the resources when you are done with
+     * this helper.<br>
+     * The results of the requests still in progress are dropped.
      *
      * @param context The context.
      */
     public void unbind(Context context) {
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
-        manager.unregisterReceiver(this);
+        if (broadcast) {
+            LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
+            manager.unregisterReceiver(this);
+            requests.clear();
+        } else {
+            UpdateCheckService.getCallbackBus().unsubscribeAll(this);
+        }
         this.context = null;
         this.callback = null;
+        this.handler = null;
+    }
+
+    /**
+     * Choose whether the callback is notified of every result, or only when the result differs from
+     * the one of the previous identical request. It applies to the single requests and to each
+     * request of a batch. Errors are always notified.
+     *
+     * @param notifyOnChange True to be notified only of the changes, false to be notified of every result.
+     */
+    public void setNotifyOnChange(boolean notifyOnChange) {
+        this.notifyOnChange = notifyOnChange;
+    }
+
+    /**
+     * Define the maximum number of requests sent in a single call by
+     * {@link #requestUpdates(List)}, larger lists are split.
+     *
+     * @param maxBatchSize The maximum number of requests sent in a single call.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive : " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Define the time a request may take, including the time it waits to be sent and every attempt
+     * of its calls. A request which is not over when its deadline passes fails with a
+     * {@link io.barracks.ota.client.http.DeadlineExceededException}. Defaults to 0, no deadline.
+     *
+     * @param timeout The time a request may take, in milliseconds, or 0 for no deadline.
+     */
+    public void setDeadline(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative : " + timeout);
+        }
+        this.timeout = timeout;
     }
 
     /**
      * Call this method to request details about an update to the Barracks platform.
      *
      * @param request The request to be sent to the Barracks platform.
+     * @return The unique identifier of the request.
      */
-    public void requestUpdate(UpdateDetailsRequest request) {
+    public long requestUpdate(UpdateDetailsRequest request) {
+        return requestUpdate(request, callback);
+    }
+
+    /**
+     * Call this method to request details about an update to the Barracks platform.
+     *
+     * @param request  The request to be sent to the Barracks platform.
+     * @param callback The {@link UpdateCheckCallback} which will be called with the result of this request.
+     * @return The unique identifier of the request.
+     */
+    public long requestUpdate(UpdateDetailsRequest request, UpdateCheckCallback callback) {
+        long id = track(callback, 1);
         Intent intent = new Intent(context, UpdateCheckService.class)
                 .setAction(UpdateCheckService.ACTION_CHECK)
                 .putExtra(UpdateCheckService.EXTRA_API_KEY, apiKey)
                 .putExtra(UpdateCheckService.EXTRA_URL, baseUrl)
                 .putExtra(UpdateCheckService.EXTRA_CALLBACK, callback.hashCode())
+                .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
+                .putExtra(UpdateCheckService.EXTRA_BROADCAST, broadcast)
+                .putExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, notifyOnChange)
+                .putExtra(UpdateCheckService.EXTRA_DEADLINE, Deadline.after(timeout))
                 .putExtra(UpdateCheckService.EXTRA_REQUEST, request);
         context.startService(intent);
+        return id;
+    }
+
+    /**
+     * Call this method to request details about the updates of several units to the Barracks
+     * platform in as few calls as possible.<br>
+     * The callback is called for each request as soon as its result is received.
+     *
+     * @param requests The requests to be sent to the Barracks platform.
+     * @return The unique identifier of the batch.
+     */
+    public long requestUpdates(List<UpdateDetailsRequest> requests) {
+        return requestUpdates(requests, callback);
+    }
+
+    /**
+     * Call this method to request details about the updates of several units to the Barracks
+     * platform in as few calls as possible.<br>
+     * The callback is called for each request as soon as its result is received.
+     *
+     * @param requests The requests to be sent to the Barracks platform.
+     * @param callback The {@link UpdateCheckCallback} which will be called with the results of this batch.
+     * @return The unique identifier of the batch.
+     */
+    public long requestUpdates(List<UpdateDetailsRequest> requests, UpdateCheckCallback callback) {
+        long id = track(callback, Math.max(requests.size(), 1));
+        Intent intent = new Intent(context, UpdateCheckService.class)
+                .setAction(UpdateCheckService.ACTION_CHECK_BATCH)
+                .putExtra(UpdateCheckService.EXTRA_API_KEY, apiKey)
+                .putExtra(UpdateCheckService.EXTRA_URL, baseUrl)
+                .putExtra(UpdateCheckService.EXTRA_CALLBACK, callback.hashCode())
+                .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
+                .putExtra(UpdateCheckService.EXTRA_BROADCAST, broadcast)
+                .putExtra(UpdateCheckService.EXTRA_MAX_BATCH_SIZE, maxBatchSize)
+                .putExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, notifyOnChange)
+                .putExtra(UpdateCheckService.EXTRA_DEADLINE, Deadline.after(timeout))
+                .putParcelableArrayListExtra(UpdateCheckService.EXTRA_REQUESTS, new ArrayList<>(requests));
+        context.startService(intent);
+        return id;
+    }
+
+    /**
+     * Cancels a request or a batch, the callback is not called anymore for it.<br>
+     * The call in progress is aborted unless an identical request waits for its result.
+     *
+     * @param id The identifier returned when the request was sent.
+     */
+    public void cancelRequest(long id) {
+        if (broadcast) {
+            requests.remove(id);
+        } else {
+            UpdateCheckService.getCallbackBus().unsubscribe(id);
+        }
+        Intent intent = new Intent(context, UpdateCheckService.class)
+                .setAction(UpdateCheckService.ACTION_CANCEL_CHECK)
+                .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id);
+        context.startService(intent);
+    }
+
+    /**
+     * Registers the callback of a new request.
+     *
+     * @param callback The {@link UpdateCheckCallback} which will be called with the results.
+     * @param results  The number of results expected for the request.
+     * @return The unique identifier of the request.
+     */
+    private long track(UpdateCheckCallback callback, int results) {
+        long id = CallbackBus.nextId();
+        if (broadcast) {
+            requests.put(id, new Pending(callback, results));
+        } else {
+            UpdateCheckService.getCallbackBus().subscribe(id, this, callback, handler);
+        }
+        return id;
+    }
+
+    /**
+     * A request in progress, when the results are received through broadcasts.
+     */
+    private static final class Pending {
+        private final UpdateCheckCallback callback;
+        private final AtomicInteger remaining;
+
+        private Pending(UpdateCheckCallback callback, int results) {
+            this.callback = callback;
+            this.remaining = new AtomicInteger(results);
+        }
     }
 }
@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * A {@link Dns} keeping the resolved addresses of a host for a given time.<br>
+ * If a host can't be resolved anymore, the addresses previously resolved are used until a lookup
+ * succeeds again.
+ */
+public class CachingDns implements Dns {
+    /**
+     * The resolver used when the cache misses.
+     */
+    private final Dns delegate;
+    /**
+     * The time a resolved host name is kept in the cache, in milliseconds.
+     */
+    private final long ttl;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Creates a {@link CachingDns}.
+     *
+     * @param delegate The resolver used when the cache misses.
+     * @param ttl      The time a resolved host name is kept in the cache, in milliseconds.
+     */
+    public CachingDns(Dns delegate, long ttl) {
+        this.delegate = delegate;
+        this.ttl = ttl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(hostname);
+        }
+        if (entry != null && now - entry.resolved < ttl) {
+            return entry.addresses;
+        }
+        try {
+            List<InetAddress> addresses = delegate.lookup(hostname);
+            synchronized (entries) {
+                entries.put(hostname, new Entry(addresses, now));
+            }
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (entry != null) {
+                return entry.addresses;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes all the resolved addresses from the cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final List<InetAddress> addresses;
+        private final long resolved;
+
+        private Entry(List<InetAddress> addresses, long resolved) {
+            this.addresses = addresses;
+            this.resolved = resolved;
+        }
+    }
+}
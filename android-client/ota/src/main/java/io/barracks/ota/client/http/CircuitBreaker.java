@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps track of the health of the hosts reached by the SDK.<br>
+ * The circuit of a host opens after a number of consecutive transient failures, and the calls to
+ * the host are refused until it has been open for a while. A single call is then let through to
+ * probe the host : the circuit closes if it succeeds, and opens again if it fails.
+ */
+public class CircuitBreaker {
+    private final int threshold;
+    private final long openDuration;
+    private final Map<String, Circuit> circuits = new HashMap<>();
+
+    /**
+     * Creates a {@link CircuitBreaker}.
+     *
+     * @param threshold    The number of consecutive failures which opens a circuit, 0 to never open it.
+     * @param openDuration The time a circuit stays open, in milliseconds.
+     */
+    public CircuitBreaker(int threshold, long openDuration) {
+        this.threshold = threshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks whether a call to a host may be attempted.
+     *
+     * @param host The host of the call, can be null.
+     * @throws CircuitOpenException If the circuit of the host is open.
+     */
+    public synchronized void check(String host) throws CircuitOpenException {
+        Circuit circuit = host == null ? null : circuits.get(host);
+        if (circuit == null || circuit.openUntil == 0) {
+            return;
+        }
+        long now = now();
+        if (circuit.openUntil > now) {
+            throw new CircuitOpenException(host, circuit.openUntil - now);
+        }
+        // Let this call probe the host, the others are refused until it is over
+        circuit.openUntil = now + openDuration;
+    }
+
+    /**
+     * Records a call which reached the host, closing its circuit.
+     *
+     * @param host The host of the call, can be null.
+     */
+    public synchronized void onSuccess(String host) {
+        if (host != null) {
+            circuits.remove(host);
+        }
+    }
+
+    /**
+     * Records a transient failure of a call to a host.
+     *
+     * @param host The host of the call, can be null.
+     */
+    public synchronized void onFailure(String host) {
+        if (host == null || threshold == 0) {
+            return;
+        }
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits.put(host, circuit);
+        }
+        circuit.failures++;
+        if (circuit.openUntil != 0 || circuit.failures >= threshold) {
+            circuit.openUntil = now() + openDuration;
+        }
+    }
+
+    /**
+     * Checks whether the circuit of a host is open.
+     *
+     * @param host The host.
+     * @return True if the calls to the host are refused, false otherwise.
+     */
+    public synchronized boolean isOpen(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit != null && circuit.openUntil > now();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static final class Circuit {
+        /**
+         * The number of consecutive failures.
+         */
+        private int failures = 0;
+        /**
+         * The time until which the calls are refused, 0 while the circuit is closed.
+         */
+        private long openUntil = 0;
+    }
+}
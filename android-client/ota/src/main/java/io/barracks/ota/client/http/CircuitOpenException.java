@@ -0,0 +1,59 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import java.io.IOException;
+
+/**
+ * Signals that a call has not been attempted because the circuit of its host is open, the host
+ * failed repeatedly and is considered down.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+    private final long remaining;
+
+    /**
+     * Creates a {@link CircuitOpenException}.
+     *
+     * @param host      The host whose circuit is open.
+     * @param remaining The time before a call is let through again, in milliseconds.
+     */
+    public CircuitOpenException(String host, long remaining) {
+        super("Circuit open for " + host + ", retry in " + remaining + " ms");
+        this.host = host;
+        this.remaining = remaining;
+    }
+
+    /**
+     * Get the host whose circuit is open.
+     *
+     * @return the host name.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Get the time before a call to the host is let through again.
+     *
+     * @return the remaining time, in milliseconds.
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+}
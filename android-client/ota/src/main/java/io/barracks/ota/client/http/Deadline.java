@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which an operation of the SDK has to be over, whatever the number of calls and
+ * attempts it takes.<br>
+ * The deadline is a wall clock time, so that it survives being carried in an
+ * {@link android.content.Intent} and the jobs replayed by a new process. The calls in progress
+ * are {@link #schedule(Runnable) cancelled} when it passes, which bounds the connection, the reads
+ * and the whole call, and the operation fails with a {@link DeadlineExceededException}.
+ */
+public class Deadline {
+    /**
+     * The deadline of the operations which are not bounded.
+     */
+    public static final Deadline NONE = new Deadline(0);
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, Deadline.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long time;
+
+    private Deadline(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Get the deadline of an operation.
+     *
+     * @param time The time by which the operation has to be over, in milliseconds since the epoch,
+     *             or 0 if it is not bounded.
+     * @return the {@link Deadline} of the operation.
+     */
+    public static Deadline at(long time) {
+        return time > 0 ? new Deadline(time) : NONE;
+    }
+
+    /**
+     * Computes the deadline of an operation starting now.
+     *
+     * @param timeout The time the operation may take, in milliseconds, or 0 if it is not bounded.
+     * @return the time by which the operation has to be over, in milliseconds since the epoch, or 0
+     * if it is not bounded.
+     */
+    public static long after(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative : " + timeout);
+        }
+        return timeout == 0 ? 0 : System.currentTimeMillis() + timeout;
+    }
+
+    /**
+     * Get the time by which the operation has to be over.
+     *
+     * @return the deadline in milliseconds since the epoch, or 0 if the operation is not bounded.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get the time left before the deadline.
+     *
+     * @return the time left in milliseconds, 0 once the deadline has passed, or
+     * {@link Long#MAX_VALUE} if the operation is not bounded.
+     */
+    public long remaining() {
+        return time == 0 ? Long.MAX_VALUE : Math.max(0, time - System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether the deadline has passed.
+     *
+     * @return True if the operation has to be aborted, false otherwise.
+     */
+    public boolean isExpired() {
+        return remaining() == 0;
+    }
+
+    /**
+     * Runs a task when the deadline passes, typically to cancel a call in progress.
+     *
+     * @param task The task to be run.
+     * @return the future of the task, which should be cancelled once the operation is over, or null
+     * if the operation is not bounded.
+     */
+    public ScheduledFuture<?> schedule(Runnable task) {
+        if (time == 0) {
+            return null;
+        }
+        return timer.schedule(task, remaining(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the failure of an operation which did not complete before the deadline.
+     *
+     * @param operation The description of the operation.
+     * @param cause     The failure of the last attempt, can be null.
+     * @return a new {@link DeadlineExceededException}.
+     */
+    public DeadlineExceededException exceeded(String operation, Throwable cause) {
+        return new DeadlineExceededException(operation + " did not complete before its deadline", time, cause);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Signals that an operation has been aborted because its {@link Deadline} has passed.<br>
+ * The failure of the last attempt, if any, is the cause of the exception.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long deadline;
+
+    /**
+     * Creates a {@link DeadlineExceededException}.
+     *
+     * @param message  The description of the operation which has been aborted.
+     * @param deadline The time by which the operation had to be over, in milliseconds since the epoch.
+     * @param cause    The failure of the last attempt, can be null.
+     */
+    public DeadlineExceededException(String message, long deadline, Throwable cause) {
+        super(message);
+        this.deadline = deadline;
+        if (cause != null) {
+            initCause(cause);
+        }
+    }
+
+    /**
+     * Get the time by which the operation had to be over.
+     *
+     * @return the deadline, in milliseconds since the epoch.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * A call which sends a second identical request when the first one has not been answered after
+ * the {@link Hedger#getDelay() delay} of its {@link Hedger}.<br>
+ * The first response wins and the other request is cancelled. A failed request does not end the
+ * call while the other one may still answer.<br>
+ * Both requests are {@link Call#enqueue(Callback) enqueued} on the dispatcher of the client, the
+ * hedge is sent by the scheduler of the {@link Hedger}, no thread waits for the answers. The calls
+ * must come from an API proxy of the {@link HttpEngine}, whose callbacks are run by its workers.
+ *
+ * @param <T> The type of the body of the response.
+ */
+class HedgedCall<T> implements Call<T> {
+    private final Call<T> primary;
+    private final Hedger hedger;
+    private Call<T> hedge;
+    private boolean executed = false;
+    private volatile boolean canceled = false;
+    /**
+     * The callback of the call, notified once.
+     */
+    private Callback<T> callback;
+    /**
+     * The time the call started, in nanoseconds.
+     */
+    private long start;
+    /**
+     * The number of requests which have not answered yet.
+     */
+    private int pending;
+    /**
+     * Whether the callback has been notified.
+     */
+    private boolean done = false;
+    /**
+     * The first failure received, reported if no request answers.
+     */
+    private Throwable failure;
+    /**
+     * The task sending the hedge, or null if the call is not hedged.
+     */
+    private ScheduledFuture<?> timer;
+
+    HedgedCall(Call<T> primary, Hedger hedger) {
+        this.primary = primary;
+        this.hedger = hedger;
+    }
+
+    @Override
+    public Response<T> execute() throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] outcome = new Object[1];
+        enqueue(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                outcome[0] = response;
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                outcome[0] = t;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + primary.request().url());
+        }
+        if (outcome[0] instanceof IOException) {
+            throw (IOException) outcome[0];
+        }
+        if (outcome[0] instanceof RuntimeException) {
+            throw (RuntimeException) outcome[0];
+        }
+        if (outcome[0] instanceof Error) {
+            throw (Error) outcome[0];
+        }
+        @SuppressWarnings("unchecked")
+        Response<T> response = (Response<T>) outcome[0];
+        return response;
+    }
+
+    @Override
+    public void enqueue(Callback<T> callback) {
+        long delay = hedger.getDelay();
+        synchronized (this) {
+            if (executed) {
+                throw new IllegalStateException("Already executed");
+            }
+            executed = true;
+            this.callback = callback;
+            this.start = System.nanoTime();
+            this.pending = 1;
+            if (delay >= 0) {
+                timer = hedger.getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendHedge();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        primary.enqueue(new Attempt(primary));
+    }
+
+    /**
+     * Sends the second request, unless the call is over or has been cancelled.
+     */
+    private void sendHedge() {
+        Call<T> hedge;
+        synchronized (this) {
+            if (done || canceled) {
+                return;
+            }
+            hedge = primary.clone();
+            this.hedge = hedge;
+            pending++;
+        }
+        hedger.onSent();
+        hedge.enqueue(new Attempt(hedge));
+    }
+
+    /**
+     * Handles the answer of one of the requests.<br>
+     * The first response wins, the request which lost is cancelled. A failure ends the call once no
+     * other request may answer. The latency of the call is measured from its start, whatever the
+     * request which answered.
+     *
+     * @param call     The request which answered.
+     * @param response The response received, or null if the request failed.
+     * @param t        The failure of the request, or null if a response has been received.
+     */
+    private void settle(Call<T> call, Response<T> response, Throwable t) {
+        Call<T> loser = null;
+        Callback<T> callback;
+        long latency;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            pending--;
+            if (response == null) {
+                if (failure == null) {
+                    failure = t;
+                }
+                if (pending > 0) {
+                    // The other request may still answer
+                    return;
+                }
+            } else {
+                loser = call == primary ? hedge : primary;
+            }
+            done = true;
+            callback = this.callback;
+            latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        if (loser != null) {
+            loser.cancel();
+        }
+        if (!canceled) {
+            hedger.getLatencies().record(latency);
+        }
+        if (response != null) {
+            if (call != primary) {
+                hedger.onWon();
+            }
+            callback.onResponse(this, response);
+        } else {
+            callback.onFailure(this, failure);
+        }
+    }
+
+    @Override
+    public synchronized boolean isExecuted() {
+        return executed;
+    }
+
+    @Override
+    public void cancel() {
+        Call<T> hedge;
+        ScheduledFuture<?> timer;
+        synchronized (this) {
+            canceled = true;
+            hedge = this.hedge;
+            timer = this.timer;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        primary.cancel();
+        if (hedge != null) {
+            hedge.cancel();
+        }
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public Call<T> clone() {
+        return new HedgedCall<>(primary.clone(), hedger);
+    }
+
+    @Override
+    public Request request() {
+        return primary.request();
+    }
+
+    /**
+     * The callback of one of the requests of the call.
+     */
+    private final class Attempt implements Callback<T> {
+        private final Call<T> call;
+
+        private Attempt(Call<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public void onResponse(Call<T> call, Response<T> response) {
+            settle(this.call, response, null);
+        }
+
+        @Override
+        public void onFailure(Call<T> call, Throwable t) {
+            settle(this.call, null, t);
+        }
+    }
+}
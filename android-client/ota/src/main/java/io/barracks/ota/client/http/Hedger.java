@@ -0,0 +1,113 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Call;
+
+/**
+ * This class applies a {@link HedgingPolicy} to the calls of the {@link HttpEngine}.<br>
+ * It keeps the latencies of the hedged calls in a {@link LatencyHistogram}, which sets the delay
+ * before a second call is sent, and counts the hedges sent and the ones which answered first. The
+ * counters start from 0 each time the engine is {@link HttpEngine#configure(HttpConfiguration) configured}.
+ */
+public class Hedger {
+    private final HedgingPolicy policy;
+    private final ScheduledExecutorService scheduler;
+    private final LatencyHistogram latencies;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+
+    /**
+     * Creates a {@link Hedger}.
+     *
+     * @param policy    The policy applied to the calls.
+     * @param scheduler The executor which sends the second calls once their delay has elapsed.
+     */
+    public Hedger(HedgingPolicy policy, ScheduledExecutorService scheduler) {
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.latencies = new LatencyHistogram(policy.getWindow());
+    }
+
+    /**
+     * Wraps a call so that it is hedged, if the policy allows it.<br>
+     * Only idempotent calls may be hedged, the request can reach the server twice.
+     *
+     * @param call The call to be hedged.
+     * @param <T>  The type of the body of the response.
+     * @return a call which sends a second request when the first one is slow, or the same
+     * <code>call</code> if the calls are never hedged.
+     */
+    public <T> Call<T> hedge(Call<T> call) {
+        return policy.isEnabled() ? new HedgedCall<>(call, this) : call;
+    }
+
+    /**
+     * Get the delay after which a call is hedged.
+     *
+     * @return the percentile of the recent latencies, at least the minimum delay of the policy, in
+     * milliseconds, or -1 if the call must not be hedged.
+     */
+    public long getDelay() {
+        if (!policy.isEnabled() || latencies.size() < policy.getMinSamples()) {
+            return -1;
+        }
+        return Math.max(policy.getMinDelay(), latencies.percentile(policy.getPercentile()));
+    }
+
+    /**
+     * Get the latencies of the recent calls.
+     *
+     * @return the {@link LatencyHistogram} of the hedged calls.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Get the number of second calls which have been sent.
+     *
+     * @return the number of hedges sent.
+     */
+    public long getHedgesSent() {
+        return sent.get();
+    }
+
+    /**
+     * Get the number of second calls which answered before the first one.
+     *
+     * @return the number of hedges won.
+     */
+    public long getHedgesWon() {
+        return won.get();
+    }
+
+    void onSent() {
+        sent.incrementAndGet();
+    }
+
+    void onWon() {
+        won.incrementAndGet();
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+}
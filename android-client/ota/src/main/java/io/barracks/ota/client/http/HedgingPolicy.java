@@ -0,0 +1,182 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+/**
+ * The rules applied by the SDK to hedge the update checks.<br>
+ * An update check is an idempotent lookup, when it has not been answered after a delay a second
+ * identical call is sent, the first response wins and the other call is cancelled. The delay is a
+ * percentile of the latencies recently observed, so that only the slowest calls are hedged and the
+ * load added to the platform stays bounded. No call is hedged until enough latencies have been
+ * observed.
+ *
+ * @see Builder
+ * @see HttpConfiguration.Builder#hedgingPolicy(HedgingPolicy)
+ * @see Hedger
+ */
+public class HedgingPolicy {
+    /**
+     * The policy which never hedges a call, used by default.
+     */
+    public static final HedgingPolicy NONE = new Builder().percentile(0).build();
+
+    /**
+     * The percentile of the latencies after which a call is hedged, 0 to never hedge.
+     */
+    private final double percentile;
+    /**
+     * The minimum delay before a call is hedged, in milliseconds.
+     */
+    private final long minDelay;
+    /**
+     * The number of latencies the percentile is computed from.
+     */
+    private final int window;
+    /**
+     * The number of latencies observed before the calls are hedged.
+     */
+    private final int minSamples;
+
+    private HedgingPolicy(double percentile, long minDelay, int window, int minSamples) {
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.window = window;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Checks whether the calls are hedged.
+     *
+     * @return True if the calls are hedged, false otherwise.
+     */
+    public boolean isEnabled() {
+        return percentile > 0;
+    }
+
+    /**
+     * Get the percentile of the latencies after which a call is hedged.
+     *
+     * @return the percentile, between 0 and 100, 0 if the calls are never hedged.
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Get the minimum delay before a call is hedged.
+     *
+     * @return the minimum delay, in milliseconds.
+     */
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    /**
+     * Get the number of latencies the percentile is computed from.
+     *
+     * @return the number of the most recent latencies kept.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Get the number of latencies observed before the calls are hedged.
+     *
+     * @return the minimum number of latencies.
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    public static final class Builder {
+        private double percentile = 95;
+        private long minDelay = 50;
+        private int window = 100;
+        private int minSamples = 20;
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the percentile of the latencies after which a call is hedged, defaults to 95.
+         *
+         * @param percentile the percentile, between 0 and 100, or 0 to never hedge.
+         * @return the same builder instance.
+         */
+        public Builder percentile(double percentile) {
+            this.percentile = percentile;
+            return this;
+        }
+
+        /**
+         * Define the minimum delay before a call is hedged, defaults to 50 milliseconds.
+         *
+         * @param minDelay the minimum delay, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder minDelay(long minDelay) {
+            this.minDelay = minDelay;
+            return this;
+        }
+
+        /**
+         * Define the number of latencies the percentile is computed from, defaults to 100.
+         *
+         * @param window the number of the most recent latencies kept.
+         * @return the same builder instance.
+         */
+        public Builder window(int window) {
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * Define the number of latencies observed before the calls are hedged, defaults to 20.
+         *
+         * @param minSamples the minimum number of latencies, at most the size of the window.
+         * @return the same builder instance.
+         */
+        public Builder minSamples(int minSamples) {
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Build the {@link HedgingPolicy} of this builder.
+         *
+         * @return a {@link HedgingPolicy}
+         * @throws IllegalStateException when a value is out of range.
+         */
+        public HedgingPolicy build() throws IllegalStateException {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalStateException("Invalid percentile : " + percentile);
+            }
+            if (minDelay < 0) {
+                throw new IllegalStateException("The minimum delay can't be negative");
+            }
+            if (window < 1 || minSamples < 1 || minSamples > window) {
+                throw new IllegalStateException("Invalid window : " + minSamples + " of " + window);
+            }
+            return new HedgingPolicy(percentile, minDelay, window, minSamples);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+/**
+ * The settings of the {@link HttpEngine} shared by the SDK.
+ *
+ * @see Builder
+ * @see io.barracks.ota.client.helper.BarracksHelper#setHttpConfiguration(HttpConfiguration)
+ */
+public class HttpConfiguration {
+    /**
+     * The timeout for establishing a connection, in milliseconds.
+     */
+    private final long connectTimeout;
+    /**
+     * The timeout for reading from a connection, in milliseconds.
+     */
+    private final long readTimeout;
+    /**
+     * The timeout for writing to a connection, in milliseconds.
+     */
+    private final long writeTimeout;
+    /**
+     * The maximum number of idle connections kept in the pool.
+     */
+    private final int maxIdleConnections;
+    /**
+     * The time an idle connection is kept in the pool, in milliseconds.
+     */
+    private final long keepAlive;
+    /**
+     * The time a resolved host name is kept in the cache, in milliseconds.
+     */
+    private final long dnsTtl;
+    /**
+     * The policy applied when a call fails.
+     */
+    private final RetryPolicy retryPolicy;
+    /**
+     * The policy applied to the update checks which are slow to answer.
+     */
+    private final HedgingPolicy hedgingPolicy;
+    /**
+     * The maximum number of asynchronous calls in progress, and of threads running them.
+     */
+    private final int maxRequests;
+    /**
+     * The maximum number of asynchronous calls in progress to the same host.
+     */
+    private final int maxRequestsPerHost;
+    /**
+     * The number of threads handling the completions of the asynchronous calls.
+     */
+    private final int workerThreads;
+
+    private HttpConfiguration(long connectTimeout, long readTimeout, long writeTimeout, int maxIdleConnections, long keepAlive, long dnsTtl, RetryPolicy retryPolicy, HedgingPolicy hedgingPolicy, int maxRequests, int maxRequestsPerHost, int workerThreads) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAlive = keepAlive;
+        this.dnsTtl = dnsTtl;
+        this.retryPolicy = retryPolicy;
+        this.hedgingPolicy = hedgingPolicy;
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Get the timeout for establishing a connection.
+     *
+     * @return the timeout for establishing a connection, in milliseconds.
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Get the timeout for reading from a connection.
+     *
+     * @return the timeout for reading from a connection, in milliseconds.
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Get the timeout for writing to a connection.
+     *
+     * @return the timeout for writing to a connection, in milliseconds.
+     */
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Get the maximum number of idle connections kept in the pool.
+     *
+     * @return the maximum number of idle connections kept in the pool.
+     */
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Get the time an idle connection is kept in the pool.
+     *
+     * @return the time an idle connection is kept in the pool, in milliseconds.
+     */
+    public long getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Get the time a resolved host name is kept in the cache.
+     *
+     * @return the time a resolved host name is kept in the cache, in milliseconds.
+     */
+    public long getDnsTtl() {
+        return dnsTtl;
+    }
+
+    /**
+     * Get the policy applied when a call fails.
+     *
+     * @return the {@link RetryPolicy} of the calls.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Get the policy applied to the update checks which are slow to answer.
+     *
+     * @return the {@link HedgingPolicy} of the update checks.
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Get the maximum number of asynchronous calls in progress, which is also the maximum number of
+     * threads running them.
+     *
+     * @return the maximum number of asynchronous calls in progress.
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Get the maximum number of asynchronous calls in progress to the same host.
+     *
+     * @return the maximum number of asynchronous calls in progress to a host.
+     */
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Get the number of threads handling the completions of the asynchronous calls.
+     *
+     * @return the number of worker threads.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public static final class Builder {
+        private long connectTimeout = 10000;
+        private long readTimeout = 10000;
+        private long writeTimeout = 10000;
+        private int maxIdleConnections = 5;
+        private long keepAlive = 5 * 60 * 1000;
+        private long dnsTtl = 60 * 1000;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private HedgingPolicy hedgingPolicy = HedgingPolicy.NONE;
+        private int maxRequests = 16;
+        private int maxRequestsPerHost = 4;
+        private int workerThreads = 2;
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the timeout for establishing a connection, defaults to 10 seconds.
+         *
+         * @param connectTimeout the timeout for establishing a connection, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder connectTimeout(long connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Define the timeout for reading from a connection, defaults to 10 seconds.
+         *
+         * @param readTimeout the timeout for reading from a connection, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder readTimeout(long readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * Define the timeout for writing to a connection, defaults to 10 seconds.
+         *
+         * @param writeTimeout the timeout for writing to a connection, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder writeTimeout(long writeTimeout) {
+            this.writeTimeout = writeTimeout;
+            return this;
+        }
+
+        /**
+         * Define the maximum number of idle connections kept in the pool, defaults to 5.
+         *
+         * @param maxIdleConnections the maximum number of idle connections kept in the pool.
+         * @return the same builder instance.
+         */
+        public Builder maxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        /**
+         * Define the time an idle connection is kept in the pool, defaults to 5 minutes.
+         *
+         * @param keepAlive the time an idle connection is kept in the pool, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder keepAlive(long keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Define the time a resolved host name is kept in the cache, defaults to 1 minute.
+         *
+         * @param dnsTtl the time a resolved host name is kept in the cache, in milliseconds, or 0
+         *               to disable the cache.
+         * @return the same builder instance.
+         */
+        public Builder dnsTtl(long dnsTtl) {
+            this.dnsTtl = dnsTtl;
+            return this;
+        }
+
+        /**
+         * Define the policy applied when a call fails, defaults to {@link RetryPolicy#NONE}.
+         *
+         * @param retryPolicy the policy deciding which failures are retried and when.
+         * @return the same builder instance.
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Define the policy applied to the update checks which are slow to answer, defaults to
+         * {@link HedgingPolicy#NONE}.
+         *
+         * @param hedgingPolicy the policy deciding when a second identical check is sent.
+         * @return the same builder instance.
+         */
+        public Builder hedgingPolicy(HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
+        /**
+         * Define the maximum number of asynchronous calls in progress, defaults to 16.<br>
+         * The calls beyond this limit wait in a queue, so that the number of threads running them
+         * does not grow with the number of requests.
+         *
+         * @param maxRequests the maximum number of asynchronous calls in progress.
+         * @return the same builder instance.
+         */
+        public Builder maxRequests(int maxRequests) {
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        /**
+         * Define the maximum number of asynchronous calls in progress to the same host, defaults to 4.
+         *
+         * @param maxRequestsPerHost the maximum number of asynchronous calls in progress to a host.
+         * @return the same builder instance.
+         */
+        public Builder maxRequestsPerHost(int maxRequestsPerHost) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Define the number of threads handling the completions of the asynchronous calls and
+         * scheduling their next attempts, defaults to 2.
+         *
+         * @param workerThreads the number of worker threads.
+         * @return the same builder instance.
+         */
+        public Builder workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * Build the {@link HttpConfiguration} of this builder.
+         *
+         * @return an {@link HttpConfiguration}
+         * @throws IllegalStateException when a value is out of range or a policy is missing.
+         */
+        public HttpConfiguration build() throws IllegalStateException {
+            if (connectTimeout < 0 || readTimeout < 0 || writeTimeout < 0) {
+                throw new IllegalStateException("Timeouts can't be negative");
+            }
+            if (maxIdleConnections < 0 || keepAlive < 0 || dnsTtl < 0) {
+                throw new IllegalStateException("Pool and cache settings can't be negative");
+            }
+            if (retryPolicy == null) {
+                throw new IllegalStateException("Missing retry policy");
+            }
+            if (hedgingPolicy == null) {
+                throw new IllegalStateException("Missing hedging policy");
+            }
+            if (maxRequests < 1 || maxRequestsPerHost < 1 || workerThreads < 1) {
+                throw new IllegalStateException("At least one call and one worker are needed");
+            }
+            return new HttpConfiguration(connectTimeout, readTimeout, writeTimeout, maxIdleConnections, keepAlive, dnsTtl, retryPolicy, hedgingPolicy, maxRequests, maxRequestsPerHost, workerThreads);
+        }
+    }
+}
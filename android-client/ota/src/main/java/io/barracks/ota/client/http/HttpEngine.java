@@ -0,0 +1,254 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * The HTTP stack shared by the services of the SDK.<br>
+ * A single {@link OkHttpClient} is built lazily for the whole process, so that the connection pool,
+ * the resolved host names and the TLS sessions are reused between an update check and the download
+ * which follows it.<br>
+ * The asynchronous calls are run by a fixed number of threads, the calls beyond the limits of the
+ * configuration wait in the queue of the dispatcher. Their completions are handled by a small pool
+ * of {@link #getWorkers() workers}, so that the number of threads stays flat however many requests
+ * are in progress. The threads are released once they have been idle for a while.
+ *
+ * @see io.barracks.ota.client.helper.BarracksHelper#setHttpConfiguration(HttpConfiguration)
+ */
+public class HttpEngine {
+    private static final Object LOCK = new Object();
+    private static HttpConfiguration configuration = new HttpConfiguration.Builder().build();
+    private static HttpEngine instance;
+    /**
+     * The time an idle thread of the engine is kept, in seconds.
+     */
+    private static final long THREAD_KEEP_ALIVE = 60;
+
+    /**
+     * The client used for all the calls.
+     */
+    private final OkHttpClient client;
+    /**
+     * The cache of resolved host names used by the client.
+     */
+    private final CachingDns dns;
+    /**
+     * The policy applied when a call fails.
+     */
+    private final RetryPolicy retryPolicy;
+    /**
+     * The health of the hosts reached by the calls.
+     */
+    private final CircuitBreaker breaker;
+    /**
+     * The hedging of the update checks.
+     */
+    private final Hedger hedger;
+    /**
+     * The threads handling the completions of the asynchronous calls.
+     */
+    private final ScheduledThreadPoolExecutor workers;
+    private final Map<String, Object> apis = new HashMap<>();
+
+    private HttpEngine(HttpConfiguration configuration) {
+        this.dns = new CachingDns(Dns.SYSTEM, configuration.getDnsTtl());
+        this.retryPolicy = configuration.getRetryPolicy();
+        this.breaker = new CircuitBreaker(retryPolicy.getFailureThreshold(), retryPolicy.getOpenDuration());
+        this.workers = new ScheduledThreadPoolExecutor(configuration.getWorkerThreads(), new EngineThreadFactory("HttpEngine-worker"));
+        this.workers.setKeepAliveTime(THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+        this.workers.allowCoreThreadTimeOut(true);
+        this.hedger = new Hedger(configuration.getHedgingPolicy(), workers);
+        ThreadPoolExecutor network = new ThreadPoolExecutor(
+                configuration.getMaxRequests(), configuration.getMaxRequests(),
+                THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new EngineThreadFactory("HttpEngine-call")
+        );
+        network.allowCoreThreadTimeOut(true);
+        Dispatcher dispatcher = new Dispatcher(network);
+        dispatcher.setMaxRequests(configuration.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(configuration.getMaxRequestsPerHost());
+        this.client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(configuration.getMaxIdleConnections(), configuration.getKeepAlive(), TimeUnit.MILLISECONDS))
+                .dns(dns)
+                .connectTimeout(configuration.getConnectTimeout(), TimeUnit.MILLISECONDS)
+                .readTimeout(configuration.getReadTimeout(), TimeUnit.MILLISECONDS)
+                .writeTimeout(configuration.getWriteTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Get the engine shared by the process, building it if needed.
+     *
+     * @return the shared {@link HttpEngine}.
+     */
+    public static HttpEngine getInstance() {
+        synchronized (LOCK) {
+            if (instance == null) {
+                instance = new HttpEngine(configuration);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Define the settings of the shared engine.<br>
+     * The current engine is released, calls which are in progress are not affected and the next
+     * ones use a new engine built with this <code>configuration</code>.
+     *
+     * @param configuration The new settings, or null to restore the default ones.
+     */
+    public static void configure(HttpConfiguration configuration) {
+        HttpEngine previous;
+        synchronized (LOCK) {
+            HttpEngine.configuration = configuration == null ? new HttpConfiguration.Builder().build() : configuration;
+            previous = instance;
+            instance = null;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Get the client used for all the calls.
+     *
+     * @return the shared {@link OkHttpClient}.
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Starts following the attempts of a call, using the {@link RetryPolicy} of the engine and the
+     * {@link CircuitBreaker} shared by the calls to the same host.
+     *
+     * @param host The host of the call, can be null.
+     * @return a new {@link Retrier}.
+     */
+    public Retrier newRetrier(String host) {
+        return new Retrier(retryPolicy, breaker, host);
+    }
+
+    /**
+     * Get the {@link Hedger} applying the {@link HedgingPolicy} of the engine, which counts the
+     * hedges sent and won.
+     *
+     * @return the {@link Hedger} of the engine.
+     */
+    public Hedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Get the threads handling the completions of the asynchronous calls.<br>
+     * They run the callbacks of the API proxies created by the engine, and may schedule the next
+     * attempt of a call. The tasks must not block.
+     *
+     * @return the workers of the engine.
+     */
+    public ScheduledExecutorService getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Get an API proxy for a base url, creating it on the first call.<br>
+     * The proxy only relies on the built-in converters, it is shared by the whole process.
+     *
+     * @param baseUrl The base url of the API.
+     * @param api     The interface describing the API.
+     * @param <T>     The type of the API.
+     * @return the API proxy.
+     */
+    public <T> T getApi(String baseUrl, Class<T> api) {
+        String key = api.getName() + " " + baseUrl;
+        synchronized (apis) {
+            Object proxy = apis.get(key);
+            if (proxy == null) {
+                proxy = createApi(baseUrl, api, null);
+                apis.put(key, proxy);
+            }
+            return api.cast(proxy);
+        }
+    }
+
+    /**
+     * Creates a new API proxy using the shared client.<br>
+     * The caller is responsible for keeping the proxy as long as it needs it. The callbacks of the
+     * asynchronous calls are run by the {@link #getWorkers() workers} of the engine.
+     *
+     * @param baseUrl The base url of the API.
+     * @param api     The interface describing the API.
+     * @param factory The converter used by the API, or null for the built-in ones.
+     * @param <T>     The type of the API.
+     * @return the API proxy.
+     */
+    public <T> T createApi(String baseUrl, Class<T> api, Converter.Factory factory) {
+        Retrofit.Builder builder = new Retrofit.Builder()
+                .client(client)
+                .callbackExecutor(workers)
+                .baseUrl(baseUrl);
+        if (factory != null) {
+            builder.addConverterFactory(factory);
+        }
+        return builder.build().create(api);
+    }
+
+    /**
+     * Closes the idle connections and forgets the resolved host names.
+     */
+    private void release() {
+        client.connectionPool().evictAll();
+        dns.clear();
+        synchronized (apis) {
+            apis.clear();
+        }
+    }
+
+    private static final class EngineThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private EngineThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
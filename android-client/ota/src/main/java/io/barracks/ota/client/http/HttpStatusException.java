@@ -0,0 +1,89 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Signals that the Barracks platform answered a call with an unexpected status code.
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+    private final long retryAfter;
+
+    /**
+     * Creates an {@link HttpStatusException}.
+     *
+     * @param message    The detail message.
+     * @param code       The status code of the response.
+     * @param retryAfter The delay asked by the server before the next attempt, in milliseconds, or -1.
+     */
+    public HttpStatusException(String message, int code, long retryAfter) {
+        super(message);
+        this.code = code;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get the status code of the response.
+     *
+     * @return the HTTP status code.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Get the delay asked by the server using the <code>Retry-After</code> header.
+     *
+     * @return the delay before the next attempt in milliseconds, or -1 if the server did not send one.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Parses the value of a <code>Retry-After</code> header, a number of seconds or an HTTP date.
+     *
+     * @param value The value of the header, can be null.
+     * @return the delay in milliseconds, or -1 if the value is missing or invalid.
+     */
+    public static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // Not a delay, it may be a date
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
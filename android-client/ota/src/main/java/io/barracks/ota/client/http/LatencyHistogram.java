@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the latencies of the most recent calls, in a window of a fixed size, and tells
+ * which latency a given share of them did not exceed.<br>
+ * The oldest latency is forgotten when a new one is recorded in a full window, so that the
+ * percentiles follow the current state of the network.
+ */
+public class LatencyHistogram {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    /**
+     * Creates an empty {@link LatencyHistogram}.
+     *
+     * @param capacity The number of latencies kept.
+     */
+    public LatencyHistogram(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity : " + capacity);
+        }
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * Records the latency of a call.
+     *
+     * @param latency The latency, in milliseconds.
+     */
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Get the number of latencies kept.
+     *
+     * @return the number of latencies in the window.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Get a percentile of the latencies kept, using the nearest rank.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return the smallest latency which is greater than or equal to <code>percentile</code> percent
+     * of the latencies, in milliseconds, or -1 if no latency has been recorded.
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.min(Math.max(rank, 1), count) - 1];
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * This class follows the attempts of a single call to a host, applying a {@link RetryPolicy} and
+ * reporting the outcome of each attempt to the {@link CircuitBreaker} of the host.<br>
+ * Each attempt {@link #begin() begins} by checking the circuit, and ends either with
+ * {@link #succeeded()} or with {@link #failed(Throwable)}, which tells how long to wait before the
+ * next attempt. The caller does the waiting, so that it can be interrupted when the call is
+ * cancelled.<br>
+ * When the resource is served by several hosts, the call may {@link #failOver(Throwable, String) fail over}
+ * to another one right away, the attempts are counted for the whole call.
+ */
+public class Retrier {
+    private final RetryPolicy policy;
+    private final CircuitBreaker breaker;
+    private String host;
+    private final Random random;
+    private int attempts = 0;
+    private long waited = 0;
+    private long delay = 0;
+
+    /**
+     * Creates a {@link Retrier}.
+     *
+     * @param policy  The policy applied to the call.
+     * @param breaker The breaker keeping track of the hosts.
+     * @param host    The host of the call, can be null.
+     */
+    public Retrier(RetryPolicy policy, CircuitBreaker breaker, String host) {
+        this(policy, breaker, host, new Random());
+    }
+
+    Retrier(RetryPolicy policy, CircuitBreaker breaker, String host, Random random) {
+        this.policy = policy;
+        this.breaker = breaker;
+        this.host = host;
+        this.random = random;
+    }
+
+    /**
+     * Starts an attempt.
+     *
+     * @throws CircuitOpenException If the circuit of the host is open, the call must not be attempted.
+     */
+    public synchronized void begin() throws CircuitOpenException {
+        breaker.check(host);
+        attempts++;
+    }
+
+    /**
+     * Records an attempt which reached the host.
+     */
+    public void succeeded() {
+        breaker.onSuccess(host);
+    }
+
+    /**
+     * Records a failed attempt.<br>
+     * A transient failure counts against the host, a response from the host closes its circuit.
+     *
+     * @param failure The failure of the attempt.
+     * @return The delay before the next attempt in milliseconds, or -1 if the call must not be retried.
+     */
+    public synchronized long failed(Throwable failure) {
+        boolean retryable = policy.isRetryable(failure);
+        if (retryable) {
+            breaker.onFailure(host);
+        } else if (failure instanceof HttpStatusException) {
+            breaker.onSuccess(host);
+        }
+        if (!retryable || attempts == 0 || attempts >= policy.getMaxAttempts()) {
+            return -1;
+        }
+        long next = policy.nextDelay(delay, random);
+        long retryAfter = failure instanceof HttpStatusException ? ((HttpStatusException) failure).getRetryAfter() : -1;
+        if (retryAfter > policy.getMaxDelay()) {
+            // The server won't be back soon enough
+            return -1;
+        }
+        delay = Math.max(next, retryAfter);
+        waited += delay;
+        return delay;
+    }
+
+    /**
+     * Records a failed attempt, the next one is sent to another host without waiting.
+     *
+     * @param failure The failure of the attempt.
+     * @param host    The host of the next attempt, can be null.
+     */
+    public synchronized void failOver(Throwable failure, String host) {
+        if (policy.isRetryable(failure)) {
+            breaker.onFailure(this.host);
+        }
+        this.host = host;
+    }
+
+    /**
+     * Sends the next attempts to another host.
+     *
+     * @param host The host of the next attempt, can be null.
+     */
+    public synchronized void moveTo(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Checks whether a failure is transient according to the {@link RetryPolicy}.
+     *
+     * @param failure The failure of an attempt.
+     * @return True if the call may succeed if it is attempted again.
+     */
+    public boolean isRetryable(Throwable failure) {
+        return policy.isRetryable(failure);
+    }
+
+    /**
+     * Get the failure reported to the application once the call is given up.
+     *
+     * @param failure The failure of the last attempt.
+     * @return a {@link RetryException} if the call has been attempted several times, the failure otherwise.
+     */
+    public synchronized Exception report(Exception failure) {
+        return attempts > 1 ? new RetryException(failure, attempts, waited) : failure;
+    }
+
+    /**
+     * Get the failure reported to the application once the call is given up.
+     *
+     * @param failure The failure of the last attempt.
+     * @return a {@link RetryException} if the call has been attempted several times, the failure otherwise.
+     */
+    public synchronized IOException report(IOException failure) {
+        return attempts > 1 ? new RetryException(failure, attempts, waited) : failure;
+    }
+
+    /**
+     * Get the number of attempts started so far.
+     *
+     * @return the number of attempts.
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Get the time spent waiting between the attempts so far.
+     *
+     * @return the time spent waiting, in milliseconds.
+     */
+    public synchronized long getWaited() {
+        return waited;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import java.io.IOException;
+
+/**
+ * Signals that a call failed after having been attempted several times.<br>
+ * The failure of the last attempt is the {@link #getCause() cause} of this exception.
+ */
+public class RetryException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int attempts;
+    private final long waited;
+
+    /**
+     * Creates a {@link RetryException}.
+     *
+     * @param cause    The failure of the last attempt.
+     * @param attempts The number of attempts of the call.
+     * @param waited   The time spent waiting between the attempts, in milliseconds.
+     */
+    public RetryException(Throwable cause, int attempts, long waited) {
+        super("Failed after " + attempts + " attempts and " + waited + " ms : " + cause.getMessage(), cause);
+        this.attempts = attempts;
+        this.waited = waited;
+    }
+
+    /**
+     * Get the number of attempts of the call.
+     *
+     * @return the number of attempts, including the first one.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Get the time spent waiting between the attempts.
+     *
+     * @return the time spent waiting, in milliseconds.
+     */
+    public long getWaited() {
+        return waited;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * The rules applied by the SDK when a call to the Barracks platform fails.<br>
+ * A failure is retried when it is transient : a socket error, a timeout, a <code>408</code>, a
+ * <code>429</code> or a <code>5xx</code> response other than <code>501</code> and <code>505</code>.
+ * Any other response, and the failures which do not come from the network, are fatal.<br>
+ * The attempts are spaced with a decorrelated jitter backoff, each delay is drawn between the base
+ * delay and three times the previous one, so that the devices which failed together don't retry
+ * together. A <code>Retry-After</code> header sent by the server is honored, unless it asks to wait
+ * longer than the maximum delay.<br>
+ * Each host has a circuit breaker, which opens after a number of consecutive transient failures.
+ * While it is open, the calls to the host fail right away with a {@link CircuitOpenException}.
+ *
+ * @see Builder
+ * @see HttpConfiguration.Builder#retryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+    /**
+     * The policy which never retries and never opens a circuit, used by default.
+     */
+    public static final RetryPolicy NONE = new Builder().maxAttempts(1).failureThreshold(0).build();
+
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_NOT_IMPLEMENTED = 501;
+    private static final int HTTP_VERSION_NOT_SUPPORTED = 505;
+
+    /**
+     * The maximum number of attempts of a call, including the first one.
+     */
+    private final int maxAttempts;
+    /**
+     * The minimum delay between two attempts, in milliseconds.
+     */
+    private final long baseDelay;
+    /**
+     * The maximum delay between two attempts, in milliseconds.
+     */
+    private final long maxDelay;
+    /**
+     * The number of consecutive transient failures which opens the circuit of a host, 0 to never open it.
+     */
+    private final int failureThreshold;
+    /**
+     * The time the circuit of a host stays open, in milliseconds.
+     */
+    private final long openDuration;
+
+    private RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, int failureThreshold, long openDuration) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Get the maximum number of attempts of a call.
+     *
+     * @return the maximum number of attempts, including the first one.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Get the minimum delay between two attempts.
+     *
+     * @return the minimum delay between two attempts, in milliseconds.
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * Get the maximum delay between two attempts.
+     *
+     * @return the maximum delay between two attempts, in milliseconds.
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Get the number of consecutive transient failures which opens the circuit of a host.
+     *
+     * @return the number of failures, 0 if the circuit never opens.
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Get the time the circuit of a host stays open.
+     *
+     * @return the time the circuit stays open, in milliseconds.
+     */
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Checks whether a failure is transient, the call may succeed if it is attempted again.
+     *
+     * @param failure The failure of the call.
+     * @return True if the call may be retried, false if the failure is fatal.
+     */
+    public boolean isRetryable(Throwable failure) {
+        if (failure instanceof HttpStatusException) {
+            int code = ((HttpStatusException) failure).getCode();
+            return code == HTTP_REQUEST_TIMEOUT || code == HTTP_TOO_MANY_REQUESTS
+                    || (code >= 500 && code != HTTP_NOT_IMPLEMENTED && code != HTTP_VERSION_NOT_SUPPORTED);
+        }
+        return failure instanceof SocketException
+                || failure instanceof SocketTimeoutException
+                || failure instanceof UnknownHostException
+                || failure instanceof ProtocolException
+                || failure instanceof EOFException;
+    }
+
+    /**
+     * Computes the delay before the next attempt.
+     *
+     * @param previous The previous delay, 0 before the first retry.
+     * @param random   The source of the jitter.
+     * @return a delay between the base delay and three times the previous one, bounded by the
+     * maximum delay, in milliseconds.
+     */
+    public long nextDelay(long previous, Random random) {
+        long upper = Math.min(maxDelay, Math.max(baseDelay, previous) * 3);
+        if (upper <= baseDelay) {
+            return Math.min(baseDelay, maxDelay);
+        }
+        return baseDelay + (long) (random.nextDouble() * (upper - baseDelay));
+    }
+
+    public static final class Builder {
+        private int maxAttempts = 4;
+        private long baseDelay = 1000;
+        private long maxDelay = 60 * 1000;
+        private int failureThreshold = 5;
+        private long openDuration = 30 * 1000;
+
+        /**
+         * Builder constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Define the maximum number of attempts of a call, defaults to 4.
+         *
+         * @param maxAttempts the maximum number of attempts, including the first one.
+         * @return the same builder instance.
+         */
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Define the minimum delay between two attempts, defaults to 1 second.
+         *
+         * @param baseDelay the minimum delay between two attempts, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder baseDelay(long baseDelay) {
+            this.baseDelay = baseDelay;
+            return this;
+        }
+
+        /**
+         * Define the maximum delay between two attempts, defaults to 1 minute.
+         *
+         * @param maxDelay the maximum delay between two attempts, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder maxDelay(long maxDelay) {
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * Define the number of consecutive transient failures which opens the circuit of a host,
+         * defaults to 5.
+         *
+         * @param failureThreshold the number of failures, or 0 to never open the circuit.
+         * @return the same builder instance.
+         */
+        public Builder failureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * Define the time the circuit of a host stays open, defaults to 30 seconds.<br>
+         * Once it is over, a single call is let through to probe the host.
+         *
+         * @param openDuration the time the circuit stays open, in milliseconds.
+         * @return the same builder instance.
+         */
+        public Builder openDuration(long openDuration) {
+            this.openDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * Build the {@link RetryPolicy} of this builder.
+         *
+         * @return a {@link RetryPolicy}
+         * @throws IllegalStateException when a value is out of range.
+         */
+        public RetryPolicy build() throws IllegalStateException {
+            if (maxAttempts < 1) {
+                throw new IllegalStateException("At least one attempt is needed : " + maxAttempts);
+            }
+            if (baseDelay < 0 || maxDelay < baseDelay) {
+                throw new IllegalStateException("Invalid delays : " + baseDelay + ", " + maxDelay);
+            }
+            if (failureThreshold < 0 || openDuration < 0) {
+                throw new IllegalStateException("Circuit settings can't be negative");
+            }
+            return new RetryPolicy(maxAttempts, baseDelay, maxDelay, failureThreshold, openDuration);
+        }
+    }
+}
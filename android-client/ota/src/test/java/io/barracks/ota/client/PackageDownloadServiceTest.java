@@ -29,17 +29,51 @@ import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.util.ServiceController;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.barracks.client.ota.BuildConfig;
 import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.PatchInfo;
 import io.barracks.ota.client.api.UpdateDetails;
+import io.barracks.ota.client.dispatch.CallbackBus;
+import io.barracks.ota.client.dispatch.JobJournal;
+import io.barracks.ota.client.download.DownloadJournal;
+import io.barracks.ota.client.download.FileSink;
+import io.barracks.ota.client.download.InsufficientStorageException;
+import io.barracks.ota.client.download.MemorySink;
+import io.barracks.ota.client.download.MirrorSelector;
+import io.barracks.ota.client.download.PackageDigest;
+import io.barracks.ota.client.download.PackageSlots;
+import io.barracks.ota.client.download.TeeSink;
+import io.barracks.ota.client.helper.PackageDownloadCallback;
+import io.barracks.ota.client.helper.PackageDownloadControlCallback;
+import io.barracks.ota.client.http.CircuitOpenException;
+import io.barracks.ota.client.http.Deadline;
+import io.barracks.ota.client.http.DeadlineExceededException;
+import io.barracks.ota.client.http.HttpConfiguration;
+import io.barracks.ota.client.http.HttpEngine;
+import io.barracks.ota.client.http.HttpStatusException;
+import io.barracks.ota.client.http.RetryException;
+import io.barracks.ota.client.http.RetryPolicy;
 import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -47,7 +81,13 @@ import okhttp3.mockwebserver.RecordedRequest;
 import okhttp3.mockwebserver.SocketPolicy;
 import okio.Buffer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by saiimons on 16-04-21.
@@ -55,11 +95,16 @@ import static org.junit.Assert.assertTrue;
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class, sdk = 23)
 public class PackageDownloadServiceTest {
+    private static final String ETAG = "\"v1\"";
+    private static final long STORE_QUOTA = 64 * 1024 * 1024;
     LocalBroadcastManager manager;
     ServiceController<PackageDownloadService> controller;
     PackageDownloadService service;
     MockWebServer server;
-    UpdateDetails successResponse, failureResponse, ioErrorResponse, signatureFailResponse;
+    UpdateDetails successResponse, failureResponse, ioErrorResponse, signatureFailResponse, resumeResponse, slowResponse;
+    byte[] content;
+    byte[] patch;
+    final AtomicInteger flakyAttempts = new AtomicInteger();
 
     @Before
     public void prepare() throws IOException, NoSuchFieldException, IllegalAccessException {
@@ -71,6 +116,15 @@ public class PackageDownloadServiceTest {
         failureResponse = Utils.getUpdateDetailsFromFile("download_success.json");
         ioErrorResponse = Utils.getUpdateDetailsFromFile("download_success.json");
         signatureFailResponse = Utils.getUpdateDetailsFromFile("download_success.json");
+        resumeResponse = Utils.getUpdateDetailsFromFile("download_success.json");
+        slowResponse = Utils.getUpdateDetailsFromFile("download_success.json");
+        content = new Buffer()
+                .readFrom(
+                        new FileInputStream(
+                                new File(ClassLoader.getSystemResource("file.txt").getPath())
+                        )
+                )
+                .readByteArray();
 
         final MockResponse success = new MockResponse()
                 .setBody(
@@ -110,6 +164,20 @@ public class PackageDownloadServiceTest {
                     return ioerror;
                 } else if ("/signature".equals(path)) {
                     return success;
+                } else if ("/resume".equals(path)) {
+                    return rangeResponse(recordedRequest);
+                } else if ("/patch".equals(path)) {
+                    return new MockResponse().setBody(new Buffer().write(patch));
+                } else if ("/flaky".equals(path)) {
+                    // Unavailable, then cut in the middle of the body, then served
+                    int attempt = flakyAttempts.getAndIncrement();
+                    if (attempt == 0) {
+                        return new MockResponse().setResponseCode(503).addHeader("Retry-After", "0");
+                    }
+                    MockResponse response = rangeResponse(recordedRequest);
+                    return attempt == 1 ? response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY) : response;
+                } else if ("/slow".equals(path)) {
+                    return rangeResponse(recordedRequest).throttleBody(64 * 1024, 50, TimeUnit.MILLISECONDS);
                 } else {
                     return success;
                 }
@@ -139,6 +207,48 @@ public class PackageDownloadServiceTest {
         Field md5 = PackageInfo.class.getDeclaredField("md5");
         md5.setAccessible(true);
         md5.set(info, "md5failure");
+
+        info = resumeResponse.getPackageInfo();
+        url = PackageInfo.class.getDeclaredField("url");
+        url.setAccessible(true);
+        url.set(info, server.url("/resume").toString());
+
+        info = slowResponse.getPackageInfo();
+        url = PackageInfo.class.getDeclaredField("url");
+        url.setAccessible(true);
+        url.set(info, server.url("/slow").toString());
+    }
+
+    private MockResponse rangeResponse(RecordedRequest request) {
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range == null || (ifRange != null && !ETAG.equals(ifRange))) {
+            return new MockResponse()
+                    .addHeader("ETag", ETAG)
+                    .setBody(new Buffer().write(content));
+        }
+        int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+        String last = range.substring(range.indexOf('-') + 1);
+        int end = last.isEmpty() ? content.length - 1 : Integer.parseInt(last);
+        return new MockResponse()
+                .setResponseCode(206)
+                .addHeader("ETag", ETAG)
+                .addHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length)
+                .setBody(new Buffer().write(content, start, end - start + 1));
+    }
+
+    private File preparePartialDownload(int length, String etag) throws IOException {
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "resume.tmp");
+        tmp.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        fos.write(content, 0, length);
+        // Bytes which have not been committed to the journal must be discarded
+        fos.write(new byte[128]);
+        fos.close();
+        DownloadJournal journal = DownloadJournal.create(tmp, resumeResponse.getPackageInfo());
+        journal.setValidators(etag, null);
+        journal.commit(length);
+        return tmp;
     }
 
     @After
@@ -165,9 +275,576 @@ public class PackageDownloadServiceTest {
         service.onHandleIntent(
                 new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
                         .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_PROGRESS_INTERVAL, 0L)
         );
         manager.unregisterReceiver(callBackProgress);
         assertTrue(callBackProgress.progress);
+        assertEquals(100, callBackProgress.last);
+        assertEquals(101, callBackProgress.count);
+    }
+
+    @Test
+    public void downloadProgressCoalesced() {
+        CallBackProgress callBackProgress = new CallBackProgress();
+        manager.registerReceiver(callBackProgress, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_PROGRESS_INTERVAL, 60000L)
+        );
+        manager.unregisterReceiver(callBackProgress);
+        // The first progress and the completion
+        assertEquals(2, callBackProgress.count);
+        assertEquals(100, callBackProgress.latest);
+        assertEquals(content.length, callBackProgress.downloaded);
+    }
+
+    @Test
+    public void downloadFromStore() {
+        PackageDownloadService.setStoreQuota(STORE_QUOTA);
+        try {
+            CallbackSuccess first = new CallbackSuccess();
+            manager.registerReceiver(first, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+            service.onHandleIntent(
+                    new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                            .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+            );
+            manager.unregisterReceiver(first);
+            assertTrue(first.success);
+            assertFalse(first.cached);
+            assertEquals(1, server.getRequestCount());
+
+            // The same package is copied from the store without any request
+            File destination = new File(RuntimeEnvironment.application.getFilesDir(), "stored/final.dl");
+            CallbackSuccess second = new CallbackSuccess();
+            manager.registerReceiver(second, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+            service.onHandleIntent(
+                    new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                            .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                            .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+            );
+            manager.unregisterReceiver(second);
+            assertTrue(second.success);
+            assertTrue(second.cached);
+            assertEquals(1, server.getRequestCount());
+            assertEquals(content.length, destination.length());
+        } finally {
+            PackageDownloadService.setStoreQuota(Defaults.DEFAULT_PACKAGE_STORE_QUOTA);
+        }
+    }
+
+    @Test
+    public void downloadStoreDisabled() {
+        PackageDownloadService.setStoreQuota(0);
+        try {
+            for (int i = 0; i < 2; i++) {
+                CallbackSuccess callbackSuccess = new CallbackSuccess();
+                manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+                service.onHandleIntent(
+                        new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                                .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                );
+                manager.unregisterReceiver(callbackSuccess);
+                assertTrue(callbackSuccess.success);
+                assertFalse(callbackSuccess.cached);
+            }
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            PackageDownloadService.setStoreQuota(Defaults.DEFAULT_PACKAGE_STORE_QUOTA);
+        }
+    }
+
+    @Test
+    public void downloadScheduled() throws InterruptedException {
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "scheduled/tmp.dl");
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "scheduled/final.dl");
+        service.onStartCommand(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath()),
+                0,
+                1
+        );
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // The service stops itself once the last download is over
+        assertTrue(Shadows.shadowOf(service).isStoppedBySelf());
+        assertEquals(content.length, destination.length());
+    }
+
+    @Test
+    public void downloadCoalesced() throws InterruptedException {
+        final List<Integer> callbacks = Collections.synchronizedList(new ArrayList<Integer>());
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // Only count the callbacks which received their own copy from the network
+                if (
+                        intent.hasCategory(PackageDownloadService.DOWNLOAD_SUCCESS)
+                                && !intent.getBooleanExtra(PackageDownloadService.EXTRA_CACHED, true)
+                                && new File(intent.getStringExtra(PackageDownloadService.EXTRA_FINAL_DEST)).length() == content.length
+                        ) {
+                    callbacks.add(intent.getIntExtra(PackageDownloadService.EXTRA_CALLBACK, -1));
+                }
+            }
+        };
+        manager.registerReceiver(receiver, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        for (int i = 1; i <= 2; i++) {
+            service.onStartCommand(
+                    new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                            .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                            .putExtra(PackageDownloadService.EXTRA_CALLBACK, i)
+                            .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, new File(RuntimeEnvironment.application.getFilesDir(), "coalesced/final" + i).getPath()),
+                    0,
+                    i
+            );
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        manager.unregisterReceiver(receiver);
+        // The second request joined the first download instead of using the store or the network
+        assertEquals(1, server.getRequestCount());
+        assertEquals(2, callbacks.size());
+        assertTrue(callbacks.containsAll(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void downloadCallbackBus() {
+        final List<String> events = new ArrayList<>();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, new PackageDownloadCallback() {
+            @Override
+            public void onDownloadSuccess(UpdateDetails details, String path) {
+                events.add("success");
+            }
+
+            @Override
+            public void onDownloadFailure(UpdateDetails details, Throwable throwable) {
+                events.add("failure");
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateDetails details, int progress) {
+                if (events.isEmpty()) {
+                    events.add("progress");
+                }
+            }
+        }, null);
+        CallbackSuccess broadcast = new CallbackSuccess();
+        manager.registerReceiver(broadcast, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        manager.unregisterReceiver(broadcast);
+        assertFalse(PackageDownloadService.getCallbackBus().isSubscribed(id));
+        // The progress and the result are delivered directly, nothing is broadcast
+        assertEquals(Arrays.asList("progress", "success"), events);
+        assertFalse(broadcast.success);
+    }
+
+    private Intent slowDownload(long id, File tmp) {
+        return new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, slowResponse)
+                .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+                .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+                .putExtra(PackageDownloadService.EXTRA_PROGRESS_INTERVAL, 0L);
+    }
+
+    private static void await(List<String> events, String event) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!events.contains(event) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(events.toString(), events.contains(event));
+    }
+
+    @Test
+    public void downloadCancelled() throws InterruptedException {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, new PackageDownloadCallback() {
+            @Override
+            public void onDownloadSuccess(UpdateDetails details, String path) {
+                events.add("success");
+            }
+
+            @Override
+            public void onDownloadFailure(UpdateDetails details, Throwable throwable) {
+                failures.add(throwable);
+                events.add("failure");
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateDetails details, int progress) {
+                if (!events.contains("progress")) {
+                    events.add("progress");
+                }
+            }
+        }, null);
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "cancel.tmp");
+        service.onStartCommand(slowDownload(id, tmp), 0, 1);
+        await(events, "progress");
+        service.onStartCommand(new Intent(PackageDownloadService.ACTION_CANCEL_DOWNLOAD).putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id), 0, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Shadows.shadowOf(service).isStoppedBySelf());
+        // A plain callback is told through a failure, the partial file is deleted
+        assertEquals(Arrays.asList("progress", "failure"), events);
+        assertTrue(failures.get(0) instanceof CancellationException);
+        assertFalse(tmp.exists());
+        assertNull(DownloadJournal.load(tmp));
+        assertFalse(PackageDownloadService.getCallbackBus().isSubscribed(id));
+    }
+
+    @Test
+    public void downloadPausedAndResumed() throws InterruptedException {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final long[] paused = {-1};
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, new PackageDownloadControlCallback() {
+            @Override
+            public void onDownloadCancelled(UpdateDetails details) {
+                events.add("cancelled");
+            }
+
+            @Override
+            public void onDownloadPaused(UpdateDetails details, long downloaded) {
+                paused[0] = downloaded;
+                events.add("paused");
+            }
+
+            @Override
+            public void onDownloadSuccess(UpdateDetails details, String path) {
+                if (new File(path).length() == content.length) {
+                    events.add("success");
+                }
+            }
+
+            @Override
+            public void onDownloadFailure(UpdateDetails details, Throwable throwable) {
+                events.add("failure");
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateDetails details, int progress) {
+                if (!events.contains("progress")) {
+                    events.add("progress");
+                }
+            }
+        }, null);
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "pause.tmp");
+        service.onStartCommand(slowDownload(id, tmp), 0, 1);
+        await(events, "progress");
+        service.onStartCommand(new Intent(PackageDownloadService.ACTION_PAUSE_DOWNLOAD).putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id), 0, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Shadows.shadowOf(service).isStoppedBySelf());
+        assertEquals(Arrays.asList("progress", "paused"), events);
+        assertTrue(paused[0] > 0);
+        // The partial file is kept for the next attempt
+        DownloadJournal journal = DownloadJournal.load(tmp);
+        assertNotNull(journal);
+        assertTrue(journal.getCommitted() > 0);
+        assertTrue(PackageDownloadService.getCallbackBus().isSubscribed(id));
+        // The job is kept as paused, along with the bytes written so far
+        JobJournal.Job job = findJob(id);
+        assertNotNull(job);
+        assertEquals(JobJournal.STATE_PAUSED, job.getState());
+        assertEquals(journal.getCommitted(), job.getOffset());
+
+        service.onStartCommand(new Intent(PackageDownloadService.ACTION_RESUME_DOWNLOAD).putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id), 0, 3);
+        await(events, "success");
+        assertEquals(Arrays.asList("progress", "paused", "success"), events);
+        assertEquals(2, server.getRequestCount());
+        server.takeRequest();
+        assertEquals("bytes=" + journal.getCommitted() + "-", server.takeRequest().getHeader("Range"));
+        assertNull(findJob(id));
+    }
+
+    @Test
+    public void downloadDeadline() throws InterruptedException {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, new PackageDownloadCallback() {
+            @Override
+            public void onDownloadSuccess(UpdateDetails details, String path) {
+                events.add("success");
+            }
+
+            @Override
+            public void onDownloadFailure(UpdateDetails details, Throwable throwable) {
+                failures.add(throwable);
+                events.add("failure");
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateDetails details, int progress) {
+            }
+        }, null);
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "deadline.tmp");
+        service.onStartCommand(slowDownload(id, tmp).putExtra(PackageDownloadService.EXTRA_DEADLINE, Deadline.after(300)), 0, 1);
+        await(events, "failure");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Shadows.shadowOf(service).isStoppedBySelf());
+        assertEquals(Collections.singletonList("failure"), events);
+        assertTrue(failures.get(0) instanceof DeadlineExceededException);
+        // The bytes received are kept for the next request
+        DownloadJournal journal = DownloadJournal.load(tmp);
+        assertNotNull(journal);
+        assertTrue(journal.getCommitted() > 0);
+        assertNull(findJob(id));
+    }
+
+    private JobJournal.Job findJob(long requestId) {
+        for (JobJournal.Job job : service.getJobJournal().getJobs()) {
+            if (job.getIntent().getLongExtra(PackageDownloadService.EXTRA_REQUEST_ID, 0) == requestId) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void downloadReplayed() throws InterruptedException {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, new PackageDownloadCallback() {
+            @Override
+            public void onDownloadSuccess(UpdateDetails details, String path) {
+                events.add("success");
+            }
+
+            @Override
+            public void onDownloadFailure(UpdateDetails details, Throwable throwable) {
+                events.add("failure");
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateDetails details, int progress) {
+            }
+        }, null);
+        CallbackSuccess broadcast = new CallbackSuccess();
+        manager.registerReceiver(broadcast, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        // The identifier of a request of the previous process may have been given to another one
+        service.onStartCommand(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+                        .putExtra(PackageDownloadService.EXTRA_BROADCAST, false)
+                        .putExtra(JobJournal.EXTRA_REPLAYED, true),
+                0,
+                1
+        );
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        manager.unregisterReceiver(broadcast);
+        assertTrue(broadcast.success);
+        assertTrue(events.isEmpty());
+        PackageDownloadService.getCallbackBus().unsubscribe(id);
+    }
+
+    private UpdateDetails prepareDelta(File installed, boolean validPatch) throws IOException, GeneralSecurityException {
+        byte[] base = Arrays.copyOf(content, content.length - 100);
+        for (int i = 0; i < base.length; i += 1000) {
+            base[i]++;
+        }
+        FileOutputStream fos = new FileOutputStream(installed);
+        fos.write(base);
+        fos.close();
+        patch = Utils.createPatch(base, content);
+        PackageInfo info = successResponse.getPackageInfo();
+        return new UpdateDetails.Builder()
+                .versionId("43")
+                .packageInfo(new PackageInfo.Builder()
+                        .url(info.getUrl())
+                        .md5(info.getMd5())
+                        .size(info.getSize())
+                        .patch(new PatchInfo.Builder()
+                                .versionId("42")
+                                .baseMd5(PackageDigest.toHex(PackageDigest.create().digest(base)))
+                                .url(server.url("/patch").toString())
+                                .md5(validPatch ? PackageDigest.toHex(PackageDigest.create().digest(patch)) : "md5failure")
+                                .size((long) patch.length)
+                                .build())
+                        .build())
+                .build();
+    }
+
+    @Test
+    public void downloadDelta() throws Exception {
+        File installed = new File(RuntimeEnvironment.application.getFilesDir(), "installed.bin");
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "delta.bin");
+        UpdateDetails details = prepareDelta(installed, true);
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, details)
+                        .putExtra(PackageDownloadService.EXTRA_BASE_PACKAGE, installed.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+        // Only the patch has been downloaded, the package has been rebuilt and verified
+        assertEquals(1, server.getRequestCount());
+        assertEquals("/patch", server.takeRequest().getPath());
+        assertTrue(patch.length < content.length / 4);
+        assertTrue(Arrays.equals(content, new Buffer().readFrom(new FileInputStream(destination)).readByteArray()));
+    }
+
+    @Test
+    public void downloadDeltaDirect() throws Exception {
+        File installed = new File(RuntimeEnvironment.application.getFilesDir(), "installed.bin");
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "delta.bin");
+        UpdateDetails details = prepareDelta(installed, true);
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, details)
+                        .putExtra(PackageDownloadService.EXTRA_BASE_PACKAGE, installed.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_DIRECT, true)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        // The package is rebuilt into the file of the sink
+        assertNull(callback.failure);
+        assertEquals(destination.getPath(), callback.path);
+        assertEquals(1, server.getRequestCount());
+        assertEquals("/patch", server.takeRequest().getPath());
+        assertTrue(Arrays.equals(content, new Buffer().readFrom(new FileInputStream(destination)).readByteArray()));
+    }
+
+    @Test
+    public void downloadDeltaFallback() throws Exception {
+        File installed = new File(RuntimeEnvironment.application.getFilesDir(), "installed.bin");
+        UpdateDetails details = prepareDelta(installed, false);
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, details)
+                        .putExtra(PackageDownloadService.EXTRA_BASE_PACKAGE, installed.getPath())
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        // The patch is corrupted, the full package is downloaded instead
+        assertTrue(callbackSuccess.success);
+        assertEquals(2, server.getRequestCount());
+        assertEquals("/patch", server.takeRequest().getPath());
+        assertEquals("/success", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void downloadDirect() throws IOException, InterruptedException {
+        // The partial package is resumed in place, nothing is moved once it is complete
+        File destination = preparePartialDownload(300000, ETAG);
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "direct.tmp");
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, resumeResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+                        .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_DIRECT, true)
+        );
+        assertNull(callback.failure);
+        assertEquals(destination.getPath(), callback.path);
+        assertEquals("bytes=300000-", server.takeRequest().getHeader("Range"));
+        assertEquals(content.length, destination.length());
+        assertFalse(tmp.exists());
+        assertFalse(DownloadJournal.journalFor(destination).exists());
+    }
+
+    @Test
+    public void downloadToMemory() {
+        MemorySink sink = new MemorySink(content.length);
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        PackageDownloadService.setSink(id, sink);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        assertNull(callback.failure);
+        assertTrue(callback.success);
+        assertNull(callback.path);
+        assertTrue(Arrays.equals(content, sink.toByteArray()));
+        assertFalse(new File(RuntimeEnvironment.application.getFilesDir(), Defaults.DEFAULT_TMP_DL_DESTINATION).exists());
+        assertFalse(new File(RuntimeEnvironment.application.getFilesDir(), Defaults.DEFAULT_FINAL_DL_DESTINATION).exists());
+
+        // A package larger than the sink fails instead of filling the memory
+        callback = new ResultCallback();
+        id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        PackageDownloadService.setSink(id, new MemorySink(1024));
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        assertTrue(callback.failure instanceof IOException);
+    }
+
+    @Test
+    public void downloadTee() throws IOException, GeneralSecurityException {
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "tee/update.zip");
+        ByteArrayOutputStream stage = new ByteArrayOutputStream();
+        MessageDigest digest = PackageDigest.create();
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        PackageDownloadService.setSink(id, new TeeSink(new FileSink(destination), stage, new DigestOutputStream(new ByteArrayOutputStream(), digest)));
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        assertNull(callback.failure);
+        assertEquals(destination.getPath(), callback.path);
+        assertEquals(content.length, destination.length());
+        // The downstream stages see the package in the same pass
+        assertTrue(Arrays.equals(content, stage.toByteArray()));
+        assertTrue(PackageDigest.matches(digest.digest(), successResponse.getPackageInfo().getMd5()));
+    }
+
+    @Test
+    public void downloadSinkCorrupted() {
+        MemorySink sink = new MemorySink(content.length);
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        PackageDownloadService.setSink(id, sink);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, signatureFailResponse)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        assertTrue(callback.failure instanceof GeneralSecurityException);
+        assertEquals(0, sink.size());
     }
 
     @Test
@@ -273,8 +950,472 @@ public class PackageDownloadServiceTest {
         manager.unregisterReceiver(callbackFailure);
     }
 
+    @Test
+    public void downloadResume() throws IOException, InterruptedException {
+        File tmp = preparePartialDownload(300000, ETAG);
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, resumeResponse)
+                        .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("bytes=300000-", request.getHeader("Range"));
+        assertEquals(ETAG, request.getHeader("If-Range"));
+        assertFalse(DownloadJournal.journalFor(tmp).exists());
+    }
+
+    @Test
+    public void downloadResumeChangedValidator() throws IOException, InterruptedException {
+        File tmp = preparePartialDownload(300000, "\"outdated\"");
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, resumeResponse)
+                        .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void downloadNotResumable() throws IOException, InterruptedException {
+        File tmp = preparePartialDownload(300000, ETAG);
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, resumeResponse)
+                        .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_RESUMABLE, false)
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+        assertNull(server.takeRequest().getHeader("Range"));
+    }
+
+    @Test
+    public void downloadParanoid() {
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_PARANOID, true)
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+
+        CallbackFailure callbackFailure = new CallbackFailure();
+        manager.registerReceiver(callbackFailure, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, signatureFailResponse)
+                        .putExtra(PackageDownloadService.EXTRA_PARANOID, true)
+        );
+        manager.unregisterReceiver(callbackFailure);
+        assertTrue(callbackFailure.failure);
+    }
+
+    @Test
+    public void downloadSegmented() {
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, resumeResponse)
+                        .putExtra(PackageDownloadService.EXTRA_MAX_CONNECTIONS, 4)
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void downloadSegmentedDualSlot() {
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "segmented/update.zip");
+        PackageSlots slots = new PackageSlots(destination);
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, resumeResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_DUAL_SLOT, true)
+                        .putExtra(PackageDownloadService.EXTRA_DIRECT, true)
+                        .putExtra(PackageDownloadService.EXTRA_MAX_CONNECTIONS, 4)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        // The ranges are written straight to the inactive slot
+        assertNull(callback.failure);
+        assertEquals(4, server.getRequestCount());
+        assertNotNull(slots.getActive());
+        assertEquals(slots.getActive().getPath(), callback.path);
+        assertEquals(content.length, slots.getActive().length());
+    }
+
+    @Test
+    public void downloadSegmentedFallback() {
+        CallbackSuccess callbackSuccess = new CallbackSuccess();
+        manager.registerReceiver(callbackSuccess, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_MAX_CONNECTIONS, 4)
+        );
+        manager.unregisterReceiver(callbackSuccess);
+        assertTrue(callbackSuccess.success);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void downloadInterruptedKeepsJournal() {
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "interrupted.tmp");
+        CallbackFailure callbackFailure = new CallbackFailure();
+        manager.registerReceiver(callbackFailure, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, ioErrorResponse)
+                        .putExtra(PackageDownloadService.EXTRA_TMP_DEST, tmp.getPath())
+        );
+        manager.unregisterReceiver(callbackFailure);
+        assertTrue(callbackFailure.failure);
+        DownloadJournal journal = DownloadJournal.load(tmp);
+        assertNotNull(journal);
+        assertTrue(journal.matches(ioErrorResponse.getPackageInfo()));
+        assertTrue(tmp.length() >= journal.getCommitted());
+    }
+
+    @Test
+    public void downloadTmpNextToDestination() throws IOException {
+        // The default temporary file is on the same filesystem as the destination
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "custom/update.zip");
+        File tmp = new File(destination.getPath() + Defaults.DEFAULT_TMP_SUFFIX);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, ioErrorResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+        );
+        assertNotNull(DownloadJournal.load(tmp));
+        assertFalse(new File(RuntimeEnvironment.application.getFilesDir(), Defaults.DEFAULT_TMP_DL_DESTINATION).exists());
+
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+        );
+        assertEquals(content.length, destination.length());
+        assertFalse(tmp.exists());
+    }
+
+    @Test
+    public void moveFallback() throws IOException {
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "move.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        // Neither the package nor its copy can replace a directory
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "move/update.zip");
+        assertTrue(destination.mkdirs());
+        try {
+            service.moveToFinalDestination(tmp, destination);
+            fail("The destination is a directory");
+        } catch (IOException e) {
+            // The package is kept, the copy is cleaned up
+        }
+        assertTrue(tmp.exists());
+        assertFalse(new File(destination.getPath() + ".new").exists());
+        assertTrue(destination.delete());
+        service.moveToFinalDestination(tmp, destination);
+        assertFalse(tmp.exists());
+        assertEquals(content.length, destination.length());
+    }
+
+    @Test
+    public void downloadInsufficientStorage() {
+        PackageDownloadService.setStoreQuota(STORE_QUOTA);
+        try {
+            service.onHandleIntent(
+                    new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                            .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+            );
+            assertEquals(1, server.getRequestCount());
+            assertTrue(service.getPackageStore().getSize() > 0);
+
+            // No space can be left, the stored packages are evicted and the download is refused
+            PackageDownloadService.setStorageHeadroom(Long.MAX_VALUE / 2);
+            try {
+                ResultCallback callback = new ResultCallback();
+                long id = CallbackBus.nextId();
+                PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+                service.onHandleIntent(
+                        new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                                .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, signatureFailResponse)
+                                .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+                );
+                assertTrue(callback.failure instanceof InsufficientStorageException);
+                assertEquals(1, server.getRequestCount());
+                assertEquals(0, service.getPackageStore().getSize());
+            } finally {
+                PackageDownloadService.setStorageHeadroom(Defaults.DEFAULT_STORAGE_HEADROOM);
+            }
+        } finally {
+            PackageDownloadService.setStoreQuota(Defaults.DEFAULT_PACKAGE_STORE_QUOTA);
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void downloadKeepsPreviousPackage() throws IOException {
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "previous/update.zip");
+        assertTrue(destination.getParentFile().mkdirs());
+        write(destination, "previous");
+        CallbackFailure callbackFailure = new CallbackFailure();
+        manager.registerReceiver(callbackFailure, PackageDownloadService.ACTION_DOWNLOAD_PACKAGE_FILTER);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, signatureFailResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+        );
+        manager.unregisterReceiver(callbackFailure);
+        // A corrupted package does not replace the previous one
+        assertTrue(callbackFailure.failure);
+        assertEquals("previous".length(), destination.length());
+    }
+
+    @Test
+    public void downloadDualSlot() throws IOException {
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "slots/update.zip");
+        PackageSlots slots = new PackageSlots(destination);
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_DUAL_SLOT, true)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        File first = slots.getActive();
+        assertNotNull(first);
+        assertEquals(first.getPath(), callback.path);
+        assertEquals(content.length, first.length());
+        assertFalse(destination.exists());
+
+        // The active package is untouched while the next one is written, even if it fails
+        callback = new ResultCallback();
+        id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, signatureFailResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_DUAL_SLOT, true)
+                        .putExtra(PackageDownloadService.EXTRA_DIRECT, true)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        assertNotNull(callback.failure);
+        assertEquals(first, slots.getActive());
+        assertEquals(content.length, first.length());
+
+        // The next verified package is activated in the other slot
+        callback = new ResultCallback();
+        id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, successResponse)
+                        .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                        .putExtra(PackageDownloadService.EXTRA_DUAL_SLOT, true)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        File second = slots.getActive();
+        assertNotEquals(first, second);
+        assertEquals(second.getPath(), callback.path);
+        assertEquals(content.length, second.length());
+        assertEquals(content.length, first.length());
+    }
+
+    @Test
+    public void downloadDualSlotQueued() throws InterruptedException {
+        File destination = new File(RuntimeEnvironment.application.getFilesDir(), "queued/update.zip");
+        PackageSlots slots = new PackageSlots(destination);
+        // Both requests go to the network
+        PackageDownloadService.setStoreQuota(0);
+        try {
+            ResultCallback[] callbacks = new ResultCallback[2];
+            for (int i = 0; i < callbacks.length; i++) {
+                callbacks[i] = new ResultCallback();
+                long id = CallbackBus.nextId();
+                PackageDownloadService.getCallbackBus().subscribe(id, callbacks[i], null);
+                service.onStartCommand(
+                        new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                                .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, slowResponse)
+                                .putExtra(PackageDownloadService.EXTRA_FINAL_DEST, destination.getPath())
+                                // The slots are shared whatever the temporary files
+                                .putExtra(PackageDownloadService.EXTRA_TMP_DEST, destination.getPath() + "." + i + ".tmp")
+                                .putExtra(PackageDownloadService.EXTRA_DUAL_SLOT, true)
+                                .putExtra(PackageDownloadService.EXTRA_DIRECT, true)
+                                .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id),
+                        0,
+                        i + 1
+                );
+            }
+            boolean rewritten = false;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+                String active = callbacks[0].path;
+                if (active != null && new File(active).length() != content.length) {
+                    rewritten = true;
+                }
+                Thread.sleep(5);
+            }
+            // The second request writes the slot left inactive by the first one, not the one it activated
+            assertFalse(rewritten);
+            assertTrue(callbacks[0].success);
+            assertTrue(callbacks[1].success);
+            assertNotEquals(callbacks[0].path, callbacks[1].path);
+            assertEquals(callbacks[1].path, slots.getActive().getPath());
+            assertEquals(content.length, new File(callbacks[0].path).length());
+        } finally {
+            PackageDownloadService.setStoreQuota(Defaults.DEFAULT_PACKAGE_STORE_QUOTA);
+        }
+    }
+
+    private ResultCallback download(UpdateDetails details) {
+        ResultCallback callback = new ResultCallback();
+        long id = CallbackBus.nextId();
+        PackageDownloadService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .putExtra(PackageDownloadService.EXTRA_UPDATE_DETAILS, details)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        return callback;
+    }
+
+    @Test
+    public void downloadRetried() throws Exception {
+        UpdateDetails flaky = Utils.getUpdateDetailsFromFile("download_success.json");
+        Field url = PackageInfo.class.getDeclaredField("url");
+        url.setAccessible(true);
+        url.set(flaky.getPackageInfo(), server.url("/flaky").toString());
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .retryPolicy(new RetryPolicy.Builder().baseDelay(10).maxDelay(100).build())
+                .build());
+        try {
+            ResultCallback callback = download(flaky);
+            assertTrue(callback.success);
+            assertEquals(content.length, new File(callback.path).length());
+            assertEquals(3, server.getRequestCount());
+            server.takeRequest();
+            assertNull(server.takeRequest().getHeader("Range"));
+            // The last attempt goes on from the bytes received by the previous one
+            assertNotNull(server.takeRequest().getHeader("Range"));
+        } finally {
+            HttpEngine.configure(null);
+        }
+    }
+
+    @Test
+    public void downloadRetriesExhausted() {
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .retryPolicy(new RetryPolicy.Builder().maxAttempts(3).baseDelay(10).maxDelay(100).failureThreshold(3).build())
+                .build());
+        try {
+            ResultCallback callback = download(failureResponse);
+            assertTrue(callback.failure instanceof RetryException);
+            assertEquals(3, ((RetryException) callback.failure).getAttempts());
+            assertTrue(((RetryException) callback.failure).getWaited() >= 20);
+            assertEquals(500, ((HttpStatusException) callback.failure.getCause()).getCode());
+
+            // The host is known to be down, other packages fail right away
+            callback = download(ioErrorResponse);
+            assertTrue(callback.failure instanceof CircuitOpenException);
+            assertEquals(3, server.getRequestCount());
+
+            // A fatal failure is not retried
+            HttpEngine.configure(new HttpConfiguration.Builder()
+                    .retryPolicy(new RetryPolicy.Builder().baseDelay(10).maxDelay(100).build())
+                    .build());
+            callback = download(signatureFailResponse);
+            assertTrue(callback.failure instanceof GeneralSecurityException);
+            assertEquals(4, server.getRequestCount());
+        } finally {
+            HttpEngine.configure(null);
+        }
+    }
+
+    @Test
+    public void downloadMirrorFailover() throws Exception {
+        // The package is cut in the middle by its first source, the mirror serves the rest
+        UpdateDetails mirrored = Utils.getUpdateDetailsFromFile("download_success.json");
+        Field url = PackageInfo.class.getDeclaredField("url");
+        url.setAccessible(true);
+        url.set(mirrored.getPackageInfo(), server.url("/ioerror").toString());
+        Field mirrors = PackageInfo.class.getDeclaredField("mirrors");
+        mirrors.setAccessible(true);
+        mirrors.set(mirrored.getPackageInfo(), Arrays.asList(server.url("/resume").toString()));
+        MirrorSelector selector = PackageDownloadService.getMirrorSelector();
+        selector.recordLatency(server.url("/ioerror").toString(), 1);
+        selector.recordLatency(server.url("/resume").toString(), 500);
+
+        ResultCallback callback = download(mirrored);
+        assertTrue(callback.success);
+        assertEquals(content.length, new File(callback.path).length());
+        assertEquals(2, server.getRequestCount());
+        assertEquals("/ioerror", server.takeRequest().getPath());
+        RecordedRequest failover = server.takeRequest();
+        assertEquals("/resume", failover.getPath());
+        // The bytes received from the first source are kept, its validator is not sent to the mirror
+        assertNotNull(failover.getHeader("Range"));
+        assertNull(failover.getHeader("If-Range"));
+        assertTrue(selector.scoreOf(server.url("/ioerror").toString()) > selector.scoreOf(server.url("/resume").toString()));
+    }
+
+    private static class ResultCallback implements PackageDownloadCallback {
+        private boolean success = false;
+        private String path;
+        private Throwable failure;
+
+        @Override
+        public void onDownloadSuccess(UpdateDetails details, String path) {
+            this.success = true;
+            this.path = path;
+        }
+
+        @Override
+        public void onDownloadFailure(UpdateDetails details, Throwable throwable) {
+            this.failure = throwable;
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateDetails details, int progress) {
+
+        }
+    }
+
     private static class CallbackSuccess extends BroadcastReceiver {
         private boolean success = false;
+        private boolean cached = false;
 
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -283,6 +1424,7 @@ public class PackageDownloadServiceTest {
                             && intent.hasCategory(PackageDownloadService.DOWNLOAD_SUCCESS)
                     ) {
                 success = true;
+                cached = intent.getBooleanExtra(PackageDownloadService.EXTRA_CACHED, false);
             }
         }
     }
@@ -305,6 +1447,9 @@ public class PackageDownloadServiceTest {
     private static class CallBackProgress extends BroadcastReceiver {
         private boolean progress = false;
         private int last = 0;
+        private int count = 0;
+        private int latest = -1;
+        private long downloaded = -1;
 
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -313,6 +1458,9 @@ public class PackageDownloadServiceTest {
                             && intent.hasCategory(PackageDownloadService.DOWNLOAD_PROGRESS)
                     ) {
                 int current = intent.getIntExtra(PackageDownloadService.EXTRA_PROGRESS, -1);
+                downloaded = intent.getLongExtra(PackageDownloadService.EXTRA_DOWNLOADED, -1);
+                latest = current;
+                count++;
                 if (current == last || current == last + 1) {
                     progress = true;
                     last = current;
@@ -0,0 +1,181 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.api.UpdateDetails;
+
+/**
+ * Compares the parsing of a response carrying a large customUpdateData payload with the streaming
+ * {@link UpdateCheckService.DefaultResponseAdapter} and with an adapter building a tree first.<br>
+ * The measures are only run on demand.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class UpdateCheckServiceParserBenchmarkTest {
+    private static final int ITERATIONS = 200;
+    private static final int ENTRIES = 2000;
+
+    @Test
+    public void streamingMatchesTree() {
+        String json = response();
+        Gson streaming = Utils.getUpdateCheckGson();
+        Gson tree = Utils.getRobolectricGson(new TreeUpdateCheckService().setUpGsonBuilder(new GsonBuilder()));
+        Assert.assertTrue(Utils.compareBundles(
+                tree.fromJson(json, UpdateDetails.class).getCustomUpdateData(),
+                streaming.fromJson(json, UpdateDetails.class).getCustomUpdateData()
+        ));
+        Assert.assertEquals(ENTRIES, streaming.fromJson(json, UpdateDetails.class).getCustomUpdateData().size());
+    }
+
+    @Test
+    @Ignore("Benchmark, run on demand")
+    public void streamingVersusTree() {
+        String json = response();
+        Gson streaming = Utils.getUpdateCheckGson();
+        Gson tree = Utils.getRobolectricGson(new TreeUpdateCheckService().setUpGsonBuilder(new GsonBuilder()));
+
+        // Warm up the JIT before measuring
+        run(tree, json, 20);
+        run(streaming, json, 20);
+
+        long[] treeCost = run(tree, json, ITERATIONS);
+        long[] streamingCost = run(streaming, json, ITERATIONS);
+        String costs = String.format(
+                "parse of %d bytes, average over %d iterations : tree %d us / %d KB, streaming %d us / %d KB",
+                json.length(), ITERATIONS,
+                treeCost[0] / ITERATIONS / 1000, treeCost[1] / ITERATIONS / 1024,
+                streamingCost[0] / ITERATIONS / 1000, streamingCost[1] / ITERATIONS / 1024
+        );
+        Assert.assertTrue(costs, streamingCost[1] <= treeCost[1]);
+    }
+
+    private static String response() {
+        StringBuilder json = new StringBuilder("{\"versionId\":\"42\",\"packageInfo\":{\"url\":\"http://barracks.io/\",\"md5\":\"deadbeef\",\"size\":1024},\"customUpdateData\":{");
+        for (int i = 0; i < ENTRIES; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"key").append(i).append("\":");
+            switch (i % 4) {
+                case 0:
+                    json.append('"').append("value").append(i).append('"');
+                    break;
+                case 1:
+                    json.append(i);
+                    break;
+                case 2:
+                    json.append(i).append(".5");
+                    break;
+                default:
+                    json.append(i % 2 == 0);
+                    break;
+            }
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Parses the response several times.
+     *
+     * @return The elapsed time in nanoseconds, and the allocated bytes when the JVM reports them.
+     */
+    private static long[] run(Gson gson, String json, int iterations) {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            gson.fromJson(json, UpdateDetails.class);
+        }
+        return new long[]{System.nanoTime() - start, allocatedBytes() - allocated};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static final class TreeUpdateCheckService extends UpdateCheckService {
+        @Override
+        protected TypeAdapter<UpdateDetails> getResponsePropertiesAdapter(Gson gson, TypeToken<UpdateDetails> type) {
+            return new TreeResponseAdapter(this, gson, type);
+        }
+    }
+
+    /**
+     * The response adapter working on a {@link JsonElement} tree, as the SDK used to parse responses.
+     */
+    private static final class TreeResponseAdapter extends UpdateCheckService.DefaultResponseAdapter {
+
+        public TreeResponseAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<UpdateDetails> type) {
+            super(factory, gson, type);
+        }
+
+        @Override
+        public void write(JsonWriter out, UpdateDetails response) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpdateDetails read(JsonReader in) throws IOException {
+            JsonElement tree = getElementAdapter().read(in);
+            UpdateDetails response = getDelegate().fromJsonTree(tree);
+            JsonObject customUpdateData = tree.getAsJsonObject().getAsJsonObject("customUpdateData");
+            for (Map.Entry<String, JsonElement> entry : customUpdateData.entrySet()) {
+                JsonPrimitive primitive = entry.getValue().getAsJsonPrimitive();
+                if (primitive.isBoolean()) {
+                    response.getCustomUpdateData().putBoolean(entry.getKey(), primitive.getAsBoolean());
+                } else if (primitive.isNumber()) {
+                    String num = primitive.getAsNumber().toString();
+                    try {
+                        response.getCustomUpdateData().putLong(entry.getKey(), Long.parseLong(num));
+                    } catch (NumberFormatException e) {
+                        response.getCustomUpdateData().putDouble(entry.getKey(), Double.parseDouble(num));
+                    }
+                } else {
+                    response.getCustomUpdateData().putString(entry.getKey(), primitive.getAsString());
+                }
+            }
+            return response;
+        }
+    }
+}
@@ -61,6 +61,23 @@ public class UpdateCheckServiceParserTest {
         checkJsonResponse(service);
     }
 
+    @Test
+    public void unexpectedValues() {
+        Gson gson = Utils.getUpdateCheckGson();
+        UpdateDetails response = gson.fromJson(
+                "{\"unknown\":{\"a\":[1,2]},\"versionId\":null,\"packageInfo\":{\"url\":\"http://barracks.io/\",\"extra\":true,\"size\":\"12\"},"
+                        + "\"customUpdateData\":{\"nested\":{\"a\":1},\"array\":[1],\"null\":null,\"string\":\"toto\"}}",
+                UpdateDetails.class
+        );
+        Assert.assertNull(response.getVersionId());
+        Assert.assertEquals("http://barracks.io/", response.getPackageInfo().getUrl());
+        Assert.assertNull(response.getPackageInfo().getMd5());
+        Assert.assertEquals(12L, response.getPackageInfo().getSize().longValue());
+        Assert.assertEquals(1, response.getCustomUpdateData().size());
+        Assert.assertEquals("toto", response.getCustomUpdateData().getString("string"));
+        Assert.assertNull(gson.fromJson("null", UpdateDetails.class));
+    }
+
     private void checkJsonResponse(UpdateCheckService service) throws IOException {
         GsonBuilder builder = service.setUpGsonBuilder(new GsonBuilder());
         Gson gson = Utils.getRobolectricGson(builder);
@@ -29,6 +29,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.util.ServiceController;
 
@@ -36,12 +37,35 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.barracks.client.ota.BuildConfig;
 import io.barracks.ota.client.api.UpdateDetailsRequest;
+import io.barracks.ota.client.api.UpdateCheckApi;
 import io.barracks.ota.client.api.UpdateDetails;
+import io.barracks.ota.client.api.UpdateDetailsTest;
+import io.barracks.ota.client.dispatch.CallbackBus;
+import io.barracks.ota.client.helper.UpdateCheckCallback;
+import io.barracks.ota.client.http.CircuitOpenException;
+import io.barracks.ota.client.http.Deadline;
+import io.barracks.ota.client.http.DeadlineExceededException;
+import io.barracks.ota.client.http.Hedger;
+import io.barracks.ota.client.http.HedgingPolicy;
+import io.barracks.ota.client.http.HttpConfiguration;
+import io.barracks.ota.client.http.HttpEngine;
+import io.barracks.ota.client.http.HttpStatusException;
+import io.barracks.ota.client.http.RetryException;
+import io.barracks.ota.client.http.RetryPolicy;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -145,6 +169,358 @@ public class UpdateCheckServiceTest {
         Assert.assertTrue(testCallback.called);
     }
 
+    @Test
+    public void coalescedRequests() throws InterruptedException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // Still in progress when the second request is received
+                Thread.sleep(300);
+                return new MockResponse()
+                        .addHeader("Content-Type", "application/json; charset=utf-8")
+                        .setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        final List<Integer> callbacks = Collections.synchronizedList(new ArrayList<Integer>());
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasCategory(UpdateCheckService.UPDATE_UNAVAILABLE)) {
+                    callbacks.add(intent.getIntExtra(UpdateCheckService.EXTRA_CALLBACK, -1));
+                }
+            }
+        };
+        manager.registerReceiver(receiver, UpdateCheckService.ACTION_CHECK_FILTER);
+        UpdateDetailsRequest request = new UpdateDetailsRequest.Builder()
+                .unitId("12")
+                .versionId("v0.1")
+                .build();
+        for (int i = 1; i <= 2; i++) {
+            service.onStartCommand(
+                    new Intent(UpdateCheckService.ACTION_CHECK)
+                            .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                            .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                            .putExtra(UpdateCheckService.EXTRA_REQUEST, request)
+                            .putExtra(UpdateCheckService.EXTRA_CALLBACK, i),
+                    0,
+                    i
+            );
+        }
+        awaitStopped();
+        manager.unregisterReceiver(receiver);
+        // Both callbacks are answered by a single request
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(2, callbacks.size());
+        Assert.assertTrue(callbacks.containsAll(Arrays.asList(1, 2)));
+    }
+
+    private static long subscribe(final List<Long> results) {
+        final long id = CallbackBus.nextId();
+        UpdateCheckService.getCallbackBus().subscribe(id, new UpdateCheckCallback() {
+            @Override
+            public void onUpdateAvailable(UpdateDetailsRequest request, UpdateDetails details) {
+                results.add(id);
+            }
+
+            @Override
+            public void onUpdateUnavailable(UpdateDetailsRequest request) {
+                results.add(id);
+            }
+
+            @Override
+            public void onUpdateRequestError(UpdateDetailsRequest request, Throwable t) {
+                results.add(id);
+            }
+        }, null);
+        return id;
+    }
+
+    @Test
+    public void cancelledRequests() throws InterruptedException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // The call nobody waits for stalls, the shared one is still in progress when the requests are cancelled
+                Thread.sleep(request.getBody().readUtf8().contains("\"13\"") ? 5000 : 300);
+                return new MockResponse().setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        List<Long> results = Collections.synchronizedList(new ArrayList<Long>());
+        UpdateDetailsRequest request = new UpdateDetailsRequest.Builder()
+                .unitId("12")
+                .versionId("v0.1")
+                .build();
+        UpdateDetailsRequest other = new UpdateDetailsRequest.Builder()
+                .unitId("13")
+                .versionId("v0.1")
+                .build();
+        long[] ids = {subscribe(results), subscribe(results), subscribe(results)};
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ids.length; i++) {
+            service.onStartCommand(
+                    new Intent(UpdateCheckService.ACTION_CHECK)
+                            .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                            .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                            .putExtra(UpdateCheckService.EXTRA_REQUEST, i == 2 ? other : request)
+                            .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, ids[i]),
+                    0,
+                    i + 1
+            );
+        }
+        service.onStartCommand(new Intent(UpdateCheckService.ACTION_CANCEL_CHECK).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, ids[0]), 0, 4);
+        service.onStartCommand(new Intent(UpdateCheckService.ACTION_CANCEL_CHECK).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, ids[2]), 0, 5);
+        awaitStopped();
+        // The shared call still answers the second request, the call nobody waits for is aborted
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(Collections.singletonList(ids[1]), results);
+        for (long id : ids) {
+            Assert.assertFalse(UpdateCheckService.getCallbackBus().isSubscribed(id));
+        }
+    }
+
+    private void awaitStopped() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Shadows.shadowOf(service).isStoppedBySelf() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Shadows.shadowOf(service).isStoppedBySelf());
+    }
+
+    @Test
+    public void conditionalRequests() throws IOException, InterruptedException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(
+                new MockResponse()
+                        .addHeader("Content-Type", "application/json; charset=utf-8")
+                        .addHeader("ETag", "\"v1\"")
+                        .setResponseCode(200)
+                        .setBody(readResource("update_check_response_success.json"))
+        );
+        server.enqueue(new MockResponse().setResponseCode(304));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        UpdateDetailsRequest request = new UpdateDetailsRequest.Builder()
+                .unitId("12")
+                .versionId("v0.1")
+                .build();
+        Intent intent = new Intent(UpdateCheckService.ACTION_CHECK)
+                .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                .putExtra(UpdateCheckService.EXTRA_REQUEST, request);
+        final List<Intent> results = new ArrayList<>();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                results.add(intent);
+            }
+        };
+        manager.registerReceiver(receiver, UpdateCheckService.ACTION_CHECK_FILTER);
+
+        service.onHandleIntent(intent);
+        Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+        Assert.assertEquals(1, results.size());
+        Assert.assertTrue(results.get(0).hasCategory(UpdateCheckService.UPDATE_AVAILABLE));
+        Assert.assertFalse(results.get(0).getBooleanExtra(UpdateCheckService.EXTRA_UNCHANGED, true));
+
+        // The platform has nothing new, the previous result is replayed
+        service.onHandleIntent(intent);
+        Assert.assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(1).hasCategory(UpdateCheckService.UPDATE_AVAILABLE));
+        Assert.assertTrue(results.get(1).getBooleanExtra(UpdateCheckService.EXTRA_UNCHANGED, false));
+        UpdateDetailsTest.assertValues((UpdateDetails) results.get(1).getParcelableExtra(UpdateCheckService.EXTRA_UPDATE_DETAILS));
+
+        // Unchanged results are left out when only the changes are requested, the receivers still learn that the request is over
+        service.onHandleIntent(new Intent(intent).putExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, true));
+        Assert.assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+        Assert.assertEquals(3, results.size());
+        Assert.assertTrue(results.get(2).hasCategory(UpdateCheckService.UPDATE_UNCHANGED));
+        Assert.assertFalse(results.get(2).hasCategory(UpdateCheckService.UPDATE_AVAILABLE));
+        Assert.assertFalse(results.get(2).hasExtra(UpdateCheckService.EXTRA_UPDATE_DETAILS));
+        manager.unregisterReceiver(receiver);
+    }
+
+    @Test
+    public void batchRequests() throws IOException, InterruptedException {
+        String details = readResource("update_check_response_success.json");
+        MockWebServer server = new MockWebServer();
+        server.enqueue(
+                new MockResponse()
+                        .addHeader("Content-Type", "application/json; charset=utf-8")
+                        .setBody("[{\"index\":1,\"updateDetails\":null},{\"index\":0,\"updateDetails\":" + details + "}]")
+        );
+        server.enqueue(
+                new MockResponse()
+                        .addHeader("Content-Type", "application/json; charset=utf-8")
+                        .setBody("[{\"index\":0,\"error\":\"Unknown unit\"}]")
+        );
+        final List<Intent> results = new ArrayList<>();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                results.add(intent);
+            }
+        };
+        manager.registerReceiver(receiver, UpdateCheckService.ACTION_CHECK_FILTER);
+        service.onHandleIntent(
+                new Intent(UpdateCheckService.ACTION_CHECK_BATCH)
+                        .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                        .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                        .putExtra(UpdateCheckService.EXTRA_MAX_BATCH_SIZE, 2)
+                        .putParcelableArrayListExtra(UpdateCheckService.EXTRA_REQUESTS, batch(3))
+        );
+        manager.unregisterReceiver(receiver);
+
+        // Three requests split in two calls, each result is notified with its own request
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertEquals("/" + UpdateCheckApi.ENDPOINT_BATCH, server.takeRequest().getPath());
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals("unit1", results.get(0).<UpdateDetailsRequest>getParcelableExtra(UpdateCheckService.EXTRA_REQUEST).getUnitId());
+        Assert.assertTrue(results.get(0).hasCategory(UpdateCheckService.UPDATE_UNAVAILABLE));
+        Assert.assertEquals("unit0", results.get(1).<UpdateDetailsRequest>getParcelableExtra(UpdateCheckService.EXTRA_REQUEST).getUnitId());
+        UpdateDetailsTest.assertValues((UpdateDetails) results.get(1).getParcelableExtra(UpdateCheckService.EXTRA_UPDATE_DETAILS));
+        Assert.assertEquals("unit2", results.get(2).<UpdateDetailsRequest>getParcelableExtra(UpdateCheckService.EXTRA_REQUEST).getUnitId());
+        Assert.assertTrue(results.get(2).hasCategory(UpdateCheckService.UPDATE_REQUEST_ERROR));
+    }
+
+    @Test
+    public void batchOnChange() throws IOException {
+        String details = readResource("update_check_response_success.json");
+        MockResponse response = new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody("[{\"index\":0,\"updateDetails\":" + details + "},{\"index\":1,\"updateDetails\":null}]");
+        MockWebServer server = new MockWebServer();
+        server.enqueue(response);
+        server.enqueue(response);
+        final List<Intent> results = new ArrayList<>();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                results.add(intent);
+            }
+        };
+        manager.registerReceiver(receiver, UpdateCheckService.ACTION_CHECK_FILTER);
+        Intent intent = new Intent(UpdateCheckService.ACTION_CHECK_BATCH)
+                .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                .putExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, true)
+                .putParcelableArrayListExtra(UpdateCheckService.EXTRA_REQUESTS, batch(2));
+        service.onHandleIntent(intent);
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(0).hasCategory(UpdateCheckService.UPDATE_AVAILABLE));
+        Assert.assertTrue(results.get(1).hasCategory(UpdateCheckService.UPDATE_UNAVAILABLE));
+
+        // The same results again are left out
+        service.onHandleIntent(intent);
+        manager.unregisterReceiver(receiver);
+        Assert.assertEquals(4, results.size());
+        Assert.assertTrue(results.get(2).hasCategory(UpdateCheckService.UPDATE_UNCHANGED));
+        Assert.assertTrue(results.get(3).hasCategory(UpdateCheckService.UPDATE_UNCHANGED));
+    }
+
+    @Test
+    public void batchFallback() {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().endsWith(UpdateCheckApi.ENDPOINT_BATCH)) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                return new MockResponse().setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        final List<Intent> results = Collections.synchronizedList(new ArrayList<Intent>());
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                results.add(intent);
+            }
+        };
+        manager.registerReceiver(receiver, UpdateCheckService.ACTION_CHECK_FILTER);
+        Intent intent = new Intent(UpdateCheckService.ACTION_CHECK_BATCH)
+                .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                .putParcelableArrayListExtra(UpdateCheckService.EXTRA_REQUESTS, batch(5));
+        service.onHandleIntent(intent);
+        Assert.assertEquals(6, server.getRequestCount());
+        Assert.assertEquals(5, results.size());
+        for (Intent result : results) {
+            Assert.assertTrue(result.hasCategory(UpdateCheckService.UPDATE_UNAVAILABLE));
+        }
+
+        // The missing batch endpoint is remembered
+        service.onHandleIntent(intent);
+        manager.unregisterReceiver(receiver);
+        Assert.assertEquals(11, server.getRequestCount());
+        Assert.assertEquals(10, results.size());
+    }
+
+    @Test
+    public void callbackBus() {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setStatus("HTTP/1.1 204 No content"));
+        final List<UpdateDetailsRequest> unavailable = new ArrayList<>();
+        long id = CallbackBus.nextId();
+        UpdateCheckService.getCallbackBus().subscribe(id, new UpdateCheckCallback() {
+            @Override
+            public void onUpdateAvailable(UpdateDetailsRequest request, UpdateDetails details) {
+            }
+
+            @Override
+            public void onUpdateUnavailable(UpdateDetailsRequest request) {
+                unavailable.add(request);
+            }
+
+            @Override
+            public void onUpdateRequestError(UpdateDetailsRequest request, Throwable t) {
+            }
+        }, null);
+        CallbackSuccess broadcast = new CallbackSuccess();
+        manager.registerReceiver(broadcast, UpdateCheckService.ACTION_CHECK_FILTER);
+        UpdateDetailsRequest request = new UpdateDetailsRequest.Builder()
+                .unitId("12")
+                .versionId("v0.1")
+                .build();
+        service.onHandleIntent(
+                new Intent(UpdateCheckService.ACTION_CHECK)
+                        .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                        .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST, request)
+        );
+        manager.unregisterReceiver(broadcast);
+        // The subscription is released once the result is delivered
+        Assert.assertFalse(UpdateCheckService.getCallbackBus().isSubscribed(id));
+        // The result is delivered directly, nothing is broadcast
+        Assert.assertEquals(1, unavailable.size());
+        Assert.assertSame(request, unavailable.get(0));
+        Assert.assertFalse(broadcast.called);
+    }
+
+    private static ArrayList<UpdateDetailsRequest> batch(int size) {
+        ArrayList<UpdateDetailsRequest> requests = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            requests.add(new UpdateDetailsRequest.Builder().unitId("unit" + i).versionId("v0.1").build());
+        }
+        return requests;
+    }
+
+    private static String readResource(String name) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(ClassLoader.getSystemResource(name).getPath())));
+        try {
+            StringBuilder builder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
     @Test
     public void noUpdateResponse() {
         MockWebServer server = new MockWebServer();
@@ -198,6 +574,306 @@ public class UpdateCheckServiceTest {
         manager.unregisterReceiver(testCallback);
     }
 
+    private static final class ErrorCallback implements UpdateCheckCallback {
+        boolean unavailable = false;
+        Throwable error = null;
+
+        @Override
+        public void onUpdateAvailable(UpdateDetailsRequest request, UpdateDetails details) {
+
+        }
+
+        @Override
+        public void onUpdateUnavailable(UpdateDetailsRequest request) {
+            unavailable = true;
+        }
+
+        @Override
+        public void onUpdateRequestError(UpdateDetailsRequest request, Throwable t) {
+            error = t;
+        }
+    }
+
+    private ErrorCallback check(MockWebServer server) {
+        return check(server, 0);
+    }
+
+    private ErrorCallback check(MockWebServer server, long deadline) {
+        ErrorCallback callback = new ErrorCallback();
+        long id = CallbackBus.nextId();
+        UpdateCheckService.getCallbackBus().subscribe(id, callback, null);
+        service.onHandleIntent(
+                new Intent(UpdateCheckService.ACTION_CHECK)
+                        .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                        .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST, new UpdateDetailsRequest.Builder().unitId("12").versionId("v0.1").build())
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
+                        .putExtra(UpdateCheckService.EXTRA_DEADLINE, deadline)
+        );
+        return callback;
+    }
+
+    @Test
+    public void retriedResponse() {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse().setStatus("HTTP/1.1 204 No content"));
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .retryPolicy(new RetryPolicy.Builder().baseDelay(10).maxDelay(100).build())
+                .build());
+        try {
+            ErrorCallback callback = check(server);
+            Assert.assertTrue(callback.unavailable);
+            Assert.assertEquals(2, server.getRequestCount());
+        } finally {
+            HttpEngine.configure(null);
+        }
+    }
+
+    @Test
+    public void circuitOpen() {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .retryPolicy(new RetryPolicy.Builder().maxAttempts(2).baseDelay(10).maxDelay(100).failureThreshold(2).build())
+                .build());
+        try {
+            ErrorCallback callback = check(server);
+            Assert.assertTrue(callback.error instanceof RetryException);
+            Assert.assertEquals(2, ((RetryException) callback.error).getAttempts());
+            Assert.assertEquals(500, ((HttpStatusException) callback.error.getCause()).getCode());
+
+            // The platform is known to be down, the next check fails without reaching it
+            callback = check(server);
+            Assert.assertTrue(callback.error instanceof CircuitOpenException);
+            Assert.assertEquals(2, server.getRequestCount());
+        } finally {
+            HttpEngine.configure(null);
+        }
+    }
+
+    @Test
+    public void hedgedCheck() {
+        final AtomicInteger requests = new AtomicInteger();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (requests.incrementAndGet() == 1) {
+                    Thread.sleep(2000);
+                }
+                return new MockResponse().setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .hedgingPolicy(new HedgingPolicy.Builder().minDelay(0).minSamples(1).build())
+                .build());
+        try {
+            Hedger hedger = HttpEngine.getInstance().getHedger();
+            hedger.getLatencies().record(100);
+            ErrorCallback callback = check(server);
+            Assert.assertTrue(callback.unavailable);
+            Assert.assertEquals(2, server.getRequestCount());
+            Assert.assertEquals(1, hedger.getHedgesSent());
+            Assert.assertEquals(1, hedger.getHedgesWon());
+        } finally {
+            HttpEngine.configure(null);
+        }
+    }
+
+    @Test
+    public void checkDeadline() {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // A stalled server
+                Thread.sleep(5000);
+                return new MockResponse().setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        long start = System.currentTimeMillis();
+        ErrorCallback callback = check(server, Deadline.after(300));
+        Assert.assertTrue(callback.error instanceof DeadlineExceededException);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+
+        // The retries are bounded by the deadline as well
+        server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "1"));
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .retryPolicy(new RetryPolicy.Builder().baseDelay(10).maxDelay(5000).build())
+                .build());
+        try {
+            callback = check(server, Deadline.after(500));
+            Assert.assertTrue(callback.error instanceof DeadlineExceededException);
+            Assert.assertTrue(callback.error.getCause() instanceof HttpStatusException);
+            Assert.assertEquals(1, server.getRequestCount());
+        } finally {
+            HttpEngine.configure(null);
+        }
+    }
+
+    @Test
+    public void coalescedDeadlines() throws InterruptedException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(1000);
+                return new MockResponse().setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Long> unavailable = Collections.synchronizedList(new ArrayList<Long>());
+        UpdateDetailsRequest request = new UpdateDetailsRequest.Builder()
+                .unitId("12")
+                .versionId("v0.1")
+                .build();
+        long[] deadlines = {Deadline.after(300), Deadline.after(5000)};
+        long[] ids = new long[deadlines.length];
+        for (int i = 0; i < deadlines.length; i++) {
+            final long id = CallbackBus.nextId();
+            ids[i] = id;
+            UpdateCheckService.getCallbackBus().subscribe(id, new UpdateCheckCallback() {
+                @Override
+                public void onUpdateAvailable(UpdateDetailsRequest request, UpdateDetails details) {
+                }
+
+                @Override
+                public void onUpdateUnavailable(UpdateDetailsRequest request) {
+                    unavailable.add(id);
+                }
+
+                @Override
+                public void onUpdateRequestError(UpdateDetailsRequest request, Throwable t) {
+                    errors.add(t);
+                }
+            }, null);
+            service.onStartCommand(
+                    new Intent(UpdateCheckService.ACTION_CHECK)
+                            .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                            .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                            .putExtra(UpdateCheckService.EXTRA_REQUEST, request)
+                            .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
+                            .putExtra(UpdateCheckService.EXTRA_DEADLINE, deadlines[i]),
+                    0,
+                    i + 1
+            );
+        }
+        awaitStopped();
+        // The requests share a call, the first one fails on its own deadline while the call goes on for the second one
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(1, errors.size());
+        Assert.assertTrue(errors.get(0) instanceof DeadlineExceededException);
+        Assert.assertEquals(Collections.singletonList(ids[1]), unavailable);
+    }
+
+    @Test
+    public void asyncLoad() throws InterruptedException {
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().endsWith(UpdateCheckApi.ENDPOINT_BATCH)) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                int current = inProgress.incrementAndGet();
+                while (current > maxInProgress.get() && !maxInProgress.compareAndSet(maxInProgress.get(), current)) {
+                    // Keep the highest value
+                }
+                // A slow platform
+                Thread.sleep(20);
+                inProgress.decrementAndGet();
+                return new MockResponse().setStatus("HTTP/1.1 204 No content");
+            }
+        });
+        HttpEngine.configure(new HttpConfiguration.Builder()
+                .maxRequests(4)
+                .maxRequestsPerHost(4)
+                .workerThreads(2)
+                .build());
+        final AtomicInteger unavailable = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        UpdateCheckCallback callback = new UpdateCheckCallback() {
+            @Override
+            public void onUpdateAvailable(UpdateDetailsRequest request, UpdateDetails details) {
+            }
+
+            @Override
+            public void onUpdateUnavailable(UpdateDetailsRequest request) {
+                unavailable.incrementAndGet();
+            }
+
+            @Override
+            public void onUpdateRequestError(UpdateDetailsRequest request, Throwable t) {
+                errors.incrementAndGet();
+            }
+        };
+        long id = CallbackBus.nextId();
+        UpdateCheckService.getCallbackBus().subscribe(id, callback, null);
+        // The idle threads of the previous engines are left out
+        final Set<Thread> previous = new HashSet<>(Thread.getAllStackTraces().keySet());
+        final Set<Thread> threads = new HashSet<>();
+        final Thread sampler = new Thread() {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                        if (thread.getName().startsWith("HttpEngine-") && !previous.contains(thread)) {
+                            threads.add(thread);
+                        }
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        sampler.start();
+        try {
+            service.onHandleIntent(
+                    new Intent(UpdateCheckService.ACTION_CHECK_BATCH)
+                            .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                            .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                            .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
+                            .putExtra(UpdateCheckService.EXTRA_MAX_BATCH_SIZE, 200)
+                            .putParcelableArrayListExtra(UpdateCheckService.EXTRA_REQUESTS, batch(200))
+            );
+            // The single checks do not hold a thread either
+            List<UpdateDetailsRequest> singles = batch(300).subList(200, 300);
+            for (int i = 0; i < singles.size(); i++) {
+                long single = CallbackBus.nextId();
+                UpdateCheckService.getCallbackBus().subscribe(single, callback, null);
+                service.onStartCommand(
+                        new Intent(UpdateCheckService.ACTION_CHECK)
+                                .putExtra(UpdateCheckService.EXTRA_URL, server.url("/").toString())
+                                .putExtra(UpdateCheckService.EXTRA_API_KEY, "mandatory")
+                                .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, single)
+                                .putExtra(UpdateCheckService.EXTRA_REQUEST, singles.get(i)),
+                        0,
+                        i + 1
+                );
+            }
+            awaitStopped();
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+            HttpEngine.configure(null);
+        }
+        // Every result is delivered, while the number of threads stays bounded by the engine
+        Assert.assertEquals(300, unavailable.get());
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(301, server.getRequestCount());
+        Assert.assertTrue(maxInProgress.get() <= 4);
+        Assert.assertFalse(threads.isEmpty());
+        Assert.assertTrue(threads.size() <= 4 + 2);
+    }
+
     @After
     public void finish() {
         controller.destroy();
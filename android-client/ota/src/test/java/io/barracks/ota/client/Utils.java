@@ -23,12 +23,17 @@ import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
 
 import io.barracks.ota.client.api.UpdateDetails;
+import io.barracks.ota.client.download.DeltaPatch;
 
 /**
  * Created by saiimons on 16-04-12.
@@ -75,10 +80,54 @@ public class Utils {
                 ).create();
     }
 
-    public static UpdateDetails getUpdateDetailsFromFile(String filename) throws FileNotFoundException {
+    public static Gson getUpdateCheckGson() {
         UpdateCheckService checkService = new UpdateCheckService();
-        Gson gson = Utils.getRobolectricGson(checkService.setUpGsonBuilder(new GsonBuilder()));
+        return Utils.getRobolectricGson(checkService.setUpGsonBuilder(new GsonBuilder()));
+    }
+
+    public static UpdateDetails getUpdateDetailsFromFile(String filename) throws FileNotFoundException {
+        Gson gson = getUpdateCheckGson();
         File f = new File(ClassLoader.getSystemResource(filename).getPath());
         return gson.fromJson(new FileReader(f), UpdateDetails.class);
     }
+
+    /**
+     * Creates a patch rebuilding <code>target</code> from <code>base</code>.
+     *
+     * @param controls The control tuples : diff length, extra length and seek in the base.
+     */
+    public static byte[] createPatch(byte[] base, byte[] target, long[]... controls) throws IOException {
+        if (controls.length == 0) {
+            int common = Math.min(base.length, target.length);
+            controls = new long[][]{{common, target.length - common, 0}};
+        }
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write(DeltaPatch.MAGIC.getBytes("US-ASCII"));
+        writeOffset(patch, target.length);
+        DeflaterOutputStream out = new DeflaterOutputStream(patch);
+        int oldPos = 0;
+        int newPos = 0;
+        for (long[] control : controls) {
+            for (long value : control) {
+                writeOffset(out, value);
+            }
+            for (int i = 0; i < control[0]; i++) {
+                int old = oldPos + i >= 0 && oldPos + i < base.length ? base[oldPos + i] : 0;
+                out.write(target[newPos + i] - old);
+            }
+            out.write(target, newPos + (int) control[0], (int) control[1]);
+            newPos += control[0] + control[1];
+            oldPos += control[0] + control[2];
+        }
+        out.close();
+        return patch.toByteArray();
+    }
+
+    private static void writeOffset(OutputStream out, long value) throws IOException {
+        long magnitude = Math.abs(value);
+        for (int i = 0; i < 8; i++) {
+            int b = (int) ((magnitude >> (8 * i)) & 0xff);
+            out.write(i == 7 && value < 0 ? b | 0x80 : b);
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package io.barracks.ota.client.api;
 
+import android.os.Bundle;
 import android.os.Parcel;
 
 import com.google.gson.ExclusionStrategy;
@@ -32,8 +33,10 @@ import org.robolectric.annotation.Config;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
 import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.Utils;
 
 /**
  * Created by saiimons on 16-04-06.
@@ -77,6 +80,26 @@ public class UpdateDetailsTest {
         assertValues(response);
     }
 
+    @Test
+    public void builder() {
+        Bundle customUpdateData = new Bundle();
+        customUpdateData.putString("string", "toto");
+        UpdateDetails response = new UpdateDetails.Builder()
+                .versionId("42")
+                .packageInfo(
+                        new PackageInfo.Builder()
+                                .url("http://barracks.io/")
+                                .md5("deadbeef")
+                                .size(21432144324324322L)
+                                .build()
+                )
+                .customUpdateData(customUpdateData)
+                .build();
+        assertValues(response);
+        Assert.assertEquals("toto", response.getCustomUpdateData().getString("string"));
+        Assert.assertNotNull(new UpdateDetails.Builder().build().getCustomUpdateData());
+    }
+
     @Test
     public void parcel() throws IOException {
         UpdateDetails response = parseFromResources();
@@ -90,4 +113,69 @@ public class UpdateDetailsTest {
         assertValues(response);
     }
 
+    @Test
+    public void patch() {
+        UpdateDetails response = new UpdateDetails.Builder()
+                .versionId("42")
+                .packageInfo(
+                        new PackageInfo.Builder()
+                                .url("http://barracks.io/")
+                                .md5("deadbeef")
+                                .size(21432144324324322L)
+                                .patch(new PatchInfo.Builder()
+                                        .versionId("41")
+                                        .baseMd5("cafebabe")
+                                        .url("http://barracks.io/patch")
+                                        .md5("deadc0de")
+                                        .size(1024L)
+                                        .build())
+                                .build()
+                )
+                .build();
+        Parcel parcel = Parcel.obtain();
+        response.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        response = UpdateDetails.CREATOR.createFromParcel(parcel);
+        assertValues(response);
+        PatchInfo patch = response.getPackageInfo().getPatch();
+        Assert.assertEquals("41", patch.getVersionId());
+        Assert.assertEquals("cafebabe", patch.getBaseMd5());
+        Assert.assertEquals("http://barracks.io/patch", patch.getUrl());
+        Assert.assertEquals("deadc0de", patch.getMd5());
+        Assert.assertEquals(1024L, patch.getSize().longValue());
+
+        // The patch is kept along with the response of a conditional check
+        Gson gson = Utils.getUpdateCheckGson();
+        response = gson.fromJson(gson.toJson(response, UpdateDetails.class), UpdateDetails.class);
+        Assert.assertEquals("cafebabe", response.getPackageInfo().getPatch().getBaseMd5());
+        Assert.assertEquals(1024L, response.getPackageInfo().getPatch().getSize().longValue());
+    }
+
+    @Test
+    public void mirrors() throws IOException {
+        UpdateDetails response = new UpdateDetails.Builder()
+                .versionId("42")
+                .packageInfo(
+                        new PackageInfo.Builder()
+                                .url("http://barracks.io/")
+                                .md5("deadbeef")
+                                .size(21432144324324322L)
+                                .mirror("http://eu.barracks.io/")
+                                .mirror("http://us.barracks.io/")
+                                .build()
+                )
+                .build();
+        Parcel parcel = Parcel.obtain();
+        response.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        response = UpdateDetails.CREATOR.createFromParcel(parcel);
+        assertValues(response);
+        Assert.assertEquals(Arrays.asList("http://eu.barracks.io/", "http://us.barracks.io/"), response.getPackageInfo().getMirrors());
+
+        // The mirrors are kept in order along with the response of a conditional check
+        Gson gson = Utils.getUpdateCheckGson();
+        response = gson.fromJson(gson.toJson(response, UpdateDetails.class), UpdateDetails.class);
+        Assert.assertEquals(Arrays.asList("http://eu.barracks.io/", "http://us.barracks.io/"), response.getPackageInfo().getMirrors());
+        Assert.assertTrue(parseFromResources().getPackageInfo().getMirrors().isEmpty());
+    }
 }
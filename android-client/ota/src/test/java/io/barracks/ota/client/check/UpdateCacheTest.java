@@ -0,0 +1,70 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.check;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class UpdateCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putAndGet() {
+        File directory = new File(folder.getRoot(), "checks");
+        UpdateCache cache = new UpdateCache(directory);
+        Assert.assertNull(cache.get("key"));
+        cache.put("key", new UpdateCache.Entry("\"v1\"", "{\"versionId\":\"42\"}"));
+        Assert.assertEquals("\"v1\"", cache.get("key").getEtag());
+
+        // The entries are reloaded from the disk by a new instance
+        cache = new UpdateCache(directory);
+        UpdateCache.Entry entry = cache.get("key");
+        Assert.assertNotNull(entry);
+        Assert.assertEquals("\"v1\"", entry.getEtag());
+        Assert.assertEquals("{\"versionId\":\"42\"}", entry.getBody());
+        Assert.assertNull(cache.get("other"));
+    }
+
+    @Test
+    public void noValidator() {
+        File directory = new File(folder.getRoot(), "checks");
+        new UpdateCache(directory).put("key", new UpdateCache.Entry(null, "null"));
+        UpdateCache.Entry entry = new UpdateCache(directory).get("key");
+        Assert.assertNull(entry.getEtag());
+        Assert.assertEquals("null", entry.getBody());
+    }
+
+    @Test
+    public void clear() {
+        File directory = new File(folder.getRoot(), "checks");
+        UpdateCache cache = new UpdateCache(directory);
+        cache.put("key", new UpdateCache.Entry("\"v1\"", "null"));
+        cache.clear();
+        Assert.assertNull(cache.get("key"));
+        Assert.assertNull(new UpdateCache(directory).get("key"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidValidator() {
+        new UpdateCache.Entry("\"v1\"\nnull", "null");
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.dispatch;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.barracks.client.ota.BuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CallbackBusTest {
+    private final CallbackBus<List<String>> bus = new CallbackBus<>();
+
+    private static CallbackBus.Event<List<String>> event(final String value) {
+        return new CallbackBus.Event<List<String>>() {
+            @Override
+            public void deliver(List<String> subscriber) {
+                subscriber.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void directDelivery() {
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        long firstId = CallbackBus.nextId();
+        long secondId = CallbackBus.nextId();
+        Assert.assertNotEquals(firstId, secondId);
+        bus.subscribe(firstId, first, null);
+        bus.subscribe(secondId, second, null);
+
+        Assert.assertTrue(bus.publish(firstId, event("one")));
+        Assert.assertTrue(bus.publish(secondId, event("two")));
+        Assert.assertEquals(1, first.size());
+        Assert.assertEquals("two", second.get(0));
+
+        bus.unsubscribe(firstId);
+        Assert.assertFalse(bus.isSubscribed(firstId));
+        Assert.assertFalse(bus.publish(firstId, event("three")));
+        Assert.assertEquals(1, first.size());
+    }
+
+    @Test
+    public void handlerDelivery() {
+        HandlerThread thread = new HandlerThread("bus");
+        thread.start();
+        List<String> subscriber = new ArrayList<>();
+        long id = CallbackBus.nextId();
+        bus.subscribe(id, subscriber, new Handler(thread.getLooper()));
+
+        bus.publish(id, event("one"));
+        bus.publish(id, event("two"));
+        // Events are delivered on the looper of the handler
+        Assert.assertTrue(subscriber.isEmpty());
+        Shadows.shadowOf(thread.getLooper()).runOneTask();
+        Assert.assertEquals(1, subscriber.size());
+
+        // Pending events are dropped once unsubscribed
+        bus.unsubscribe(id);
+        Shadows.shadowOf(thread.getLooper()).runToEndOfTasks();
+        Assert.assertEquals(1, subscriber.size());
+        thread.quit();
+    }
+
+    @Test
+    public void completeAndOwners() {
+        HandlerThread thread = new HandlerThread("bus");
+        thread.start();
+        Object owner = new Object();
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        long firstId = CallbackBus.nextId();
+        long secondId = CallbackBus.nextId();
+        bus.subscribe(firstId, owner, first, new Handler(thread.getLooper()));
+        bus.subscribe(secondId, owner, second, new Handler(thread.getLooper()));
+
+        // Completed subscriptions still receive the events already published
+        bus.publish(firstId, event("one"));
+        bus.complete(firstId);
+        Assert.assertFalse(bus.isSubscribed(firstId));
+        Assert.assertFalse(bus.publish(firstId, event("two")));
+        Shadows.shadowOf(thread.getLooper()).runToEndOfTasks();
+        Assert.assertEquals(1, first.size());
+
+        bus.publish(secondId, event("one"));
+        bus.unsubscribeAll(owner);
+        Assert.assertFalse(bus.isSubscribed(secondId));
+        Shadows.shadowOf(thread.getLooper()).runToEndOfTasks();
+        Assert.assertTrue(second.isEmpty());
+        thread.quit();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.dispatch;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.PackageDownloadService;
+import io.barracks.ota.client.UpdateCheckService;
+import io.barracks.ota.client.api.UpdateDetailsRequest;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JobJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Intent check(String unitId) {
+        return new Intent(UpdateCheckService.ACTION_CHECK)
+                .setComponent(new ComponentName(RuntimeEnvironment.application, UpdateCheckService.class))
+                .putExtra(UpdateCheckService.EXTRA_REQUEST, new UpdateDetailsRequest.Builder().unitId(unitId).versionId("42").build());
+    }
+
+    @Test
+    public void persistence() throws IOException {
+        File file = new File(folder.getRoot(), "jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        long first = journal.add(check("HAL"));
+        long second = journal.add(check("R2D2"));
+        long third = journal.add(new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE));
+        Assert.assertNotEquals(first, second);
+        journal.remove(second);
+        journal.setState(third, JobJournal.STATE_PAUSED);
+        journal.setOffset(third, 1024);
+        journal.commit();
+
+        // The jobs which are not over are read back by a new instance
+        journal = new JobJournal(file);
+        List<JobJournal.Job> jobs = journal.getJobs();
+        Assert.assertEquals(2, jobs.size());
+        Assert.assertEquals(first, jobs.get(0).getId());
+        Assert.assertEquals(JobJournal.STATE_PENDING, jobs.get(0).getState());
+        Intent intent = jobs.get(0).getIntent();
+        Assert.assertEquals(UpdateCheckService.ACTION_CHECK, intent.getAction());
+        Assert.assertEquals(UpdateCheckService.class.getName(), intent.getComponent().getClassName());
+        Assert.assertEquals(first, intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0));
+        UpdateDetailsRequest request = intent.getParcelableExtra(UpdateCheckService.EXTRA_REQUEST);
+        Assert.assertEquals("HAL", request.getUnitId());
+        Assert.assertEquals(third, jobs.get(1).getId());
+        Assert.assertEquals(JobJournal.STATE_PAUSED, jobs.get(1).getState());
+        Assert.assertEquals(1024, jobs.get(1).getOffset());
+
+        // The identifiers are not given again
+        Assert.assertTrue(journal.add(check("HAL")) > third);
+    }
+
+    @Test
+    public void groupCommit() throws IOException, InterruptedException {
+        File file = new File(folder.getRoot(), "jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        // The log is compacted once it has been read
+        Assert.assertTrue(journal.getJobs().isEmpty());
+        long length = file.length();
+        for (int i = 0; i < 100; i++) {
+            journal.remove(journal.add(check("unit" + i)));
+        }
+        // Nothing is written until the records are committed together
+        Assert.assertEquals(length, file.length());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.length() == length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertNotEquals(length, file.length());
+
+        // A large log is compacted
+        for (int i = 0; i < 300; i++) {
+            journal.remove(journal.add(check("unit" + i)));
+        }
+        journal.commit();
+        Assert.assertTrue(file.length() < length + 8);
+        Assert.assertTrue(new JobJournal(file).getJobs().isEmpty());
+    }
+
+    @Test
+    public void truncatedRecord() throws IOException {
+        File file = new File(folder.getRoot(), "jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        long id = journal.add(check("HAL"));
+        journal.commit();
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            fos.write(("done " + id).getBytes("UTF-8"));
+            fos.write("\nadd 12 AAAA".getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        // The complete record is applied, the truncated one is skipped
+        Assert.assertTrue(new JobJournal(file).getJobs().isEmpty());
+
+        fos = new FileOutputStream(file);
+        try {
+            fos.write("not a journal\n".getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        Assert.assertTrue(new JobJournal(file).getJobs().isEmpty());
+    }
+
+    @Test
+    public void replay() throws Exception {
+        File file = new File(folder.getRoot(), "jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        long pending = journal.add(check("HAL"));
+        long paused = journal.add(check("R2D2"));
+        journal.setState(paused, JobJournal.STATE_PAUSED);
+        journal.commit();
+        // Jobs recorded by this process are not replayed
+        Assert.assertEquals(0, journal.replay(RuntimeEnvironment.application).get().intValue());
+
+        journal = new JobJournal(file);
+        long added = journal.add(check("C3PO"));
+        Assert.assertEquals(1, journal.replay(RuntimeEnvironment.application).get().intValue());
+        Intent intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        Assert.assertEquals(UpdateCheckService.class.getName(), intent.getComponent().getClassName());
+        Assert.assertEquals(pending, intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0));
+        Assert.assertTrue(intent.getBooleanExtra(JobJournal.EXTRA_REPLAYED, false));
+        Assert.assertNull(Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService());
+        // The paused job is forgotten, the replayed one stays until it is over
+        List<JobJournal.Job> jobs = journal.getJobs();
+        Assert.assertEquals(2, jobs.size());
+        Assert.assertEquals(pending, jobs.get(0).getId());
+        Assert.assertEquals(added, jobs.get(1).getId());
+        Assert.assertEquals(0, journal.replay(RuntimeEnvironment.application).get().intValue());
+    }
+
+    @Test
+    public void apiKeyNotWritten() throws Exception {
+        File file = new File(folder.getRoot(), "jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        long id = journal.add(check("HAL").putExtra(UpdateCheckService.EXTRA_API_KEY, "secret"));
+        journal.commit();
+
+        // The key is not read back, the job is replayed with the key registered by this process
+        journal = new JobJournal(file);
+        Assert.assertNull(journal.getJobs().get(0).getIntent().getStringExtra(UpdateCheckService.EXTRA_API_KEY));
+        Assert.assertEquals(1, journal.replay(RuntimeEnvironment.application).get().intValue());
+        Intent intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        Assert.assertEquals(id, intent.getLongExtra(JobJournal.EXTRA_JOB_ID, 0));
+        Assert.assertEquals("secret", intent.getStringExtra(UpdateCheckService.EXTRA_API_KEY));
+    }
+}
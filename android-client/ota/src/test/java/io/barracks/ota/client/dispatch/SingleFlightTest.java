@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.dispatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SingleFlightTest {
+
+    @Test
+    public void joinAndLand() {
+        SingleFlight<Integer> flights = new SingleFlight<>();
+        Assert.assertFalse(flights.join("a", 1));
+        Assert.assertTrue(flights.join("a", 2));
+        Assert.assertFalse(flights.join("b", 3));
+        Assert.assertEquals(2, flights.size());
+        Assert.assertEquals(Arrays.asList(1, 2), flights.members("a"));
+
+        Assert.assertEquals(Arrays.asList(1, 2), flights.land("a"));
+        Assert.assertTrue(flights.land("a").isEmpty());
+        Assert.assertEquals(1, flights.size());
+
+        // A new request after landing starts a new flight
+        Assert.assertFalse(flights.join("a", 4));
+    }
+
+    @Test
+    public void membersIsACopy() {
+        SingleFlight<Integer> flights = new SingleFlight<>();
+        flights.join("a", 1);
+        List<Integer> members = flights.members("a");
+        flights.join("a", 2);
+        Assert.assertEquals(1, members.size());
+        Assert.assertTrue(flights.members("b").isEmpty());
+    }
+}
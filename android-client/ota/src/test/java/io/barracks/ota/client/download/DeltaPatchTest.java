@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import io.barracks.ota.client.Utils;
+
+public class DeltaPatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(byte[] content) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void apply() throws Exception {
+        byte[] base = new byte[200 * 1024];
+        new Random(42).nextBytes(base);
+        // The new version moves a block, changes a few bytes and appends some
+        byte[] target = new byte[base.length + 1000];
+        System.arraycopy(base, 100 * 1024, target, 0, 100 * 1024);
+        System.arraycopy(base, 0, target, 100 * 1024, 100 * 1024);
+        for (int i = 0; i < target.length; i += 4096) {
+            target[i]++;
+        }
+        // The patch is read from its start, the base from anywhere
+        byte[] patch = Utils.createPatch(base, target,
+                new long[]{0, 0, 100 * 1024},
+                new long[]{100 * 1024, 0, -200 * 1024},
+                new long[]{100 * 1024, 1000, 0}
+        );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageDigest digest = PackageDigest.create();
+        Assert.assertEquals(target.length, DeltaPatch.apply(write(base), new ByteArrayInputStream(patch), out, digest));
+        Assert.assertArrayEquals(target, out.toByteArray());
+        Assert.assertTrue(MessageDigest.isEqual(PackageDigest.create().digest(target), digest.digest()));
+        Assert.assertTrue(patch.length < target.length / 4);
+    }
+
+    @Test
+    public void shorterBase() throws Exception {
+        byte[] base = "Barracks".getBytes("UTF-8");
+        byte[] target = "Barracks Nordic DFU".getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Reading past the end of the base gives zeros
+        DeltaPatch.apply(write(base), new ByteArrayInputStream(Utils.createPatch(base, target, new long[]{target.length, 0, 0})), out, null);
+        Assert.assertArrayEquals(target, out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void notAPatch() throws Exception {
+        DeltaPatch.apply(write(new byte[16]), new ByteArrayInputStream(new byte[64]), new ByteArrayOutputStream(), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedControl() throws Exception {
+        byte[] base = new byte[16];
+        byte[] target = new byte[32];
+        // The control tuple describes more bytes than the new package holds
+        byte[] patch = Utils.createPatch(base, new byte[64], new long[]{16, 48, 0});
+        System.arraycopy(Utils.createPatch(base, target), DeltaPatch.MAGIC.length(), patch, DeltaPatch.MAGIC.length(), 8);
+        DeltaPatch.apply(write(base), new ByteArrayInputStream(patch), new ByteArrayOutputStream(), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        byte[] base = new byte[1024];
+        byte[] target = new byte[2048];
+        new Random(42).nextBytes(target);
+        byte[] patch = Utils.createPatch(base, target);
+        DeltaPatch.apply(write(base), new ByteArrayInputStream(patch, 0, patch.length / 2), new ByteArrayOutputStream(), null);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.Utils;
+import io.barracks.ota.client.api.UpdateDetails;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DownloadJournalTest {
+
+    @Test
+    public void commitAndLoad() throws IOException {
+        UpdateDetails details = Utils.getUpdateDetailsFromFile("download_success.json");
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "journal.tmp");
+        DownloadJournal journal = DownloadJournal.create(tmp, details.getPackageInfo());
+        journal.setValidators(null, "Wed, 21 Oct 2015 07:28:00 GMT");
+        journal.commit(4096);
+
+        DownloadJournal loaded = DownloadJournal.load(tmp);
+        Assert.assertNotNull(loaded);
+        Assert.assertTrue(loaded.matches(details.getPackageInfo()));
+        Assert.assertEquals(4096, loaded.getCommitted());
+        Assert.assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", loaded.getValidator());
+
+        Assert.assertTrue(loaded.delete());
+        Assert.assertNull(DownloadJournal.load(tmp));
+    }
+
+    @Test
+    public void etagPreferred() throws IOException {
+        UpdateDetails details = Utils.getUpdateDetailsFromFile("download_success.json");
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "journal.tmp");
+        DownloadJournal journal = DownloadJournal.create(tmp, details.getPackageInfo());
+        journal.setValidators("\"etag\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+        journal.commit(1);
+        Assert.assertEquals("\"etag\"", DownloadJournal.load(tmp).getValidator());
+    }
+
+    @Test
+    public void corruptedJournal() throws IOException {
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "corrupted.tmp");
+        tmp.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(DownloadJournal.journalFor(tmp));
+        writer.write("committed=notanumber");
+        writer.close();
+        Assert.assertNull(DownloadJournal.load(tmp));
+    }
+
+    @Test
+    public void otherPackage() throws IOException {
+        UpdateDetails details = Utils.getUpdateDetailsFromFile("download_success.json");
+        UpdateDetails other = Utils.getUpdateDetailsFromFile("update_check_response_success.json");
+        File tmp = new File(RuntimeEnvironment.application.getFilesDir(), "journal.tmp");
+        DownloadJournal.create(tmp, details.getPackageInfo()).commit(10);
+        Assert.assertFalse(DownloadJournal.load(tmp).matches(other.getPackageInfo()));
+    }
+}
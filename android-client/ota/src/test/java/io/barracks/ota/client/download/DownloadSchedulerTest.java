@@ -0,0 +1,170 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DownloadSchedulerTest {
+    private final CountDownLatch idle = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private DownloadScheduler scheduler;
+
+    private DownloadScheduler create(int maxConcurrent, int maxPerHost) {
+        scheduler = new DownloadScheduler("test", maxConcurrent, maxPerHost, new DownloadScheduler.Listener() {
+            @Override
+            public void onIdle() {
+                idle.countDown();
+            }
+        });
+        return scheduler;
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private Runnable work(final String name, final boolean blocking) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                order.add(name);
+                try {
+                    if (blocking) {
+                        gate.await(5, TimeUnit.SECONDS);
+                    } else {
+                        Thread.sleep(20);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        Assert.assertTrue(idle.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void concurrencyLimit() throws InterruptedException {
+        create(3, 10);
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit(new DownloadScheduler.Task(work("task" + i, false), "host" + i, 0, i, null));
+        }
+        awaitIdle();
+        Assert.assertEquals(10, order.size());
+        Assert.assertEquals(3, maxRunning.get());
+    }
+
+    @Test
+    public void hostLimit() throws InterruptedException {
+        create(10, 2);
+        for (int i = 0; i < 8; i++) {
+            scheduler.submit(new DownloadScheduler.Task(work("task" + i, false), "barracks.io", 0, i, null));
+        }
+        awaitIdle();
+        Assert.assertEquals(8, order.size());
+        Assert.assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void otherHostNotBlocked() throws InterruptedException {
+        create(2, 1);
+        scheduler.submit(new DownloadScheduler.Task(work("slow", true), "slow.io", 0, 1, null));
+        scheduler.submit(new DownloadScheduler.Task(work("slow2", false), "slow.io", 0, 1, null));
+        scheduler.submit(new DownloadScheduler.Task(work("fast", false), "fast.io", 0, 2, null));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (order.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // The second task for the slow host waits, the other host is served meanwhile
+        Assert.assertEquals(2, order.size());
+        Assert.assertTrue(order.containsAll(Arrays.asList("slow", "fast")));
+        gate.countDown();
+        awaitIdle();
+        Assert.assertEquals("slow2", order.get(2));
+    }
+
+    @Test
+    public void priorityAndFairness() throws InterruptedException {
+        create(1, 1);
+        scheduler.submit(new DownloadScheduler.Task(work("blocker", true), "host", 0, "none", null));
+        scheduler.submit(new DownloadScheduler.Task(work("a1", false), "host", 0, "a", null));
+        scheduler.submit(new DownloadScheduler.Task(work("a2", false), "host", 0, "a", null));
+        scheduler.submit(new DownloadScheduler.Task(work("a3", false), "host", 0, "a", null));
+        scheduler.submit(new DownloadScheduler.Task(work("b1", false), "host", 0, "b", null));
+        scheduler.submit(new DownloadScheduler.Task(work("b2", false), "host", 0, "b", null));
+        scheduler.submit(new DownloadScheduler.Task(work("urgent", false), "host", 5, "c", null));
+        gate.countDown();
+        awaitIdle();
+        Assert.assertEquals(Arrays.asList("blocker", "urgent", "a1", "b1", "a2", "b2", "a3"), order);
+    }
+
+    @Test
+    public void exclusiveKey() throws InterruptedException {
+        create(5, 5);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(new DownloadScheduler.Task(work("task" + i, false), "host", 0, i, "update.tmp"));
+        }
+        awaitIdle();
+        Assert.assertEquals(4, order.size());
+        Assert.assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void shutdownRunsQueuedTasks() throws InterruptedException {
+        create(1, 1);
+        scheduler.submit(new DownloadScheduler.Task(work("running", true), "host", 0, 1, null));
+        scheduler.submit(new DownloadScheduler.Task(work("queued", false), "host", 0, 2, null));
+        scheduler.shutdown();
+        gate.countDown();
+        awaitIdle();
+        Assert.assertEquals(Arrays.asList("running", "queued"), order);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void submitAfterShutdown() {
+        create(1, 1).shutdown();
+        scheduler.submit(new DownloadScheduler.Task(work("task", false), "host", 0, 1, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLimits() {
+        create(1, 1).setLimits(0, 1);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.download;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.UpdateDownloadApi;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import retrofit2.Retrofit;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class MirrorSelectorTest {
+    private final MockWebServer server = new MockWebServer();
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void rank() {
+        MirrorSelector selector = new MirrorSelector(MirrorSelector.DEFAULT_CAPACITY, MirrorSelector.DEFAULT_HALF_LIFE);
+        List<String> urls = Arrays.asList("http://a/", "http://b/", "http://c/");
+        // Unknown sources keep their order
+        Assert.assertEquals(urls, selector.rank(urls));
+
+        selector.recordLatency("http://a/", 300);
+        selector.recordLatency("http://b/", 100);
+        selector.recordLatency("http://c/", 200);
+        Assert.assertEquals(Arrays.asList("http://b/", "http://c/", "http://a/"), selector.rank(urls));
+
+        // A failure sends the fastest source to the back
+        selector.recordFailure("http://b/");
+        Assert.assertEquals(Arrays.asList("http://c/", "http://a/", "http://b/"), selector.rank(urls));
+
+        // The latency is averaged over the samples
+        selector.recordLatency("http://c/", 1000);
+        Assert.assertTrue(selector.scoreOf("http://c/") > 200);
+        Assert.assertTrue(selector.scoreOf("http://c/") < 1000);
+    }
+
+    @Test
+    public void decay() throws InterruptedException {
+        MirrorSelector selector = new MirrorSelector(2, 50);
+        selector.recordLatency("http://a/", 100);
+        selector.recordFailure("http://a/");
+        double failed = selector.scoreOf("http://a/");
+        Assert.assertTrue(selector.isFresh("http://a/"));
+        Thread.sleep(200);
+        // The failure is forgiven over time, and the sample is measured again
+        Assert.assertTrue(selector.scoreOf("http://a/") < failed / 4);
+        Assert.assertFalse(selector.isFresh("http://a/"));
+
+        // The table is bounded, the oldest sample is forgotten
+        selector.recordLatency("http://b/", 100);
+        selector.recordLatency("http://c/", 100);
+        Assert.assertFalse(selector.isFresh("http://a/"));
+        Assert.assertTrue(selector.isFresh("http://b/"));
+        Assert.assertTrue(selector.isFresh("http://c/"));
+    }
+
+    @Test
+    public void probe() {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Assert.assertEquals("bytes=0-0", request.getHeader("Range"));
+                if ("/slow".equals(request.getPath())) {
+                    Thread.sleep(200);
+                } else if ("/down".equals(request.getPath())) {
+                    return new MockResponse().setResponseCode(503);
+                } else if ("/stuck".equals(request.getPath())) {
+                    return new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE);
+                }
+                return new MockResponse().setResponseCode(206).setBody("x");
+            }
+        });
+        UpdateDownloadApi api = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .build()
+                .create(UpdateDownloadApi.class);
+        MirrorSelector selector = new MirrorSelector(MirrorSelector.DEFAULT_CAPACITY, MirrorSelector.DEFAULT_HALF_LIFE);
+        List<String> urls = Arrays.asList(
+                server.url("/stuck").toString(),
+                server.url("/down").toString(),
+                server.url("/slow").toString(),
+                server.url("/fast").toString()
+        );
+        selector.probe(api, "key", urls, 1000);
+        Assert.assertEquals(
+                Arrays.asList(server.url("/fast").toString(), server.url("/slow").toString()),
+                selector.rank(urls).subList(0, 2)
+        );
+        for (String url : urls) {
+            Assert.assertTrue(selector.isFresh(url));
+        }
+
+        // Fresh sources are not probed again
+        int requests = server.getRequestCount();
+        selector.probe(api, "key", urls, 1000);
+        Assert.assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void sourcesOf() {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if ("/slow".equals(request.getPath())) {
+                    Thread.sleep(200);
+                }
+                return new MockResponse().setResponseCode(206).setBody("x");
+            }
+        });
+        UpdateDownloadApi api = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .build()
+                .create(UpdateDownloadApi.class);
+        MirrorSelector selector = new MirrorSelector(MirrorSelector.DEFAULT_CAPACITY, MirrorSelector.DEFAULT_HALF_LIFE);
+
+        // A package without mirrors is not probed
+        PackageInfo single = new PackageInfo.Builder().url(server.url("/slow").toString()).build();
+        Assert.assertEquals(Arrays.asList(server.url("/slow").toString()), selector.sourcesOf(api, "key", single, 1000));
+        Assert.assertEquals(0, server.getRequestCount());
+
+        // The duplicated mirrors are dropped and the fastest source comes first
+        PackageInfo mirrored = new PackageInfo.Builder()
+                .url(server.url("/slow").toString())
+                .mirror(server.url("/fast").toString())
+                .mirror(server.url("/slow").toString())
+                .build();
+        Assert.assertEquals(
+                Arrays.asList(server.url("/fast").toString(), server.url("/slow").toString()),
+                selector.sourcesOf(api, "key", mirrored, 1000)
+        );
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+public class PackageDigestTest {
+    private static final String FILE_MD5 = "2cf00d81d87a6e1a99110f5942660a9c";
+
+    @Test
+    public void hex() {
+        Assert.assertEquals("00017f80ff", PackageDigest.toHex(new byte[]{0, 1, 127, -128, -1}));
+    }
+
+    @Test
+    public void file() throws Exception {
+        MessageDigest digest = PackageDigest.create();
+        PackageDigest.update(digest, new File(ClassLoader.getSystemResource("file.txt").getPath()), -1);
+        byte[] bytes = digest.digest();
+        Assert.assertEquals(FILE_MD5, PackageDigest.toHex(bytes));
+        Assert.assertTrue(PackageDigest.matches(bytes, FILE_MD5));
+        Assert.assertTrue(PackageDigest.matches(bytes, FILE_MD5.toUpperCase()));
+    }
+
+    @Test
+    public void mismatch() throws Exception {
+        byte[] bytes = PackageDigest.create().digest("barracks".getBytes("UTF-8"));
+        Assert.assertFalse(PackageDigest.matches(bytes, FILE_MD5));
+        Assert.assertFalse(PackageDigest.matches(bytes, null));
+        Assert.assertFalse(PackageDigest.matches(bytes, "md5failure"));
+        Assert.assertFalse(PackageDigest.matches(bytes, "zz" + PackageDigest.toHex(bytes).substring(2)));
+    }
+
+    @Test
+    public void prefix() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("file.txt").getPath());
+        MessageDigest prefix = PackageDigest.create();
+        PackageDigest.update(prefix, file, 1000);
+        MessageDigest whole = PackageDigest.create();
+        PackageDigest.update(whole, file, -1);
+        Assert.assertFalse(MessageDigest.isEqual(prefix.digest(), whole.digest()));
+        try {
+            PackageDigest.update(PackageDigest.create(), file, file.length() + 1);
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected, the file is too short
+        }
+    }
+}
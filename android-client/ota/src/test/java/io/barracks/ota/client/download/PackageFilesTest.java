@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import io.barracks.ota.client.api.PackageInfo;
+
+public class PackageFilesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void replace() throws IOException {
+        File source = folder.newFile("update.zip.tmp");
+        write(source, "new package");
+        File destination = new File(folder.getRoot(), "dir/update.zip");
+        PackageFiles.replace(source, destination);
+        Assert.assertEquals(source.length(), destination.length());
+
+        // The previous package is replaced, the copy is not left behind
+        write(source, "v2");
+        PackageFiles.replace(source, destination);
+        Assert.assertEquals(2, destination.length());
+        Assert.assertFalse(new File(destination.getPath() + ".new").exists());
+        Assert.assertTrue(source.exists());
+    }
+
+    @Test
+    public void feed() throws IOException {
+        File source = folder.newFile("update.zip");
+        write(source, "package");
+        MemorySink sink = new MemorySink(64);
+        PackageFiles.feed(source, sink);
+        Assert.assertEquals("package", new String(sink.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void deletePartial() throws IOException {
+        File tmp = folder.newFile("update.zip.tmp");
+        write(tmp, "partial");
+        DownloadJournal.create(tmp, new PackageInfo.Builder().md5("md5").build()).commit(7);
+        Assert.assertTrue(DownloadJournal.journalFor(tmp).exists());
+        PackageFiles.deletePartial(tmp);
+        Assert.assertFalse(tmp.exists());
+        Assert.assertFalse(DownloadJournal.journalFor(tmp).exists());
+    }
+
+    @Test
+    public void admit() throws IOException {
+        File file = new File(folder.getRoot(), "missing/update.zip");
+        PackageStore store = new PackageStore(folder.newFolder("store"), 0);
+        PackageFiles.admit(file, 1, 0, store);
+        try {
+            PackageFiles.admit(file, Long.MAX_VALUE / 2, 0, store);
+            Assert.fail();
+        } catch (InsufficientStorageException e) {
+            Assert.assertTrue(e.getRequired() > e.getAvailable());
+        }
+    }
+}
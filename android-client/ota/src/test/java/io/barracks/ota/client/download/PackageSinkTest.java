@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import io.barracks.client.ota.BuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PackageSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void fileSink() throws IOException {
+        byte[] content = content(4096);
+        File file = new File(folder.getRoot(), "sub/update.zip");
+        FileSink sink = new FileSink(file);
+        Assert.assertEquals(0, sink.open(0));
+        sink.write(content, 0, 3000);
+        sink.sync();
+        sink.close();
+        Assert.assertEquals(3000, file.length());
+
+        // Only the synced offset is kept, the next bytes are appended
+        Assert.assertEquals(1000, sink.open(1000));
+        sink.write(content, 1000, 3096);
+        sink.close();
+        Assert.assertEquals(content.length, file.length());
+        Assert.assertEquals(file, sink.getFile());
+
+        // The package is preallocated, the space left is given back when the sink is closed
+        Assert.assertEquals(content.length, sink.open(content.length));
+        sink.reserve(2 * content.length);
+        Assert.assertEquals(2 * content.length, file.length());
+        sink.close();
+        Assert.assertEquals(content.length, file.length());
+
+        // A file shorter than the offset can't be resumed from there
+        FileSink other = new FileSink(file);
+        Assert.assertEquals(content.length, other.open(10000));
+        other.close();
+
+        sink.discard();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void memorySink() throws IOException {
+        byte[] content = content(4096);
+        MemorySink sink = new MemorySink(content.length);
+        // Nothing survives an attempt
+        Assert.assertEquals(0, sink.open(1024));
+        for (int i = 0; i < content.length; i += 100) {
+            sink.write(content, i, Math.min(100, content.length - i));
+        }
+        Assert.assertArrayEquals(content, sink.toByteArray());
+        Assert.assertNull(sink.getFile());
+        try {
+            sink.reserve(content.length + 1);
+            Assert.fail("The package can't fit");
+        } catch (IOException e) {
+            Assert.assertArrayEquals(content, sink.toByteArray());
+        }
+        try {
+            sink.write(content, 0, 1);
+            Assert.fail("The sink is full");
+        } catch (IOException e) {
+            Assert.assertEquals(content.length, sink.size());
+        }
+        sink.discard();
+        Assert.assertEquals(0, sink.size());
+    }
+
+    @Test
+    public void teeSink() throws IOException {
+        byte[] content = content(4096);
+        File file = new File(folder.getRoot(), "update.zip");
+        ByteArrayOutputStream stage = new ByteArrayOutputStream();
+        TeeSink sink = new TeeSink(new FileSink(file), stage);
+        sink.open(0);
+        sink.write(content, 0, 2000);
+        sink.sync();
+        sink.close();
+
+        // The stages can't take back what they have seen, a download starting over fails
+        try {
+            sink.open(0);
+            Assert.fail("The stages have seen 2000 bytes");
+        } catch (IOException e) {
+            Assert.assertArrayEquals(Arrays.copyOf(content, 2000), stage.toByteArray());
+        }
+        sink.close();
+
+        // Resumed where the stages stopped
+        Assert.assertEquals(2000, sink.open(2000));
+        sink.write(content, 2000, 2096);
+        sink.close();
+        Assert.assertArrayEquals(content, stage.toByteArray());
+
+        // A new pipeline catches up with the bytes kept in the file
+        stage.reset();
+        ByteArrayOutputStream other = new ByteArrayOutputStream();
+        sink = new TeeSink(new FileSink(file), stage, other);
+        Assert.assertEquals(3000, sink.open(3000));
+        Assert.assertArrayEquals(Arrays.copyOf(content, 3000), stage.toByteArray());
+        sink.write(content, 3000, 1096);
+        sink.close();
+        Assert.assertArrayEquals(content, stage.toByteArray());
+        Assert.assertArrayEquals(content, other.toByteArray());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class PackageSlotsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void slots() throws IOException {
+        File destination = new File(folder.getRoot(), "update.zip");
+        PackageSlots slots = new PackageSlots(destination);
+        Assert.assertNull(slots.getActive());
+        // The slots keep the extension of the destination
+        File first = slots.getInactive();
+        Assert.assertEquals("update.a.zip", first.getName());
+
+        write(first, "v1");
+        slots.activate(first);
+        Assert.assertEquals(first, slots.getActive());
+        File second = slots.getInactive();
+        Assert.assertEquals("update.b.zip", second.getName());
+
+        // The active slot is kept until the other one is activated
+        write(second, "v2");
+        Assert.assertEquals(first, new PackageSlots(destination).getActive());
+        slots.activate(second);
+        Assert.assertEquals(second, new PackageSlots(destination).getActive());
+        Assert.assertEquals(first, slots.getInactive());
+        Assert.assertFalse(new File(destination.getPath() + PackageSlots.SUFFIX + ".new").exists());
+        Assert.assertFalse(destination.exists());
+    }
+
+    @Test
+    public void brokenPointer() throws IOException {
+        File destination = new File(folder.getRoot(), "update");
+        PackageSlots slots = new PackageSlots(destination);
+        Assert.assertEquals("update.a", slots.getInactive().getName());
+        write(new File(destination.getPath() + PackageSlots.SUFFIX), "garbage");
+        Assert.assertNull(slots.getActive());
+        Assert.assertEquals("update.a", slots.getInactive().getName());
+    }
+
+    @Test
+    public void staleSink() throws IOException {
+        File destination = new File(folder.getRoot(), "update.zip");
+        PackageSlots slots = new PackageSlots(destination);
+        PackageSink sink = slots.newSink();
+        Assert.assertEquals(slots.getInactive(), sink.getFile());
+        write(sink.getFile(), "v1");
+        slots.activate(sink.getFile());
+        // The sink refuses to write or delete the package once its slot has been activated
+        try {
+            sink.open(0);
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        sink.discard();
+        Assert.assertEquals(2, sink.getFile().length());
+        Assert.assertEquals(slots.getInactive(), slots.newSink().getFile());
+    }
+
+    @Test
+    public void install() throws IOException {
+        File destination = new File(folder.getRoot(), "update.zip");
+        PackageSlots slots = new PackageSlots(destination);
+        File verified = folder.newFile("verified.zip");
+        write(verified, "v1");
+        // A package downloaded elsewhere is copied to the inactive slot
+        File first = slots.install(verified);
+        Assert.assertEquals("update.a.zip", first.getName());
+        Assert.assertEquals(first, slots.getActive());
+        Assert.assertTrue(verified.exists());
+
+        // A package written to the inactive slot is activated in place
+        File second = slots.getInactive();
+        write(second, "v2");
+        Assert.assertEquals(second, slots.install(second));
+        Assert.assertEquals(second, slots.getActive());
+        Assert.assertEquals(2, first.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notASlot() throws IOException {
+        File destination = new File(folder.getRoot(), "update.zip");
+        new PackageSlots(destination).activate(destination);
+    }
+}
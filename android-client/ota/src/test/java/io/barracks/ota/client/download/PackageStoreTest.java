@@ -0,0 +1,209 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.Utils;
+import io.barracks.ota.client.api.PackageInfo;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PackageStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(RuntimeEnvironment.application.getFilesDir(), "store");
+    }
+
+    private PackageInfo packageInfo(String md5, long size) throws Exception {
+        PackageInfo info = Utils.getUpdateDetailsFromFile("download_success.json").getPackageInfo();
+        Field field = PackageInfo.class.getDeclaredField("md5");
+        field.setAccessible(true);
+        field.set(info, md5);
+        field = PackageInfo.class.getDeclaredField("size");
+        field.setAccessible(true);
+        field.set(info, size);
+        return info;
+    }
+
+    private File file(String name, int size) throws IOException {
+        File file = new File(RuntimeEnvironment.application.getFilesDir(), name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(new byte[size]);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private static String md5(int i) {
+        return String.format("%032x", i);
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        PackageStore store = new PackageStore(directory, 1000);
+        PackageInfo info = packageInfo(md5(1), 100);
+        Assert.assertNull(store.get(info));
+        Assert.assertTrue(store.put(info, file("one", 100)));
+        File stored = store.get(info);
+        Assert.assertNotNull(stored);
+        Assert.assertEquals(100, stored.length());
+        Assert.assertEquals(100, store.getSize());
+
+        // The index is reloaded by a new instance
+        store = new PackageStore(directory, 1000);
+        Assert.assertEquals(stored, store.get(packageInfo(md5(1).toUpperCase(), 100)));
+        Assert.assertEquals(100, store.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        PackageStore store = new PackageStore(directory, 250);
+        store.put(packageInfo(md5(1), 100), file("one", 100));
+        store.put(packageInfo(md5(2), 100), file("two", 100));
+        Assert.assertNotNull(store.get(packageInfo(md5(1), 100)));
+        store.put(packageInfo(md5(3), 100), file("three", 100));
+        Assert.assertNotNull(store.get(packageInfo(md5(1), 100)));
+        Assert.assertNull(store.get(packageInfo(md5(2), 100)));
+        Assert.assertNotNull(store.get(packageInfo(md5(3), 100)));
+        Assert.assertEquals(200, store.getSize());
+
+        store.setQuota(150);
+        Assert.assertNull(store.get(packageInfo(md5(1), 100)));
+        Assert.assertNotNull(store.get(packageInfo(md5(3), 100)));
+    }
+
+    @Test
+    public void getDoesNotWriteIndex() throws Exception {
+        PackageStore store = new PackageStore(directory, 250);
+        store.put(packageInfo(md5(1), 100), file("one", 100));
+        store.put(packageInfo(md5(2), 100), file("two", 100));
+        File index = new File(directory, PackageStore.INDEX);
+        Assert.assertTrue(index.setLastModified(0));
+        Assert.assertNotNull(store.get(packageInfo(md5(1), 100)));
+        Assert.assertEquals(0, index.lastModified());
+
+        // The use is persisted with the next change, the least recently used package is evicted
+        store.put(packageInfo(md5(3), 100), file("three", 100));
+        store = new PackageStore(directory, 250);
+        Assert.assertNotNull(store.get(packageInfo(md5(1), 100)));
+        Assert.assertNull(store.get(packageInfo(md5(2), 100)));
+    }
+
+    @Test
+    public void tooBig() throws Exception {
+        PackageStore store = new PackageStore(directory, 50);
+        Assert.assertFalse(store.put(packageInfo(md5(1), 100), file("one", 100)));
+        Assert.assertEquals(0, store.getSize());
+    }
+
+    @Test
+    public void invalidHash() throws Exception {
+        PackageStore store = new PackageStore(directory, 1000);
+        Assert.assertFalse(store.put(packageInfo("../../escape", 100), file("one", 100)));
+        Assert.assertFalse(store.put(packageInfo(null, 100), file("one", 100)));
+    }
+
+    @Test
+    public void modifiedFileDiscarded() throws Exception {
+        PackageStore store = new PackageStore(directory, 1000);
+        PackageInfo info = packageInfo(md5(1), 100);
+        store.put(info, file("one", 100));
+        FileOutputStream fos = new FileOutputStream(store.get(info), true);
+        try {
+            fos.write(1);
+        } finally {
+            fos.close();
+        }
+        Assert.assertNull(store.get(info));
+        Assert.assertEquals(0, store.getSize());
+    }
+
+    @Test
+    public void brokenIndex() throws Exception {
+        PackageStore store = new PackageStore(directory, 1000);
+        store.put(packageInfo(md5(1), 100), file("one", 100));
+        FileOutputStream fos = new FileOutputStream(new File(directory, PackageStore.INDEX));
+        try {
+            fos.write(("" + md5(1) + "=garbage").getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        store = new PackageStore(directory, 1000);
+        Assert.assertNull(store.get(packageInfo(md5(1), 100)));
+        Assert.assertEquals(0, store.getSize());
+    }
+
+    @Test
+    public void free() throws Exception {
+        PackageStore store = new PackageStore(directory, 1000);
+        store.put(packageInfo(md5(1), 100), file("one", 100));
+        store.put(packageInfo(md5(2), 200), file("two", 200));
+        store.put(packageInfo(md5(3), 300), file("three", 300));
+        store.get(packageInfo(md5(1), 100));
+        // The least recently used packages are evicted first
+        Assert.assertEquals(500, store.free(250));
+        Assert.assertNotNull(store.get(packageInfo(md5(1), 100)));
+        Assert.assertEquals(100, store.getSize());
+        Assert.assertEquals(100, store.free(1000));
+        Assert.assertEquals(0, store.free(1000));
+        Assert.assertEquals(0, new PackageStore(directory, 1000).getSize());
+    }
+
+    @Test
+    public void copy() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        File source = new File(RuntimeEnvironment.application.getFilesDir(), "source");
+        FileOutputStream fos = new FileOutputStream(source);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        File copy = new File(RuntimeEnvironment.application.getFilesDir(), "copy");
+        PackageStore.copy(source, copy);
+        DataInputStream dis = new DataInputStream(new FileInputStream(copy));
+        byte[] copied = new byte[content.length];
+        try {
+            dis.readFully(copied);
+            Assert.assertEquals(-1, dis.read());
+        } finally {
+            dis.close();
+        }
+        Assert.assertArrayEquals(content, copied);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProgressReporterTest {
+
+    @Test
+    public void percent() {
+        Assert.assertEquals(0, ProgressReporter.percent(10, 0));
+        Assert.assertEquals(50, ProgressReporter.percent(1L << 31, 1L << 32));
+        Assert.assertEquals(99, ProgressReporter.percent(5L * 1024 * 1024 * 1024 - 1, 5L * 1024 * 1024 * 1024));
+        Assert.assertEquals(100, ProgressReporter.percent(12, 10));
+    }
+
+    @Test
+    public void percentageChanges() {
+        Recorder recorder = new Recorder();
+        ProgressReporter reporter = new ProgressReporter(1000, 0, 0, recorder);
+        for (long bytes = 0; bytes <= 1000; bytes++) {
+            reporter.update(bytes);
+        }
+        reporter.complete(1000);
+        Assert.assertEquals(101, recorder.percents.size());
+        for (int i = 0; i < recorder.percents.size(); i++) {
+            Assert.assertEquals(i, (int) recorder.percents.get(i));
+        }
+    }
+
+    @Test
+    public void byteDelta() {
+        Recorder recorder = new Recorder();
+        ProgressReporter reporter = new ProgressReporter(1000000, 100, 0, recorder);
+        for (long bytes = 0; bytes < 1000; bytes += 10) {
+            reporter.update(bytes);
+        }
+        Assert.assertEquals(10, recorder.percents.size());
+        Assert.assertEquals(900, recorder.bytes.get(9).longValue());
+    }
+
+    @Test
+    public void rateLimited() {
+        Recorder recorder = new Recorder();
+        ProgressReporter reporter = new ProgressReporter(1000, 0, 60000, recorder);
+        for (long bytes = 0; bytes < 1000; bytes++) {
+            reporter.update(bytes);
+        }
+        Assert.assertEquals(1, recorder.percents.size());
+        reporter.complete(1000);
+        reporter.complete(1000);
+        Assert.assertEquals(2, recorder.percents.size());
+        Assert.assertEquals(100, (int) recorder.percents.get(1));
+        Assert.assertEquals(1000, recorder.bytes.get(1).longValue());
+    }
+
+    @Test
+    public void unknownSize() {
+        Recorder recorder = new Recorder();
+        ProgressReporter reporter = new ProgressReporter(-1, 0, 0, recorder);
+        reporter.update(10);
+        reporter.update(20);
+        reporter.complete(30);
+        Assert.assertEquals(2, recorder.percents.size());
+        Assert.assertEquals(100, (int) recorder.percents.get(1));
+    }
+
+    private static class Recorder implements ProgressReporter.Listener {
+        private final List<Integer> percents = new ArrayList<>();
+        private final List<Long> bytes = new ArrayList<>();
+
+        @Override
+        public void onProgress(long bytes, int percent) {
+            this.percents.add(percent);
+            this.bytes.add(bytes);
+        }
+    }
+}
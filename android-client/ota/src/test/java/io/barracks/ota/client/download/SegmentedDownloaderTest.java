@@ -0,0 +1,198 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.download;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.Defaults;
+import io.barracks.ota.client.Utils;
+import io.barracks.ota.client.api.PackageInfo;
+import io.barracks.ota.client.api.UpdateDetails;
+import io.barracks.ota.client.api.UpdateDownloadApi;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import retrofit2.Retrofit;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SegmentedDownloaderTest {
+    private MockWebServer server;
+    private UpdateDownloadApi api;
+    private byte[] content;
+    private File tmp;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        api = new Retrofit.Builder().baseUrl(Defaults.DEFAULT_BASE_URL).build().create(UpdateDownloadApi.class);
+        content = new Buffer()
+                .readFrom(new FileInputStream(new File(ClassLoader.getSystemResource("file.txt").getPath())))
+                .readByteArray();
+        tmp = new File(RuntimeEnvironment.application.getFilesDir(), "segmented.tmp");
+        tmp.getParentFile().mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private PackageInfo packageInfo(String path) throws Exception {
+        UpdateDetails details = Utils.getUpdateDetailsFromFile("download_success.json");
+        Field url = PackageInfo.class.getDeclaredField("url");
+        url.setAccessible(true);
+        url.set(details.getPackageInfo(), server.url(path).toString());
+        return details.getPackageInfo();
+    }
+
+    private MockResponse range(String header) {
+        String[] bounds = header.substring("bytes=".length()).split("-");
+        int first = Integer.parseInt(bounds[0]);
+        int last = Integer.parseInt(bounds[1]);
+        return new MockResponse()
+                .setResponseCode(206)
+                .addHeader("Content-Range", "bytes " + first + "-" + last + "/" + content.length)
+                .setBody(new Buffer().write(content, first, last - first + 1));
+    }
+
+    private byte[] read(File file) throws IOException {
+        return new Buffer().readFrom(new FileInputStream(file)).readByteArray();
+    }
+
+    @Test
+    public void segments() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return range(request.getHeader("Range"));
+            }
+        });
+        final long[] progress = {0};
+        boolean downloaded = new SegmentedDownloader(api, "key", 4).download(packageInfo("/"), tmp, new SegmentedDownloader.ProgressListener() {
+            @Override
+            public void onProgress(long downloaded) {
+                Assert.assertTrue(downloaded >= progress[0]);
+                progress[0] = downloaded;
+            }
+        });
+        Assert.assertTrue(downloaded);
+        Assert.assertEquals(content.length, progress[0]);
+        Assert.assertTrue(Arrays.equals(content, read(tmp)));
+        Assert.assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void sharedWorkers() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return range(request.getHeader("Range"));
+            }
+        });
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 2; i++) {
+                boolean downloaded = new SegmentedDownloader(api, "key", 4, workers).download(packageInfo("/"), tmp, new SegmentedDownloader.ProgressListener() {
+                    @Override
+                    public void onProgress(long downloaded) {
+                    }
+                });
+                Assert.assertTrue(downloaded);
+                Assert.assertTrue(Arrays.equals(content, read(tmp)));
+                Assert.assertFalse(workers.isShutdown());
+            }
+            Assert.assertEquals(8, server.getRequestCount());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    public void rangesNotSupported() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(content)));
+        boolean downloaded = new SegmentedDownloader(api, "key", 4).download(packageInfo("/"), tmp, new SegmentedDownloader.ProgressListener() {
+            @Override
+            public void onProgress(long downloaded) {
+                Assert.fail();
+            }
+        });
+        Assert.assertFalse(downloaded);
+        Assert.assertEquals(0, tmp.length());
+    }
+
+    @Test
+    public void failedSegmentIsRetried() throws Exception {
+        final AtomicBoolean failed = new AtomicBoolean();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                MockResponse response = range(request.getHeader("Range"));
+                if (request.getHeader("Range").startsWith("bytes=524288-") && failed.compareAndSet(false, true)) {
+                    response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                return response;
+            }
+        });
+        boolean downloaded = new SegmentedDownloader(api, "key", 4).download(packageInfo("/"), tmp, new SegmentedDownloader.ProgressListener() {
+            @Override
+            public void onProgress(long downloaded) {
+            }
+        });
+        Assert.assertTrue(downloaded);
+        Assert.assertTrue(failed.get());
+        Assert.assertTrue(Arrays.equals(content, read(tmp)));
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManyFailures() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getHeader("Range").startsWith("bytes=0-")) {
+                    return range(request.getHeader("Range"));
+                }
+                return new MockResponse().setResponseCode(500);
+            }
+        });
+        new SegmentedDownloader(api, "key", 4).download(packageInfo("/"), tmp, new SegmentedDownloader.ProgressListener() {
+            @Override
+            public void onProgress(long downloaded) {
+            }
+        });
+    }
+}
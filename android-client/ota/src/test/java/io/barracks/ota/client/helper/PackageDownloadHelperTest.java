@@ -28,11 +28,13 @@ import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 
 import io.barracks.client.ota.BuildConfig;
 import io.barracks.ota.client.PackageDownloadService;
 import io.barracks.ota.client.Utils;
 import io.barracks.ota.client.api.UpdateDetails;
+import io.barracks.ota.client.dispatch.CallbackBus;
 
 /**
  * Created by saiimons on 27/04/2016.
@@ -44,16 +46,20 @@ public class PackageDownloadHelperTest {
     @Test
     public void calls() {
         TestCallback callback;
+        long id;
 
         PackageDownloadHelper helper = new PackageDownloadHelper("deadbeef");
         LocalBroadcastManager manager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
 
+        // The helper only listens to broadcasts when asked to
+        helper.setBroadcastEnabled(true);
         callback = new TestCallback();
         helper.bind(RuntimeEnvironment.application, callback);
+        id = helper.requestDownload(null);
         manager.sendBroadcast(
                 new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
                         .addCategory(PackageDownloadService.DOWNLOAD_SUCCESS)
-                        .putExtra(PackageDownloadService.EXTRA_CALLBACK, callback.hashCode())
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
         );
         Assert.assertTrue(callback.success);
         Assert.assertFalse(callback.failure);
@@ -62,10 +68,11 @@ public class PackageDownloadHelperTest {
 
         callback = new TestCallback();
         helper.bind(RuntimeEnvironment.application, callback);
+        id = helper.requestDownload(null);
         manager.sendBroadcast(
                 new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
                         .addCategory(PackageDownloadService.DOWNLOAD_ERROR)
-                        .putExtra(PackageDownloadService.EXTRA_CALLBACK, callback.hashCode())
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
         );
         Assert.assertTrue(callback.failure);
         Assert.assertFalse(callback.progress);
@@ -74,10 +81,11 @@ public class PackageDownloadHelperTest {
 
         callback = new TestCallback();
         helper.bind(RuntimeEnvironment.application, callback);
+        id = helper.requestDownload(null);
         manager.sendBroadcast(
                 new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
                         .addCategory(PackageDownloadService.DOWNLOAD_PROGRESS)
-                        .putExtra(PackageDownloadService.EXTRA_CALLBACK, callback.hashCode())
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
         );
         Assert.assertTrue(callback.progress);
         Assert.assertFalse(callback.failure);
@@ -102,6 +110,63 @@ public class PackageDownloadHelperTest {
         helper.unbind(RuntimeEnvironment.application);
     }
 
+    @Test
+    public void concurrentDownloads() {
+        PackageDownloadHelper helper = new PackageDownloadHelper("deadbeef");
+        helper.bind(RuntimeEnvironment.application, new TestCallback());
+        TestCallback first = new TestCallback();
+        TestCallback second = new TestCallback();
+        long firstId = helper.requestDownload(null, null, null, first);
+        long secondId = helper.requestDownload(null, null, null, second);
+        Assert.assertNotEquals(firstId, secondId);
+        CallbackBus<PackageDownloadCallback> bus = PackageDownloadService.getCallbackBus();
+        bus.publish(secondId, new CallbackBus.Event<PackageDownloadCallback>() {
+            @Override
+            public void deliver(PackageDownloadCallback subscriber) {
+                subscriber.onDownloadSuccess(null, null);
+            }
+        });
+        Assert.assertTrue(second.success);
+        Assert.assertFalse(first.success);
+        helper.unbind(RuntimeEnvironment.application);
+        Assert.assertFalse(bus.isSubscribed(firstId));
+        Assert.assertFalse(bus.isSubscribed(secondId));
+    }
+
+    @Test
+    public void controls() {
+        PackageDownloadHelper helper = new PackageDownloadHelper("deadbeef");
+        helper.setBroadcastEnabled(true);
+        TestCallback callback = new TestCallback();
+        helper.bind(RuntimeEnvironment.application, callback);
+        long id = helper.requestDownload(null);
+        Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        helper.pauseDownload(id);
+        helper.resumeDownload(id);
+        helper.cancelDownload(id);
+        for (String action : Arrays.asList(PackageDownloadService.ACTION_PAUSE_DOWNLOAD, PackageDownloadService.ACTION_RESUME_DOWNLOAD, PackageDownloadService.ACTION_CANCEL_DOWNLOAD)) {
+            Intent intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+            Assert.assertEquals(action, intent.getAction());
+            Assert.assertEquals(id, intent.getLongExtra(PackageDownloadService.EXTRA_REQUEST_ID, 0));
+        }
+
+        // A pause is not an outcome, a cancellation is reported as a failure to a plain callback
+        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+        manager.sendBroadcast(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .addCategory(PackageDownloadService.DOWNLOAD_PAUSED)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        Assert.assertFalse(callback.failure);
+        manager.sendBroadcast(
+                new Intent(PackageDownloadService.ACTION_DOWNLOAD_PACKAGE)
+                        .addCategory(PackageDownloadService.DOWNLOAD_CANCELLED)
+                        .putExtra(PackageDownloadService.EXTRA_REQUEST_ID, id)
+        );
+        Assert.assertTrue(callback.failure);
+        helper.unbind(RuntimeEnvironment.application);
+    }
+
     private static final class TestCallback implements PackageDownloadCallback {
         boolean success = false;
         boolean progress = false;
@@ -27,10 +27,13 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 
+import java.util.Arrays;
+
 import io.barracks.client.ota.BuildConfig;
 import io.barracks.ota.client.UpdateCheckService;
 import io.barracks.ota.client.api.UpdateDetails;
 import io.barracks.ota.client.api.UpdateDetailsRequest;
+import io.barracks.ota.client.dispatch.CallbackBus;
 
 /**
  * Created by saiimons on 16-04-07.
@@ -41,16 +44,20 @@ public class UpdateCheckHelperTest {
     @Test
     public void calls() {
         TestCallback callback;
+        long id;
 
         UpdateCheckHelper helper = new UpdateCheckHelper("deadbeef");
         LocalBroadcastManager manager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
 
+        // The helper only listens to broadcasts when asked to
+        helper.setBroadcastEnabled(true);
         callback = new TestCallback();
         helper.bind(RuntimeEnvironment.application, callback);
+        id = helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build());
         manager.sendBroadcast(
                 new Intent(UpdateCheckService.ACTION_CHECK)
                         .addCategory(UpdateCheckService.UPDATE_AVAILABLE)
-                        .putExtra(UpdateCheckService.EXTRA_CALLBACK, callback.hashCode())
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
         );
         Assert.assertTrue(callback.available);
         Assert.assertFalse(callback.unavailable);
@@ -59,10 +66,11 @@ public class UpdateCheckHelperTest {
 
         callback = new TestCallback();
         helper.bind(RuntimeEnvironment.application, callback);
+        id = helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build());
         manager.sendBroadcast(
                 new Intent(UpdateCheckService.ACTION_CHECK)
                         .addCategory(UpdateCheckService.UPDATE_UNAVAILABLE)
-                        .putExtra(UpdateCheckService.EXTRA_CALLBACK, callback.hashCode())
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
         );
         Assert.assertTrue(callback.unavailable);
         Assert.assertFalse(callback.available);
@@ -71,10 +79,11 @@ public class UpdateCheckHelperTest {
 
         callback = new TestCallback();
         helper.bind(RuntimeEnvironment.application, callback);
+        id = helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build());
         manager.sendBroadcast(
                 new Intent(UpdateCheckService.ACTION_CHECK)
                         .addCategory(UpdateCheckService.UPDATE_REQUEST_ERROR)
-                        .putExtra(UpdateCheckService.EXTRA_CALLBACK, callback.hashCode())
+                        .putExtra(UpdateCheckService.EXTRA_REQUEST_ID, id)
         );
         Assert.assertTrue(callback.error);
         Assert.assertFalse(callback.available);
@@ -99,9 +108,143 @@ public class UpdateCheckHelperTest {
         Assert.assertEquals(callback.hashCode(), intent.getIntExtra(UpdateCheckService.EXTRA_CALLBACK, 0));
         UpdateDetailsRequest request2 = intent.getParcelableExtra(UpdateCheckService.EXTRA_REQUEST);
         Assert.assertNotNull(request2);
+        Assert.assertFalse(intent.getBooleanExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, true));
+
+        helper.setNotifyOnChange(true);
+        helper.requestUpdate(request);
+        intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        Assert.assertTrue(intent.getBooleanExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, false));
+        helper.unbind(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void callbackBus() {
+        TestCallback callback = new TestCallback();
+        UpdateCheckHelper helper = new UpdateCheckHelper("deadbeef");
+        helper.bind(RuntimeEnvironment.application, callback);
+        helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build());
+        Intent intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        Assert.assertFalse(intent.getBooleanExtra(UpdateCheckService.EXTRA_BROADCAST, true));
+        long id = intent.getLongExtra(UpdateCheckService.EXTRA_REQUEST_ID, 0);
+        Assert.assertNotEquals(0, id);
+        Assert.assertTrue(UpdateCheckService.getCallbackBus().publish(id, new CallbackBus.Event<UpdateCheckCallback>() {
+            @Override
+            public void deliver(UpdateCheckCallback subscriber) {
+                subscriber.onUpdateUnavailable(null);
+            }
+        }));
+        Assert.assertTrue(callback.unavailable);
+        helper.unbind(RuntimeEnvironment.application);
+        Assert.assertFalse(UpdateCheckService.getCallbackBus().isSubscribed(id));
+    }
+
+    @Test
+    public void concurrentRequests() {
+        UpdateCheckHelper helper = new UpdateCheckHelper("deadbeef");
+        helper.bind(RuntimeEnvironment.application, new TestCallback());
+        TestCallback[] callbacks = new TestCallback[100];
+        long[] ids = new long[callbacks.length];
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i] = new TestCallback();
+            ids[i] = helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("unit" + i).versionId("42").build(), callbacks[i]);
+        }
+        CallbackBus<UpdateCheckCallback> bus = UpdateCheckService.getCallbackBus();
+        for (int i = 0; i < ids.length; i += 2) {
+            Assert.assertTrue(bus.publish(ids[i], new CallbackBus.Event<UpdateCheckCallback>() {
+                @Override
+                public void deliver(UpdateCheckCallback subscriber) {
+                    subscriber.onUpdateUnavailable(null);
+                }
+            }));
+            bus.complete(ids[i]);
+        }
+        // Each result only reaches the callback of its request
+        for (int i = 0; i < callbacks.length; i++) {
+            Assert.assertEquals(i % 2 == 0, callbacks[i].unavailable);
+            Assert.assertEquals(i % 2 != 0, bus.isSubscribed(ids[i]));
+        }
+        helper.unbind(RuntimeEnvironment.application);
+        for (long id : ids) {
+            Assert.assertFalse(bus.isSubscribed(id));
+        }
+    }
+
+    @Test
+    public void broadcastRequests() {
+        UpdateCheckHelper helper = new UpdateCheckHelper("deadbeef");
+        helper.setBroadcastEnabled(true);
+        helper.bind(RuntimeEnvironment.application, new TestCallback());
+        TestCallback single = new TestCallback();
+        TestCallback batch = new TestCallback();
+        long singleId = helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build(), single);
+        long batchId = helper.requestUpdates(Arrays.asList(
+                new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build(),
+                new UpdateDetailsRequest.Builder().unitId("R2D2").versionId("42").build()
+        ), batch);
+        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+        Intent unavailable = new Intent(UpdateCheckService.ACTION_CHECK).addCategory(UpdateCheckService.UPDATE_UNAVAILABLE);
+        Intent error = new Intent(UpdateCheckService.ACTION_CHECK).addCategory(UpdateCheckService.UPDATE_REQUEST_ERROR);
+
+        manager.sendBroadcast(new Intent(unavailable).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, batchId));
+        Assert.assertTrue(batch.unavailable);
+        Assert.assertFalse(single.unavailable);
+        manager.sendBroadcast(new Intent(unavailable).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, singleId));
+        Assert.assertTrue(single.unavailable);
+
+        // The single request is over, the batch still expects one result
+        manager.sendBroadcast(new Intent(error).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, singleId));
+        Assert.assertFalse(single.error);
+        manager.sendBroadcast(new Intent(error).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, batchId));
+        Assert.assertTrue(batch.error);
+        batch.error = false;
+        manager.sendBroadcast(new Intent(error).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, batchId));
+        Assert.assertFalse(batch.error);
+
+        // A result left out because it has not changed still ends the request
+        TestCallback polled = new TestCallback();
+        long polledId = helper.requestUpdate(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build(), polled);
+        manager.sendBroadcast(new Intent(UpdateCheckService.ACTION_CHECK).addCategory(UpdateCheckService.UPDATE_UNCHANGED).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, polledId));
+        Assert.assertFalse(polled.available || polled.unavailable || polled.error);
+        manager.sendBroadcast(new Intent(unavailable).putExtra(UpdateCheckService.EXTRA_REQUEST_ID, polledId));
+        Assert.assertFalse(polled.unavailable);
+        helper.unbind(RuntimeEnvironment.application);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void broadcastWhileBound() {
+        UpdateCheckHelper helper = new UpdateCheckHelper("deadbeef");
+        helper.bind(RuntimeEnvironment.application, new TestCallback());
+        helper.setBroadcastEnabled(true);
+    }
+
+    @Test
+    public void batchService() {
+        TestCallback callback = new TestCallback();
+        UpdateCheckHelper helper = new UpdateCheckHelper("deadbeef");
+        helper.bind(RuntimeEnvironment.application, callback);
+        helper.setMaxBatchSize(10);
+        helper.requestUpdates(Arrays.asList(
+                new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build(),
+                new UpdateDetailsRequest.Builder().unitId("R2D2").versionId("42").build()
+        ));
+        Intent intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        Assert.assertEquals(UpdateCheckService.ACTION_CHECK_BATCH, intent.getAction());
+        Assert.assertEquals(10, intent.getIntExtra(UpdateCheckService.EXTRA_MAX_BATCH_SIZE, 0));
+        Assert.assertEquals(2, intent.getParcelableArrayListExtra(UpdateCheckService.EXTRA_REQUESTS).size());
+        Assert.assertFalse(intent.getBooleanExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, true));
+
+        helper.setNotifyOnChange(true);
+        helper.requestUpdates(Arrays.asList(new UpdateDetailsRequest.Builder().unitId("HAL").versionId("42").build()));
+        intent = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+        Assert.assertTrue(intent.getBooleanExtra(UpdateCheckService.EXTRA_NOTIFY_ON_CHANGE, false));
         helper.unbind(RuntimeEnvironment.application);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBatchSize() {
+        new UpdateCheckHelper("deadbeef").setMaxBatchSize(0);
+    }
+
     private static final class TestCallback implements UpdateCheckCallback {
         boolean available = false;
         boolean unavailable = false;
@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class DeadlineTest {
+
+    @Test
+    public void none() {
+        Assert.assertSame(Deadline.NONE, Deadline.at(0));
+        Assert.assertEquals(0, Deadline.after(0));
+        Assert.assertEquals(Long.MAX_VALUE, Deadline.NONE.remaining());
+        Assert.assertFalse(Deadline.NONE.isExpired());
+        Assert.assertNull(Deadline.NONE.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+    }
+
+    @Test
+    public void expired() {
+        Deadline deadline = Deadline.at(Deadline.after(60000));
+        Assert.assertTrue(deadline.remaining() > 50000);
+        Assert.assertFalse(deadline.isExpired());
+
+        deadline = Deadline.at(System.currentTimeMillis() - 1);
+        Assert.assertTrue(deadline.isExpired());
+        IOException cause = new IOException();
+        DeadlineExceededException exceeded = deadline.exceeded("Check", cause);
+        Assert.assertSame(cause, exceeded.getCause());
+        Assert.assertEquals(deadline.getTime(), exceeded.getDeadline());
+    }
+
+    @Test
+    public void schedule() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Deadline deadline = Deadline.at(Deadline.after(100));
+        deadline.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(deadline.isExpired());
+
+        // The task of an operation which is over is not run
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        ScheduledFuture<?> future = Deadline.at(Deadline.after(100)).schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.countDown();
+            }
+        });
+        future.cancel(false);
+        Assert.assertFalse(cancelled.await(300, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.barracks.client.ota.BuildConfig;
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class HedgerTest {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(2);
+
+    @Test
+    public void histogram() {
+        LatencyHistogram histogram = new LatencyHistogram(10);
+        Assert.assertEquals(-1, histogram.percentile(95));
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i * 10);
+        }
+        Assert.assertEquals(100, histogram.percentile(95));
+        Assert.assertEquals(50, histogram.percentile(50));
+        Assert.assertEquals(10, histogram.percentile(0));
+
+        // The oldest latencies are forgotten
+        for (int i = 0; i < 5; i++) {
+            histogram.record(1000);
+        }
+        Assert.assertEquals(10, histogram.size());
+        Assert.assertEquals(60, histogram.percentile(10));
+        Assert.assertEquals(1000, histogram.percentile(60));
+    }
+
+    @Test
+    public void delay() {
+        Hedger hedger = new Hedger(new HedgingPolicy.Builder().minDelay(50).window(10).minSamples(3).build(), SCHEDULER);
+        hedger.getLatencies().record(10);
+        hedger.getLatencies().record(20);
+        Assert.assertEquals(-1, hedger.getDelay());
+        hedger.getLatencies().record(500);
+        Assert.assertEquals(500, hedger.getDelay());
+        Hedger median = new Hedger(new HedgingPolicy.Builder().percentile(50).minDelay(50).window(10).minSamples(3).build(), SCHEDULER);
+        for (int i = 0; i < 3; i++) {
+            median.getLatencies().record(10);
+        }
+        // A call is never hedged sooner than the minimum delay
+        Assert.assertEquals(50, median.getDelay());
+
+        Call<ResponseBody> call = api(new MockWebServer()).get();
+        Assert.assertSame(call, new Hedger(HedgingPolicy.NONE, SCHEDULER).hedge(call));
+    }
+
+    @Test
+    public void hedgeWins() throws IOException {
+        final AtomicInteger requests = new AtomicInteger();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (requests.incrementAndGet() == 1) {
+                    // A slow node
+                    Thread.sleep(2000);
+                    return new MockResponse().setBody("slow");
+                }
+                return new MockResponse().setBody("fast");
+            }
+        });
+        Hedger hedger = hedger(100);
+        Response<ResponseBody> response = hedger.hedge(api(server).get()).execute();
+        Assert.assertEquals("fast", response.body().string());
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertEquals(1, hedger.getHedgesSent());
+        Assert.assertEquals(1, hedger.getHedgesWon());
+        Assert.assertEquals(2, hedger.getLatencies().size());
+        // The latency of the call includes the delay before the hedge was sent
+        Assert.assertTrue(hedger.getLatencies().percentile(0) >= 100);
+    }
+
+    @Test
+    public void fastCall() throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody("fast"));
+        Hedger hedger = hedger(1000);
+        Response<ResponseBody> response = hedger.hedge(api(server).get()).execute();
+        Assert.assertEquals("fast", response.body().string());
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(0, hedger.getHedgesSent());
+    }
+
+    @Test
+    public void primaryFails() throws IOException {
+        final AtomicInteger requests = new AtomicInteger();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (requests.incrementAndGet() == 1) {
+                    Thread.sleep(500);
+                    return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                }
+                Thread.sleep(1000);
+                return new MockResponse().setBody("hedge");
+            }
+        });
+        // The failure of the first call does not end the call while the hedge may still answer
+        Hedger hedger = hedger(100);
+        Response<ResponseBody> response = hedger.hedge(api(server).get()).execute();
+        Assert.assertEquals("hedge", response.body().string());
+        Assert.assertEquals(1, hedger.getHedgesWon());
+    }
+
+    @Test
+    public void failureRecorded() {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        Hedger hedger = hedger(1000);
+        try {
+            hedger.hedge(api(server).get()).execute();
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        // A failed call is recorded too, or only the fast answers would set the delay
+        Assert.assertEquals(2, hedger.getLatencies().size());
+        Assert.assertEquals(0, hedger.getHedgesSent());
+    }
+
+    private static Hedger hedger(long latency) {
+        Hedger hedger = new Hedger(new HedgingPolicy.Builder().minDelay(0).window(10).minSamples(1).build(), SCHEDULER);
+        hedger.getLatencies().record(latency);
+        return hedger;
+    }
+
+    private static Api api(MockWebServer server) {
+        return new Retrofit.Builder()
+                .client(new OkHttpClient())
+                .callbackExecutor(SCHEDULER)
+                .baseUrl(server.url("/"))
+                .build()
+                .create(Api.class);
+    }
+
+    interface Api {
+        @GET("/")
+        Call<ResponseBody> get();
+    }
+}
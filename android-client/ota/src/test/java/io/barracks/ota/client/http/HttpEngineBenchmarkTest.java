@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.Utils;
+import io.barracks.ota.client.api.UpdateCheckApi;
+import io.barracks.ota.client.api.UpdateDetailsRequest;
+import io.barracks.ota.client.api.UpdateDownloadApi;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * Compares an update check followed by a download when the HTTP stack is built for each call (cold)
+ * and when the {@link HttpEngine} is shared (warm).<br>
+ * The measures are only run on demand.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class HttpEngineBenchmarkTest {
+    private static final int ITERATIONS = 50;
+    private static final int REUSE_ITERATIONS = 5;
+    private static final int PACKAGE_SIZE = 64 * 1024;
+
+    private MockWebServer server;
+    private UpdateDetailsRequest request;
+    private GsonConverterFactory converter;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        request = new UpdateDetailsRequest.Builder().unitId("unit").versionId("v0.1").build();
+        converter = GsonConverterFactory.create(Utils.getUpdateCheckGson());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        HttpEngine.configure(null);
+    }
+
+    @Test
+    public void sharedEngineReusesConnections() throws IOException, InterruptedException {
+        run(false, REUSE_ITERATIONS);
+        int coldReused = drain();
+        run(true, 1);
+        drain();
+        run(true, REUSE_ITERATIONS);
+        int warmReused = drain();
+
+        // Each cold iteration opens a connection for the check and another one for the download
+        Assert.assertEquals(0, coldReused);
+        // The shared engine keeps the connection opened by the first call
+        Assert.assertEquals(2 * REUSE_ITERATIONS, warmReused);
+    }
+
+    @Test
+    @Ignore("Benchmark, run on demand")
+    public void coldVersusWarm() throws IOException, InterruptedException {
+        // Warm up the JIT and the server before measuring
+        run(false, 5);
+        run(true, 5);
+        drain();
+
+        long cold = run(false, ITERATIONS);
+        drain();
+        long warm = run(true, ITERATIONS);
+        drain();
+
+        String costs = String.format(
+                "check + download of %d bytes, average over %d iterations : cold %d us, warm %d us",
+                PACKAGE_SIZE, ITERATIONS, cold / ITERATIONS / 1000, warm / ITERATIONS / 1000
+        );
+        Assert.assertTrue(costs, warm < cold);
+    }
+
+    private long run(boolean shared, int iterations) throws IOException {
+        byte[] content = new byte[PACKAGE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            server.enqueue(new MockResponse().setResponseCode(204));
+            server.enqueue(new MockResponse().setBody(new Buffer().write(content)));
+            UpdateCheckApi check;
+            UpdateDownloadApi download;
+            if (shared) {
+                HttpEngine engine = HttpEngine.getInstance();
+                check = engine.createApi(server.url("/").toString(), UpdateCheckApi.class, converter);
+                download = engine.getApi(server.url("/").toString(), UpdateDownloadApi.class);
+            } else {
+                check = new Retrofit.Builder()
+                        .addConverterFactory(converter)
+                        .baseUrl(server.url("/"))
+                        .build()
+                        .create(UpdateCheckApi.class);
+                download = new Retrofit.Builder()
+                        .baseUrl(server.url("/"))
+                        .build()
+                        .create(UpdateDownloadApi.class);
+            }
+            Assert.assertNull(check.checkUpdate("key", request).execute().body());
+            Assert.assertEquals(PACKAGE_SIZE, download.downloadUpdate(server.url("/package").toString(), "key").execute().body().bytes().length);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Consumes the recorded requests.
+     *
+     * @return The number of requests sent over a connection which had already been used.
+     */
+    private int drain() throws InterruptedException {
+        int reused = 0;
+        RecordedRequest request;
+        while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+            if (request.getSequenceNumber() > 0) {
+                reused++;
+            }
+        }
+        return reused;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.barracks.ota.client.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+
+import io.barracks.client.ota.BuildConfig;
+import io.barracks.ota.client.api.UpdateDownloadApi;
+import io.barracks.ota.client.helper.BarracksHelper;
+import okhttp3.Dns;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class HttpEngineTest {
+
+    @After
+    public void tearDown() {
+        HttpEngine.configure(null);
+    }
+
+    @Test
+    public void sharedInstance() {
+        HttpEngine engine = HttpEngine.getInstance();
+        Assert.assertSame(engine, HttpEngine.getInstance());
+        Assert.assertSame(
+                engine.getApi("http://localhost/", UpdateDownloadApi.class),
+                engine.getApi("http://localhost/", UpdateDownloadApi.class)
+        );
+        Assert.assertNotSame(
+                engine.getApi("http://localhost/", UpdateDownloadApi.class),
+                engine.getApi("http://127.0.0.1/", UpdateDownloadApi.class)
+        );
+    }
+
+    @Test
+    public void configure() {
+        HttpEngine engine = HttpEngine.getInstance();
+        BarracksHelper.setHttpConfiguration(new HttpConfiguration.Builder().readTimeout(1234).maxIdleConnections(2).build());
+        HttpEngine configured = HttpEngine.getInstance();
+        Assert.assertNotSame(engine, configured);
+        Assert.assertEquals(1234, configured.getClient().readTimeoutMillis());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void invalidConfiguration() {
+        new HttpConfiguration.Builder().connectTimeout(-1).build();
+    }
+
+    @Test
+    public void connectionReused() throws IOException, InterruptedException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody("first"));
+        server.enqueue(new MockResponse().setBody("second"));
+        server.start();
+        try {
+            UpdateDownloadApi api = HttpEngine.getInstance().getApi(server.url("/").toString(), UpdateDownloadApi.class);
+            Assert.assertEquals("first", api.downloadUpdate(server.url("/a").toString(), "key").execute().body().string());
+            Assert.assertEquals("second", api.downloadUpdate(server.url("/b").toString(), "key").execute().body().string());
+            Assert.assertEquals(0, server.takeRequest().getSequenceNumber());
+            Assert.assertEquals(1, server.takeRequest().getSequenceNumber());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void dnsCached() throws UnknownHostException {
+        CountingDns delegate = new CountingDns();
+        CachingDns dns = new CachingDns(delegate, 60000);
+        dns.lookup("barracks.io");
+        dns.lookup("barracks.io");
+        Assert.assertEquals(1, delegate.count);
+        dns.lookup("app.barracks.io");
+        Assert.assertEquals(2, delegate.count);
+        dns.clear();
+        dns.lookup("barracks.io");
+        Assert.assertEquals(3, delegate.count);
+    }
+
+    @Test
+    public void dnsExpired() throws UnknownHostException {
+        CountingDns delegate = new CountingDns();
+        CachingDns dns = new CachingDns(delegate, 0);
+        dns.lookup("barracks.io");
+        dns.lookup("barracks.io");
+        Assert.assertEquals(2, delegate.count);
+    }
+
+    @Test
+    public void dnsStaleOnFailure() throws UnknownHostException {
+        CountingDns delegate = new CountingDns();
+        CachingDns dns = new CachingDns(delegate, 0);
+        List<InetAddress> addresses = dns.lookup("barracks.io");
+        delegate.fail = true;
+        Assert.assertEquals(addresses, dns.lookup("barracks.io"));
+        try {
+            dns.lookup("unknown.barracks.io");
+            Assert.fail();
+        } catch (UnknownHostException e) {
+            // Nothing was ever resolved for this host
+        }
+    }
+
+    private static class CountingDns implements Dns {
+        private int count = 0;
+        private boolean fail = false;
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            count++;
+            if (fail) {
+                throw new UnknownHostException(hostname);
+            }
+            return Collections.singletonList(InetAddress.getByAddress(hostname, new byte[]{10, 0, 0, 1}));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *    Copyright 2016 Barracks Solutions Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package io.barracks.ota.client.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+public class RetrierTest {
+
+    @Test
+    public void classify() {
+        RetryPolicy policy = new RetryPolicy.Builder().build();
+        Assert.assertTrue(policy.isRetryable(new HttpStatusException("", 503, -1)));
+        Assert.assertTrue(policy.isRetryable(new HttpStatusException("", 429, -1)));
+        Assert.assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        Assert.assertFalse(policy.isRetryable(new HttpStatusException("", 404, -1)));
+        Assert.assertFalse(policy.isRetryable(new HttpStatusException("", 501, -1)));
+        Assert.assertFalse(policy.isRetryable(new FileNotFoundException()));
+    }
+
+    @Test
+    public void backoff() {
+        RetryPolicy policy = new RetryPolicy.Builder().baseDelay(100).maxDelay(1000).build();
+        Random random = new Random(42);
+        long previous = 0;
+        boolean jittered = false;
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.nextDelay(previous, random);
+            Assert.assertTrue(delay >= 100);
+            Assert.assertTrue(delay <= Math.min(1000, Math.max(100, previous) * 3));
+            jittered |= delay != policy.nextDelay(previous, random);
+            previous = delay;
+        }
+        Assert.assertTrue(jittered);
+    }
+
+    @Test
+    public void retry() throws CircuitOpenException {
+        RetryPolicy policy = new RetryPolicy.Builder().maxAttempts(3).baseDelay(100).maxDelay(1000).failureThreshold(0).build();
+        Retrier retrier = new Retrier(policy, new CircuitBreaker(0, 0), "host", new Random(42));
+        IOException failure = new HttpStatusException("503", 503, -1);
+        retrier.begin();
+        long first = retrier.failed(failure);
+        Assert.assertTrue(first >= 100);
+        retrier.begin();
+        // The delay asked by the server is honored
+        long second = retrier.failed(new HttpStatusException("503", 503, 900));
+        Assert.assertEquals(900, second);
+        retrier.begin();
+        Assert.assertEquals(-1, retrier.failed(failure));
+
+        IOException reported = retrier.report(failure);
+        Assert.assertTrue(reported instanceof RetryException);
+        Assert.assertSame(failure, reported.getCause());
+        Assert.assertEquals(3, ((RetryException) reported).getAttempts());
+        Assert.assertEquals(first + second, ((RetryException) reported).getWaited());
+    }
+
+    @Test
+    public void giveUp() throws CircuitOpenException {
+        RetryPolicy policy = new RetryPolicy.Builder().maxDelay(5000).build();
+        Retrier retrier = new Retrier(policy, new CircuitBreaker(0, 0), "host");
+        retrier.begin();
+        // Fatal failures and servers which won't be back soon are not retried
+        Assert.assertEquals(-1, retrier.failed(new HttpStatusException("403", 403, -1)));
+        Assert.assertEquals(-1, retrier.failed(new HttpStatusException("503", 503, 10000)));
+        IOException failure = new SocketTimeoutException();
+        Assert.assertSame(failure, retrier.report(failure));
+    }
+
+    @Test
+    public void circuit() throws InterruptedException, CircuitOpenException {
+        CircuitBreaker breaker = new CircuitBreaker(2, 100);
+        RetryPolicy policy = new RetryPolicy.Builder().maxAttempts(1).build();
+        for (int i = 0; i < 2; i++) {
+            Retrier retrier = new Retrier(policy, breaker, "host");
+            retrier.begin();
+            retrier.failed(new SocketTimeoutException());
+        }
+        Assert.assertTrue(breaker.isOpen("host"));
+        Assert.assertFalse(breaker.isOpen("other"));
+        try {
+            new Retrier(policy, breaker, "host").begin();
+            Assert.fail("The circuit is open");
+        } catch (CircuitOpenException e) {
+            Assert.assertEquals("host", e.getHost());
+            Assert.assertTrue(e.getRemaining() <= 100);
+        }
+
+        // A single call probes the host once the circuit has been open long enough
+        Thread.sleep(150);
+        Retrier probe = new Retrier(policy, breaker, "host");
+        probe.begin();
+        try {
+            new Retrier(policy, breaker, "host").begin();
+            Assert.fail("The host is being probed");
+        } catch (CircuitOpenException e) {
+            // Expected
+        }
+        probe.succeeded();
+        Assert.assertFalse(breaker.isOpen("host"));
+        new Retrier(policy, breaker, "host").begin();
+    }
+
+    @Test
+    public void retryAfter() {
+        Assert.assertEquals(120000, HttpStatusException.parseRetryAfter("120"));
+        Assert.assertEquals(-1, HttpStatusException.parseRetryAfter(null));
+        Assert.assertEquals(-1, HttpStatusException.parseRetryAfter("soon"));
+        Assert.assertEquals(0, HttpStatusException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}
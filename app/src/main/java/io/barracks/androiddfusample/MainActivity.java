@@ -95,6 +95,8 @@ public class MainActivity extends AppCompatActivity {
 
         // Update Check Helper from Barracks
         updateCheckHelper = helper.getUpdateCheckHelper();
+        // Give up on a check which takes more than 30 seconds, retries included
+        updateCheckHelper.setDeadline(30 * 1000);
         updateCheckHelper.bind(this, new UpdateCheckCallback() {
             @Override
             public void onUpdateAvailable(UpdateDetailsRequest request, UpdateDetails response) {
@@ -122,6 +124,12 @@ public class MainActivity extends AppCompatActivity {
 
         // Download package Helper from Barracks
         packageDownloadHelper = helper.getPackageDownloadHelper();
+        // The package is written once, straight to the .zip file expected by the DFU library
+        packageDownloadHelper.setDirect(true);
+        // A new download never overwrites the package being installed
+        packageDownloadHelper.setDualSlot(true);
+        // Give up on a download which takes more than 10 minutes, the bytes received are kept
+        packageDownloadHelper.setDeadline(10 * 60 * 1000);
         packageDownloadHelper.bind(this, new PackageDownloadCallback() {
             @Override
             public void onDownloadSuccess(UpdateDetails details, String path) {
@@ -214,7 +222,11 @@ public class MainActivity extends AppCompatActivity {
                             versionID.setVisibility(View.VISIBLE);
 
                             // Download the given update with the Barracks packageDownloadHelper
-                            packageDownloadHelper.requestDownload((UpdateDetails) updateState.getTag());
+                            packageDownloadHelper.requestDownload(
+                                    (UpdateDetails) updateState.getTag(),
+                                    null,
+                                    new File(getFilesDir(), "update.zip").getPath()
+                            );
 
                         }
                         // Back to devices list
@@ -228,7 +240,7 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Proceed to DFU installation using the {@link no.nordicsemi.android.dfu.DfuBaseService} from Nordic
-     * Check that he target package install is a .ZIP file
+     * The package has been downloaded to a .ZIP file
      */
     public void dfuInstall() {
 
@@ -243,13 +255,7 @@ public class MainActivity extends AppCompatActivity {
                 .setKeepBond(true)
                 .setPacketsReceiptNotificationsEnabled(true);
 
-        String newPath = updatePath.substring(0, updatePath.lastIndexOf('.'));
-        newPath += ".zip";
-
-        File f = new File(updatePath);
-        f.renameTo(new File(newPath));
-
-        starter.setZip(newPath);
+        starter.setZip(updatePath);
 
         // We can use the controller to pause, resume or abort the DFU process.
         dfuServiceController = starter.start(this, DfuService.class);
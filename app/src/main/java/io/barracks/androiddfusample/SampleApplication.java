@@ -0,0 +1,27 @@
+package io.barracks.androiddfusample;
+
+import android.app.Application;
+
+import io.barracks.ota.client.helper.BarracksHelper;
+import io.barracks.ota.client.http.HedgingPolicy;
+import io.barracks.ota.client.http.HttpConfiguration;
+import io.barracks.ota.client.http.RetryPolicy;
+
+/**
+ * SampleApplication sets up the HTTP stack shared by the update checks and the package downloads,
+ * once for the whole process.
+ */
+public class SampleApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Retry the transient failures with backoff, and stop calling the platform while it is down.
+        // A check slower than 95% of the recent ones is sent again, the first answer wins.
+        BarracksHelper.setHttpConfiguration(new HttpConfiguration.Builder()
+                .retryPolicy(new RetryPolicy.Builder().build())
+                .hedgingPolicy(new HedgingPolicy.Builder().build())
+                .build());
+    }
+}